@@ -0,0 +1,227 @@
+package com.deshaw.hypercube;
+
+// Recreate with `cog -rc IntegerShmHypercube.java`
+// [[[cog
+//     import cog
+//     import numpy
+//     import primitive_shm_hypercube
+//
+//     cog.outl(primitive_shm_hypercube.generate(numpy.int32))
+// ]]]
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hypercube which has {@code int} values as its elements and stores
+ * them in a named shared-memory file, under {@code /dev/shm}.
+ *
+ * <p>A process on the same host can map the very same memory and so see, and
+ * modify, the cube's values without any copying. On the Python side this can
+ * be done using something like:
+ * <pre>
+ *    array = numpy.memmap(cube.getShmFilename(), dtype=numpy.int32, mode='r+', shape=shape, order='C')
+ * </pre>
+ * which is what PJRmi's Python client does when it is asked for the
+ * {@code numpy} array of one of these cubes and it is running on the same
+ * host.
+ *
+ * <p>Closing the cube removes its file. Any existing mappings of it, including
+ * this cube's own, remain valid until they are dropped.
+ */
+public class IntegerShmHypercube
+    extends IntegerMappedHypercube
+    implements AutoCloseable
+{
+    /**
+     * Where we create our files.
+     */
+    private static final Path SHM_DIR = Path.of("/dev/shm");
+
+    /**
+     * For making our filenames unique within this process.
+     */
+    private static final AtomicInteger ourCubeId = new AtomicInteger(0);
+
+    /**
+     * The path of our file.
+     */
+    private final Path myPath;
+
+    /**
+     * The channel which we mapped our file with.
+     */
+    private final FileChannel myChannel;
+
+    /**
+     * Whether we have been closed. Guarded by {@code this}.
+     */
+    private boolean myIsClosed;
+
+    /**
+     * Constructor which creates a cube with a new, uniquely named, file. The
+     * file is removed when the cube is closed, or when the JVM exits.
+     */
+    public IntegerShmHypercube(final Dimension<?>[] dimensions)
+        throws IllegalArgumentException,
+               IOException,
+               NullPointerException
+    {
+        this(SHM_DIR.resolve(
+                 "pjrmi-cube-" + ProcessHandle.current().pid() + "-" +
+                 ourCubeId.incrementAndGet() + "-" + System.nanoTime()
+             ),
+             true,
+             dimensions);
+    }
+
+    /**
+     * Constructor which creates a cube with the given named file, or which
+     * attaches to it if it already exists. The file is grown, if needed, to
+     * hold the cube's values.
+     *
+     * @param name  The name of the file in {@code /dev/shm}.
+     */
+    public IntegerShmHypercube(final String name,
+                                     final Dimension<?>[] dimensions)
+        throws IllegalArgumentException,
+               IOException,
+               NullPointerException
+    {
+        this(shmPath(name), false, dimensions);
+    }
+
+    /**
+     * Constructor.
+     */
+    private IntegerShmHypercube(final Path path,
+                                      final boolean deleteOnExit,
+                                      final Dimension<?>[] dimensions)
+        throws IllegalArgumentException,
+               IOException,
+               NullPointerException
+    {
+        this(path, open(path, deleteOnExit, dimensions), dimensions);
+    }
+
+    /**
+     * Constructor.
+     */
+    private IntegerShmHypercube(final Path path,
+                                      final FileChannel channel,
+                                      final Dimension<?>[] dimensions)
+        throws IllegalArgumentException,
+               IOException,
+               NullPointerException
+    {
+        super(channel, dimensions);
+
+        myPath     = path;
+        myChannel  = channel;
+        myIsClosed = false;
+    }
+
+    /**
+     * Get the full path of the file which this cube lives in, for other
+     * processes to map.
+     *
+     * @return the filename.
+     */
+    public String getShmFilename()
+    {
+        return myPath.toString();
+    }
+
+    /**
+     * Close this cube, removing its file. The cube's values remain accessible
+     * via this instance, and any other existing mappings, but no new mappings
+     * may be made.
+     */
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        if (!myIsClosed) {
+            myIsClosed = true;
+            try {
+                myChannel.close();
+            }
+            finally {
+                Files.deleteIfExists(myPath);
+            }
+        }
+    }
+
+    /**
+     * Turn a name into the path of its file in {@code /dev/shm}.
+     */
+    private static Path shmPath(final String name)
+        throws IllegalArgumentException,
+               NullPointerException
+    {
+        if (name == null) {
+            throw new NullPointerException("Given a null name");
+        }
+        if (name.isEmpty() || name.indexOf('/') >= 0 ||
+            name.equals(".") || name.equals(".."))
+        {
+            throw new IllegalArgumentException("Bad name: \"" + name + "\"");
+        }
+        return SHM_DIR.resolve(name);
+    }
+
+    /**
+     * Open the given file, making sure that it's big enough to hold a cube with
+     * the given dimensions.
+     */
+    private static FileChannel open(final Path path,
+                                    final boolean deleteOnExit,
+                                    final Dimension<?>[] dimensions)
+        throws IllegalArgumentException,
+               IOException,
+               NullPointerException
+    {
+        if (dimensions == null) {
+            throw new NullPointerException("Given null dimensions");
+        }
+        if (dimensions.length == 0) {
+            throw new IllegalArgumentException("Given empty dimensions");
+        }
+        long size = 1;
+        for (Dimension<?> dimension : dimensions) {
+            if (dimension == null) {
+                throw new NullPointerException("Given a null dimension");
+            }
+            size = Math.multiplyExact(size, dimension.length());
+        }
+        final long numBytes = Math.multiplyExact(size, (long)Integer.BYTES);
+
+        final FileChannel channel =
+            FileChannel.open(path,
+                             StandardOpenOption.CREATE,
+                             StandardOpenOption.READ,
+                             StandardOpenOption.WRITE);
+        if (deleteOnExit) {
+            path.toFile().deleteOnExit();
+        }
+        try {
+            if (channel.size() < numBytes) {
+                // Extending the file like this leaves it sparse, and zeroed
+                channel.write(ByteBuffer.allocate(1), numBytes - 1);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+}
+
+// [[[end]]] (checksum: 40bdaa34655234cf44e7c47089b40920)
@@ -6,6 +6,9 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
 /**
  * A very simple pipe of fixed length which allows users to write data in one
  * end and read it out of another. The reader or writer will block if the pipe's
@@ -15,6 +18,12 @@ import java.io.OutputStream;
  * at any given time. Reading and writing from the same thread may cause
  * deadlocks.
  *
+ * <p>Data may be moved a byte at a time or in bulk, the latter being far
+ * cheaper since the reader and writer only tell one another about their
+ * progress once per bulk operation. The head and tail counters live on their
+ * own cache lines so that the reader and writer threads do not contend on
+ * them when they are not actually waiting for one another.
+ *
  * <p>See also {@link java.io.PipedInputStream} and {@link java.io.PipedOutputStream}
  * which do roughly the same thing but more slowly.
  */
@@ -36,6 +45,33 @@ public class BlockingPipe
             return BlockingPipe.this.read();
         }
 
+        /**
+         * {@inheritDoc}
+         *
+         * <p>This will block until at least one byte is available and will
+         * then read as many as it can, up to {@code len}, without blocking
+         * further.
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            return BlockingPipe.this.read(b, off, len);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int available()
+            throws IOException
+        {
+            return BlockingPipe.this.available();
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -63,6 +99,19 @@ public class BlockingPipe
             BlockingPipe.this.write(b);
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            BlockingPipe.this.write(b, off, len);
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -75,24 +124,54 @@ public class BlockingPipe
     }
 
     /**
-     * The head of the pipe.
+     * How we access the counters with the right memory semantics.
      */
-    private volatile long myHead;
+    private static final VarHandle COUNTERS =
+        MethodHandles.arrayElementVarHandle(long[].class);
 
     /**
-     * The tail of the pipe.
+     * Where the counters live in {@link #myCounters}. Each is 128 bytes away
+     * from the other, and from the ends of the array, so that they are on
+     * different cache lines (or pairs of cache lines, for CPUs which
+     * prefetch adjacently). Next to each counter is the owning thread's cached
+     * copy of the other counter, which only it touches.
      */
-    private volatile long myTail;
+    private static final int HEAD        = 16; // Reader's
+    private static final int CACHED_TAIL = 17; // Reader's
+    private static final int TAIL        = 32; // Writer's
+    private static final int CACHED_HEAD = 33; // Writer's
+    private static final int NUM_COUNTERS = 48;
 
     /**
-     * The reader thread.
+     * How many times to spin when waiting, before parking. Spinning is
+     * pointless if we only have the one CPU.
      */
-    private volatile Thread myReader;
+    private static final int SPIN_COUNT =
+        (Runtime.getRuntime().availableProcessors() > 1) ? 1000 : 0;
 
     /**
-     * The writer thread.
+     * The longest time we park for, in nanos, before re-checking the pipe.
+     * We are usually woken before this.
      */
-    private volatile Thread myWriter;
+    private static final long PARK_NS = 100_000L;
+
+    /**
+     * The head and the tail of the pipe, as monotonically increasing byte
+     * counts, along with padding.
+     */
+    private final long[] myCounters;
+
+    /**
+     * The reader thread, and whether it's parked waiting for data.
+     */
+    private volatile Thread  myReader;
+    private volatile boolean myReaderWaiting;
+
+    /**
+     * The writer thread, and whether it's parked waiting for room.
+     */
+    private volatile Thread  myWriter;
+    private volatile boolean myWriterWaiting;
 
     /**
      * The input stream.
@@ -105,10 +184,15 @@ public class BlockingPipe
     private final OutputStream myOutput;
 
     /**
-     * The pipe itself.
+     * The pipe itself. Its length is a power of two.
      */
     private final byte[] myData;
 
+    /**
+     * {@code myData.length - 1}, for turning counters into indices.
+     */
+    private final int myMask;
+
     /**
      * Whether the pipe is closed or not.
      */
@@ -117,20 +201,23 @@ public class BlockingPipe
     /**
      * Constructor.
      *
-     * @param size  The size of the pipe.
+     * @param size  The size of the pipe. This will be rounded up to the next
+     *              power of two.
      */
     public BlockingPipe(final int size)
     {
-        if (size <= 0) {
+        if (size <= 0 || size > (1 << 30)) {
             throw new IllegalArgumentException("Bad size: " + size);
         }
 
-        myHead   = 0;
-        myTail   = 0;
-        myInput  = new Input();
-        myOutput = new Output();
-        myData   = new byte[size];
-        myClosed = false;
+        final int capacity = (size == 1) ? 1 : Integer.highestOneBit(size - 1) << 1;
+
+        myCounters = new long[NUM_COUNTERS];
+        myInput    = new Input();
+        myOutput   = new Output();
+        myData     = new byte[capacity];
+        myMask     = capacity - 1;
+        myClosed   = false;
     }
 
     /**
@@ -153,6 +240,16 @@ public class BlockingPipe
         return myOutput;
     }
 
+    /**
+     * Get the capacity of the pipe.
+     *
+     * @return the capacity, in bytes.
+     */
+    public int capacity()
+    {
+        return myData.length;
+    }
+
     /**
      * Read an unsigned byte value out.
      *
@@ -163,29 +260,77 @@ public class BlockingPipe
      */
     protected int read()
     {
-        // Wait for data to appear
-        while (myHead == myTail) {
-            // We've got no more data so this means EOF if we're closed
-            if (myClosed) {
-                return -1;
-            }
-
-            // Otherwise we wait for data
-            myReader = Thread.currentThread();
-            LockSupport.parkNanos(10000);
+        if (awaitReadable() < 0) {
+            return -1;
         }
 
-        // Read it out
-        final byte result = myData[(int)(myHead % myData.length)];
-        myHead++;
-
-        // Kick the other thread, which could be waiting
-        LockSupport.unpark(myWriter);
+        // Read it out and tell the writer
+        final long head = myCounters[HEAD];
+        final byte result = myData[(int)head & myMask];
+        publish(HEAD, head + 1);
+        if (myWriterWaiting) {
+            LockSupport.unpark(myWriter);
+        }
 
         // Give back what we read
         return Byte.toUnsignedInt(result);
     }
 
+    /**
+     * Read bytes out in bulk. This will block until at least one byte is
+     * available and will then read as many as it can, up to {@code len},
+     * without blocking further.
+     *
+     * <p>It is not safe to call this method from multiple threads.
+     *
+     * @param b    Where to read into.
+     * @param off  Where in {@code b} to start.
+     * @param len  The maximum number of bytes to read.
+     *
+     * @return the number of bytes read, or {@code -1} if end-of-file was
+     *         encountered.
+     */
+    protected int read(final byte[] b, final int off, final int len)
+    {
+        if (len == 0) {
+            return 0;
+        }
+
+        final int available = awaitReadable();
+        if (available < 0) {
+            return -1;
+        }
+
+        // Copy out what we can, in two parts if we wrap around
+        final long head  = myCounters[HEAD];
+        final int  count = Math.min(len, available);
+        final int  index = (int)head & myMask;
+        final int  first = Math.min(count, myData.length - index);
+        System.arraycopy(myData, index, b, off, first);
+        if (first < count) {
+            System.arraycopy(myData, 0, b, off + first, count - first);
+        }
+
+        // And tell the writer, once for the whole lot
+        publish(HEAD, head + count);
+        if (myWriterWaiting) {
+            LockSupport.unpark(myWriter);
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the number of bytes which may be read without blocking.
+     *
+     * @return the number of bytes in the pipe.
+     */
+    protected int available()
+    {
+        return (int)((long)COUNTERS.getAcquire(myCounters, TAIL) -
+                     myCounters[HEAD]);
+    }
+
     /**
      * Write a byte in.
      *
@@ -197,31 +342,175 @@ public class BlockingPipe
      */
     protected void write(int b)
         throws IOException
+    {
+        awaitWritable();
+
+        // Write in the byte and tell the reader
+        final long tail = myCounters[TAIL];
+        myData[(int)tail & myMask] = (byte)b;
+        publish(TAIL, tail + 1);
+        if (myReaderWaiting) {
+            LockSupport.unpark(myReader);
+        }
+    }
+
+    /**
+     * Write bytes in, in bulk. This will block until all the bytes have been
+     * written.
+     *
+     * <p>It is not safe to call this method from multiple threads.
+     *
+     * @param b    The bytes to write.
+     * @param off  Where in {@code b} to start.
+     * @param len  The number of bytes to write.
+     *
+     * @throws IOException if the pipe is closed.
+     */
+    protected void write(final byte[] b, int off, int len)
+        throws IOException
+    {
+        while (len > 0) {
+            final int free = awaitWritable();
+
+            // Copy in what we can, in two parts if we wrap around
+            final long tail  = myCounters[TAIL];
+            final int  count = Math.min(len, free);
+            final int  index = (int)tail & myMask;
+            final int  first = Math.min(count, myData.length - index);
+            System.arraycopy(b, off, myData, index, first);
+            if (first < count) {
+                System.arraycopy(b, off + first, myData, 0, count - first);
+            }
+
+            // And tell the reader, once for this chunk
+            publish(TAIL, tail + count);
+            if (myReaderWaiting) {
+                LockSupport.unpark(myReader);
+            }
+
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Close the pipe.
+     */
+    protected void close()
+    {
+        myClosed = true;
+
+        // Anyone waiting needs to know
+        LockSupport.unpark(myReader);
+        LockSupport.unpark(myWriter);
+    }
+
+    /**
+     * Wait for there to be data to read.
+     *
+     * @return the number of bytes available, or {@code -1} if the pipe is
+     *         empty and closed.
+     */
+    private int awaitReadable()
+    {
+        // Only look at what the writer has done if it looks like we need to
+        final long head = myCounters[HEAD];
+        long tail = myCounters[CACHED_TAIL];
+        if (tail != head) {
+            return (int)(tail - head);
+        }
+
+        for (int spins = 0; ; spins++) {
+            tail = (long)COUNTERS.getAcquire(myCounters, TAIL);
+            if (tail != head) {
+                myCounters[CACHED_TAIL] = tail;
+                return (int)(tail - head);
+            }
+
+            // We've got no more data so this means EOF if we're closed. We
+            // need to check again in case the writer wrote just before
+            // closing.
+            if (myClosed) {
+                tail = (long)COUNTERS.getAcquire(myCounters, TAIL);
+                myCounters[CACHED_TAIL] = tail;
+                return (tail == head) ? -1 : (int)(tail - head);
+            }
+
+            // Otherwise we wait for data, checking again after we flag that
+            // we're waiting so as not to miss a wakeup
+            if (spins < SPIN_COUNT) {
+                Thread.onSpinWait();
+            }
+            else {
+                myReader        = Thread.currentThread();
+                myReaderWaiting = true;
+                if ((long)COUNTERS.getVolatile(myCounters, TAIL) == head &&
+                    !myClosed)
+                {
+                    LockSupport.parkNanos(PARK_NS);
+                }
+                myReaderWaiting = false;
+            }
+        }
+    }
+
+    /**
+     * Wait for there to be room to write into.
+     *
+     * @return the number of bytes free.
+     *
+     * @throws IOException if the pipe is closed.
+     */
+    private int awaitWritable()
+        throws IOException
     {
         // Can't write to a closed pipe
         if (myClosed) {
             throw new IOException("Broken pipe");
         }
 
-        // Wait for the pipe to have room
-        while (myTail - myHead >= myData.length) {
-            myWriter = Thread.currentThread();
-            LockSupport.parkNanos(10000);
+        // Only look at what the reader has done if it looks like we need to
+        final long tail = myCounters[TAIL];
+        long head = myCounters[CACHED_HEAD];
+        if (tail - head < myData.length) {
+            return (int)(myData.length - (tail - head));
         }
 
-        // Write in the byte
-        myData[(int)(myTail % myData.length)] = (byte)b;
-        myTail++;
+        for (int spins = 0; ; spins++) {
+            head = (long)COUNTERS.getAcquire(myCounters, HEAD);
+            if (tail - head < myData.length) {
+                myCounters[CACHED_HEAD] = head;
+                return (int)(myData.length - (tail - head));
+            }
+            if (myClosed) {
+                throw new IOException("Broken pipe");
+            }
 
-        // Kick the other thread if it's waiting
-        LockSupport.unpark(myReader);
+            // Wait for room, checking again after we flag that we're waiting
+            // so as not to miss a wakeup
+            if (spins < SPIN_COUNT) {
+                Thread.onSpinWait();
+            }
+            else {
+                myWriter        = Thread.currentThread();
+                myWriterWaiting = true;
+                if (tail - (long)COUNTERS.getVolatile(myCounters, HEAD) >= myData.length &&
+                    !myClosed)
+                {
+                    LockSupport.parkNanos(PARK_NS);
+                }
+                myWriterWaiting = false;
+            }
+        }
     }
 
     /**
-     * Close the pipe.
+     * Publish a new value for one of the counters. This is a volatile write so
+     * that our subsequent read of the other side's waiting flag can't be
+     * reordered before it.
      */
-    protected void close()
+    private void publish(final int which, final long value)
     {
-        myClosed = true;
+        COUNTERS.setVolatile(myCounters, which, value);
     }
 }
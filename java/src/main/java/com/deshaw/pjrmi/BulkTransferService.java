@@ -0,0 +1,850 @@
+package com.deshaw.pjrmi;
+
+import com.deshaw.hypercube.BooleanBitSetHypercube;
+import com.deshaw.hypercube.Dimension;
+import com.deshaw.hypercube.DoubleArrayHypercube;
+import com.deshaw.hypercube.FloatArrayHypercube;
+import com.deshaw.hypercube.Hypercube;
+import com.deshaw.hypercube.IntegerArrayHypercube;
+import com.deshaw.hypercube.LongArrayHypercube;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A side channel for moving large arrays, and hypercubes, from a client to the
+ * server over a number of extra sockets, in parallel.
+ *
+ * <p>When a client wants to send a large payload it first asks the server for
+ * the details of this service, via its main connection. It then opens a number
+ * of sockets to our port, identifying itself with the secret token which it
+ * was given. Each payload is given an ID by the client and its byte range is
+ * split across the sockets. Each part is read straight into its slice of the
+ * destination, so that the payload is never reassembled in an intermediate
+ * buffer. The message which refers to the payload, and which says what it
+ * should turn into, is still sent over the main connection; all the side
+ * channels carry is raw bytes.
+ *
+ * <p>Each part on a side channel has the form:
+ * <pre>
+ *   int64  : Transfer ID
+ *   int32  : The ID of the request, on the main connection, which refers to it
+ *   int64  : The offset of the part, in bytes
+ *   int64  : The length of the part, in bytes
+ *   byte[] : The data
+ * </pre>
+ *
+ * <p>The request ID lets a side channel know when a part will never be asked
+ * for, since the request which referred to it has been handled without doing
+ * so (e.g. because an earlier argument was bad). Such parts are discarded
+ * straight away, rather than holding up everything behind them on the channel.
+ * The connection tells us about its requests via {@link
+ * Endpoint#requestReceived(int)} and {@link Endpoint#requestDone(int)}.
+ *
+ * <p>Note that the side channels are raw sockets and so their contents are
+ * not encrypted, even if the main connection is. The token only ensures that
+ * the bytes wind up on the right connection.
+ */
+/*package*/ class BulkTransferService
+{
+    /**
+     * Our logger.
+     */
+    private static final Logger LOG = PJRmi.LOG;
+
+    /**
+     * How long, in millis, we wait for a new side channel to identify itself.
+     */
+    private static final int HELLO_TIMEOUT_MS = 10_000;
+
+    /**
+     * How long, in millis, a transfer may go without making any progress
+     * before we give up on it. This also bounds the time that a side channel
+     * will wait for the main connection to tell us about a transfer before
+     * the data on it is discarded.
+     */
+    private static final long PROGRESS_TIMEOUT_MS = 30_000;
+
+    /**
+     * How many bytes we read from a side channel at a time.
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * How the destination of a transfer accepts the data.
+     */
+    @FunctionalInterface
+    private static interface Sink
+    {
+        /**
+         * Copy the given number of elements out of the given buffer, which
+         * will have the correct byte order, into the destination, starting at
+         * the given element index.
+         */
+        public void put(long index, ByteBuffer buffer, int count);
+    }
+
+    /**
+     * A single payload which is in flight.
+     */
+    private static class Transfer
+    {
+        /**
+         * The size of the transfer, in bytes.
+         */
+        private final long mySize;
+
+        /**
+         * The size of each element, in bytes.
+         */
+        private final int myElementSize;
+
+        /**
+         * The byte order of the incoming data.
+         */
+        private final ByteOrder myByteOrder;
+
+        /**
+         * Where the data goes.
+         */
+        private final Sink mySink;
+
+        /**
+         * The byte ranges of the parts which we have been sent, as a mapping
+         * from their offset to their end. Guarded by {@code this}.
+         */
+        private final TreeMap<Long,Long> myParts;
+
+        /**
+         * How many bytes we have received so far.
+         */
+        private long myReceived;
+
+        /**
+         * When we last made progress, per the wall clock.
+         */
+        private long myLastProgressMs;
+
+        /**
+         * Why the transfer failed, if it did.
+         */
+        private IOException myError;
+
+        /**
+         * CTOR.
+         */
+        public Transfer(final long      size,
+                        final int       elementSize,
+                        final ByteOrder byteOrder,
+                        final Sink      sink)
+        {
+            mySize           = size;
+            myElementSize    = elementSize;
+            myByteOrder      = byteOrder;
+            mySink           = sink;
+            myParts          = new TreeMap<>();
+            myReceived       = 0;
+            myLastProgressMs = System.currentTimeMillis();
+            myError          = null;
+        }
+
+        /**
+         * Read a part of the payload from the given stream.
+         */
+        public void receive(final InputStream in,
+                            final long        offset,
+                            final long        length,
+                            final byte[]      chunk)
+            throws IOException
+        {
+            // Make sure that the part makes sense. We are careful not to
+            // overflow here since these values come off the wire.
+            if (offset < 0 || length < 0 || offset > mySize - length ||
+                offset % myElementSize != 0 || length % myElementSize != 0)
+            {
+                throw new IOException(
+                    "Bad part of " + length + " bytes at offset " + offset +
+                    " for a transfer of " + mySize + " bytes, " +
+                    "with elements of " + myElementSize + " bytes"
+                );
+            }
+            claim(offset, length);
+
+            // Read it in, handing whole elements to the sink as we get them.
+            // Any partial element is carried over to the front of the chunk.
+            long index     = offset / myElementSize;
+            long remaining = length;
+            int  pending   = 0;
+            while (remaining > 0) {
+                final int read =
+                    in.read(chunk,
+                            pending,
+                            (int)Math.min(chunk.length - pending, remaining));
+                if (read < 0) {
+                    throw new EOFException(
+                        "Side channel closed with " + remaining + " bytes " +
+                        "of the part outstanding"
+                    );
+                }
+                pending   += read;
+                remaining -= read;
+
+                final int count = pending / myElementSize;
+                if (count > 0) {
+                    final int used = count * myElementSize;
+                    mySink.put(index,
+                               ByteBuffer.wrap(chunk, 0, used).order(myByteOrder),
+                               count);
+                    index   += count;
+                    pending -= used;
+                    System.arraycopy(chunk, used, chunk, 0, pending);
+                    progress(used);
+                }
+            }
+        }
+
+        /**
+         * Wait for the transfer to complete.
+         */
+        public synchronized void await()
+            throws IOException
+        {
+            while (myReceived < mySize && myError == null) {
+                final long timeout =
+                    myLastProgressMs + PROGRESS_TIMEOUT_MS -
+                    System.currentTimeMillis();
+                if (timeout <= 0) {
+                    myError = new IOException(
+                        "Transfer timed out with " + myReceived + "/" +
+                        mySize + " bytes received"
+                    );
+                    break;
+                }
+                try {
+                    wait(timeout);
+                }
+                catch (InterruptedException e) {
+                    throw new IOException("Interrupted awaiting transfer", e);
+                }
+            }
+            if (myError != null) {
+                throw myError;
+            }
+        }
+
+        /**
+         * Mark the transfer as having failed.
+         */
+        public synchronized void fail(final IOException error)
+        {
+            if (myError == null) {
+                myError = error;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Claim the given byte range for a part which we are about to read.
+         * Parts may not overlap, else a repeated one could make it look like
+         * we had all the data when we didn't.
+         */
+        private synchronized void claim(final long offset, final long length)
+            throws IOException
+        {
+            final Map.Entry<Long,Long> before = myParts.floorEntry(offset);
+            final Long                 after  = myParts.ceilingKey(offset);
+            if ((before != null && before.getValue() > offset) ||
+                (after  != null && after < offset + length))
+            {
+                throw new IOException(
+                    "Part of " + length + " bytes at offset " + offset + " " +
+                    "overlaps with one which was already sent"
+                );
+            }
+            myParts.put(offset, offset + length);
+        }
+
+        /**
+         * Note that we got the given number of bytes.
+         */
+        private synchronized void progress(final int count)
+        {
+            myReceived += count;
+            myLastProgressMs = System.currentTimeMillis();
+            if (myReceived >= mySize) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * The server end of a client's side channels.
+     */
+    /*package*/ class Endpoint
+    {
+        /**
+         * The secret which the client uses to identify its side channels.
+         */
+        private final long myToken;
+
+        /**
+         * The transfers which we are expecting, keyed by their ID. This is
+         * also what we synchronize on.
+         */
+        private final Map<Long,Transfer> myTransfers;
+
+        /**
+         * The side channels' sockets.
+         */
+        private final List<Socket> mySockets;
+
+        /**
+         * The IDs of the requests which the connection has received but not
+         * yet finished handling. Guarded by {@code myTransfers}.
+         */
+        private final Set<Integer> myActiveRequests;
+
+        /**
+         * The ID of the last request which the connection received, or -1 if
+         * there has not been one yet. Guarded by {@code myTransfers}.
+         */
+        private int myLastRequestId;
+
+        /**
+         * Whether we have been closed.
+         */
+        private boolean myIsClosed;
+
+        /**
+         * CTOR.
+         */
+        private Endpoint(final long token)
+        {
+            myToken          = token;
+            myTransfers      = new HashMap<>();
+            mySockets        = new ArrayList<>();
+            myActiveRequests = new HashSet<>();
+            myLastRequestId  = -1;
+            myIsClosed       = false;
+        }
+
+        /**
+         * Get the token which the client should use.
+         *
+         * @return the token.
+         */
+        public long getToken()
+        {
+            return myToken;
+        }
+
+        /**
+         * Note that the connection has received the given request, and is
+         * about to handle it. This must be called in the order in which the
+         * requests were received.
+         *
+         * @param requestId  The ID of the request.
+         */
+        public void requestReceived(final int requestId)
+        {
+            synchronized (myTransfers) {
+                myActiveRequests.add(requestId);
+                myLastRequestId = requestId;
+            }
+        }
+
+        /**
+         * Note that the connection has finished with the given request, which
+         * it said that it had received. Any parts which the request referred
+         * to, but which it did not ask for, will be discarded.
+         *
+         * @param requestId  The ID of the request.
+         */
+        public void requestDone(final int requestId)
+        {
+            synchronized (myTransfers) {
+                if (myActiveRequests.remove(requestId)) {
+                    myTransfers.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Receive an array, or a hypercube, from the side channels. This
+         * blocks until the transfer has completed.
+         *
+         * @param transferId  The client's ID for the transfer.
+         * @param type        The element type, per the {@link JniPJRmi} type
+         *                    characters.
+         * @param byteOrder   The byte order which the data is in.
+         * @param shape       The shape of the payload.
+         * @param asCube      Whether to create a {@link Hypercube}, rather than
+         *                    a one-dimensional array.
+         *
+         * @return the array or cube.
+         *
+         * @throws IOException if the transfer failed.
+         */
+        public Object receive(final long      transferId,
+                              final char      type,
+                              final ByteOrder byteOrder,
+                              final long[]    shape,
+                              final boolean   asCube)
+            throws IOException
+        {
+            // Figure out the size of the thing
+            long size = 1;
+            for (long length : shape) {
+                if (length < 0) {
+                    throw new IllegalArgumentException(
+                        "Bad shape: " + Arrays.toString(shape)
+                    );
+                }
+                size *= length;
+            }
+            if (!asCube && (shape.length != 1 || size > Integer.MAX_VALUE)) {
+                throw new IllegalArgumentException(
+                    "Can't create an array with shape " +
+                    Arrays.toString(shape)
+                );
+            }
+
+            // Create the destination, and how we copy into it
+            final Object result;
+            final int    elementSize;
+            final Sink   sink;
+            if (asCube) {
+                final Dimension<?>[] dims = Dimension.of(shape);
+                final Hypercube<?> cube;
+                switch (type) {
+                case 'z': cube = new BooleanBitSetHypercube(dims); elementSize = 1;             break;
+                case 'i': cube = new IntegerArrayHypercube (dims); elementSize = Integer.BYTES; break;
+                case 'j': cube = new LongArrayHypercube    (dims); elementSize = Long.BYTES;    break;
+                case 'f': cube = new FloatArrayHypercube   (dims); elementSize = Float.BYTES;   break;
+                case 'd': cube = new DoubleArrayHypercube  (dims); elementSize = Double.BYTES;  break;
+                default:
+                    throw new UnsupportedOperationException(
+                        "Can't create a hypercube of type '" + type + "'"
+                    );
+                }
+                result = cube;
+
+                // Bits share words so the boolean cube can't be written to by
+                // more than one side channel at once
+                sink = (type == 'z')
+                    ? (index, buf, count) -> {
+                          synchronized (cube) {
+                              cube.fromFlattened(index, count, buf);
+                          }
+                      }
+                    : (index, buf, count) -> cube.fromFlattened(index, count, buf);
+            }
+            else {
+                final int length = (int)size;
+                switch (type) {
+                case 'z': {
+                    final boolean[] array = new boolean[length];
+                    elementSize = 1;
+                    sink = (index, buf, count) -> {
+                        for (int i=0; i < count; i++) {
+                            array[(int)index + i] = (buf.get() != 0);
+                        }
+                    };
+                    result = array;
+                }   break;
+
+                case 'b': {
+                    final byte[] array = new byte[length];
+                    elementSize = Byte.BYTES;
+                    sink = (index, buf, count) -> buf.get(array, (int)index, count);
+                    result = array;
+                }   break;
+
+                case 's': {
+                    final short[] array = new short[length];
+                    elementSize = Short.BYTES;
+                    sink = (index, buf, count) ->
+                        buf.asShortBuffer().get(array, (int)index, count);
+                    result = array;
+                }   break;
+
+                case 'i': {
+                    final int[] array = new int[length];
+                    elementSize = Integer.BYTES;
+                    sink = (index, buf, count) ->
+                        buf.asIntBuffer().get(array, (int)index, count);
+                    result = array;
+                }   break;
+
+                case 'j': {
+                    final long[] array = new long[length];
+                    elementSize = Long.BYTES;
+                    sink = (index, buf, count) ->
+                        buf.asLongBuffer().get(array, (int)index, count);
+                    result = array;
+                }   break;
+
+                case 'f': {
+                    final float[] array = new float[length];
+                    elementSize = Float.BYTES;
+                    sink = (index, buf, count) ->
+                        buf.asFloatBuffer().get(array, (int)index, count);
+                    result = array;
+                }   break;
+
+                case 'd': {
+                    final double[] array = new double[length];
+                    elementSize = Double.BYTES;
+                    sink = (index, buf, count) ->
+                        buf.asDoubleBuffer().get(array, (int)index, count);
+                    result = array;
+                }   break;
+
+                default:
+                    throw new UnsupportedOperationException(
+                        "Can't create an array of type '" + type + "'"
+                    );
+                }
+            }
+
+            // Nothing to wait for if it's empty
+            if (size == 0) {
+                return result;
+            }
+
+            // Tell the side channels about it, and wait for them to fill it in
+            final Transfer transfer =
+                new Transfer(size * elementSize, elementSize, byteOrder, sink);
+            synchronized (myTransfers) {
+                if (myIsClosed) {
+                    throw new IOException("Side channels are closed");
+                }
+                if (myTransfers.putIfAbsent(transferId, transfer) != null) {
+                    throw new IllegalArgumentException(
+                        "Duplicate transfer ID: " + transferId
+                    );
+                }
+                myTransfers.notifyAll();
+            }
+            try {
+                transfer.await();
+            }
+            finally {
+                synchronized (myTransfers) {
+                    myTransfers.remove(transferId);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Close the side channels, failing any transfers which are in flight.
+         */
+        public void close()
+        {
+            myEndpoints.remove(myToken);
+
+            final List<Socket>   sockets;
+            final List<Transfer> transfers;
+            synchronized (myTransfers) {
+                myIsClosed = true;
+                sockets    = new ArrayList<>(mySockets);
+                transfers  = new ArrayList<>(myTransfers.values());
+                myTransfers.notifyAll();
+            }
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                }
+                catch (IOException e) {
+                    // Nothing
+                }
+            }
+            for (Transfer transfer : transfers) {
+                transfer.fail(new IOException("Side channels were closed"));
+            }
+        }
+
+        /**
+         * Add a side channel, and start reading from it.
+         */
+        private void add(final Socket socket, final int index)
+            throws IOException
+        {
+            synchronized (myTransfers) {
+                if (myIsClosed) {
+                    throw new IOException("Side channels are closed");
+                }
+                mySockets.add(socket);
+            }
+
+            final Thread reader = new Thread(
+                () -> read(socket),
+                "BulkTransfer-" + socket.getRemoteSocketAddress() + "#" + index
+            );
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Read parts from the given side channel until it closes.
+         */
+        private void read(final Socket socket)
+        {
+            final byte[] chunk = new byte[CHUNK_SIZE];
+            Transfer transfer = null;
+            try {
+                final DataInputStream in =
+                    new DataInputStream(socket.getInputStream());
+                while (true) {
+                    final long transferId;
+                    try {
+                        transferId = in.readLong();
+                    }
+                    catch (EOFException e) {
+                        // The client went away
+                        break;
+                    }
+                    final int  requestId = in.readInt();
+                    final long offset    = in.readLong();
+                    final long length    = in.readLong();
+
+                    transfer = awaitTransfer(transferId, requestId);
+                    if (transfer == null) {
+                        // No-one wanted it, or we were closed, so drop it on
+                        // the floor
+                        if (LOG.isLoggable(Level.FINE)) {
+                            LOG.fine(
+                                "Discarding " + length + " bytes " +
+                                "for unknown transfer " + transferId + " " +
+                                "of request " + requestId
+                            );
+                        }
+                        for (long left = length; left > 0; ) {
+                            final int read =
+                                in.read(chunk,
+                                        0,
+                                        (int)Math.min(chunk.length, left));
+                            if (read < 0) {
+                                throw new EOFException();
+                            }
+                            left -= read;
+                        }
+                    }
+                    else {
+                        transfer.receive(in, offset, length, chunk);
+                        transfer = null;
+                    }
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Side channel failed: " + e);
+                }
+                if (transfer != null) {
+                    transfer.fail(
+                        (e instanceof IOException)
+                            ? (IOException)e
+                            : new IOException("Failed to receive part", e)
+                    );
+                }
+            }
+            finally {
+                synchronized (myTransfers) {
+                    mySockets.remove(socket);
+                }
+                try {
+                    socket.close();
+                }
+                catch (IOException e) {
+                    // Nothing
+                }
+            }
+        }
+
+        /**
+         * Wait for the main connection to tell us about the given transfer,
+         * which the given request referred to.
+         *
+         * @return the transfer, or {@code null} if it never showed up.
+         */
+        private Transfer awaitTransfer(final long transferId,
+                                       final int  requestId)
+            throws IOException
+        {
+            final long end = System.currentTimeMillis() + PROGRESS_TIMEOUT_MS;
+            synchronized (myTransfers) {
+                while (!myIsClosed) {
+                    final Transfer transfer = myTransfers.get(transferId);
+                    if (transfer != null) {
+                        return transfer;
+                    }
+
+                    // If the request has been and gone then no-one is going
+                    // to ask for this
+                    if (requestId <= myLastRequestId &&
+                        !myActiveRequests.contains(requestId))
+                    {
+                        break;
+                    }
+
+                    final long timeout = end - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        break;
+                    }
+                    try {
+                        myTransfers.wait(timeout);
+                    }
+                    catch (InterruptedException e) {
+                        throw new IOException("Interrupted", e);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------- //
+
+    /**
+     * How we create the tokens.
+     */
+    private final SecureRandom myRandom;
+
+    /**
+     * Where the side channels come in.
+     */
+    private final ServerSocket myServerSocket;
+
+    /**
+     * The endpoints, keyed by their token.
+     */
+    private final Map<Long,Endpoint> myEndpoints;
+
+    /**
+     * CTOR.
+     *
+     * @param port  The port to listen on, or zero for any free one.
+     *
+     * @throws IOException if there was a problem.
+     */
+    public BulkTransferService(final int port)
+        throws IOException
+    {
+        myRandom       = new SecureRandom();
+        myServerSocket = new ServerSocket(port);
+        myEndpoints    = new ConcurrentHashMap<>();
+
+        final Thread acceptor = new Thread(this::acceptLoop,
+                                           "BulkTransfer:" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Get the port which we are listening on.
+     *
+     * @return the port.
+     */
+    public int getPort()
+    {
+        return myServerSocket.getLocalPort();
+    }
+
+    /**
+     * Create a new endpoint, for a connection.
+     *
+     * @return the endpoint.
+     */
+    public Endpoint newEndpoint()
+    {
+        while (true) {
+            final Endpoint endpoint = new Endpoint(myRandom.nextLong());
+            if (myEndpoints.putIfAbsent(endpoint.getToken(), endpoint) == null) {
+                return endpoint;
+            }
+        }
+    }
+
+    /**
+     * Stop accepting side channels.
+     *
+     * @throws IOException if there was a problem.
+     */
+    public void close()
+        throws IOException
+    {
+        myServerSocket.close();
+    }
+
+    /**
+     * Accept side channels and hand them to their endpoints.
+     */
+    private void acceptLoop()
+    {
+        while (!myServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = myServerSocket.accept();
+            }
+            catch (IOException e) {
+                if (!myServerSocket.isClosed()) {
+                    LOG.warning("Failed to accept bulk-transfer channel: " + e);
+                }
+                continue;
+            }
+
+            // The hello is small so we read it here, but we don't let a
+            // client which doesn't send it hold us up for long
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(HELLO_TIMEOUT_MS);
+                final DataInputStream in =
+                    new DataInputStream(socket.getInputStream());
+                final long token = in.readLong();
+                final int  index = in.readInt();
+                socket.setSoTimeout(0);
+
+                final Endpoint endpoint = myEndpoints.get(token);
+                if (endpoint == null) {
+                    throw new IOException("Unknown token");
+                }
+                endpoint.add(socket, index);
+            }
+            catch (IOException e) {
+                LOG.warning(
+                    "Rejecting bulk-transfer channel from " +
+                    socket.getRemoteSocketAddress() + ": " + e
+                );
+                try {
+                    socket.close();
+                }
+                catch (IOException ee) {
+                    // Nothing
+                }
+            }
+        }
+    }
+}
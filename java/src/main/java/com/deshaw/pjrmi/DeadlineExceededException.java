@@ -0,0 +1,22 @@
+package com.deshaw.pjrmi;
+
+/**
+ * An exception which is sent back to a client when its request was dropped,
+ * without being handled, because the deadline which the client gave it had
+ * passed.
+ */
+public class DeadlineExceededException
+    extends RuntimeException
+{
+    private static final long serialVersionUID = -3867172116269610967L;
+
+    /**
+     * Constructor with a message.
+     *
+     * @param message  The exception message.
+     */
+    public DeadlineExceededException(final String message)
+    {
+        super(message);
+    }
+}
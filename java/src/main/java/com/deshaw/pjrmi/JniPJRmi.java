@@ -1,9 +1,19 @@
 package com.deshaw.pjrmi;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
 import java.lang.management.ManagementFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,6 +27,29 @@ public class JniPJRmi
      */
     private static final Logger LOG = Logger.getLogger("com.deshaw.pjrmi.JniPJRmi");
 
+    /**
+     * The magic bytes at the start of each file, including the trailing NUL,
+     * which must match the native code's {@code HEADER_BYTES}. These are
+     * followed by the type character and then the array's elements.
+     */
+    private static final byte[] HEADER_BYTES =
+        "SHMARRY\0".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Where the array's elements start in each file.
+     */
+    private static final int DATA_OFFSET = HEADER_BYTES.length + 1;
+
+    /**
+     * Where we create the files for the arrays which we copy in parallel.
+     */
+    private static final File SHM_DIR = new File("/dev/shm");
+
+    /**
+     * For making our filenames unique within this process.
+     */
+    private static final AtomicInteger ourFileId = new AtomicInteger(0);
+
     /**
      * Whether we successfully loaded the native library.
      */
@@ -122,6 +155,9 @@ public class JniPJRmi
                OutOfMemoryError
     {
         if (ourLoadedLibrary) {
+            if (isLarge(array.length, 'z')) {
+                return writeArrayInParallel(array, 'z', array.length);
+            }
             ArrayHandle result = new JniPJRmi.ArrayHandle();
             nativePutBooleanArray(array, result);
             return result;
@@ -151,6 +187,9 @@ public class JniPJRmi
                OutOfMemoryError
     {
         if (ourLoadedLibrary) {
+            if (isLarge(array.length, 'b')) {
+                return writeArrayInParallel(array, 'b', array.length);
+            }
             ArrayHandle result = new JniPJRmi.ArrayHandle();
             nativePutByteArray(array, result);
             return result;
@@ -180,6 +219,9 @@ public class JniPJRmi
                OutOfMemoryError
     {
         if (ourLoadedLibrary) {
+            if (isLarge(array.length, 's')) {
+                return writeArrayInParallel(array, 's', array.length);
+            }
             ArrayHandle result = new JniPJRmi.ArrayHandle();
             nativePutShortArray(array, result);
             return result;
@@ -209,6 +251,9 @@ public class JniPJRmi
                OutOfMemoryError
     {
         if (ourLoadedLibrary) {
+            if (isLarge(array.length, 'i')) {
+                return writeArrayInParallel(array, 'i', array.length);
+            }
             ArrayHandle result = new JniPJRmi.ArrayHandle();
             nativePutIntegerArray(array, result);
             return result;
@@ -238,6 +283,9 @@ public class JniPJRmi
                OutOfMemoryError
     {
         if (ourLoadedLibrary) {
+            if (isLarge(array.length, 'j')) {
+                return writeArrayInParallel(array, 'j', array.length);
+            }
             ArrayHandle result = new JniPJRmi.ArrayHandle();
             nativePutLongArray(array, result);
             return result;
@@ -267,6 +315,9 @@ public class JniPJRmi
                OutOfMemoryError
     {
         if (ourLoadedLibrary) {
+            if (isLarge(array.length, 'f')) {
+                return writeArrayInParallel(array, 'f', array.length);
+            }
             ArrayHandle result = new JniPJRmi.ArrayHandle();
             nativePutFloatArray(array, result);
             return result;
@@ -296,6 +347,9 @@ public class JniPJRmi
                OutOfMemoryError
     {
         if (ourLoadedLibrary) {
+            if (isLarge(array.length, 'd')) {
+                return writeArrayInParallel(array, 'd', array.length);
+            }
             ArrayHandle result = new JniPJRmi.ArrayHandle();
             nativePutDoubleArray(array, result);
             return result;
@@ -370,6 +424,13 @@ public class JniPJRmi
                 throw new IllegalArgumentException("Invalid input value");
             }
 
+            // Big arrays are copied out in parallel, in bounded chunks
+            if (isLarge(numElems, input.type)) {
+                final Object result = ShmCopier.newArray(input.type, numElems);
+                readArrayInParallel(filename, input.type, result, numElems);
+                return result;
+            }
+
             // JNI uses char identifiers for each type.
             if (nativeIsBooleanArrayType(input.type)) {
                 boolean[] resultBoolean = new boolean[numElems];
@@ -413,6 +474,131 @@ public class JniPJRmi
         return null;
     }
 
+    /**
+     * Whether an array is big enough that we should copy it in parallel,
+     * instead of in one go via the native methods.
+     */
+    private static boolean isLarge(final int numElems, final char type)
+    {
+        return "zbsijfd".indexOf(type) >= 0 &&
+               (long)numElems * ShmCopier.getElementSize(type) >=
+                   ShmCopier.PARALLEL_THRESHOLD;
+    }
+
+    /**
+     * Write the given array into a new file, in the same format as the native
+     * methods do, using the {@link ShmCopier}. The native methods copy the
+     * entire array in one go, which can hold up the JVM for a long time when
+     * it is large.
+     */
+    private static ArrayHandle writeArrayInParallel(final Object array,
+                                                    final char   type,
+                                                    final int    numElems)
+        throws IOException,
+               OutOfMemoryError
+    {
+        final int  elemSize = ShmCopier.getElementSize(type);
+        final long numBytes = (long)numElems * elemSize;
+
+        final File file =
+            new File(SHM_DIR,
+                     "pjrmi-array-" + ProcessHandle.current().pid() + "-" +
+                     ourFileId.incrementAndGet() + "-" + System.nanoTime());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (Files.getFileStore(file.toPath()).getUsableSpace() < numBytes) {
+                throw new OutOfMemoryError(
+                    "Not enough space in " + SHM_DIR + " for " + numBytes + " bytes"
+                );
+            }
+            raf.setLength(DATA_OFFSET + numBytes);
+
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer header =
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET);
+            header.put(HEADER_BYTES);
+            header.put((byte)type);
+
+            ShmCopier.copy(
+                numElems,
+                elemSize,
+                (start, end) -> {
+                    final ByteBuffer buffer =
+                        channel.map(FileChannel.MapMode.READ_WRITE,
+                                    DATA_OFFSET + start * elemSize,
+                                    (end - start) * elemSize);
+                    buffer.order(ByteOrder.nativeOrder());
+                    ShmCopier.put(buffer, type, array, (int)start, (int)(end - start));
+                }
+            );
+        }
+        catch (IOException | RuntimeException | Error e) {
+            file.delete();
+            throw e;
+        }
+
+        return new ArrayHandle(file.getPath(), numElems, type);
+    }
+
+    /**
+     * Read the given file, in the format which the native methods use, into
+     * the given array using the {@link ShmCopier}, and then remove it.
+     */
+    private static void readArrayInParallel(final String filename,
+                                            final char   type,
+                                            final Object result,
+                                            final int    numElems)
+        throws IOException
+    {
+        final int  elemSize = ShmCopier.getElementSize(type);
+        final long numBytes = (long)numElems * elemSize;
+
+        final File file = new File(filename);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < DATA_OFFSET + numBytes) {
+                throw new IOException(
+                    "File " + filename + " is too small for " + numElems + " " +
+                    "elements of type '" + type + "'"
+                );
+            }
+
+            // Make sure that it's what we expect
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer header =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, DATA_OFFSET);
+            final byte[] magic = new byte[HEADER_BYTES.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, HEADER_BYTES)) {
+                throw new IOException(
+                    "The magic bytes in file " + filename + " do not match"
+                );
+            }
+            final char fileType = (char)header.get();
+            if (fileType != type) {
+                throw new IOException(
+                    "The read type is '" + fileType + "' but the expected " +
+                    "type is '" + type + "' in file " + filename
+                );
+            }
+
+            ShmCopier.copy(
+                numElems,
+                elemSize,
+                (start, end) -> {
+                    final ByteBuffer buffer =
+                        channel.map(FileChannel.MapMode.READ_ONLY,
+                                    DATA_OFFSET + start * elemSize,
+                                    (end - start) * elemSize);
+                    buffer.order(ByteOrder.nativeOrder());
+                    ShmCopier.get(buffer, type, result, (int)start, (int)(end - start));
+                }
+            );
+        }
+        finally {
+            // It's up to the reader to remove the file
+            file.delete();
+        }
+    }
+
     // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - //
 
     /*
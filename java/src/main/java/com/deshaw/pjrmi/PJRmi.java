@@ -31,6 +31,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -59,6 +60,13 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -74,11 +82,15 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -699,8 +711,8 @@ public abstract class PJRmi
     {
         NONE                 ((byte) '\0',false), // Effectively "null"
         INSTANCE_REQUEST     ((byte) 'A', false), // Client to server
-        ADD_REFERENCE        ((byte) 'B', false), // Client to server & Server to client
-        DROP_REFERENCES      ((byte) 'C', false), // Client to server & Server to client
+        ADD_REFERENCE        ((byte) 'B', false, true), // Client to server & Server to client
+        DROP_REFERENCES      ((byte) 'C', false, true), // Client to server & Server to client
         TYPE_REQUEST         ((byte) 'D', false), // Client to server
         METHOD_CALL          ((byte) 'E', true ), // Client to server
         TO_STRING            ((byte) 'F', true ), // Client to server
@@ -710,15 +722,20 @@ public abstract class PJRmi
         NEW_ARRAY_INSTANCE   ((byte) 'J', false), // Client to server
         OBJECT_CAST          ((byte) 'K', false), // Client to server
         LOCK                 ((byte) 'L', false), // Client to server
-        UNLOCK               ((byte) 'M', false), // Client to server
+        UNLOCK               ((byte) 'M', false, true), // Client to server
         INJECT_CLASS         ((byte) 'N', false), // Client to server
         GET_VALUE_OF         ((byte) 'O', true ), // Client to server
         GET_CALLBACK_HANDLE  ((byte) 'P', false), // Client to server
-        CALLBACK_RESPONSE    ((byte) 'Q', false), // Client to server
+        CALLBACK_RESPONSE    ((byte) 'Q', false, true), // Client to server
         GET_PROXY            ((byte) 'R', false), // Client to server
         INVOKE_AND_GET_OBJECT((byte) 'S', false), // Client to server
         INJECT_SOURCE        ((byte) 'T', false), // Client to server
         REPLACE_CLASS        ((byte) 'U', false), // Client to server
+        ITERATE              ((byte) 'V', true ), // Client to server
+        GET_ARRAY_SLICE      ((byte) 'W', true ), // Client to server
+        SET_ARRAY_SLICE      ((byte) 'X', true ), // Client to server
+        WITH_DEADLINE        ((byte) 'Y', false), // Client to server
+        BULK_SETUP           ((byte) 'Z', false), // Client to server
         OBJECT_REFERENCE     ((byte) 'a', false), // Server to client
         TYPE_DESCRIPTION     ((byte) 'b', false), // Server to client
         ARBITRARY_ITEM       ((byte) 'c', false), // Server to client
@@ -737,6 +754,11 @@ public abstract class PJRmi
         GETATTR              ((byte) 'p', false), // Server to client
         SET_GLOBAL_VARIABLE  ((byte) 'q', false), // Server to client
         SHMDATA_BYTES        ((byte) 'r', false), // Server to client
+        ITERATED_ITEMS       ((byte) 's', false), // Server to client
+        ARRAY_ELEMENTS       ((byte) 't', false), // Server to client
+        BULK_TRANSFER_INFO   ((byte) 'u', false), // Server to client
+        CALLBACK_BATCH       ((byte) 'v', false), // Server to client
+        PYTHON_PREPARE       ((byte) 'w', false), // Server to client
         ;
 
         /**
@@ -766,6 +788,20 @@ public abstract class PJRmi
          */
         public final boolean shouldLockFor;
 
+        /**
+         * Whether these are cheap control messages, which never block, and so
+         * may be handled as soon as they are read instead of being handed to a
+         * worker.
+         *
+         * <p>Handling these promptly matters since otherwise, when the workers
+         * are all busy with long-running calls, locks would be held for longer
+         * than needed (UNLOCK), handles would not be freed (DROP_REFERENCES)
+         * and threads waiting on Python would not be woken (CALLBACK_RESPONSE).
+         * Nothing which might block, like LOCK, may be one of these since it
+         * would stall the reading thread.
+         */
+        public final boolean isControl;
+
         /**
          * Get the MessageType instance for a given ID.
          */
@@ -784,9 +820,20 @@ public abstract class PJRmi
          * CTOR.
          */
         private MessageType(byte id, final boolean shouldLockFor)
+        {
+            this(id, shouldLockFor, false);
+        }
+
+        /**
+         * CTOR.
+         */
+        private MessageType(byte          id,
+                            final boolean shouldLockFor,
+                            final boolean isControl)
         {
             this.id            = id;
             this.shouldLockFor = shouldLockFor;
+            this.isControl     = isControl;
         }
     }
 
@@ -872,6 +919,9 @@ public abstract class PJRmi
         SHMDATA                 ((byte) 'E'),
         BESTEFFORT_PICKLE       ((byte) 'F'),
         BESTEFFORT_SNAPPY_PICKLE((byte) 'G'),
+        SHM_ARENA               ((byte) 'H'),
+        SHMDATA_SHAPED          ((byte) 'I'),
+        AUTO_SHMDATA            ((byte) 'J'),
         ;
 
         /**
@@ -913,6 +963,69 @@ public abstract class PJRmi
         }
     }
 
+    /**
+     * How Python should send back the result of a callback. Primitive results
+     * are sent raw, when Python is able to, which avoids rendering and reading
+     * them as general objects.
+     */
+    private enum CallbackResultType
+    {
+        OBJECT ((byte) 'L'),
+        BOOLEAN((byte) 'z'),
+        LONG   ((byte) 'j'),
+        DOUBLE ((byte) 'd'),
+        ;
+
+        /**
+         * The unique identifier of this result type.
+         */
+        public final byte id;
+
+        /**
+         * Get the result type to use for a method with the given return type.
+         */
+        public static CallbackResultType forClass(final Class<?> klass)
+        {
+            if (klass == Boolean.TYPE) {
+                return BOOLEAN;
+            }
+            else if (klass == Long   .TYPE ||
+                     klass == Integer.TYPE ||
+                     klass == Short  .TYPE ||
+                     klass == Byte   .TYPE)
+            {
+                return LONG;
+            }
+            else if (klass == Double.TYPE ||
+                     klass == Float .TYPE)
+            {
+                return DOUBLE;
+            }
+            else {
+                return OBJECT;
+            }
+        }
+
+        /**
+         * CTOR.
+         */
+        private CallbackResultType(byte id)
+        {
+            this.id = id;
+        }
+    }
+
+    /**
+     * The kinds of CALLBACK_RESPONSE payload. The first two are a general
+     * object, which is either the result or an exception to throw; the others
+     * are raw primitive results.
+     */
+    private static final byte CALLBACK_RESPONSE_OBJECT    = 0;
+    private static final byte CALLBACK_RESPONSE_EXCEPTION = 1;
+    private static final byte CALLBACK_RESPONSE_BOOLEAN   = 2;
+    private static final byte CALLBACK_RESPONSE_LONG      = 3;
+    private static final byte CALLBACK_RESPONSE_DOUBLE    = 4;
+
     /**
      * Flags associated with a type description.
      */
@@ -1992,7 +2105,8 @@ public abstract class PJRmi
             // Keep walking down and attempt to give back whatever we find for
             // the key
             Object value = myArray;
-            for (Object k : key) {
+            for (int i=0; i < key.length; i++) {
+                final Object k = key[i];
                 if (k instanceof Number) {
                     final int index = ((Number)k).intValue();
                     try {
@@ -2005,7 +2119,11 @@ public abstract class PJRmi
                         );
                     }
                 }
-                // TODO handle PythonSlice in here too
+                else if (k instanceof PythonSlice && i == key.length-1) {
+                    // We only handle slices in the last dimension, where we
+                    // can give back a copy of the selected elements
+                    value = getSlice(value, (PythonSlice)k);
+                }
                 else {
                     throw new IllegalArgumentException(
                         "Don't know how to index with " + k + " in key " +
@@ -2039,16 +2157,15 @@ public abstract class PJRmi
                 if (k instanceof Number) {
                     final int index = ((Number)k).intValue();
                     try {
-                        array = Array.get(value, ((Number)k).intValue());
+                        array = Array.get(array, index);
                     }
                     catch (ArrayIndexOutOfBoundsException e) {
                         throw new ArrayIndexOutOfBoundsException(
                             index + " was not in the range [0.." +
-                            Array.getLength(value) + ")"
+                            Array.getLength(array) + ")"
                         );
                     }
                 }
-                // TODO handle PythonSlice in here too
                 else {
                     throw new IllegalArgumentException(
                         "Don't know how to index with " + k + " in key " +
@@ -2072,6 +2189,9 @@ public abstract class PJRmi
                         );
                     }
                 }
+                else if (k instanceof PythonSlice) {
+                    setSlice(array, (PythonSlice)k, value);
+                }
                 else {
                     throw new IllegalArgumentException(
                         "Don't know how to index with " + k + " in key " +
@@ -2132,6 +2252,70 @@ public abstract class PJRmi
             sb.append(']');
         }
 
+        /**
+         * Get a copy of the elements of the given array which are selected by
+         * the given slice.
+         */
+        private Object getSlice(final Object array, final PythonSlice slice)
+        {
+            final int    length  = Array.getLength(array);
+            final long[] indices = slice.indices(length);
+            final int    start   = (int)indices[0];
+            final int    step    = (int)indices[2];
+            final int    size    = (int)slice.size(length);
+
+            final Object result =
+                Array.newInstance(array.getClass().getComponentType(), size);
+            if (step == 1) {
+                System.arraycopy(array, start, result, 0, size);
+            }
+            else {
+                for (int i=0; i < size; i++) {
+                    Array.set(result, i, Array.get(array, start + i * step));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Set the elements of the given array which are selected by the given
+         * slice. If the value is an array then it must have as many elements as
+         * the slice selects, otherwise it is assigned to each of them.
+         */
+        private void setSlice(final Object      array,
+                              final PythonSlice slice,
+                              final Object      value)
+            throws IllegalArgumentException
+        {
+            final int    length  = Array.getLength(array);
+            final long[] indices = slice.indices(length);
+            final int    start   = (int)indices[0];
+            final int    step    = (int)indices[2];
+            final int    size    = (int)slice.size(length);
+
+            if (value != null && value.getClass().isArray()) {
+                if (Array.getLength(value) != size) {
+                    throw new IllegalArgumentException(
+                        "Can't assign " + Array.getLength(value) + " " +
+                        "elements to a slice of size " + size
+                    );
+                }
+                if (step == 1 && array.getClass() == value.getClass()) {
+                    System.arraycopy(value, 0, array, start, size);
+                }
+                else {
+                    for (int i=0; i < size; i++) {
+                        Array.set(array, start + i * step, Array.get(value, i));
+                    }
+                }
+            }
+            else {
+                for (int i=0; i < size; i++) {
+                    Array.set(array, start + i * step, value);
+                }
+            }
+        }
+
         /**
          * Check that a key is correct.
          */
@@ -2403,6 +2587,132 @@ public abstract class PJRmi
         }
     }
 
+    /**
+     * A selection of elements from a flattened sequence, as sent over the
+     * wire. This is either a Python-style {@code start:stop:step} slice, or an
+     * explicit list of indices.
+     */
+    private static class ElementSelection
+    {
+        /**
+         * The value used on the wire to denote an absent slice bound.
+         */
+        public static final long NONE = Long.MIN_VALUE;
+
+        /**
+         * The number of selected elements.
+         */
+        public final int size;
+
+        /**
+         * The offset in the payload just after this selection.
+         */
+        public final int offset;
+
+        /**
+         * The slice start and step, if we are not using indices.
+         */
+        private final long myStart;
+        private final long myStep;
+
+        /**
+         * The explicit indices, if any.
+         */
+        private final long[] myIndices;
+
+        /**
+         * Read a selection from the given payload, at the given offset, for a
+         * sequence of the given length. Negative values count back from the
+         * end of the sequence, as they do in Python.
+         *
+         * This is of the form:
+         *  byte    : 'S' for a slice or 'I' for indices
+         *  If a slice:
+         *    int64   : Start, or NONE
+         *    int64   : Stop, or NONE
+         *    int64   : Step, or NONE
+         *  If indices:
+         *    int32   : Number of indices
+         *    int64[] : The indices
+         */
+        public ElementSelection(final ByteList payload,
+                                final int      offset,
+                                final long     length)
+            throws IllegalArgumentException,
+                   IndexOutOfBoundsException
+        {
+            int at = offset;
+            final byte kind = payload.get(at++);
+            if (kind == 'S') {
+                final long start = payload.getLong(at); at += 8;
+                final long stop  = payload.getLong(at); at += 8;
+                final long step  = payload.getLong(at); at += 8;
+                final PythonSlice slice =
+                    new PythonSlice((start == NONE) ? null : start,
+                                    (stop  == NONE) ? null : stop,
+                                    (step  == NONE) ? null : step);
+                final long size = slice.size(length);
+                if (size > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException(
+                        "Slice " + slice + " is too large: " + size
+                    );
+                }
+                final long[] indices = slice.indices(length);
+                myStart   = indices[0];
+                myStep    = indices[2];
+                myIndices = null;
+                this.size = (int)size;
+            }
+            else if (kind == 'I') {
+                final int count = payload.getInt(at); at += 4;
+                if (count < 0) {
+                    throw new IllegalArgumentException(
+                        "Bad number of indices: " + count
+                    );
+                }
+                myStart   = 0;
+                myStep    = 0;
+                myIndices = new long[count];
+                for (int i=0; i < count; i++, at += 8) {
+                    long index = payload.getLong(at);
+                    if (index < 0) {
+                        index += length;
+                    }
+                    if (index < 0 || index >= length) {
+                        throw new IndexOutOfBoundsException(
+                            payload.getLong(at) + " was not in the range " +
+                            "[0.." + length + ")"
+                        );
+                    }
+                    myIndices[i] = index;
+                }
+                this.size = count;
+            }
+            else {
+                throw new IllegalArgumentException(
+                    "Bad selection type: '" + (char)kind + "'"
+                );
+            }
+            this.offset = at;
+        }
+
+        /**
+         * Whether this selection is a contiguous run of elements.
+         */
+        public boolean isContiguous()
+        {
+            return myIndices == null && myStep == 1;
+        }
+
+        /**
+         * Get the index, into the sequence, of the i-th selected element.
+         */
+        public long indexAt(final int i)
+        {
+            return (myIndices == null) ? myStart + i * myStep : myIndices[i];
+        }
+    }
+
     /**
      * What a field looks like.
      */
@@ -2729,6 +3039,7 @@ public abstract class PJRmi
             SHMDATA   ((byte) 'S'), // Value is written in a shared file
             METHOD    ((byte) 'M'), // Value is a method handle
             LAMBDA    ((byte) 'L'), // Value is supplied by invoking a lambda
+            BULK      ((byte) 'K'), // Value is sent over the bulk side channels
             ;
 
             /**
@@ -3405,6 +3716,7 @@ public abstract class PJRmi
             private volatile long             myThreadId    = -1L;
             private volatile VirtualThread    myThread      = null;
             private volatile int              myRequestId   = -1;
+            private volatile long             myDeadlineNs  = NO_DEADLINE;
             private final    ByteList         myPayload     = new ByteList(1024 * 1024);
             private volatile DataOutputStream myOut         = null;
 
@@ -3439,6 +3751,7 @@ public abstract class PJRmi
                                final long             threadId,
                                final VirtualThread    thread,
                                final int              reqId,
+                               final long             deadlineNs,
                                final ByteList         payload,
                                final DataOutputStream out)
             {
@@ -3447,6 +3760,7 @@ public abstract class PJRmi
                 myThreadId    = threadId;
                 myThread      = thread;
                 myRequestId   = reqId;
+                myDeadlineNs  = deadlineNs;
                 myPayload.addAll(payload);
                 myOut         = out;
 
@@ -3504,134 +3818,26 @@ public abstract class PJRmi
              */
             private void work()
             {
-                // What we are about to do
-                if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.finest("ThreadId " + myThreadId + ":" + myThread + " " +
-                               "handling " + myMessageType + ", " +
-                               "request ID " + myRequestId + ": " +
-                               PJRmi.toString(myPayload));
-                }
-
-                // Time this operation
-                final Instrumentor instr = myInstrumentors[myMessageType.ordinal()];
-                final long start = instr.start();
-
-                // Whether we locked the global lock
-                boolean lockedGlobal = false;
-
-                // Get the sending buffer ready for use
-                mySendBuf.reset();
-
-                // Any exception which we catch below
-                Throwable caught = null;
-
-                // Do all this inside a try-catch since we don't want any form
-                // of failure to take down the thread
                 try {
-                    // First thing to do is to set our virtual thread. (This is
-                    // needed by the LockManager to determine "who" is doing the
-                    // locking.)
-                    VirtualThreadLock.setThread(myThread);
-
-                    // Attempt to lock and then handle what we're handling
-                    if (myMessageType.shouldLockFor) {
-                        myLockManager.lockGlobal();
-                        lockedGlobal = true;
-                    }
-
-                    // And actually handle the request
-                    receive(myMessageType,
+                    process(myMessageType,
                             myThreadId,
                             myThread,
                             myRequestId,
+                            myDeadlineNs,
                             myPayload,
                             mySendBuf,
                             myOut);
                 }
-                catch (Throwable e) {
-                    // We caught something
-                    caught = e;
-
-                    // Attempt to return everything back to the caller.
-                    // This might be a problem with the connection
-                    // itself, in which case we'll simply bail out at
-                    // the end anyhow (when we try to send the
-                    // exception).
-                    if (LOG.isLoggable(Level.FINE)) {
-                        LOG.fine("Encountered exception " +
-                                 "when handling " + myMessageType + " " +
-                                 PJRmi.toString(myPayload) + ":\n" +
-                                 stackTraceToString(e));
-                    }
-
-                    // What we'll be sending back
-                    final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-
-                    // We'll treat this like a normal object
-                    final TypeDescription exDesc =
-                        myTypeMapping.getDescription(e.getClass());
-                    final long exHandle = myHandleMapping.addReference(e);
-
-                    // Populate with the exception information
-                    try {
-                        bados.dataOut.writeInt (exDesc.getTypeId());
-                        bados.dataOut.writeLong(exHandle);
-                        bados.dataOut.writeInt (-1);
-
-                        // And create it. We will need to reset the send buffer
-                        // here since it might have been partially written to
-                        mySendBuf.reset();
-                        buildMessage(mySendBuf.dataOut,
-                                     MessageType.EXCEPTION,
-                                     myThreadId,
-                                     myRequestId,
-                                     bados.bytes);
-                    }
-                    catch (IOException ioe) {
-                        // This should never happen when writing to a byte
-                        // stream
-                        throw new RuntimeException("Should not happen", ioe);
-                    }
-                }
                 finally {
-                    // Done with the global lock
-                    if (lockedGlobal) {
-                        myLockManager.unlockGlobal();
-                    }
-                    instr.end(start);
-
-                    // Now that we have dropped the lock it's safe to send the
-                    // reply. This is the last thing we need to do as part of
-                    // our work for the client.
-                    try {
-                        send(mySendBuf, myOut);
-                    }
-                    catch (Throwable e) {
-                        // This is probably fine if the other side closed the
-                        // connection. If that happened we'll see an
-                        // EOFException.
-                        if (caught instanceof EOFException) {
-                            LOG.info("Looks like the client disconnected: " + e);
-                        }
-                        else if (caught == null) {
-                            LOG.warning("Error when sending: " + e);
-                        }
-                        else {
-                            LOG.warning("Error when sending back " + caught + ": " + e);
-                        }
-                    }
-
                     // Zero out our params
                     myMessageType = MessageType.NONE;
                     myRequestId   = -1;
+                    myDeadlineNs  = NO_DEADLINE;
                     myThreadId    = -1;
                     myThread      = null;
                     myPayload.clear();
                     myOut         = null;
 
-                    // Disassociate
-                    VirtualThreadLock.setThread(null);
-
                     // If our connection is closed then we should mark ourselves
                     // as inactive. This is important since the Connection
                     // thread will drain the myWorker queue to terminate the
@@ -3859,6 +4065,16 @@ public abstract class PJRmi
              */
             private volatile boolean myIsException;
 
+            /**
+             * A raw primitive result, as the bits of a {@code long}.
+             */
+            private volatile long myPrimitive;
+
+            /**
+             * Whether the result is myPrimitive, instead of myResult.
+             */
+            private volatile boolean myIsPrimitive;
+
             /**
              * Whether myResult is ready for reading.
              */
@@ -3874,6 +4090,19 @@ public abstract class PJRmi
                 myReady    = false;
             }
 
+            /**
+             * Make this ready to receive another result. This allows a thread
+             * to reuse the same instance for successive callbacks.
+             */
+            public void reset()
+            {
+                myReady       = false;
+                myResult      = null;
+                myIsException = false;
+                myIsPrimitive = false;
+                myPrimitive   = 0;
+            }
+
             /**
              * Set the result.
              */
@@ -3881,10 +4110,34 @@ public abstract class PJRmi
             {
                 myResult      = result;
                 myIsException = isException;
+                myIsPrimitive = false;
+                myReady       = true;
+                LockSupport.unpark(myReceiver);
+            }
+
+            /**
+             * Set a raw primitive result.
+             */
+            public void setPrimitive(final long bits)
+            {
+                myPrimitive   = bits;
+                myIsException = false;
+                myIsPrimitive = true;
                 myReady       = true;
                 LockSupport.unpark(myReceiver);
             }
 
+            /**
+             * The ID of the thread which is waiting for the result, if it has
+             * one, else {@code -1}.
+             */
+            public long getThreadId()
+            {
+                return (myReceiver instanceof ThreadId)
+                    ? ((ThreadId)myReceiver).getThreadId()
+                    : -1;
+            }
+
             /**
              * Whether the result is ready.
              */
@@ -3908,6 +4161,91 @@ public abstract class PJRmi
             {
                 return myResult;
             }
+
+            /**
+             * Whether the result is a raw primitive.
+             */
+            public boolean isPrimitive()
+            {
+                return myIsPrimitive;
+            }
+
+            /**
+             * Get the raw primitive result, as the bits of a {@code long}.
+             */
+            public long getPrimitive()
+            {
+                return myPrimitive;
+            }
+        }
+
+        /**
+         * A result which completes a future, instead of being waited on by a
+         * thread. It is set by the thread which reads from the connection;
+         * since that must never block, the future is completed using the
+         * future's default executor, where any dependent actions will run.
+         */
+        private class AsyncPythonCallbackResult<T>
+            extends PythonCallbackResult
+        {
+            /**
+             * What we complete.
+             */
+            private final CompletableFuture<T> myFuture;
+
+            /**
+             * Constructor.
+             */
+            public AsyncPythonCallbackResult()
+            {
+                super(null);
+                myFuture = new CompletableFuture<>();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void setResult(final boolean isException, final Object result)
+            {
+                super.setResult(isException, result);
+                if (isException) {
+                    final Throwable t = (Throwable)result;
+                    fail(new PythonCallbackException(t.getMessage(), t));
+                }
+                else {
+                    @SuppressWarnings("unchecked")
+                    final T value = (T)result;
+                    myFuture.defaultExecutor().execute(() -> myFuture.complete(value));
+                }
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void setPrimitive(final long bits)
+            {
+                // We only ever ask for objects back
+                super.setPrimitive(bits);
+                fail(new ClassCastException("Unexpected primitive result"));
+            }
+
+            /**
+             * Complete the future with the given failure.
+             */
+            public void fail(final Throwable t)
+            {
+                myFuture.defaultExecutor().execute(() -> myFuture.completeExceptionally(t));
+            }
+
+            /**
+             * Get the future which we complete.
+             */
+            public CompletableFuture<T> getFuture()
+            {
+                return myFuture;
+            }
         }
 
         /**
@@ -3970,6 +4308,36 @@ public abstract class PJRmi
                                  final Object...          args)
                 throws IOException,
                        PythonCallbackException
+            {
+                final PythonCallbackResult result =
+                    new PythonCallbackResult(Thread.currentThread());
+                sendCallback(kwargs, args, CallbackResultType.OBJECT, result);
+                return awaitCallbackReponse(result);
+            }
+
+            /**
+             * Make the call, wanting a {@code boolean} result. Python's notion
+             * of truthiness is used to determine it.
+             */
+            protected boolean doInvokeBoolean(final Object... args)
+                throws IOException,
+                       PythonCallbackException
+            {
+                final PythonCallbackResult result = myPrimitiveCallbackResult.get();
+                result.reset();
+                sendCallback(null, args, CallbackResultType.BOOLEAN, result);
+                return awaitCallbackBoolean(result);
+            }
+
+            /**
+             * Send the call over to Python, with the given result to receive
+             * its response.
+             */
+            private void sendCallback(final Map<String,Object>   kwargs,
+                                      final Object[]             args,
+                                      final CallbackResultType   resultType,
+                                      final PythonCallbackResult result)
+                throws IOException
             {
                 // Say we're doing it
                 if (LOG.isLoggable(Level.FINEST)) {
@@ -4013,9 +4381,11 @@ public abstract class PJRmi
                     }
                 }
 
+                // How we want the result back
+                bados.dataOut.writeByte(resultType.id);
+
                 // Register ourselves for the callback
-                final PythonCallbackResult result = new PythonCallbackResult(thread);
-                myPythonCallbackResults.put(requestId, result);
+                addPythonCallbackResult(requestId, result);
 
                 // Send the request over
                 if (LOG.isLoggable(Level.FINEST)) {
@@ -4029,6 +4399,110 @@ public abstract class PJRmi
                             threadId,
                             CALLBACK_REQUEST_ID,
                             bados.bytes);
+            }
+
+            /**
+             * {@inheritDoc}
+             *
+             * <p>This sends the whole batch over to Python in one go.
+             */
+            @Override
+            public List<T> applyBatch(final List<?> args)
+                throws Throwable
+            {
+                if (args.isEmpty()) {
+                    return new ArrayList<>();
+                }
+
+                // Python will give us back an array, which we wrap
+                final Object[] result =
+                    (Object[])doInvokeBatch(args.toArray(), Object[].class);
+                @SuppressWarnings("unchecked")
+                final List<T> list = (List<T>)Arrays.asList(result);
+                return list;
+            }
+
+            /**
+             * {@inheritDoc}
+             *
+             * <p>This sends the whole array over to Python in one go, by
+             * value. If the Python function is vectorized then it is called
+             * with the array itself.
+             */
+            @Override
+            public double[] applyToArray(final double[] args)
+                throws Throwable
+            {
+                if (args.length == 0) {
+                    return new double[0];
+                }
+                return (double[])doInvokeBatch(args, double[].class);
+            }
+
+            /**
+             * How we make a batched call. This is akin to {@code doInvoke()}
+             * except that Python applies the function to each of the
+             * arguments and gives us back all the results at once.
+             *
+             * @param args        The arguments, either as an {@code Object[]},
+             *                    one per call, or as a primitive array to be
+             *                    sent by value.
+             * @param resultType  The array type to get the results back as.
+             */
+            protected Object doInvokeBatch(final Object   args,
+                                           final Class<?> resultType)
+                throws IOException,
+                       PythonCallbackException
+            {
+                // Say we're doing it
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("Batch invoking " + this + " " +
+                               "with " + Array.getLength(args) + " args");
+                }
+
+                // Figure out our thread ID
+                final Thread thread = Thread.currentThread();
+                final long threadId = (thread instanceof ThreadId)
+                    ? ((ThreadId)thread).getThreadId()
+                    : -1;
+
+                // The python callback request ID
+                final int requestId = myPythonCallbackRequestId.getAndIncrement();
+
+                // Build the data to make the call
+                final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+                bados.dataOut.writeInt(requestId);
+                bados.dataOut.writeInt(myFunctionId);
+                bados.dataOut.writeInt(myTypeMapping.getId(resultType));
+                if (args instanceof Object[]) {
+                    final Object[] objects = (Object[])args;
+                    bados.dataOut.writeInt(objects.length);
+                    for (Object arg : objects) {
+                        writeArgument(bados.dataOut, arg);
+                    }
+                }
+                else {
+                    bados.dataOut.writeInt(-1);
+                    writeArgument(bados.dataOut, PythonMinion.byValue(args));
+                }
+
+                // Register ourselves for the callback
+                final PythonCallbackResult result = new PythonCallbackResult(thread);
+                addPythonCallbackResult(requestId, result);
+
+                // Send the request over
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest(
+                        "Calling back to Python with a batch with " +
+                        "thread ID " + threadId + " " +
+                        "and Java request ID " + requestId
+                    );
+                }
+                sendMessage(myOut,
+                            MessageType.CALLBACK_BATCH,
+                            threadId,
+                            CALLBACK_REQUEST_ID,
+                            bados.bytes);
 
                 // Now wait for the result
                 return awaitCallbackReponse(result);
@@ -4331,21 +4805,7 @@ public abstract class PJRmi
             public boolean test(T arg)
             {
                 try {
-                    // We'll try to keep the same semantics that we expect in
-                    // Python given various types
-                    final Object result = invoke(arg);
-                    if (result instanceof Boolean) {
-                        return ((Boolean)result).booleanValue();
-                    }
-                    else if (result instanceof String) {
-                        return !((String)result).isEmpty();
-                    }
-                    else if (result instanceof Number) {
-                        return ((Number)result).doubleValue() != 0.0;
-                    }
-                    else {
-                        return (result != null);
-                    }
+                    return doInvokeBoolean(arg);
                 }
                 catch (PythonCallbackException e) {
                     throw new RuntimeException("Failed to invoke callback",
@@ -4390,21 +4850,7 @@ public abstract class PJRmi
             public boolean test(T arg1, U arg2)
             {
                 try {
-                    // We'll try to keep the same semantics that we expect in
-                    // Python given various types
-                    final Object result = invoke(arg1, arg2);
-                    if (result instanceof Boolean) {
-                        return ((Boolean)result).booleanValue();
-                    }
-                    else if (result instanceof String) {
-                        return !((String)result).isEmpty();
-                    }
-                    else if (result instanceof Number) {
-                        return ((Number)result).doubleValue() != 0.0;
-                    }
-                    else {
-                        return (result != null);
-                    }
+                    return doInvokeBoolean(arg1, arg2);
                 }
                 catch (PythonCallbackException e) {
                     throw new RuntimeException("Failed to invoke callback",
@@ -4543,9 +4989,24 @@ public abstract class PJRmi
                     // No kwargs
                     bados.dataOut.writeInt(0);
 
+                    // How we want the result back. Primitive ones are common
+                    // for lambdas, e.g. for comparators and predicates, and
+                    // these use the thread's reusable result holder.
+                    final Class<?> returnType = method.getReturnType();
+                    final CallbackResultType resultType =
+                        CallbackResultType.forClass(returnType);
+                    bados.dataOut.writeByte(resultType.id);
+
                     // Register ourselves for the callback
-                    final PythonCallbackResult result = new PythonCallbackResult(thread);
-                    myPythonCallbackResults.put(requestId, result);
+                    final PythonCallbackResult result;
+                    if (resultType == CallbackResultType.OBJECT) {
+                        result = new PythonCallbackResult(thread);
+                    }
+                    else {
+                        result = myPrimitiveCallbackResult.get();
+                        result.reset();
+                    }
+                    addPythonCallbackResult(requestId, result);
 
                     // Send the request over
                     if (LOG.isLoggable(Level.FINEST)) {
@@ -4560,8 +5021,42 @@ public abstract class PJRmi
                                 CALLBACK_REQUEST_ID,
                                 bados.bytes);
 
-                    // Now wait for the result
-                    return awaitCallbackReponse(result);
+                    // Now wait for the result, boxing it as the method's
+                    // return type
+                    switch (resultType) {
+                    case BOOLEAN:
+                        return awaitCallbackBoolean(result);
+
+                    case LONG: {
+                        final long value = awaitCallbackLong(result);
+                        if (returnType == Integer.TYPE) {
+                            return Math.toIntExact(value);
+                        }
+                        else if (returnType == Short.TYPE) {
+                            if (value != (short)value) {
+                                throw new ArithmeticException("short overflow: " + value);
+                            }
+                            return (short)value;
+                        }
+                        else if (returnType == Byte.TYPE) {
+                            if (value != (byte)value) {
+                                throw new ArithmeticException("byte overflow: " + value);
+                            }
+                            return (byte)value;
+                        }
+                        else {
+                            return value;
+                        }
+                    }
+
+                    case DOUBLE: {
+                        final double value = awaitCallbackDouble(result);
+                        return (returnType == Float.TYPE) ? (float)value : value;
+                    }
+
+                    default:
+                        return awaitCallbackReponse(result);
+                    }
                 }
                 else {
                     // We don't know how to handle this. This isn't really
@@ -4707,7 +5202,7 @@ public abstract class PJRmi
 
                 // Register ourselves for the callback
                 final PythonCallbackResult result = new PythonCallbackResult(thread);
-                myPythonCallbackResults.put(requestId, result);
+                addPythonCallbackResult(requestId, result);
 
                 // Send the request over
                 if (LOG.isLoggable(Level.FINEST)) {
@@ -4845,6 +5340,56 @@ public abstract class PJRmi
                                 final Map<String,Object> kwargs,
                                 final Object...          args)
                 throws Throwable
+            {
+                return doInvoke(returnType, methodName, kwargs, args);
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public <T> PythonKwargsFunction<T> bind(final Class<T> returnType,
+                                                    final String   name)
+                throws Throwable
+            {
+                // Resolve the attribute just the once. We hold on to the
+                // resultant object so that Python keeps it alive for as long as
+                // the function is around.
+                final PythonObjectImpl attribute =
+                    (PythonObjectImpl)getattr(PythonObject.class, name);
+
+                return
+                    new PythonKwargsFunction<T>()
+                    {
+                        @Override
+                        public T invoke(final Map<String,Object> kwargs,
+                                        final Object...          args)
+                            throws Throwable
+                        {
+                            return attribute.doInvoke(returnType, null, kwargs, args);
+                        }
+
+                        @Override
+                        public String toString()
+                        {
+                            return returnType.getSimpleName() + " " +
+                                   myName + "." + name + "(*args, **kwargs)";
+                        }
+                    };
+            }
+
+            /**
+             * Invoke a method on the object.
+             *
+             * @param methodName  The name of the method to invoke, or
+             *                    {@code null} to call the object itself.
+             */
+            private <T> T doInvoke(final Class<T>           returnType,
+                                   final String             methodName,
+                                   final Map<String,Object> kwargs,
+                                   final Object...          args)
+                throws IOException,
+                       PythonCallbackException
             {
                 // Say we're doing it
                 if (LOG.isLoggable(Level.FINEST)) {
@@ -4878,7 +5423,13 @@ public abstract class PJRmi
                 bados.dataOut.writeInt(requestId);
                 bados.dataOut.writeInt(myObjectId);
                 bados.dataOut.writeInt(returnTypeId);
-                writeUTF16            (bados.dataOut, methodName);
+                if (methodName == null) {
+                    // A null string, meaning that we call the object
+                    bados.dataOut.writeInt(-1);
+                }
+                else {
+                    writeUTF16(bados.dataOut, methodName);
+                }
 
                 // Handle any arguments
                 if (args == null) {
@@ -4906,7 +5457,7 @@ public abstract class PJRmi
 
                 // Register ourselves for the callback
                 final PythonCallbackResult result = new PythonCallbackResult(thread);
-                myPythonCallbackResults.put(requestId, result);
+                addPythonCallbackResult(requestId, result);
 
                 // Send the request over
                 if (LOG.isLoggable(Level.FINEST)) {
@@ -4962,7 +5513,7 @@ public abstract class PJRmi
 
                 // Register ourselves for the callback
                 final PythonCallbackResult result = new PythonCallbackResult(thread);
-                myPythonCallbackResults.put(requestId, result);
+                addPythonCallbackResult(requestId, result);
 
                 // Send the request over
                 if (LOG.isLoggable(Level.FINEST)) {
@@ -5050,3734 +5601,6656 @@ public abstract class PJRmi
             }
         }
 
-        // --------------------------------------------------------------------
-
         /**
-         * Set to false when we are terminating.
+         * Pulls requests out of the bytes which a {@link Multiplexer} reads
+         * off the wire for this connection, and dispatches them once they are
+         * complete. This is the non-blocking equivalent of the loop in
+         * {@link #listen()} and is only ever used by the multiplexer's thread.
          */
-        private volatile boolean myIsActive;
+        private class FrameDecoder
+        {
+            /**
+             * Where the header is read into.
+             */
+            private final ByteBuffer myHeader = ByteBuffer.allocate(17);
 
-        /**
-         * The transport.
-         */
-        private final Transport myTransport;
+            /**
+             * Where the payload is read into.
+             */
+            private final ByteList myPayload = new ByteList(64 * 1024);
 
-        /**
-         * The Python instance's ID.
-         */
-        private final long myPythonId;
+            /**
+             * The size of the payload which we are reading, or {@code -1} if
+             * we are still reading the header.
+             */
+            private int mySize = -1;
 
-        /**
-         * Where data comes in.
-         */
-        private final DataInputStream myIn;
+            /**
+             * When we started, for the stats.
+             */
+            private final long myStartTimeMs = System.currentTimeMillis();
 
-        /**
-         * Where data goes out.
-         */
-        private final DataOutputStream myOut;
+            /**
+             * The number of requests which we have seen, for the stats.
+             */
+            private int myNumRequests = 0;
 
-        /**
-         * Our per-thread PythonPicklers, for converting values to Python's
-         * pickle format in a best-effort fashion. These are connection-specific
-         * since they need to be able to identify the PJRmi instance on the
-         * Python side.
-         */
-        private final ThreadLocal<PythonPickle> myBestEffortPythonPickle;
+            /**
+             * Consume all the bytes in the given buffer, dispatching any
+             * requests which they complete.
+             *
+             * @return whether the connection should keep going.
+             */
+            public boolean decode(final ByteBuffer buffer)
+            {
+                while (buffer.hasRemaining()) {
+                    // Still reading the header?
+                    if (mySize < 0) {
+                        while (myHeader.hasRemaining() && buffer.hasRemaining()) {
+                            myHeader.put(buffer.get());
+                        }
+                        if (myHeader.hasRemaining()) {
+                            return true;
+                        }
 
-        /**
-         * Our object handle mappings.
-         */
-        private final HandleMapping myHandleMapping;
+                        // We have the header, so we know how much to read. If
+                        // this is junk then we have no way to find the start
+                        // of the next message so we have to give up.
+                        mySize = myHeader.getInt(13);
+                        if (mySize < 0) {
+                            LOG.warning("Received malformed header: " +
+                                        PJRmi.toString(myHeader.array()));
+                            return false;
+                        }
+                        myPayload.clear();
+                        myPayload.ensureCapacity(mySize);
+                    }
 
-        /**
-         * Our workers, if any. This will be null if useWorkers() is false.
-         */
-        private final BlockingQueue<Worker> myWorkers;
+                    // Pull in as much of the payload as we can
+                    final int count =
+                        Math.min(buffer.remaining(), mySize - myPayload.size());
+                    myPayload.append(buffer.array(),
+                                     buffer.arrayOffset() + buffer.position(),
+                                     count);
+                    buffer.position(buffer.position() + count);
+
+                    // Got it all?
+                    if (myPayload.size() == mySize) {
+                        final byte typeId   = myHeader.get(0);
+                        final long threadId = myHeader.getLong(1);
+                        final int  reqId    = myHeader.getInt(9);
+
+                        // Ready for the next one
+                        myHeader.clear();
+                        mySize = -1;
+
+                        MessageType type = null;
+                        try {
+                            type = MessageType.byId(typeId);
+                            if (type == null) {
+                                throw new IllegalArgumentException(
+                                    "Unknown message type ID: " + typeId
+                                );
+                            }
+                            myNumRequests++;
+                            if (!dispatch(type, threadId, reqId, myPayload)) {
+                                return false;
+                            }
+                        }
+                        catch (Throwable e) {
+                            if (!sendException(type, threadId, reqId, myPayload, e)) {
+                                return false;
+                            }
+                        }
+                    }
+                }
 
-        /**
-         * Our method callers.
-         */
-        private final BlockingQueue<MethodCaller> myMethodCallers;
+                // Keep going
+                return true;
+            }
 
-        /**
-         * The mapping from virtual thread ID to a virtual Java Thread. Only
-         * needed (non-null) if we have workers.
-         */
-        private Map<Long,VirtualThread> myVirtualThreads;
+            /**
+             * Dump the auditing information for the connection.
+             */
+            public void logStats()
+            {
+                Connection.this.logStats(myStartTimeMs, myNumRequests);
+            }
+        }
 
         /**
-         * How many workers we have created; used for naming.
-         */
-        private int myNumWorkers;
+         * The thread which writes out the replies for this connection, when
+         * reply coalescing is in use.
+         *
+         * <p>Rather than every sender writing to, and flushing, the output
+         * stream itself, senders append their messages to a pending buffer and
+         * this thread writes out everything which has built up in a single
+         * go, with a single flush. When the connection is quiet each reply is
+         * written as soon as it arrives. When it is busy, i.e. when the last
+         * batch held more than one reply, the writer will wait a little while
+         * for more replies to turn up before it writes, bounded by {@link
+         * PJRmi#maxReplyCoalescingDelayMicros()}.
+         */
+        private class ReplyWriter
+            extends Thread
+        {
+            /**
+             * How many pending bytes we allow before senders must wait for us
+             * to catch up.
+             */
+            private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
 
-        /**
-         * The next request ID for making Python callbacks over this connection.
-         */
-        private final AtomicInteger myPythonCallbackRequestId = new AtomicInteger();
+            /**
+             * The longest that we will wait for more replies to arrive.
+             */
+            private final long myMaxDelayNs;
 
-        /**
-         * The map used to receive python callback results.
-         */
-        private final Map<Integer,PythonCallbackResult> myPythonCallbackResults =
-            new ConcurrentHashMap<>();
+            /**
+             * Where senders put their messages.
+             */
+            private ByteArrayOutputStream myPending =
+                new ByteArrayOutputStream(65536);
 
-        /**
-         * The "depth" into the call stack. This is to spot cases where we are
-         * calling from Java to Python to Java to Python ad infinitum.
-         */
-        private int myCallDepth;
+            /**
+             * The buffer which we swap in for myPending when we take it.
+             */
+            private ByteArrayOutputStream mySpare =
+                new ByteArrayOutputStream(65536);
 
-        // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+            /**
+             * How many messages are in myPending.
+             */
+            private int myNumPending;
 
-        /**
-         * CTOR.
-         */
-        public Connection(final String name,
-                          final Transport transport,
-                          final long pythonId)
-            throws IOException
-        {
-            super(name);
+            /**
+             * How many messages have ever been queued, and written out.
+             */
+            private long myNumQueued;
+            private long myNumWritten;
 
-            myTransport = transport;
-            myPythonId = pythonId;
+            /**
+             * Whether we are waiting for myPending to be added to.
+             */
+            private boolean myIsWaiting;
 
-            // We are active from the get-go
-            myIsActive = true;
+            /**
+             * Set when it's time to stop.
+             */
+            private boolean myIsDone;
 
-            // Set up the streams. It's important that we use a buffered output
-            // stream for myOut since this will send the responses as a single
-            // packet and this _greatly_ speeds up the way the clients work.
-            // The 64k value is the usual MTU and should be way bigger than
-            // anything we will end up sending.
-            final InputStream  inStream  = transport.getInputStream();
-            final OutputStream outStream = transport.getOutputStream();
-            myIn = (inStream instanceof DataInputStream) ?
-                (DataInputStream)inStream : new DataInputStream(inStream);
-            myOut =
-                new DataOutputStream(
-                    new BufferedOutputStream(outStream, 65536)
-                );
+            /**
+             * The error which we got when writing, if any.
+             */
+            private IOException myError;
 
-            // How we render with pickle in a best-effort fashion
-            myBestEffortPythonPickle =
-                ThreadLocal.withInitial(BestEffortPythonPickle::new);
+            /**
+             * How many batches we have written, used only for logging.
+             */
+            private volatile long myNumBatches;
 
-            // Try to ensure that all the handles have a reasonably unique
-            // identifier
-            myHandleMapping =
-                new HandleMapping(hashCode() & (int)System.nanoTime());
+            /**
+             * Constructor.
+             */
+            public ReplyWriter(final String name, final long maxDelayNs)
+            {
+                super(name);
+                setDaemon(true);
 
-            // Where our workers, if any, live etc
-            if (useWorkers()) {
-                myWorkers        = new ArrayBlockingQueue<>(numWorkers());
-                myVirtualThreads = new HashMap<>();
-            }
-            else {
-                myWorkers        = null;
-                myVirtualThreads = null;
+                myMaxDelayNs = Math.max(0, maxDelayNs);
+                myNumPending = 0;
+                myNumQueued  = 0;
+                myNumWritten = 0;
+                myIsWaiting  = false;
+                myIsDone     = false;
+                myError      = null;
             }
-            myNumWorkers = 0;
 
-            // Unbounded queue of these since we want them to be long-lived
-            myMethodCallers = new LinkedBlockingQueue<>();
+            /**
+             * Queue up a message to be sent.
+             *
+             * @throws IOException if we previously failed to write, or if we
+             *                     have been terminated.
+             */
+            public synchronized void enqueue(final ByteArrayDataOutputStream msg)
+                throws IOException
+            {
+                // Wait for the writer to catch up, if it's behind
+                while (myPending.size() >= MAX_PENDING_BYTES &&
+                       myError == null && !myIsDone)
+                {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(
+                            "Interrupted while waiting to send"
+                        );
+                    }
+                }
 
-            // The depth of our stack
-            myCallDepth = 0;
-        }
+                // Can we send?
+                if (myError != null) {
+                    throw new IOException("Failed to write to connection",
+                                          myError);
+                }
+                if (myIsDone) {
+                    throw new IOException("Connection is closed");
+                }
 
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public void run()
-        {
-            LOG.info("Started handler thread: " + this);
+                // Add it and let the writer know, if it's waiting
+                msg.bytes.writeTo(myPending);
+                myNumPending++;
+                myNumQueued++;
+                if (myIsWaiting) {
+                    notifyAll();
+                }
+            }
 
-            try {
-                // Listen until there is nothing else to hear
-                listen();
+            /**
+             * Wait for everything which has been queued so far to be written
+             * out.
+             *
+             * @throws IOException if writing failed.
+             */
+            public synchronized void flush()
+                throws IOException
+            {
+                final long target = myNumQueued;
+                while (myNumWritten < target && myError == null) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(
+                            "Interrupted while waiting to flush"
+                        );
+                    }
+                }
+                if (myError != null) {
+                    throw new IOException("Failed to write to connection",
+                                          myError);
+                }
             }
-            finally {
-                // Be nice to the GC
-                myHandleMapping.clear();
 
-                // Drop any locks, if we are holding them
+            /**
+             * Called when it's time for the thread to die. Anything which has
+             * already been queued will still be written out.
+             */
+            public synchronized void terminate()
+            {
+                myIsDone = true;
+                notifyAll();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void run()
+            {
+                LOG.fine("Reply writer thread starts");
+
+                int lastBatchSize = 0;
                 try {
-                    myLockManager.dropAllThreadLocks();
+                    while (true) {
+                        // Grab whatever is pending, once there is something
+                        final ByteArrayOutputStream batch;
+                        final int batchSize;
+                        synchronized (this) {
+                            while (myNumPending == 0 && !myIsDone) {
+                                awaitPending(0);
+                            }
+                            if (myNumPending == 0) {
+                                // Nothing left and we are done
+                                break;
+                            }
+
+                            // If we are busy then give the other senders a
+                            // chance to add their replies to this batch. We
+                            // wait up to the maximum delay, or until we have
+                            // as many as we did last time, whichever comes
+                            // first.
+                            if (lastBatchSize > 1 && myMaxDelayNs > 0) {
+                                final long deadline =
+                                    System.nanoTime() + myMaxDelayNs;
+                                long remaining = myMaxDelayNs;
+                                while (remaining > 0                       &&
+                                       myNumPending < lastBatchSize        &&
+                                       myPending.size() < MAX_PENDING_BYTES &&
+                                       !myIsDone)
+                                {
+                                    awaitPending(remaining);
+                                    remaining = deadline - System.nanoTime();
+                                }
+                            }
+
+                            // Swap the buffers over and let any blocked
+                            // senders know that there's room
+                            batch     = myPending;
+                            batchSize = myNumPending;
+                            myPending    = mySpare;
+                            myNumPending = 0;
+                            mySpare      = batch;
+                            notifyAll();
+                        }
+
+                        // Now write it all out, without holding the lock
+                        batch.writeTo(myOut);
+                        myOut.flush();
+                        batch.reset();
+
+                        // Let anyone waiting in flush() know
+                        synchronized (this) {
+                            myNumWritten += batchSize;
+                            notifyAll();
+                        }
+                        lastBatchSize = batchSize;
+                        myNumBatches++;
+                    }
+                }
+                catch (IOException e) {
+                    LOG.fine("Failed to write replies: " + e);
+                    synchronized (this) {
+                        myError = e;
+                        notifyAll();
+                    }
                 }
-                catch (IllegalArgumentException e) {
-                    // This is fine but log when debugging
-                    LOG.fine("Problem dropping locks: " + e);
+                catch (InterruptedException e) {
+                    synchronized (this) {
+                        myError = new InterruptedIOException(
+                            "Reply writer was interrupted"
+                        );
+                        notifyAll();
+                    }
                 }
 
-                // Ensure the underlying connection is closed so that the other
-                // side won't hang forever etc.
+                LOG.fine("Reply writer thread stops");
+            }
+
+            /**
+             * Describe how well we have been coalescing, for logging.
+             */
+            @Override
+            public synchronized String toString()
+            {
+                return myNumWritten + " in " + myNumBatches + " batches";
+            }
+
+            /**
+             * Wait to be told that something has been queued, for up to the
+             * given number of nanos, or forever if that is zero. Must be
+             * called with the lock held.
+             */
+            private void awaitPending(final long nanos)
+                throws InterruptedException
+            {
+                myIsWaiting = true;
                 try {
-                    myTransport.close();
+                    if (nanos > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                    }
+                    else {
+                        wait();
+                    }
                 }
-                catch (Throwable t) {
-                    // Nothing
+                finally {
+                    myIsWaiting = false;
                 }
             }
+        }
 
-            // Mark ourselves as inactive. We should do this before killing off
-            // the workers so that none of them attempt to insert themselves
-            // into the queue as we terminate them. See the Worker#work()
-            // method.
-            myIsActive = false;
+        /**
+         * Sends the replies to control messages.
+         *
+         * <p>Control messages are handled by the thread which reads from the
+         * connection, so that they never wait behind data-plane requests. That
+         * thread must not then wait on the output stream, which a worker might
+         * be holding while it writes out a large reply to a slow client, since
+         * nothing else would be read from the connection until it was done.
+         * Instead the replies are handed to this, which starts a thread to send
+         * them when there is something to send. That thread goes away again
+         * once things are quiet.
+         */
+        private class ControlReplier
+            implements Runnable
+        {
+            /**
+             * How long the sending thread waits for more before it exits.
+             */
+            private static final long IDLE_TIMEOUT_MS = 1000;
 
-            // If we have worker threads then close them down
-            if (myWorkers != null) {
-                LOG.fine("Terminating workers");
-                for (Worker worker = myWorkers.poll();
-                     worker != null;
-                     worker = myWorkers.poll())
-                {
-                    worker.terminate();
+            /**
+             * The replies which are waiting to be sent.
+             */
+            private ByteArrayDataOutputStream myPending =
+                new ByteArrayDataOutputStream();
+
+            /**
+             * The buffer which we swap in for myPending when we take it.
+             */
+            private ByteArrayDataOutputStream mySpare =
+                new ByteArrayDataOutputStream();
+
+            /**
+             * Whether we have a thread sending.
+             */
+            private boolean myIsRunning = false;
+
+            /**
+             * How many threads we have started; used for naming.
+             */
+            private int myThreadIndex = 0;
+
+            /**
+             * Queue up a reply to be sent. This never blocks.
+             */
+            public synchronized void enqueue(final ByteArrayDataOutputStream msg)
+                throws IOException
+            {
+                if (msg.bytes.size() == 0) {
+                    return;
+                }
+
+                msg.bytes.writeTo(myPending.bytes);
+                if (myIsRunning) {
+                    notifyAll();
+                }
+                else {
+                    final Thread thread =
+                        new Thread(this,
+                                   getName() + "#ControlReplier" + ++myThreadIndex);
+                    thread.setDaemon(true);
+                    thread.start();
+                    myIsRunning = true;
                 }
             }
-            LOG.fine("Terminating method callers");
-            for (MethodCaller caller = myMethodCallers.poll();
-                 caller != null;
-                 caller = myMethodCallers.poll())
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void run()
             {
-                caller.terminate();
-            }
+                while (true) {
+                    // Grab everything which is pending, or go away if nothing
+                    // turns up for a while
+                    final ByteArrayDataOutputStream batch;
+                    synchronized (this) {
+                        if (myPending.bytes.size() == 0 && myIsActive) {
+                            try {
+                                wait(IDLE_TIMEOUT_MS);
+                            }
+                            catch (InterruptedException e) {
+                                // Just see what we have
+                            }
+                        }
+                        if (myPending.bytes.size() == 0) {
+                            myIsRunning = false;
+                            return;
+                        }
+                        batch     = myPending;
+                        myPending = mySpare;
+                        mySpare   = batch;
+                    }
 
-            LOG.info("Exiting handler thread: " + this);
+                    // And send it, without holding our lock
+                    try {
+                        send(batch, myOut);
+                    }
+                    catch (IOException e) {
+                        // The reader will see this for itself if the connection
+                        // has gone away
+                        LOG.fine("Error sending control replies: " + e);
+                    }
+                    finally {
+                        batch.reset();
+                    }
+                }
+            }
         }
 
+        // --------------------------------------------------------------------
+
         /**
-         * {@inheritDoc}
+         * Set to false when we are terminating.
          */
-        @Override
-        public <T> T eval(final String string, final Class<T> returnType)
-            throws ClassCastException,
-                   IOException,
-                   PythonCallbackException
-        {
-            return evalOrExec(true, string, returnType);
-        }
+        private volatile boolean myIsActive;
 
         /**
-         * {@inheritDoc}
+         * The transport.
          */
-        @Override
-        public void exec(final String string)
-            throws IOException,
-                   PythonCallbackException
-        {
-            try {
-                evalOrExec(false, string, Object.class);
-            }
-            catch (ClassCastException e) {
-                // Shouldn't happen
-                throw new AssertionError("Unexpected error", e);
-            }
-        }
+        private final Transport myTransport;
 
         /**
-         * {@inheritDoc}
+         * The Python instance's ID.
          */
-        @Override
-        public void setGlobalVariable(final String name, final Object value)
-            throws IOException,
-                   PythonCallbackException
-        {
-            // We need a name
-            if (name == null || name.isEmpty()) {
-                throw new IllegalArgumentException("Empty name given");
-            }
+        private final long myPythonId;
 
-            // The python callback request ID
-            final int requestId = myPythonCallbackRequestId.getAndIncrement();
+        /**
+         * Where data comes in.
+         */
+        private final DataInputStream myIn;
 
-            // Build the data to make the call
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            bados.dataOut.writeInt(requestId);
+        /**
+         * Where data goes out.
+         */
+        private final DataOutputStream myOut;
 
-            // What name for the variable
-            writeUTF16(bados.dataOut, name);
-
-            // Send the value we're setting by reference, as an "argument".
-            // (It's sort of an argument to the set function. Sort of...)
-            final TypeDescription type =
-                myTypeMapping.getDescription(
-                    (value == null) ? Object.class : value.getClass()
-                );
-            bados.dataOut.writeByte(PythonValueFormat.REFERENCE.id);
-            writeObject(bados.dataOut, value, type);
-
-            // Figure out our thread ID
-            final Thread thread = Thread.currentThread();
-            final long threadId = (thread instanceof ThreadId)
-                ? ((ThreadId)thread).getThreadId()
-                : -1;
-
-            // Register ourselves for the callback
-            final PythonCallbackResult result = new PythonCallbackResult(this);
-            myPythonCallbackResults.put(requestId, result);
-
-            // Send the request over
-            if (LOG.isLoggable(Level.FINEST)) {
-                LOG.finest(
-                    "Setting global variable " + name + " " +
-                    "to value " + value + " " +
-                    "with request ID " + requestId + " " +
-                    "from Java thread ID " + threadId
-                );
-            }
-            sendMessage(myOut,
-                        MessageType.SET_GLOBAL_VARIABLE,
-                        threadId,
-                        CALLBACK_REQUEST_ID,
-                        bados.bytes);
-
-            // Now wait for the result, might be null or an exception
-            awaitCallbackReponse(result);
-        }
+        /**
+         * The thread which writes our replies to myOut, if we are coalescing
+         * them, else {@code null}.
+         */
+        private final ReplyWriter myReplyWriter;
 
         /**
-         * {@inheritDoc}
+         * How the replies to control messages are sent, if they are handled
+         * by the reading thread while workers are sending, else {@code null}.
          */
-        @Override
-        public <T> T invoke(final String    functionName,
-                            final Class<T>  returnType,
-                            final Object... args)
-            throws ClassCastException,
-                   IOException,
-                   PythonCallbackException
-        {
-            // The python callback request ID
-            final int requestId = myPythonCallbackRequestId.getAndIncrement();
+        private final ControlReplier myControlReplier;
 
-            // Get the thread ID
-            final long threadId = getThreadId();
+        /**
+         * Our end of the bulk-transfer side channels, if the client has asked
+         * for them, else {@code null}. This is only changed while holding
+         * {@code myBulkEndpointLock} but may be read without it.
+         */
+        private volatile BulkTransferService.Endpoint myBulkEndpoint;
 
-            // Build the data to make the call
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            bados.dataOut.writeInt(requestId);
-            bados.dataOut.writeInt(myTypeMapping.getId(returnType));
-            writeUTF16(bados.dataOut, functionName);
-            if (args == null) {
-                bados.dataOut.writeInt(0);
-            }
-            else {
-                bados.dataOut.writeInt(args.length);
-                for (Object arg : args) {
-                    writeArgument(bados.dataOut, arg);
-                }
-            }
+        /**
+         * What guards {@code myBulkEndpoint}. We don't use {@code this} since
+         * that is held while sending.
+         */
+        private final Object myBulkEndpointLock = new Object();
 
-            // Register ourselves for the callback
-            final PythonCallbackResult result = new PythonCallbackResult(this);
-            myPythonCallbackResults.put(requestId, result);
+        /**
+         * The arena which we copy arrays into, for the other side to read via
+         * shared memory, if we have made one. Guarded by {@code
+         * myShmArenaLock}.
+         */
+        private ShmArena myShmArena;
 
-            // Send the request over
-            if (LOG.isLoggable(Level.FINEST)) {
-                LOG.finest(
-                    "Sending invocation of " + functionName + " " +
-                    "to Python with thread ID " + threadId + " " +
-                    "and Java request ID " + requestId
-                );
-            }
-            sendMessage(myOut,
-                        MessageType.PYTHON_INVOKE,
-                        threadId,
-                        CALLBACK_REQUEST_ID,
-                        bados.bytes);
+        /**
+         * Whether we failed to make {@code myShmArena}, and so should not try
+         * again. Guarded by {@code myShmArenaLock}.
+         */
+        private boolean myShmArenaFailed;
 
-            // Now wait for the result
-            return awaitCallbackReponse(result);
-        }
+        /**
+         * What guards {@code myShmArena}.
+         */
+        private final Object myShmArenaLock = new Object();
 
         /**
-         * {@inheritDoc}
+         * Our per-thread PythonPicklers, for converting values to Python's
+         * pickle format in a best-effort fashion. These are connection-specific
+         * since they need to be able to identify the PJRmi instance on the
+         * Python side.
          */
-        @Override
-        public PythonObject getObject(final String string,
-                                      final String name)
-            throws Throwable
-        {
-            // The python callback request ID
-            final int requestId = myPythonCallbackRequestId.getAndIncrement();
+        private final ThreadLocal<PythonPickle> myBestEffortPythonPickle;
 
-            // Get the thread ID
-            final long threadId = getThreadId();
+        /**
+         * Our object handle mappings.
+         */
+        private final HandleMapping myHandleMapping;
 
-            // Build the data to make the call
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            bados.dataOut.writeInt(requestId);
-            writeUTF16(bados.dataOut, string);
+        /**
+         * Our workers, if any. This will be null if useWorkers() is false.
+         */
+        private final BlockingQueue<Worker> myWorkers;
 
-            // Register ourselves for the callback
-            final PythonCallbackResult result = new PythonCallbackResult(this);
-            myPythonCallbackResults.put(requestId, result);
+        /**
+         * Our method callers.
+         */
+        private final BlockingQueue<MethodCaller> myMethodCallers;
 
-            // Send the request over
-            if (LOG.isLoggable(Level.FINEST)) {
-                LOG.finest(
-                    "Sending object request to Python with thread ID " +
-                    threadId + " and Java request ID " + requestId
-                );
-            }
-            sendMessage(myOut,
-                        MessageType.GET_OBJECT,
-                        threadId,
-                        CALLBACK_REQUEST_ID,
-                        bados.bytes);
+        /**
+         * The mapping from virtual thread ID to a virtual Java Thread. Only
+         * needed (non-null) if we have workers.
+         */
+        private Map<Long,VirtualThread> myVirtualThreads;
 
-            // Get back the Python object ID and use it to construct the
-            // wrapper. A negative ID means null.
-            final Integer objectId = awaitCallbackReponse(result);
-            return (objectId < 0)
-                ? null
-                : new PythonObjectImpl(name == null ? string : name, objectId, myOut);
-        }
+        /**
+         * How many workers we have created; used for naming.
+         */
+        private int myNumWorkers;
 
         /**
-         * {@inheritDoc}
+         * Whether this connection is being read by a {@link Multiplexer},
+         * rather than by its own thread.
          */
-        @Override
-        public PythonObject invokeAndGetObject(final String functionName,
-                                               final Object... args)
-            throws Throwable
-        {
-            // The python callback request ID
-            final int requestId = myPythonCallbackRequestId.getAndIncrement();
+        private volatile boolean myIsMultiplexed;
 
-            // Get the thread ID
-            final long threadId = getThreadId();
+        /**
+         * How requests are read when we are multiplexed, else {@code null}.
+         */
+        private FrameDecoder myFrameDecoder;
 
-            // Build the data to make the call
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            bados.dataOut.writeInt(requestId);
-            writeUTF16(bados.dataOut, functionName);
-            if (args == null) {
-                bados.dataOut.writeInt(0);
-            }
-            else {
-                bados.dataOut.writeInt(args.length);
-                for (Object arg : args) {
-                    writeArgument(bados.dataOut, arg);
-                }
-            }
+        /**
+         * Where our requests are queued for the shared worker pool, if we are
+         * using it, else {@code null}.
+         */
+        private RequestQueue myRequestQueue;
 
-            // Register ourselves for the callback
-            final PythonCallbackResult result = new PythonCallbackResult(this);
-            myPythonCallbackResults.put(requestId, result);
+        /**
+         * How many of our requests were dropped since their deadline passed.
+         */
+        private final AtomicInteger myNumExpired = new AtomicInteger();
 
-            // Send the request over
-            if (LOG.isLoggable(Level.FINEST)) {
-                LOG.finest(
-                    "Sending object request to Python with thread ID " +
-                    threadId + " and Java request ID " + requestId
-                );
-            }
-            sendMessage(myOut,
-                        MessageType.INVOKE_AND_GET_OBJECT,
-                        threadId,
-                        CALLBACK_REQUEST_ID,
-                        bados.bytes);
+        /**
+         * The next request ID for making Python callbacks over this connection.
+         */
+        private final AtomicInteger myPythonCallbackRequestId = new AtomicInteger();
 
-            // Get back the Python object ID and use it to construct the
-            // wrapper. A negative ID means null.
-            final Integer objectId = awaitCallbackReponse(result);
-            return (objectId < 0)
-                ? null
-                : new PythonObjectImpl(functionName, objectId, myOut);
-        }
+        /**
+         * The result holder which each thread reuses for callbacks with
+         * primitive results, since those are often made in tight loops.
+         */
+        private final ThreadLocal<PythonCallbackResult> myPrimitiveCallbackResult =
+            ThreadLocal.withInitial(
+                () -> new PythonCallbackResult(Thread.currentThread())
+            );
 
         /**
-         * {@inheritDoc}
+         * The map used to receive python callback results.
          */
-        @Override
-        public void close()
-        {
-            myTransport.close();
-        }
+        private final Map<Integer,PythonCallbackResult> myPythonCallbackResults =
+            new ConcurrentHashMap<>();
 
         /**
-         * Whether this connection is closed or not.
+         * How many of the results in {@code myPythonCallbackResults} each
+         * (Python) thread is waiting on, keyed by its thread ID. Threads which
+         * aren't waiting on any have no entry.
          */
-        public boolean isClosed()
-        {
-            return !myIsActive || myTransport.isClosed();
-        }
+        private final Map<Long,Integer> myNumAwaitedCallbacks =
+            new ConcurrentHashMap<>();
 
         /**
-         * Returns the thread ID of the current thread, or if that is
-         * unavailable then a best-effort version.
+         * The "depth" into the call stack. This is to spot cases where we are
+         * calling from Java to Python to Java to Python ad infinitum.
          */
-        private long getThreadId()
-        {
-            final long threadId = Thread.currentThread().getId();
-            if (threadId < 0) {
-                return ProcessHandle.current().pid();
-            }
-            else {
-                return threadId;
-            }
-        }
+        private int myCallDepth;
+
+        // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
 
         /**
-         * Do the Python eval or exec.
+         * CTOR.
          */
-        private <T> T evalOrExec(final boolean isEval,
-                                 final String string,
-                                 final Class<T> returnType)
-            throws ClassCastException,
-                   IOException,
-                   PythonCallbackException
+        public Connection(final String name,
+                          final Transport transport,
+                          final long pythonId)
+            throws IOException
         {
-            // The python callback request ID
-            final int requestId = myPythonCallbackRequestId.getAndIncrement();
+            super(name);
 
-            // Get the thread ID
-            final long threadId = getThreadId();
+            myTransport = transport;
+            myPythonId = pythonId;
 
-            // Build the data to make the call
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            bados.dataOut.writeInt(requestId);
-            bados.dataOut.writeBoolean(isEval);
-            bados.dataOut.writeInt(myTypeMapping.getId(returnType));
-            writeUTF16(bados.dataOut, string);
-
-            // Register ourselves for the callback
-            final PythonCallbackResult result = new PythonCallbackResult(this);
-            myPythonCallbackResults.put(requestId, result);
+            // We are active from the get-go
+            myIsActive = true;
 
-            // Send the request over
-            if (LOG.isLoggable(Level.FINEST)) {
-                LOG.finest(
-                    "Sending eval to Python with thread ID " + threadId + " " +
-                    "and Java request ID " + requestId
+            // Set up the streams. It's important that we use a buffered output
+            // stream for myOut since this will send the responses as a single
+            // packet and this _greatly_ speeds up the way the clients work.
+            // The 64k value is the usual MTU and should be way bigger than
+            // anything we will end up sending.
+            final InputStream  inStream  = transport.getInputStream();
+            final OutputStream outStream = transport.getOutputStream();
+            myIn = (inStream instanceof DataInputStream) ?
+                (DataInputStream)inStream : new DataInputStream(inStream);
+            myOut =
+                new DataOutputStream(
+                    new BufferedOutputStream(outStream, 65536)
                 );
+
+            // Coalescing replies only makes sense if there might be more than
+            // one of them in flight at once, i.e. if we have workers
+            if (useWorkers() && useReplyCoalescing()) {
+                myReplyWriter =
+                    new ReplyWriter(name + "#ReplyWriter",
+                                    1000L * maxReplyCoalescingDelayMicros());
+                myReplyWriter.start();
             }
-            sendMessage(myOut,
-                        MessageType.PYTHON_EVAL_OR_EXEC,
-                        threadId,
-                        CALLBACK_REQUEST_ID,
-                        bados.bytes);
+            else {
+                myReplyWriter = null;
+            }
+            myControlReplier = useWorkers() ? new ControlReplier() : null;
 
-            // Now wait for the result
-            return awaitCallbackReponse(result);
+            // How we render with pickle in a best-effort fashion
+            myBestEffortPythonPickle =
+                ThreadLocal.withInitial(BestEffortPythonPickle::new);
+
+            // Try to ensure that all the handles have a reasonably unique
+            // identifier
+            myHandleMapping =
+                new HandleMapping(hashCode() & (int)System.nanoTime());
+
+            // Where our workers, if any, live etc
+            if (useWorkers()) {
+                myWorkers        = new ArrayBlockingQueue<>(numWorkers());
+                myVirtualThreads = new HashMap<>();
+            }
+            else {
+                myWorkers        = null;
+                myVirtualThreads = null;
+            }
+            myNumWorkers = 0;
+
+            // We start off reading for ourselves
+            myIsMultiplexed = false;
+            myFrameDecoder  = null;
+            myRequestQueue  = null;
+
+            // Unbounded queue of these since we want them to be long-lived
+            myMethodCallers = new LinkedBlockingQueue<>();
+
+            // The depth of our stack
+            myCallDepth = 0;
         }
 
         /**
-         * Write out a function argument. This might be by reference or by
-         * value.
+         * {@inheritDoc}
          */
-        private void writeArgument(final DataOutputStream out, final Object arg)
-            throws IOException
+        @Override
+        public void run()
         {
-            if (arg instanceof ByValue) {
-                // Sending by value
-                final Object reference = ((ByValue)arg).get();
-                if (reference == null) {
-                    // Can't send the value of NULL, fall back to a NULL reference
-                    out.writeByte(PythonValueFormat.REFERENCE.id);
-                    writeObject(out,
-                                null,
-                                myTypeMapping.getDescription(Object.class));
-                }
-                else {
-                    // We'd prefer to send it via SHMDATA methods, if we can:
-                    // Right now, this means we're using a transport where both
-                    // sides know they are on the same host and the feature is
-                    // enabled.
-
-                    // Here's where we can store the native array info
-                    // if needed. If the object is not one of primitive types,
-                    // it will be null.
-                    JniPJRmi.ArrayHandle arrayInfo = null;
+            LOG.info("Started handler thread: " + this);
 
-                    if (myUseShmdata && myTransport.isLocalhost()) {
-                        // Do this inside a try-catch since we don't want any
-                        // form of exception to take down the thread if we can
-                        // help it.
-                        try {
-                            // Determine the type of the array and write it
-                            // natively, after casting to the appropriate type.
-                            if (reference instanceof boolean[]) {
-                                arrayInfo = JniPJRmi.writeArray((boolean[])reference);
-                            }
-                            else if (reference instanceof byte[]) {
-                                arrayInfo = JniPJRmi.writeArray((byte   [])reference);
-                            }
-                            else if (reference instanceof short[]) {
-                                arrayInfo = JniPJRmi.writeArray((short  [])reference);
-                            }
-                            else if (reference instanceof int[]) {
-                                arrayInfo = JniPJRmi.writeArray((int    [])reference);
-                            }
-                            else if (reference instanceof long[]) {
-                                arrayInfo = JniPJRmi.writeArray((long   [])reference);
-                            }
-                            else if (reference instanceof float[]) {
-                                arrayInfo = JniPJRmi.writeArray((float  [])reference);
-                            }
-                            else if (reference instanceof double[]) {
-                                arrayInfo = JniPJRmi.writeArray((double [])reference);
-                            }
-                        }
-                        catch (Throwable e) {
-                            // Nothing, we'll proceed with the previous Pickle
-                            // format
-                            LOG.log(Level.FINE, "writeArray() failed unexpectedly", e);
-                        }
-                    }
+            try {
+                // Listen until there is nothing else to hear
+                listen();
+            }
+            finally {
+                shutdown();
+            }
 
-                    // Did we use the native method successfully? If so, we'll
-                    // send the info from that process.
-                    if (arrayInfo != null) {
-                        out.writeByte(PythonValueFormat.SHMDATA.id);
-                        writeUTF16   (out, arrayInfo.filename);
-                        out.writeInt (arrayInfo.numElems);
-                        out.writeChar(arrayInfo.type);
-                    }
+            LOG.info("Exiting handler thread: " + this);
+        }
 
-                    // Otherwise, proceed with normal pickle protocol
-                    else {
-                        // Convert it to a byte[] and compress
-                        final byte[] bytes =
-                            Snappy.compress(
-                                ourPythonPickle.get().toByteArray(reference)
-                            );
+        /**
+         * Whether a request from the given (Python) thread is blocked waiting
+         * for the result of a call back into Python. If it is then any new
+         * request from that thread must be one made by the Python code which
+         * we called.
+         */
+        private boolean isAwaitingCallback(final long threadId)
+        {
+            return threadId != -1 && myNumAwaitedCallbacks.containsKey(threadId);
+        }
 
-                        // Marshall it
-                        out.writeByte(PythonValueFormat.SNAPPY_PICKLE.id);
-                        out.writeInt (bytes.length);
-                        out.write    (bytes, 0, bytes.length);
-                    }
-                }
-            }
-            else if (arg instanceof PythonObjectImpl) {
-                out.writeByte(PythonValueFormat.PYTHON_REFERENCE.id);
-                out.writeInt (((PythonObjectImpl)arg).getId());
+        /**
+         * Register the holder for the result of the callback with the given
+         * request ID.
+         */
+        private void addPythonCallbackResult(final int                  requestId,
+                                             final PythonCallbackResult result)
+        {
+            final long threadId = result.getThreadId();
+            if (threadId != -1) {
+                myNumAwaitedCallbacks.merge(threadId, 1, Integer::sum);
             }
-            else {
-                // Sending by reference
-                final TypeDescription argType =
-                    myTypeMapping.getDescription(
-                        (arg == null) ? Object.class : arg.getClass()
+            myPythonCallbackResults.put(requestId, result);
+        }
+
+        /**
+         * Remove the holder for the result of the callback with the given
+         * request ID. This must be done before the waiting thread is told
+         * about the result.
+         *
+         * @return the holder, or {@code null} if there was none.
+         */
+        private PythonCallbackResult removePythonCallbackResult(final int requestId)
+        {
+            final PythonCallbackResult result =
+                myPythonCallbackResults.remove(requestId);
+            if (result != null) {
+                final long threadId = result.getThreadId();
+                if (threadId != -1) {
+                    myNumAwaitedCallbacks.computeIfPresent(
+                        threadId,
+                        (id, count) -> (count > 1) ? count - 1 : null
                     );
-                out.writeByte(PythonValueFormat.REFERENCE.id);
-                writeObject(out, arg, argType);
+                }
             }
+            return result;
         }
 
         /**
-         * Listen for incoming data. We do this while the connection is still
-         * good.
+         * Have this connection use the shared worker pool, instead of its own
+         * workers. This must be called before any requests are read.
          */
-        private void listen()
+        private void useWorkerPool(final WorkerPool pool)
         {
-            // Variables for stats gathering
-            final long startTimeMs = System.currentTimeMillis();
-            int        numRequests  = 0;
+            myRequestQueue = pool.newQueue(this);
+        }
 
-            // How we pull in the data
-            final ByteList payload = new ByteList(1024 * 1024);
-            final byte[]   header  = new byte[17];
-            final byte[]   buffer  = new byte[64 * 1024];
+        /**
+         * Hand this connection over to the given multiplexer, instead of
+         * starting it as a thread. Requests will be read off the wire by the
+         * multiplexer and handled by the shared worker pool.
+         */
+        private void multiplex(final Multiplexer multiplexer)
+            throws IOException
+        {
+            // We'll only ever be writing to this now, via the output stream
+            final SocketChannel channel =
+                ((SocketChannelTransport)myTransport).getChannel();
+            channel.configureBlocking(false);
 
-            // Keep reading the stream socket until it's done
-            while (true) {
-                // Set everything to empty to start with
-                payload.clear();
-                byte        typeId   = -1;
-                long        threadId = -1;
-                int         reqId    = -1;
-                MessageType type     = null;
-                try {
-                    // Read in the header; this should be a byte (type ID)
-                    // followed by an int (size). We try to read this in a
-                    // single go since reading a byte and then an int winds
-                    // making 5 calls to recvfrom(), as opposed to just 1!
-                    int headerRead = 0;
-                    while (headerRead < header.length) {
-                        final int read = myIn.read(header,
-                                                   headerRead,
-                                                   header.length - headerRead);
-                        if (read < 0) {
-                            break;
-                        }
-                        else {
-                            headerRead += read;
-                        }
-                    }
-                    if (headerRead < header.length) {
-                        throw new EOFException("EOF when reading PJRmi header");
-                    }
+            myIsMultiplexed = true;
+            myFrameDecoder  = new FrameDecoder();
+            multiplexer.register(this);
 
-                    // Okay, unpack the header now
-                    typeId = header[0];
-                    threadId       = (((((long)header[ 1]) & 0xff) << 56) |
-                                      ((((long)header[ 2]) & 0xff) << 48) |
-                                      ((((long)header[ 3]) & 0xff) << 40) |
-                                      ((((long)header[ 4]) & 0xff) << 32) |
-                                      ((((long)header[ 5]) & 0xff) << 24) |
-                                      ((((long)header[ 6]) & 0xff) << 16) |
-                                      ((((long)header[ 7]) & 0xff) <<  8) |
-                                      ((((long)header[ 8]) & 0xff)      ));
-                    reqId          = (((( (int)header[ 9]) & 0xff) << 24) |
-                                      ((( (int)header[10]) & 0xff) << 16) |
-                                      ((( (int)header[11]) & 0xff) <<  8) |
-                                      ((( (int)header[12]) & 0xff)      ));
-                    final int size = (((( (int)header[13]) & 0xff) << 24) |
-                                      ((( (int)header[14]) & 0xff) << 16) |
-                                      ((( (int)header[15]) & 0xff) <<  8) |
-                                      ((( (int)header[16]) & 0xff)      ));
+            LOG.info("Multiplexing connection: " + this);
+        }
 
-                    if (LOG.isLoggable(Level.FINEST)) {
-                        LOG.finest(
-                            "Read " +
-                            "typeId = "   + (int)typeId  + " " +
-                            "('"          + (char)typeId + "'), " +
-                            "threadId = " + threadId     + " " +
-                            "reqId = "    + reqId        + " " +
-                            "size = "     + size
-                        );
-                    }
+        /**
+         * Tear down the connection once we are done with it, releasing all its
+         * resources.
+         */
+        private void shutdown()
+        {
+            // Be nice to the GC
+            myHandleMapping.clear();
 
-                    // Now read the payload. We keep reading until we believe
-                    // that we got everything we care about. The payload might
-                    // be split over several packets etc.
-                    payload.ensureCapacity(size);
-                    int totalRead = 0;
-                    while (totalRead < size) {
-                        // Pull in all the data we can into the local buffer
-                        final int read =
-                            myIn.read(
-                                buffer,
-                                0,
-                                Math.min(buffer.length, size - totalRead)
-                            );
-
-                        // Check for EOF
-                        if (read < 0) {
-                            break;
-                        }
-                        else {
-                            payload.append(buffer, 0, read);
-                            totalRead += read;
-                        }
-                    }
-
-                    // Now figure out the incoming message type
-                    type = MessageType.byId(typeId);
-                    if (type == null) {
-                        throw new IllegalArgumentException(
-                            "Unknown message type ID: " + typeId
-                        );
-                    }
+            // Anything which we have yet to get to won't be wanted now
+            if (myRequestQueue != null) {
+                myRequestQueue.clear();
+            }
 
-                    // Good?
-                    if (totalRead == size) {
-                        // Now we have the payload we can log
-                        if (LOG.isLoggable(Level.FINER)) {
-                            LOG.finer(
-                                "Received " +
-                                "typeId = "    + (int)typeId  + " " +
-                                "('"           + (char)typeId + "'), " +
-                                PJRmi.toString(payload)
-                            );
-                        }
-                        numRequests++;
+            // Drop any locks, if we are holding them
+            try {
+                myLockManager.dropAllThreadLocks();
+            }
+            catch (IllegalArgumentException e) {
+                // This is fine but log when debugging
+                LOG.fine("Problem dropping locks: " + e);
+            }
 
-                        // See if we have workers or not
-                        if (myWorkers == null) {
-                            // Nope, handle directly, and time it here
-                            final Instrumentor instr = myInstrumentors[type.ordinal()];
-                            final long start = instr.start();
+            // Stop the reply writer, it will make a best effort to send out
+            // anything which it has pending before the transport is closed
+            if (myReplyWriter != null) {
+                myReplyWriter.terminate();
+            }
 
-                            // Whether we acquired the global lock, or not
-                            boolean lockedGlobal = false;
+            // Ensure the underlying connection is closed so that the other
+            // side won't hang forever etc.
+            try {
+                myTransport.close();
+            }
+            catch (Throwable t) {
+                // Nothing
+            }
 
-                            // The result goes in here. It's important that
-                            // no-one else uses this buffer for anything; we own
-                            // it here.
-                            final ByteArrayDataOutputStream sendBuf = mySendBufs.get();
+            // Mark ourselves as inactive. We should do this before killing off
+            // the workers so that none of them attempt to insert themselves
+            // into the queue as we terminate them. See the Worker#work()
+            // method.
+            myIsActive = false;
 
-                            // Do all this inside a try-catch since we don't
-                            // want any form of exception to take down the
-                            // thread if we can help it
-                            try {
-                                if (type.shouldLockFor) {
-                                    myLockManager.lockGlobal();
-                                    lockedGlobal = true;
-                                }
+            // Close any side channels, which will fail any transfers which
+            // are in flight
+            final BulkTransferService.Endpoint endpoint;
+            synchronized (myBulkEndpointLock) {
+                endpoint = myBulkEndpoint;
+                myBulkEndpoint = null;
+            }
+            if (endpoint != null) {
+                endpoint.close();
+            }
 
-                                // Handle the incoming payload. We don't have a
-                                // VirtualThread in this case so we pass in null.
-                                receive(type,
-                                        threadId,
-                                        null,
-                                        reqId,
-                                        payload,
-                                        sendBuf,
-                                        myOut);
-                            }
-                            finally {
-                                if (lockedGlobal) {
-                                    // Release the global lock now. This should
-                                    // never fail in a perfect world but it's
-                                    // possible for users to do something bad to
-                                    // the lock. If that's the case then we
-                                    // simply drop the connection by exiting
-                                    // this method. The issue here is that
-                                    // receive() will have already sent a
-                                    // response and we don't want to send yet
-                                    // _another_ response (with this exception)
-                                    // since that will pollute the protocol
-                                    // stream.
-                                    try {
-                                        myLockManager.unlockGlobal();
-                                    }
-                                    catch (Throwable t) {
-                                        LOG.log(
-                                            Level.SEVERE,
-                                            "Terminating listener on locking exception",
-                                            t
-                                        );
-                                        return;
-                                    }
-                                }
+            // Fail any asynchronous calls into Python which are still awaiting
+            // their results, since those won't come now. (Threads which are
+            // waiting for theirs will see that the transport is closed.)
+            for (PythonCallbackResult result : myPythonCallbackResults.values()) {
+                if (result instanceof AsyncPythonCallbackResult) {
+                    ((AsyncPythonCallbackResult<?>)result).fail(
+                        new IOException("Connection to Python is closed")
+                    );
+                }
+            }
 
-                                // Try to send the reply. This has to be done
-                                // after we've dropped the global lock since we
-                                // don't want the client thread initiating
-                                // another request (over a different connection
-                                // to us) and touching the lock. This is an
-                                // unlikely version of the same problem in the
-                                // worker pattern.
-                                send(sendBuf, myOut);
-
-                                // And we're finally done
-                                instr.end(start);
-                            }
-                        }
-                        else {
-                            // Hand off to a worker
-                            Worker worker = myWorkers.poll();
-                            if (worker == null) {
-                                // Need to create a new worker and set it running
-                                worker = new Worker(getName() + "#Worker" + ++myNumWorkers);
-                                worker.start();
-                            }
+            // And remove our shared-memory arena, if any; the other side keeps
+            // its mapping of it
+            synchronized (myShmArenaLock) {
+                if (myShmArena != null) {
+                    myShmArena.close();
+                    myShmArena = null;
+                }
+                myShmArenaFailed = true;
+            }
 
-                            // Find the virtual thread associated with the
-                            // threadId. The myVirtualThreads Map is only ever
-                            // touched in this thread.
-                            VirtualThread thread = myVirtualThreads.get(threadId);
-                            if (thread == null) {
-                                thread = new VirtualThread(getName() + ":" + threadId);
-                                myVirtualThreads.put(threadId, thread);
-                            }
-                            worker.handle(type, threadId, thread, reqId, payload, myOut);
-                        }
-                    }
-                    else {
-                        // Junk this, we don't understand it
-                        throw new IllegalArgumentException(
-                            "Received malformed request: " +
-                            "typeId = "    + (int)typeId  + " " +
-                            "('"           + (char)typeId + "'), " +
-                            "threadId = "  + threadId     + " " +
-                            "reqId = "     + reqId        + " " +
-                            "size = "      + size         + " " +
-                            "size-read = " + totalRead    + ": " +
-                            PJRmi.toString(payload)
-                        );
-                    }
+            // If we have worker threads then close them down
+            if (myWorkers != null) {
+                LOG.fine("Terminating workers");
+                for (Worker worker = myWorkers.poll();
+                     worker != null;
+                     worker = myWorkers.poll())
+                {
+                    worker.terminate();
                 }
-                catch (Throwable e) {
-                    // Attempt to return everything back to the caller. This
-                    // might be a problem with the connection itself, in which
-                    // case we'll simply bail out at the end anyhow (when we try
-                    // to send the exception).
-                    if (LOG.isLoggable(Level.FINE)) {
-                        LOG.fine(
-                            "Encountered exception " +
-                            "when handling " + type + " " + PJRmi.toString(payload) + ":\n" +
-                            stackTraceToString(e)
-                        );
-                    }
+            }
+            LOG.fine("Terminating method callers");
+            for (MethodCaller caller = myMethodCallers.poll();
+                 caller != null;
+                 caller = myMethodCallers.poll())
+            {
+                caller.terminate();
+            }
 
-                    // What we'll be sending back
-                    final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            // If we were multiplexed then there was no listen() call to give
+            // us our stats, so do that here
+            if (myIsMultiplexed) {
+                myFrameDecoder.logStats();
+            }
+        }
 
-                    // We'll treat this like a normal object
-                    final TypeDescription exDesc =
-                        myTypeMapping.getDescription(e.getClass());
-                    final long exHandle = myHandleMapping.addReference(e);
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> T eval(final String string, final Class<T> returnType)
+            throws ClassCastException,
+                   IOException,
+                   PythonCallbackException
+        {
+            return evalOrExec(true, string, returnType);
+        }
 
-                    try {
-                        // Populate with the exception information
-                        bados.dataOut.writeInt (exDesc.getTypeId());
-                        bados.dataOut.writeLong(exHandle);
-                        bados.dataOut.writeInt (-1);
-
-                        // And send
-                        sendMessage(myOut,
-                                    MessageType.EXCEPTION,
-                                    threadId,
-                                    reqId,
-                                    bados.bytes);
-                    }
-                    catch (SocketException ee) {
-                        // This is probably fine if the other side closed the
-                        // connection
-                        if (e instanceof EOFException) {
-                            LOG.info("Looks like the client disconnected: " + ee);
-                        }
-                        else {
-                            LOG.warning("Error when sending back " + e + ": " + ee);
-                        }
-                        break;
-                    }
-                    catch (IOException ee) {
-                        // This is probably fine if the other side closed the
-                        // connection. We may get IOException on some transports
-                        // while trying to send the exception.
-                        if (e instanceof EOFException) {
-                            LOG.info("Looks like the client disconnected: " + ee);
-                        }
-                        else {
-                            LOG.severe("IO error when sending " + e + ": " + ee);
-                        }
-                        break;
-                    }
-                }
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> CompletableFuture<T> evalAsync(final String   string,
+                                                  final Class<T> returnType)
+        {
+            final AsyncPythonCallbackResult<T> result =
+                new AsyncPythonCallbackResult<>();
+            try {
+                sendEvalOrExec(true, string, returnType, -1, result);
             }
-
-            // Dump some auditing information
-            final long durationMs = System.currentTimeMillis() - startTimeMs;
-            final Collection<String> classes =
-                myTypeMapping.getClasses()
-                             .stream()
-                             .map(Class::getName)
-                             .collect(Collectors.toSet());
-            LOG.info("ConnectionStats:: " +
-                     "Name: "               + myName            + "; " +
-                     "Duration: "           + durationMs + "ms" + "; " +
-                     "NumRequests: "        + numRequests       + "; " +
-                     "NumAccessedClasses: " + classes.size()    + "; " +
-                     "AccessedClasses: "    + classes);
+            catch (IOException e) {
+                result.fail(e);
+            }
+            return result.getFuture();
         }
-        /** For use in the listen() method only. */
-        private final ThreadLocalByteArrayDataOutputStream mySendBufs =
-            new ThreadLocalByteArrayDataOutputStream();
 
         /**
-         * Handle a raw set of bytes making up a payload. This could throw
-         * pretty much any exception depending on what it does.
-         *
-         * <p>The clientReceiver stream should <i>not</i> be used for sending back
-         * messages directly from this method; they should be put into the
-         * result stream. This is to avoid race conditions in the worker code.
+         * {@inheritDoc}
          */
-        private void receive(final MessageType type,
-                             final long threadId,
-                             final VirtualThread thread,
-                             final int reqId,
-                             final ByteList payload,
-                             final ByteArrayDataOutputStream result,
-                             final DataOutputStream clientReceiver)
-            throws Throwable
+        @Override
+        public void exec(final String string)
+            throws IOException,
+                   PythonCallbackException
         {
-            if (LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Handling " + type + ": " + PJRmi.toString(payload));
+            try {
+                evalOrExec(false, string, Object.class);
+            }
+            catch (ClassCastException e) {
+                // Shouldn't happen
+                throw new AssertionError("Unexpected error", e);
             }
+        }
 
-            // This should always be empty when we get it
-            if (result.bytes.size() != 0) {
-                throw new IllegalStateException(
-                    "Result buffer was non-empty: " +
-                    PJRmi.toString(result.bytes.toByteArray())
-                );
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setGlobalVariable(final String name, final Object value)
+            throws IOException,
+                   PythonCallbackException
+        {
+            // We need a name
+            if (name == null || name.isEmpty()) {
+                throw new IllegalArgumentException("Empty name given");
             }
 
-            // Handle whatever it ws
-            switch (type) {
-            case INSTANCE_REQUEST:
-                handleInstanceRequest(threadId, reqId, payload, result);
-                return;
+            // The python callback request ID
+            final int requestId = myPythonCallbackRequestId.getAndIncrement();
 
-            case ADD_REFERENCE:
-                handleAddReference(threadId, reqId, payload, result);
-                return;
+            // Build the data to make the call
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            bados.dataOut.writeInt(requestId);
 
-            case DROP_REFERENCES:
-                handleDropReferences(threadId, reqId, payload, result);
-                return;
+            // What name for the variable
+            writeUTF16(bados.dataOut, name);
 
-            case TYPE_REQUEST:
-                handleTypeRequest(threadId, reqId, payload, result);
-                return;
+            // Send the value we're setting by reference, as an "argument".
+            // (It's sort of an argument to the set function. Sort of...)
+            final TypeDescription type =
+                myTypeMapping.getDescription(
+                    (value == null) ? Object.class : value.getClass()
+                );
+            bados.dataOut.writeByte(PythonValueFormat.REFERENCE.id);
+            writeObject(bados.dataOut, value, type);
 
-            case METHOD_CALL:
-                handleMethodCall(threadId, thread, reqId, payload, result);
-                return;
+            // Figure out our thread ID
+            final Thread thread = Thread.currentThread();
+            final long threadId = (thread instanceof ThreadId)
+                ? ((ThreadId)thread).getThreadId()
+                : -1;
 
-            case TO_STRING:
-                handleToString(threadId, reqId, payload, result);
-                return;
+            // Register ourselves for the callback
+            final PythonCallbackResult result =
+                new PythonCallbackResult(Thread.currentThread());
+            addPythonCallbackResult(requestId, result);
 
-            case GET_FIELD:
-                handleGetField(threadId, reqId, payload, result);
-                return;
+            // Send the request over
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest(
+                    "Setting global variable " + name + " " +
+                    "to value " + value + " " +
+                    "with request ID " + requestId + " " +
+                    "from Java thread ID " + threadId
+                );
+            }
+            sendMessage(myOut,
+                        MessageType.SET_GLOBAL_VARIABLE,
+                        threadId,
+                        CALLBACK_REQUEST_ID,
+                        bados.bytes);
 
-            case SET_FIELD:
-                handleSetField(threadId, reqId, payload, result);
-                return;
-
-            case GET_ARRAY_LENGTH:
-                handleGetArrayLength(threadId, reqId, payload, result);
-                return;
-
-            case NEW_ARRAY_INSTANCE:
-                handleNewArrayInstance(threadId, reqId, payload, result);
-                return;
-
-            case OBJECT_CAST:
-                handleObjectCast(threadId, reqId, payload, result);
-                return;
-
-            case LOCK:
-                handleLock(threadId, reqId, payload, result);
-                return;
-
-            case UNLOCK:
-                handleUnlock(threadId, reqId, payload, result);
-                return;
-
-            case INJECT_CLASS:
-                handleInjectClass(threadId, reqId, payload, result);
-                return;
-
-            case INJECT_SOURCE:
-                handleInjectSource(threadId, reqId, payload, result);
-                return;
-
-            case GET_VALUE_OF:
-                handleGetValueOf(threadId, reqId, payload, result);
-                return;
-
-            case GET_CALLBACK_HANDLE:
-                handleGetCallbackHandle(threadId, reqId, payload, result,
-                                        clientReceiver);
-                return;
-
-            case CALLBACK_RESPONSE:
-                handleCallbackResponse(threadId, reqId, payload, result);
-                return;
-
-            case GET_PROXY:
-                handleGetProxy(threadId, reqId, payload, result,
-                               clientReceiver);
-                return;
-
-            case REPLACE_CLASS:
-                handleReplaceClass(threadId, reqId, payload, result);
-                return;
+            // Now wait for the result, might be null or an exception
+            awaitCallbackReponse(result);
+        }
 
-            default:
-                throw new IllegalArgumentException(
-                    "Unhandled incoming message type: " + type
-                );
-            }
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> T invoke(final String    functionName,
+                            final Class<T>  returnType,
+                            final Object... args)
+            throws ClassCastException,
+                   IOException,
+                   PythonCallbackException
+        {
+            final PythonCallbackResult result =
+                new PythonCallbackResult(Thread.currentThread());
+            sendInvoke(functionName, returnType, args, getThreadId(), result);
+            return awaitCallbackReponse(result);
         }
 
         /**
-         * Put a ByteArrayOutputStream as the payload into a buffer which we can
-         * later send over the wire.
-         *
-         * <p>The payload may be null if there is none. This can be true for
-         * simple ACK messages, for example.
+         * {@inheritDoc}
          */
-        private void buildMessage(final DataOutputStream      out,
-                                  final MessageType           type,
-                                  final long                  threadId,
-                                  final int                   reqId,
-                                  final ByteArrayOutputStream payload)
-            throws IOException
+        @Override
+        public <T> CompletableFuture<T> invokeAsync(final String    functionName,
+                                                    final Class<T>  returnType,
+                                                    final Object... args)
         {
-            final long start = myInstrumentors[type.ordinal()].start();
+            final AsyncPythonCallbackResult<T> result =
+                new AsyncPythonCallbackResult<>();
             try {
-                // The message type is always the first byte in the message
-                out.writeByte(type.id);
-
-                // And the thread ID and request number is the next 12 (8 and 4)
-                out.writeLong(threadId);
-                out.writeInt (reqId);
-
-                // Send any payload
-                if (payload != null && payload.size() > 0) {
-                    if (LOG.isLoggable(Level.FINER)) {
-                        LOG.finer(
-                            "Creating " + type + " '" + (char)type.id + "' " +
-                            "for thread ID " + threadId + " " +
-                            "and request ID " + reqId + ": " +
-                            PJRmi.toString(payload.toByteArray())
-                        );
-                    }
-
-                    // Write out the payload size and whatever it is
-                    out.writeInt(payload.size());
-                    payload.writeTo(out);
-                }
-                else {
-                    if (LOG.isLoggable(Level.FINER)) {
-                        LOG.finer("Building: " + type + " <>");
-                    }
-
-                    // No payload so size is zero
-                    out.writeInt(0);
-                }
-
-                // Ensure everything is in there
-                out.flush();
+                sendInvoke(functionName, returnType, args, -1, result);
             }
-            finally {
-                myInstrumentors[type.ordinal()].end(start);
+            catch (IOException e) {
+                result.fail(e);
             }
+            return result.getFuture();
         }
 
         /**
-         * Send a ByteArrayDataOutputStream over the wire.
+         * Send a call to a Python function, with the given result to receive
+         * its response.
          *
-         * <p>This could be called from multiple threads so it needs to be
-         * synchronized in order to prevent mangling the output stream.
-         */
-        private synchronized void send(final ByteArrayDataOutputStream msg,
-                                       final DataOutputStream          out)
+         * @param threadId  The thread ID to make the call as, or {@code -1} if
+         *                  it is not being made on behalf of a waiting thread.
+         */
+        private void sendInvoke(final String               functionName,
+                                final Class<?>             returnType,
+                                final Object[]             args,
+                                final long                 threadId,
+                                final PythonCallbackResult result)
             throws IOException
         {
-            // Push the bytes to the output stream and ensure that they are
-            // sent, using a flush()
-            if (msg.bytes.size() > 0) {
-                if (LOG.isLoggable(Level.FINER)) {
-                    LOG.finer("Sending: " + PJRmi.toString(msg.bytes.toByteArray()));
+            // The python callback request ID
+            final int requestId = myPythonCallbackRequestId.getAndIncrement();
+
+            // Build the data to make the call
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            bados.dataOut.writeInt(requestId);
+            bados.dataOut.writeInt(myTypeMapping.getId(returnType));
+            writeUTF16(bados.dataOut, functionName);
+            if (args == null) {
+                bados.dataOut.writeInt(0);
+            }
+            else {
+                bados.dataOut.writeInt(args.length);
+                for (Object arg : args) {
+                    writeArgument(bados.dataOut, arg);
                 }
-                msg.bytes.writeTo(out);
-                out.flush();
+            }
+
+            // Register ourselves for the callback
+            addPythonCallbackResult(requestId, result);
+
+            // Send the request over
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest(
+                    "Sending invocation of " + functionName + " " +
+                    "to Python with thread ID " + threadId + " " +
+                    "and Java request ID " + requestId
+                );
+            }
+            try {
+                sendMessage(myOut,
+                            MessageType.PYTHON_INVOKE,
+                            threadId,
+                            CALLBACK_REQUEST_ID,
+                            bados.bytes);
+            }
+            catch (IOException e) {
+                removePythonCallbackResult(requestId);
+                throw e;
             }
         }
 
         /**
-         * Build a message and send it.
+         * {@inheritDoc}
          */
-        private void sendMessage(final DataOutputStream      out,
-                                 final MessageType           type,
-                                 final long                  threadId,
-                                 final int                   reqId,
-                                 final ByteArrayOutputStream payload)
-            throws IOException
+        @Override
+        public PythonObject getObject(final String string,
+                                      final String name)
+            throws Throwable
         {
-            final ByteArrayDataOutputStream sendBuf = mySendMessageBufs.get();
-            buildMessage(sendBuf.dataOut, type, threadId, reqId, payload);
-            send(sendBuf, out);
+            // The python callback request ID
+            final int requestId = myPythonCallbackRequestId.getAndIncrement();
+
+            // Get the thread ID
+            final long threadId = getThreadId();
+
+            // Build the data to make the call
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            bados.dataOut.writeInt(requestId);
+            writeUTF16(bados.dataOut, string);
+
+            // Register ourselves for the callback
+            final PythonCallbackResult result =
+                new PythonCallbackResult(Thread.currentThread());
+            addPythonCallbackResult(requestId, result);
+
+            // Send the request over
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest(
+                    "Sending object request to Python with thread ID " +
+                    threadId + " and Java request ID " + requestId
+                );
+            }
+            sendMessage(myOut,
+                        MessageType.GET_OBJECT,
+                        threadId,
+                        CALLBACK_REQUEST_ID,
+                        bados.bytes);
+
+            // Get back the Python object ID and use it to construct the
+            // wrapper. A negative ID means null.
+            final Integer objectId = awaitCallbackReponse(result);
+            return (objectId < 0)
+                ? null
+                : new PythonObjectImpl(name == null ? string : name, objectId, myOut);
         }
-        /** Only used by sendMessage(). */
-        private final ThreadLocalByteArrayDataOutputStream mySendMessageBufs =
-            new ThreadLocalByteArrayDataOutputStream();
 
         /**
-         * Convert an object to a payload byte stream, following the given
-         * return format.
-         *
-         * @param objectType Type that the client should use when interpreting
-         *                   the object. May be {@code null} when
-         *                   {@code valueFormat} is not
-         *                   {@link PythonValueFormat#REFERENCE}
+         * {@inheritDoc}
          */
-        private void renderObject(final long                      threadId,
-                                  final int                       reqId,
-                                  final ByteArrayDataOutputStream buf,
-                                  final PythonValueFormat         valueFormat,
-                                  final Object                    object,
-                                  final TypeDescription           objectType)
+        @Override
+        public PythonObject invokeAndGetObject(final String functionName,
+                                               final Object... args)
             throws Throwable
         {
-            // What we'll be sending back
+            // The python callback request ID
+            final int requestId = myPythonCallbackRequestId.getAndIncrement();
+
+            // Get the thread ID
+            final long threadId = getThreadId();
+
+            // Build the data to make the call
             final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            bados.dataOut.writeInt(requestId);
+            writeUTF16(bados.dataOut, functionName);
+            if (args == null) {
+                bados.dataOut.writeInt(0);
+            }
+            else {
+                bados.dataOut.writeInt(args.length);
+                for (Object arg : args) {
+                    writeArgument(bados.dataOut, arg);
+                }
+            }
 
-            switch (valueFormat) {
-            case REFERENCE:
-            case PYTHON_REFERENCE:
-                // What do we have to give back?
-                if (object instanceof PythonObjectImpl) {
-                    // A wrapped Python object
-                    bados.dataOut.writeInt(((PythonObjectImpl)object).getId());
-                    buildMessage(buf.dataOut,
-                                 MessageType.PYTHON_REFERENCE,
-                                 threadId,
-                                 reqId,
-                                 bados.bytes);
-                }
-                else if (object instanceof PythonProxyHandler) {
-                    // A Python object proxying for a Java one
-                    bados.dataOut.writeInt(((PythonProxyHandler)object).getId());
-                    buildMessage(buf.dataOut,
-                                 MessageType.PYTHON_REFERENCE,
-                                 threadId,
-                                 reqId,
-                                 bados.bytes);
-                }
-                else if (valueFormat == PythonValueFormat.PYTHON_REFERENCE) {
-                    // We can't turn this into a Python object reference, sorry
-                    throw new IllegalArgumentException(
-                        "Can't send a " +
-                        (object == null ? "null" : object.getClass().toString()) + " " +
-                        "as a Python reference"
-                    );
-                }
-                else {
-                    // This this is just a Java object
-                    writeObject(bados.dataOut, object, objectType);
-                    buildMessage(buf.dataOut,
-                                 MessageType.ARBITRARY_ITEM,
-                                 threadId,
-                                 reqId,
-                                 bados.bytes);
-                }
-                return;
+            // Register ourselves for the callback
+            final PythonCallbackResult result =
+                new PythonCallbackResult(Thread.currentThread());
+            addPythonCallbackResult(requestId, result);
 
-            case RAW_PICKLE:
-            case SNAPPY_PICKLE:
-            case BESTEFFORT_PICKLE:
-            case BESTEFFORT_SNAPPY_PICKLE:
-                // Figure out which PythonPickle instance to use
-                final PythonPickle pickle;
-                if (valueFormat == PythonValueFormat.RAW_PICKLE ||
-                    valueFormat == PythonValueFormat.SNAPPY_PICKLE)
-                {
-                    pickle = ourPythonPickle.get();
-                }
-                else {
-                    pickle = myBestEffortPythonPickle.get();
-                }
+            // Send the request over
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest(
+                    "Sending object request to Python with thread ID " +
+                    threadId + " and Java request ID " + requestId
+                );
+            }
+            sendMessage(myOut,
+                        MessageType.INVOKE_AND_GET_OBJECT,
+                        threadId,
+                        CALLBACK_REQUEST_ID,
+                        bados.bytes);
 
-                // Convert it to a byte[], and possibly compress it
-                byte[] bytes = pickle.toByteArray(object);
-                if (valueFormat == PythonValueFormat.SNAPPY_PICKLE ||
-                    valueFormat == PythonValueFormat.BESTEFFORT_SNAPPY_PICKLE)
-                {
-                    bytes = Snappy.compress(bytes);
-                }
+            // Get back the Python object ID and use it to construct the
+            // wrapper. A negative ID means null.
+            final Integer objectId = awaitCallbackReponse(result);
+            return (objectId < 0)
+                ? null
+                : new PythonObjectImpl(functionName, objectId, myOut);
+        }
 
-                // Stuff this into our buffer
-                // Number of bytes sent = data size + valueFormat byte
-                bados.dataOut.writeInt (bytes.length + 1);
-                bados.dataOut.writeByte(valueFormat.id);
-                bados.dataOut.write    (bytes, 0, bytes.length);
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PreparedCode prepare(final String source)
+            throws IOException,
+                   PythonCallbackException
+        {
+            // The python callback request ID
+            final int requestId = myPythonCallbackRequestId.getAndIncrement();
 
-                // And package it up
-                buildMessage(buf.dataOut,
-                             MessageType.PICKLE_BYTES,
-                             threadId,
-                             reqId,
-                             bados.bytes);
-                return;
+            // Get the thread ID
+            final long threadId = getThreadId();
 
-            default:
-                throw new IllegalArgumentException(
-                    "Unhandled return format " + valueFormat
+            // Build the data to make the call
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            bados.dataOut.writeInt(requestId);
+            writeUTF16(bados.dataOut, source);
+
+            // Register ourselves for the callback
+            final PythonCallbackResult result =
+                new PythonCallbackResult(Thread.currentThread());
+            addPythonCallbackResult(requestId, result);
+
+            // Send the request over
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest(
+                    "Sending prepare request to Python with thread ID " +
+                    threadId + " and Java request ID " + requestId
                 );
             }
+            sendMessage(myOut,
+                        MessageType.PYTHON_PREPARE,
+                        threadId,
+                        CALLBACK_REQUEST_ID,
+                        bados.bytes);
+
+            // Get back the ID of the Python callable which runs the compiled
+            // code. Running it is then just a matter of calling that with the
+            // locals as its kwargs.
+            final Integer objectId = awaitCallbackReponse(result);
+            final PythonObjectImpl code =
+                new PythonObjectImpl(source, objectId, myOut);
+            return
+                new PreparedCode()
+                {
+                    @Override
+                    public <T> T invoke(final Class<T>           returnType,
+                                        final Map<String,Object> locals)
+                        throws ClassCastException,
+                               IOException,
+                               PythonCallbackException
+                    {
+                        return code.doInvoke(returnType, null, locals);
+                    }
+
+                    @Override
+                    public String toString()
+                    {
+                        return "PreparedCode{" + source + "}";
+                    }
+                };
         }
 
         /**
-         * Convert a deconstructed {@link JniPJRmi$ArrayHandle} object to a
-         * payload byte stream.
-         *
-         * @param threadId Logical thread ID.
-         * @param reqId    Request number.
-         * @param buf      The buffer which will eventually be sent.
-         * @param filename Name of the file to read from.
-         * @param numElems Number of elements we expect to read.
-         * @param type     Type of the array represented as a char, that
-         *                 {@link JniPJRmi} understands.
+         * {@inheritDoc}
          */
-        private void writeShmObject(final long                      threadId,
-                                    final int                       reqId,
-                                    final ByteArrayDataOutputStream buf,
-                                    final String                    filename,
-                                    final int                       numElems,
-                                    final char                      type)
-            throws Throwable
+        @Override
+        public void close()
         {
-            // What we'll be sending back
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-
-            // Let 'em know we're sending an ArrayHandle
-            bados.dataOut.writeByte(PythonValueFormat.SHMDATA.id);
+            myTransport.close();
+        }
 
-            // Write each input object to the output stream
-            writeUTF16(bados.dataOut, filename);
-            bados.dataOut.writeInt (numElems);
-            bados.dataOut.writeChar(type);
+        /**
+         * Whether this connection is closed or not.
+         */
+        @Override
+        public boolean isClosed()
+        {
+            return !myIsActive || myTransport.isClosed();
+        }
 
-            // And push it out over the wire
-            buildMessage(buf.dataOut,
-                         MessageType.SHMDATA_BYTES,
-                         threadId,
-                         reqId,
-                         bados.bytes);
+        /**
+         * Returns the thread ID of the current thread, or if that is
+         * unavailable then a best-effort version.
+         */
+        private long getThreadId()
+        {
+            final long threadId = Thread.currentThread().getId();
+            if (threadId < 0) {
+                return ProcessHandle.current().pid();
+            }
+            else {
+                return threadId;
+            }
         }
 
         /**
-         * Write an Object to an output stream along with its type information,
-         * according to that given type information.
+         * Do the Python eval or exec.
          */
-        private void writeObject(final DataOutputStream dataOut,
-                                 final Object           object,
-                                 final TypeDescription  typeInfo)
+        private <T> T evalOrExec(final boolean isEval,
+                                 final String string,
+                                 final Class<T> returnType)
+            throws ClassCastException,
+                   IOException,
+                   PythonCallbackException
+        {
+            final PythonCallbackResult result =
+                new PythonCallbackResult(Thread.currentThread());
+            sendEvalOrExec(isEval, string, returnType, getThreadId(), result);
+            return awaitCallbackReponse(result);
+        }
+
+        /**
+         * Send a Python eval or exec, with the given result to receive its
+         * response.
+         *
+         * @param threadId  The thread ID to make the call as, or {@code -1} if
+         *                  it is not being made on behalf of a waiting thread.
+         */
+        private void sendEvalOrExec(final boolean              isEval,
+                                    final String               string,
+                                    final Class<?>             returnType,
+                                    final long                 threadId,
+                                    final PythonCallbackResult result)
             throws IOException
         {
-            final long start = myWriteObjectInstrumentor.start();
+            // The python callback request ID
+            final int requestId = myPythonCallbackRequestId.getAndIncrement();
 
-            // Always write the type
-            dataOut.writeInt(typeInfo.getTypeId());
+            // Build the data to make the call
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            bados.dataOut.writeInt(requestId);
+            bados.dataOut.writeBoolean(isEval);
+            bados.dataOut.writeInt(myTypeMapping.getId(returnType));
+            writeUTF16(bados.dataOut, string);
 
-            // Now handle the object itself
-            if (!typeInfo.isPrimitive()) {
-                // Get a handle on the object to give back. If it's null then we
-                // use the NULL handle.
-                if (object == null) {
-                    dataOut.writeLong(HandleMapping.NULL_HANDLE);
+            // Register ourselves for the callback
+            addPythonCallbackResult(requestId, result);
+
+            // Send the request over
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest(
+                    "Sending eval to Python with thread ID " + threadId + " " +
+                    "and Java request ID " + requestId
+                );
+            }
+            try {
+                sendMessage(myOut,
+                            MessageType.PYTHON_EVAL_OR_EXEC,
+                            threadId,
+                            CALLBACK_REQUEST_ID,
+                            bados.bytes);
+            }
+            catch (IOException e) {
+                removePythonCallbackResult(requestId);
+                throw e;
+            }
+        }
+
+        /**
+         * Write out a function argument. This might be by reference or by
+         * value.
+         */
+        private void writeArgument(final DataOutputStream out, final Object arg)
+            throws IOException
+        {
+            if (arg instanceof ByValue) {
+                // Sending by value
+                final Object reference = ((ByValue)arg).get();
+                if (reference == null) {
+                    // Can't send the value of NULL, fall back to a NULL reference
+                    out.writeByte(PythonValueFormat.REFERENCE.id);
+                    writeObject(out,
+                                null,
+                                myTypeMapping.getDescription(Object.class));
                 }
                 else {
-                    dataOut.writeLong(
-                        myHandleMapping.addReference(object)
-                    );
-                }
-
-                // Potentially write out the value as raw data too. This is pro-
-                // active support for the boxing on the Python side (so that it
-                // doesn't have to make another callback to determine the raw
-                // value of a boxed object). Note that not all primitive types
-                // are boxed on the Python side.
-                if (object instanceof java.lang.String) {
-                    // Don't send "large" strings automatically out over the
-                    // wire; wait for them to be requested.
-                    final String string = (String)object;
-                    if (string.length() < 32768) {
-                        writeUTF16(dataOut, string);
+                    // We'd prefer to send it via SHMDATA methods, if we can:
+                    // Right now, this means we're using a transport where both
+                    // sides know they are on the same host and the feature is
+                    // enabled.
+
+                    // Here's where we can store the native array info
+                    // if needed. If the object is not one of primitive types,
+                    // it will be null.
+                    JniPJRmi.ArrayHandle arrayInfo = null;
+                    ShmArena.Region      region    = null;
+                    ShmDataWriter.Handle handle    = null;
+
+                    if (myUseShmdata && myTransport.isLocalhost()) {
+                        region = writeToShmArena(reference);
+                    }
+                    if (region == null && myUseShmdata && myTransport.isLocalhost()) {
+                        // Do this inside a try-catch since we don't want any
+                        // form of exception to take down the thread if we can
+                        // help it.
+                        try {
+                            // Determine the type of the array and write it
+                            // natively, after casting to the appropriate type.
+                            if (reference instanceof boolean[]) {
+                                arrayInfo = JniPJRmi.writeArray((boolean[])reference);
+                            }
+                            else if (reference instanceof byte[]) {
+                                arrayInfo = JniPJRmi.writeArray((byte   [])reference);
+                            }
+                            else if (reference instanceof short[]) {
+                                arrayInfo = JniPJRmi.writeArray((short  [])reference);
+                            }
+                            else if (reference instanceof int[]) {
+                                arrayInfo = JniPJRmi.writeArray((int    [])reference);
+                            }
+                            else if (reference instanceof long[]) {
+                                arrayInfo = JniPJRmi.writeArray((long   [])reference);
+                            }
+                            else if (reference instanceof float[]) {
+                                arrayInfo = JniPJRmi.writeArray((float  [])reference);
+                            }
+                            else if (reference instanceof double[]) {
+                                arrayInfo = JniPJRmi.writeArray((double [])reference);
+                            }
+                            else {
+                                // Hypercubes and multi-dimensional arrays,
+                                // if they are primitive
+                                handle = ShmDataWriter.write(reference);
+                            }
+                        }
+                        catch (Throwable e) {
+                            // Nothing, we'll proceed with the previous Pickle
+                            // format
+                            LOG.log(Level.FINE, "writeArray() failed unexpectedly", e);
+                        }
+                    }
+
+                    // Did we use the native method successfully? If so, we'll
+                    // send the info from that process.
+                    if (region != null) {
+                        out.writeByte(PythonValueFormat.SHM_ARENA.id);
+                        writeShmArenaRegion(out, region);
+                    }
+                    else if (handle != null) {
+                        out.writeByte(PythonValueFormat.SHMDATA_SHAPED.id);
+                        writeShmDataHandle(out, handle);
+                    }
+                    else if (arrayInfo != null) {
+                        out.writeByte(PythonValueFormat.SHMDATA.id);
+                        writeUTF16   (out, arrayInfo.filename);
+                        out.writeInt (arrayInfo.numElems);
+                        out.writeChar(arrayInfo.type);
                     }
+
+                    // Otherwise, proceed with normal pickle protocol
                     else {
-                        dataOut.writeInt(-1);
+                        // Convert it to a byte[] and compress
+                        final byte[] bytes =
+                            Snappy.compress(
+                                ourPythonPickle.get().toByteArray(reference)
+                            );
+
+                        // Marshall it
+                        out.writeByte(PythonValueFormat.SNAPPY_PICKLE.id);
+                        out.writeInt (bytes.length);
+                        out.write    (bytes, 0, bytes.length);
                     }
                 }
-                else if (object instanceof java.lang.Boolean) {
-                    dataOut.writeInt(1);
-                    dataOut.writeBoolean((Boolean)object);
-                }
-                else if (object instanceof java.lang.Byte) {
-                    dataOut.writeInt(Byte.BYTES);
-                    dataOut.writeByte((Byte)object);
-                }
-                else if (object instanceof java.lang.Short) {
-                    dataOut.writeInt(Short.BYTES);
-                    dataOut.writeShort((Short)object);
-                }
-                else if (object instanceof java.lang.Integer) {
-                    dataOut.writeInt(Integer.BYTES);
-                    dataOut.writeInt((Integer)object);
-                }
-                else if (object instanceof java.lang.Long) {
-                    dataOut.writeInt(Long.BYTES);
-                    dataOut.writeLong((Long)object);
-                }
-                else if (object instanceof java.lang.Float) {
-                    dataOut.writeInt(Float.BYTES);
-                    dataOut.writeFloat((Float)object);
-                }
-                else if (object instanceof java.lang.Double) {
-                    dataOut.writeInt(Double.BYTES);
-                    dataOut.writeDouble((Double)object);
-                }
-                else {
-                    // No raw representation
-                    dataOut.writeInt(-1);
-                }
             }
-            else if (typeInfo.isVoid()) {
-                // You can't have an object of type 'void' so grumble about this
-                if (object != null) {
-                    throw new IllegalArgumentException(
-                        "Attempt to write out a non-null as 'void': " + object
-                    );
-                }
-
-                // Push out the NULL handle
-                dataOut.writeLong(HandleMapping.NULL_HANDLE);
-                dataOut.writeInt(-1);
-            }
-            else if (object == null) {
-                throw new NullPointerException(
-                    "Attempt to write out null as a primitive"
-                );
+            else if (arg instanceof PythonObjectImpl) {
+                out.writeByte(PythonValueFormat.PYTHON_REFERENCE.id);
+                out.writeInt (((PythonObjectImpl)arg).getId());
             }
             else {
-                // We need to marshal the object as a native value
-                switch (typeInfo.getName()) {
-                case "boolean":
-                    dataOut.writeBoolean((Boolean)object);
-                    break;
-
-                case "byte":
-                    dataOut.writeByte((Byte)object);
-                    break;
-
-                case "char":
-                    dataOut.writeChar((Character)object);
-                    break;
-
-                case "double":
-                    dataOut.writeDouble((Double)object);
-                    break;
-
-                case "float":
-                    dataOut.writeFloat((Float)object);
-                    break;
-
-                case "int":
-                    dataOut.writeInt((Integer)object);
-                    break;
-
-                case "long":
-                    dataOut.writeLong((Long)object);
-                    break;
-
-                case "short":
-                    dataOut.writeShort((Short)object);
-                    break;
-
-                case "void":
-                    // We write nothing out
-                    break;
-
-                default:
-                    throw new RuntimeException(
-                        "Unhandled type when marshalling object: " +
-                        typeInfo
+                // Sending by reference
+                final TypeDescription argType =
+                    myTypeMapping.getDescription(
+                        (arg == null) ? Object.class : arg.getClass()
                     );
-                }
+                out.writeByte(PythonValueFormat.REFERENCE.id);
+                writeObject(out, arg, argType);
             }
-            myWriteObjectInstrumentor.end(start);
         }
 
         /**
-         * Read an Object from an input stream along with its type information.
+         * Listen for incoming data. We do this while the connection is still
+         * good.
          */
-        private ReadObjectResult readObject(final ByteList bytes, int offset)
-            throws IOException
+        private void listen()
         {
-            final long start = myReadObjectInstrumentor.start();
+            // Variables for stats gathering
+            final long startTimeMs = System.currentTimeMillis();
+            int        numRequests  = 0;
 
-            // How it's being sent down the wire.
-            final MethodDescription.ArgumentType wireType =
-                MethodDescription.ArgumentType.byId(bytes.get(offset++));
+            // How we pull in the data
+            final ByteList payload = new ByteList(1024 * 1024);
+            final byte[]   header  = new byte[17];
+            final byte[]   buffer  = new byte[64 * 1024];
 
-            // What we'll give back
-            Object result;
+            // Keep reading the stream socket until it's done
+            while (true) {
+                // Set everything to empty to start with
+                payload.clear();
+                byte        typeId   = -1;
+                long        threadId = -1;
+                int         reqId    = -1;
+                MessageType type     = null;
+                try {
+                    // Read in the header; this should be a byte (type ID)
+                    // followed by an int (size). We try to read this in a
+                    // single go since reading a byte and then an int winds
+                    // making 5 calls to recvfrom(), as opposed to just 1!
+                    int headerRead = 0;
+                    while (headerRead < header.length) {
+                        final int read = myIn.read(header,
+                                                   headerRead,
+                                                   header.length - headerRead);
+                        if (read < 0) {
+                            break;
+                        }
+                        else {
+                            headerRead += read;
+                        }
+                    }
+                    if (headerRead < header.length) {
+                        throw new EOFException("EOF when reading PJRmi header");
+                    }
 
-            // See what we were given
-            switch (wireType) {
-            case VALUE: {
-                // First read the type information
-                final int typeId = bytes.getInt(offset);
-                offset += Integer.BYTES;
+                    // Okay, unpack the header now
+                    typeId = header[0];
+                    threadId       = (((((long)header[ 1]) & 0xff) << 56) |
+                                      ((((long)header[ 2]) & 0xff) << 48) |
+                                      ((((long)header[ 3]) & 0xff) << 40) |
+                                      ((((long)header[ 4]) & 0xff) << 32) |
+                                      ((((long)header[ 5]) & 0xff) << 24) |
+                                      ((((long)header[ 6]) & 0xff) << 16) |
+                                      ((((long)header[ 7]) & 0xff) <<  8) |
+                                      ((((long)header[ 8]) & 0xff)      ));
+                    reqId          = (((( (int)header[ 9]) & 0xff) << 24) |
+                                      ((( (int)header[10]) & 0xff) << 16) |
+                                      ((( (int)header[11]) & 0xff) <<  8) |
+                                      ((( (int)header[12]) & 0xff)      ));
+                    final int size = (((( (int)header[13]) & 0xff) << 24) |
+                                      ((( (int)header[14]) & 0xff) << 16) |
+                                      ((( (int)header[15]) & 0xff) <<  8) |
+                                      ((( (int)header[16]) & 0xff)      ));
 
-                final TypeDescription typeDesc = myTypeMapping.getDescription(typeId);
-                if (typeDesc == null) {
-                    throw new IllegalArgumentException("Unknown type ID: " + typeId);
-                }
-
-                if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.finest(
-                        "Unmarshalling " + typeId + " " +
-                        "from raw bits at offset " + offset
-                    );
-                }
-
-                // If it's sent natively down the wire then we convert from
-                // the raw bits
-                if (typeDesc.getName().equals("void")) {
-                    // Like Method#invoke() we treat voids as nulls; there will
-                    // not be any associated data.
-                    result = null;
-                }
-                else if (typeDesc.getName().equals("boolean") ||
-                         typeDesc.getName().equals("java.lang.Boolean"))
-                {
-                    result = Boolean.valueOf(
-                        bytes.get(offset++) != 0
-                    );
-                }
-                else if (typeDesc.getName().equals("byte") ||
-                         typeDesc.getName().equals("java.lang.Byte"))
-                {
-                    result = Byte.valueOf(
-                        bytes.get(offset++)
-                    );
-                }
-                else if (typeDesc.getName().equals("double") ||
-                         typeDesc.getName().equals("java.lang.Double"))
-                {
-                    result = Double.valueOf(bytes.getDouble(offset));
-                    offset += Long.BYTES;
-                }
-                else if (typeDesc.getName().equals("float") ||
-                         typeDesc.getName().equals("java.lang.Float"))
-                {
-                    result = Float.valueOf(bytes.getFloat(offset));
-                    offset += Integer.BYTES;
-                }
-                else if (typeDesc.getName().equals("int") ||
-                         typeDesc.getName().equals("java.lang.Integer"))
-                {
-                    result = Integer.valueOf(bytes.getInt(offset));
-                    offset += Integer.BYTES;
-                }
-                else if (typeDesc.getName().equals("long") ||
-                         typeDesc.getName().equals("java.lang.Long"))
-                {
-                    result = Long.valueOf(bytes.getLong(offset));
-                    offset += Long.BYTES;
-                }
-                else if (typeDesc.getName().equals("short") ||
-                         typeDesc.getName().equals("java.lang.Short"))
-                {
-                    result = Short.valueOf(bytes.getShort(offset));
-                    offset += Short.BYTES;
-                }
-                else if (typeDesc.getName().equals("char")                ||
-                         typeDesc.getName().equals("java.lang.Character") ||
-                         typeDesc.getName().equals("[C")                  ||
-                         typeDesc.getName().equals("java.lang.String"))
-                {
-                    // Strings, char[]s, chars are sent over as UTF-16 strings
-                    // and handled appropriately
-                    final int count = bytes.getInt(offset);
-                    offset += Integer.BYTES;
-                    final byte[] buffer = getByteArray(count);
-                    for (int i=0; i < count; i++) {
-                        buffer[i] = bytes.get(offset++);
+                    if (LOG.isLoggable(Level.FINEST)) {
+                        LOG.finest(
+                            "Read " +
+                            "typeId = "   + (int)typeId  + " " +
+                            "('"          + (char)typeId + "'), " +
+                            "threadId = " + threadId     + " " +
+                            "reqId = "    + reqId        + " " +
+                            "size = "     + size
+                        );
                     }
-                    final String string = new String(buffer, 0, count, "UTF-16");
 
-                    // Switch to the desired type
-                    if (typeDesc.getName().equals("char") ||
-                        typeDesc.getName().equals("java.lang.Character"))
-                    {
-                        if (string.length() != 1) {
-                            throw new IllegalArgumentException(
-                                "Got a char in a String of length other than 1: " +
-                                "'" + string + "'"
+                    // Now read the payload. We keep reading until we believe
+                    // that we got everything we care about. The payload might
+                    // be split over several packets etc.
+                    payload.ensureCapacity(size);
+                    int totalRead = 0;
+                    while (totalRead < size) {
+                        // Pull in all the data we can into the local buffer
+                        final int read =
+                            myIn.read(
+                                buffer,
+                                0,
+                                Math.min(buffer.length, size - totalRead)
                             );
+
+                        // Check for EOF
+                        if (read < 0) {
+                            break;
+                        }
+                        else {
+                            payload.append(buffer, 0, read);
+                            totalRead += read;
                         }
-                        result = Character.valueOf(string.charAt(0));
                     }
-                    else if (typeDesc.getName().equals("[C")) {
-                        result = string.toCharArray();
+
+                    // Now figure out the incoming message type
+                    type = MessageType.byId(typeId);
+                    if (type == null) {
+                        throw new IllegalArgumentException(
+                            "Unknown message type ID: " + typeId
+                        );
                     }
-                    else if (typeDesc.getName().equals("java.lang.String")) {
-                        result = string;
+
+                    // Good?
+                    if (totalRead == size) {
+                        numRequests++;
+                        if (!dispatch(type, threadId, reqId, payload)) {
+                            return;
+                        }
                     }
                     else {
-                        // Ensure that the if statements all match up
-                        throw new AssertionError("Unexpected type: " + typeDesc);
+                        // Junk this, we don't understand it
+                        throw new IllegalArgumentException(
+                            "Received malformed request: " +
+                            "typeId = "    + (int)typeId  + " " +
+                            "('"           + (char)typeId + "'), " +
+                            "threadId = "  + threadId     + " " +
+                            "reqId = "     + reqId        + " " +
+                            "size = "      + size         + " " +
+                            "size-read = " + totalRead    + ": " +
+                            PJRmi.toString(payload)
+                        );
                     }
                 }
-                else if (typeDesc.getName().equals("[Z")) {
-                    final boolean[] array = new boolean[bytes.getInt(offset)];
-                    offset += Integer.BYTES;
-                    for (int i=0; i < array.length; i++) {
-                        array[i] = bytes.getBoolean(offset++);
+                catch (Throwable e) {
+                    bulkRequestDone(reqId);
+                    if (!sendException(type, threadId, reqId, payload, e)) {
+                        break;
                     }
-                    result = array;
                 }
-                else if (typeDesc.getName().equals("[B")) {
-                    final byte[] array = new byte[bytes.getInt(offset)];
-                    offset += Integer.BYTES;
-                    for (int i=0; i < array.length; i++) {
-                        array[i] = bytes.get(offset++);
-                    }
-                    result = array;
+            }
+
+            // Dump some auditing information
+            logStats(startTimeMs, numRequests);
+        }
+
+        /**
+         * Handle a complete request which has been read off the wire. This
+         * will either handle it directly, or hand it off to a worker, depending
+         * on how we are set up.
+         *
+         * @return whether the connection should keep going.
+         */
+        private boolean dispatch(final MessageType wireType,
+                                 final long        threadId,
+                                 final int         reqId,
+                                 final ByteList    payload)
+            throws Throwable
+        {
+            // Let the side channels know about it before anything can go wrong
+            // with it
+            final BulkTransferService.Endpoint bulkEndpoint = myBulkEndpoint;
+            if (bulkEndpoint != null) {
+                bulkEndpoint.requestReceived(reqId);
+            }
+
+            // A request with a deadline is wrapped up as:
+            //  int64   : Timeout, in millis, from when we read it
+            //  byte    : The MessageType ID of the actual request
+            //  ...     : The actual request's payload
+            // so we unwrap it here and carry the deadline along with it
+            final MessageType type;
+            final long        deadlineNs;
+            if (wireType == MessageType.WITH_DEADLINE) {
+                if (payload.size() < 9) {
+                    throw new IllegalArgumentException(
+                        "Got a malformed payload: " + PJRmi.toString(payload)
+                    );
                 }
-                else if (typeDesc.getName().equals("[D")) {
-                    final double[] array = new double[bytes.getInt(offset)];
-                    offset += Integer.BYTES;
-                    for (int i=0; i < array.length; i++) {
-                        array[i] = bytes.getDouble(offset);
-                        offset += Long.BYTES;
-                    }
-                    result = array;
+                final long timeoutMs = payload.getLong(0);
+                type = MessageType.byId(payload.getByte(8));
+                if (type == MessageType.NONE ||
+                    type == MessageType.WITH_DEADLINE)
+                {
+                    throw new IllegalArgumentException(
+                        "Bad request type with deadline: " + type
+                    );
                 }
-                else if (typeDesc.getName().equals("[F")) {
-                    final float[] array = new float[bytes.getInt(offset)];
-                    offset += Integer.BYTES;
-                    for (int i=0; i < array.length; i++) {
-                        array[i] = bytes.getFloat(offset);
-                        offset += Integer.BYTES;
+                payload.removeRange(0, 9);
+
+                // Clip so as not to overflow; a deadline that far out is no
+                // deadline at all, and one in the past has already expired
+                deadlineNs =
+                    System.nanoTime() +
+                    Math.max(0, Math.min(timeoutMs, MAX_DEADLINE_MS)) * 1_000_000L;
+            }
+            else {
+                type       = wireType;
+                deadlineNs = NO_DEADLINE;
+            }
+
+            // Now we have the payload we can log
+            if (LOG.isLoggable(Level.FINER)) {
+                LOG.finer(
+                    "Received " +
+                    "typeId = "    + (int)type.id  + " " +
+                    "('"           + (char)type.id + "'), " +
+                    PJRmi.toString(payload)
+                );
+            }
+
+            // See if we have workers or not
+            if (myWorkers == null) {
+                // Nope, handle directly, and time it here
+                final Instrumentor instr = myInstrumentors[type.ordinal()];
+                final long start = instr.start();
+
+                // Whether we acquired the global lock, or not
+                boolean lockedGlobal = false;
+
+                // The result goes in here. It's important that no-one else uses
+                // this buffer for anything; we own it here.
+                final ByteArrayDataOutputStream sendBuf = mySendBufs.get();
+
+                // Do all this inside a try-catch since we don't want any form
+                // of exception to take down the thread if we can help it
+                try {
+                    // Don't bother with anything which has expired, either
+                    // before or after we have waited for the lock
+                    checkDeadline(type, deadlineNs);
+                    if (type.shouldLockFor) {
+                        myLockManager.lockGlobal();
+                        lockedGlobal = true;
+                        checkDeadline(type, deadlineNs);
                     }
-                    result = array;
+
+                    // Handle the incoming payload. We don't have a
+                    // VirtualThread in this case so we pass in null.
+                    receive(type,
+                            threadId,
+                            null,
+                            reqId,
+                            payload,
+                            sendBuf,
+                            myOut);
                 }
-                else if (typeDesc.getName().equals("[I")) {
-                    final int[] array = new int[bytes.getInt(offset)];
-                    offset += Integer.BYTES;
-                    for (int i=0; i < array.length; i++) {
-                        array[i] = bytes.getInt(offset);
-                        offset += Integer.BYTES;
+                finally {
+                    bulkRequestDone(reqId);
+
+                    if (lockedGlobal) {
+                        // Release the global lock now. This should never fail
+                        // in a perfect world but it's possible for users to do
+                        // something bad to the lock. If that's the case then we
+                        // simply drop the connection by telling the caller to
+                        // stop. The issue here is that receive() will have
+                        // already sent a response and we don't want to send yet
+                        // _another_ response (with this exception) since that
+                        // will pollute the protocol stream.
+                        try {
+                            myLockManager.unlockGlobal();
+                        }
+                        catch (Throwable t) {
+                            LOG.log(
+                                Level.SEVERE,
+                                "Terminating listener on locking exception",
+                                t
+                            );
+                            return false;
+                        }
                     }
-                    result = array;
+
+                    // Try to send the reply. This has to be done after we've
+                    // dropped the global lock since we don't want the client
+                    // thread initiating another request (over a different
+                    // connection to us) and touching the lock. This is an
+                    // unlikely version of the same problem in the worker
+                    // pattern.
+                    send(sendBuf, myOut);
+
+                    // And we're finally done
+                    instr.end(start);
                 }
-                else if (typeDesc.getName().equals("[J")) {
-                    final long[] array = new long[bytes.getInt(offset)];
-                    offset += Integer.BYTES;
-                    for (int i=0; i < array.length; i++) {
-                        array[i] = bytes.getLong(offset);
-                        offset += Long.BYTES;
-                    }
-                    result = array;
+            }
+            else {
+                // Find the virtual thread associated with the threadId. The
+                // myVirtualThreads Map is only ever touched in the thread which
+                // is reading from the connection.
+                VirtualThread thread = myVirtualThreads.get(threadId);
+                if (thread == null) {
+                    thread = new VirtualThread(getName() + ":" + threadId);
+                    myVirtualThreads.put(threadId, thread);
+                }
+
+                // Control messages are handled right here, so that they never
+                // wait behind data-plane requests, and their replies are sent
+                // by the ControlReplier. Else we hand off to the shared pool,
+                // if we're using it, or one of our own workers.
+                if (type.isControl) {
+                    process(type,
+                            threadId,
+                            thread,
+                            reqId,
+                            deadlineNs,
+                            payload,
+                            mySendBufs.get(),
+                            myOut);
                 }
-                else if (typeDesc.getName().equals("[S")) {
-                    final short[] array = new short[bytes.getInt(offset)];
-                    offset += Integer.BYTES;
-                    for (int i=0; i < array.length; i++) {
-                        array[i] = bytes.getShort(offset);
-                        offset += Short.BYTES;
+                else if (myRequestQueue != null) {
+                    myWorkerPool.handle(myRequestQueue,
+                                        type,
+                                        threadId,
+                                        thread,
+                                        reqId,
+                                        deadlineNs,
+                                        payload);
+                }
+                else {
+                    Worker worker = myWorkers.poll();
+                    if (worker == null) {
+                        // Need to create a new worker and set it running
+                        worker = new Worker(getName() + "#Worker" + ++myNumWorkers);
+                        worker.start();
                     }
-                    result = array;
+                    worker.handle(type, threadId, thread, reqId, deadlineNs, payload, myOut);
                 }
-                else if (typeDesc.getName().startsWith("[")) {
-                    // An array of <something>s with a known length
-                    final int length = bytes.getInt(offset);
-                    offset += Integer.BYTES;
+            }
 
-                    // Create an array of the right type by reflection, and
-                    // populate it
-                    result = Array.newInstance(typeDesc.getArrayComponentType(),
-                                               length);
-                    for (int i=0; i < length; i++) {
-                        final ReadObjectResult ror = readObject(bytes, offset);
-                        offset = ror.offset;
-                        Array.set(result, i, ror.object);
-                    }
-                }
-                else if (typeDesc.getName().equals("java.util.Map")) {
-                    // How many entries
-                    final int count = bytes.getInt(offset);
-                    offset += Integer.BYTES;
+            // Keep going
+            return true;
+        }
+        /** For use in the dispatch() method only. */
+        private final ThreadLocalByteArrayDataOutputStream mySendBufs =
+            new ThreadLocalByteArrayDataOutputStream();
 
-                    // Create and populate
-                    final Map<Object, Object> map = new HashMap<>(count);
-                    for (int i=0; i < count; i++) {
-                        // Pull out the key and value
-                        final ReadObjectResult keyRor   = readObject(bytes, offset);
-                        offset = keyRor.offset;
-                        final ReadObjectResult valueRor = readObject(bytes, offset);
-                        offset = valueRor.offset;
+        /**
+         * Attempt to send an exception, which happened when reading or
+         * dispatching a request, back to the caller. This might be a problem
+         * with the connection itself, in which case we'll simply bail out
+         * (when we try to send the exception).
+         *
+         * @return whether the connection should keep going.
+         */
+        private boolean sendException(final MessageType type,
+                                      final long        threadId,
+                                      final int         reqId,
+                                      final ByteList    payload,
+                                      final Throwable   e)
+        {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine(
+                    "Encountered exception " +
+                    "when handling " + type + " " + PJRmi.toString(payload) + ":\n" +
+                    stackTraceToString(e)
+                );
+            }
 
-                        // Stuff them into the map
-                        map.put(keyRor.object, valueRor.object);
-                    }
+            // What we'll be sending back
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
 
-                    result = map;
-                }
-                else if (typeDesc.getName().equals("java.util.Set")) {
-                    final int count = bytes.getInt(offset);
-                    offset += Integer.BYTES;
+            // We'll treat this like a normal object
+            final TypeDescription exDesc =
+                myTypeMapping.getDescription(e.getClass());
+            final long exHandle = myHandleMapping.addReference(e);
 
-                    final Set<Object> set = new HashSet<>(count);
-                    for (int i=0; i < count; i++) {
-                        final ReadObjectResult ror = readObject(bytes, offset);
-                        offset = ror.offset;
-                        set.add(ror.object);
-                    }
-                    result = set;
-                }
-                else if (typeDesc.getName().equals("java.lang.Iterable")   ||
-                         typeDesc.getName().equals("java.util.Collection") ||
-                         typeDesc.getName().equals("java.util.List"))
-                {
-                    final int count = bytes.getInt(offset);
-                    offset += Integer.BYTES;
+            try {
+                // Populate with the exception information
+                bados.dataOut.writeInt (exDesc.getTypeId());
+                bados.dataOut.writeLong(exHandle);
+                bados.dataOut.writeInt (-1);
 
-                    final List<Object> list = new ArrayList<>(count);
-                    for (int i=0; i < count; i++) {
-                        final ReadObjectResult ror = readObject(bytes, offset);
-                        offset = ror.offset;
-                        list.add(ror.object);
-                    }
-                    result = list;
+                // And send
+                sendMessage(myOut,
+                            MessageType.EXCEPTION,
+                            threadId,
+                            reqId,
+                            bados.bytes);
+
+                // If the reply writer is sending it then we wait for it to do
+                // so, since we need to know if the other side has gone away
+                if (myReplyWriter != null) {
+                    myReplyWriter.flush();
                 }
-                else if (typeDesc.getName().equals("com.deshaw.pjrmi.PythonObject")) {
-                    // A negative ID means null
-                    final int objectId = bytes.getInt(offset);
-                    offset += Integer.BYTES;
-                    result = (objectId < 0)
-                        ? null
-                        : new PythonObjectImpl("PythonObject#" + objectId,
-                                               objectId,
-                                               myOut);
+            }
+            catch (SocketException ee) {
+                // This is probably fine if the other side closed the
+                // connection
+                if (e instanceof EOFException) {
+                    LOG.info("Looks like the client disconnected: " + ee);
                 }
-                else if (typeDesc.getName().equals("com.deshaw.pjrmi.PythonSlice")) {
-                    ReadObjectResult ror = readObject(bytes, offset);
-                    offset = ror.offset;
-                    final Object sliceStart = ror.object;
-                    ror = readObject(bytes, offset);
-                    offset = ror.offset;
-                    final Object sliceStop = ror.object;
-                    ror = readObject(bytes, offset);
-                    offset = ror.offset;
-                    final Object sliceStep = ror.object;
-
-                    // Now build it. We might have been given any form of Number
-                    // but we convert them all to longs.
-                    result = new PythonSlice(
-                        (sliceStart != null) ? ((Number)sliceStart).longValue() : null,
-                        (sliceStop  != null) ? ((Number)sliceStop ).longValue() : null,
-                        (sliceStep  != null) ? ((Number)sliceStep ).longValue() : null
-                    );
+                else {
+                    LOG.warning("Error when sending back " + e + ": " + ee);
                 }
-                else if (typeDesc.getName().equals("com.deshaw.hypercube.Hypercube")) {
-                    // We have a basic understanding for certain types of
-                    // hypercube. In the future we will add code to allow the
-                    // array data to be broken up into chunks, so that cubes of
-                    // more than 2^31 elements can be passed (and we don't need
-                    // to change the wire format to handle it). Since that's
-                    // quite a lot to be passing as a single argument, we don't
-                    // yet supoort it, and right now we can't do that in a
-                    // ByteList anyhow.
-                    ReadObjectResult ror = readObject(bytes, offset);
-                    offset = ror.offset;
-                    final Object shape = ror.object;
-                    final int chunks = bytes.getInt(offset);
-                    offset += Integer.BYTES;
-                    ror = readObject(bytes, offset);
-                    offset = ror.offset;
-                    final Object array = ror.object;
-                    final Hypercube<?> cube;
-                    if (chunks != 1) {
-                        throw new IllegalArgumentException(
-                            "Expected only one array chunk"
-                        );
-                    }
-                    if (array instanceof boolean[]) {
-                        cube = BooleanHypercube.wrap((boolean[])array);
-                    }
-                    else if (array instanceof float[]) {
-                        cube = FloatHypercube.wrap((float[])array);
-                    }
-                    else if (array instanceof double[]) {
-                        cube = DoubleHypercube.wrap((double[])array);
-                    }
-                    else if (array instanceof int[]) {
-                        cube = IntegerHypercube.wrap((int[])array);
-                    }
-                    else if (array instanceof long[]) {
-                        cube = LongHypercube.wrap((long[])array);
-                    }
-                    else {
-                        throw new UnsupportedOperationException(
-                            "Don't know how to wrap a " +
-                            array.getClass().getSimpleName() + " in a hypercube"
-                        );
-                    }
-                    result = cube.reshape((long[])shape);
+                return false;
+            }
+            catch (IOException ee) {
+                // This is probably fine if the other side closed the
+                // connection. We may get IOException on some transports while
+                // trying to send the exception.
+                if (e instanceof EOFException) {
+                    LOG.info("Looks like the client disconnected: " + ee);
                 }
                 else {
-                    throw new UnsupportedOperationException(
-                        "Don't know how to convert " + typeDesc + " " +
-                        "from raw bytes"
-                    );
+                    LOG.severe("IO error when sending " + e + ": " + ee);
                 }
-            }   break;
+                return false;
+            }
 
-            case REFERENCE: {
-                // Simply grab the handle and add the associated object, it
-                // may be null which is okay
-                final long handle = bytes.getLong(offset);
-                offset += Long.BYTES;
+            // We managed to send it so we can carry on
+            return true;
+        }
 
-                if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.finest("Grabbed handle " + handle);
+        /**
+         * Dump some auditing information about this connection.
+         */
+        private void logStats(final long startTimeMs, final int numRequests)
+        {
+            final long durationMs = System.currentTimeMillis() - startTimeMs;
+            final Collection<String> classes =
+                myTypeMapping.getClasses()
+                             .stream()
+                             .map(Class::getName)
+                             .collect(Collectors.toSet());
+            LOG.info("ConnectionStats:: " +
+                     "Name: "               + myName            + "; " +
+                     "Duration: "           + durationMs + "ms" + "; " +
+                     "NumRequests: "        + numRequests       + "; " +
+                     "NumExpired: "         + myNumExpired.get()+ "; " +
+                     ((myReplyWriter == null) ? "" :
+                     "NumReplies: "         + myReplyWriter     + "; ") +
+                     "NumAccessedClasses: " + classes.size()    + "; " +
+                     "AccessedClasses: "    + classes);
+        }
+
+        /**
+         * Throw a {@link DeadlineExceededException} if the given deadline, as
+         * per {@code System.nanoTime()}, has passed.
+         */
+        private void checkDeadline(final MessageType type, final long deadlineNs)
+            throws DeadlineExceededException
+        {
+            if (deadlineNs != NO_DEADLINE) {
+                final long overNs = System.nanoTime() - deadlineNs;
+                if (overNs > 0) {
+                    myNumExpired.incrementAndGet();
+                    myNumExpiredRequests.incrementAndGet();
+                    throw new DeadlineExceededException(
+                        "Dropped " + type + " request since its deadline " +
+                        "passed " + (overNs / 1_000_000L) + "ms ago"
+                    );
                 }
-                result = myHandleMapping.getObject(handle);
-            }   break;
+            }
+        }
 
-            case SHMDATA: {
-                // The object of interest was written natively, and we have to
-                // read it. We use the incoming object, which is a deconstructed
-                // {@link JniPJRmi$ArrayHandle}, to read it.
+        /**
+         * Handle a request on behalf of a worker thread, or inline for a
+         * control message. This takes the global lock, if needed, calls
+         * {@link #receive} and sends back the result, or any exception which it
+         * caught.
+         */
+        private void process(final MessageType               type,
+                             final long                      threadId,
+                             final VirtualThread             thread,
+                             final int                       reqId,
+                             final long                      deadlineNs,
+                             final ByteList                  payload,
+                             final ByteArrayDataOutputStream sendBuf,
+                             final DataOutputStream          out)
+        {
+            // What we are about to do
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest("ThreadId " + threadId + ":" + thread + " " +
+                           "handling " + type + ", " +
+                           "request ID " + reqId + ": " +
+                           PJRmi.toString(payload));
+            }
 
-                // First, we read the filename as a String
-                final int countString = bytes.getInt(offset);
-                offset += Integer.BYTES;
-                final byte[] bufferString = getByteArray(countString);
-                for (int i=0; i < countString; i++) {
-                    bufferString[i] = bytes.get(offset++);
-                }
-                final String filename = new String(bufferString, 0, countString, "UTF-16");
+            // Time this operation
+            final Instrumentor instr = myInstrumentors[type.ordinal()];
+            final long start = instr.start();
 
-                if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.finest("SHMDATA filename: " + filename);
-                }
+            // Whether we locked the global lock
+            boolean lockedGlobal = false;
 
-                // Then we read the number of elements
-                final int numElems = Integer.valueOf(bytes.getInt(offset));
-                offset += Integer.BYTES;
+            // Get the sending buffer ready for use
+            sendBuf.reset();
 
-                if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.finest("SHMDATA numElems: " + numElems);
-                }
+            // Any exception which we catch below
+            Throwable caught = null;
 
-                // Read in the array type
-                final int countChar = bytes.getInt(offset);
-                offset += Integer.BYTES;
-                final byte[] bufferChar = getByteArray(countChar);
-                for (int i=0; i < countChar; i++) {
-                    bufferChar[i] = bytes.get(offset++);
-                }
-                final String stringType = new String(bufferChar, 0, countChar, "UTF-16");
+            // Do all this inside a try-catch since we don't want any form of
+            // failure to take down the thread
+            try {
+                // First thing to do is to set our virtual thread. (This is
+                // needed by the LockManager to determine "who" is doing the
+                // locking.)
+                VirtualThreadLock.setThread(thread);
 
-                // Let's make sure it was actually a char
-                if (stringType.length() != 1) {
-                    throw new IllegalArgumentException(
-                        "Got a char in a String of length other than 1: " +
-                        "'" + stringType + "'"
-                    );
-                }
-                final char type = Character.valueOf(stringType.charAt(0));
+                // If the request has expired, while it was waiting for a worker
+                // or for the lock, then we drop it instead of handling it
+                checkDeadline(type, deadlineNs);
 
-                if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.finest("SHMDATA type: " + type);
+                // Attempt to lock and then handle what we're handling
+                if (type.shouldLockFor) {
+                    myLockManager.lockGlobal();
+                    lockedGlobal = true;
+                    checkDeadline(type, deadlineNs);
                 }
 
-                // Now, we can read from the file
-                result = JniPJRmi.readArray(filename, numElems, type);
-            }   break;
+                // And actually handle the request
+                receive(type,
+                        threadId,
+                        thread,
+                        reqId,
+                        payload,
+                        sendBuf,
+                        out);
+            }
+            catch (Throwable e) {
+                // We caught something
+                caught = e;
+
+                // Attempt to return everything back to the caller. This might
+                // be a problem with the connection itself, in which case we'll
+                // simply bail out at the end anyhow (when we try to send the
+                // exception).
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Encountered exception " +
+                             "when handling " + type + " " +
+                             PJRmi.toString(payload) + ":\n" +
+                             stackTraceToString(e));
+                }
+
+                // What we'll be sending back
+                final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
 
-            case METHOD: {
-                // This is a method handle which we want to turn into a
-                // functional interface.
-                //
-                // Right now we expect to be given the exact method which is
-                // going to be used by the functional interface. However, that
-                // requires the user to determine this up front. While that's
-                // not particularly onerous, we might one day look to perform
-                // the method binding on this side, as an extended feature. We
-                // would probably do this by adding a flag to the request
-                // indicating as such, and just using the method ID to allow us
-                // to look up the name. Getting such method binding correct
-                // probably isn't hard, per se, but will require a lot of care;
-                // there are a number of gotchas in it. The method's relative
-                // specificities values might come into play if and when we
-                // choose to do it.
-                //
-                // The first value we read is a boolean represented by a byte.
-                // At some point we might want to turn this into an 8bit flags
-                // value (see above), but we can do that without changing the
-                // wire format.
+                // We'll treat this like a normal object
+                final TypeDescription exDesc =
+                    myTypeMapping.getDescription(e.getClass());
+                final long exHandle = myHandleMapping.addReference(e);
 
-                final boolean isConstructor = (bytes.get(offset++) != 0);
-                final int ifaceId = bytes.getInt(offset);
-                offset += Integer.BYTES;
-                final int klassId = bytes.getInt(offset);
-                offset += Integer.BYTES;
-                final int methodId = bytes.getInt(offset);
-                offset += Integer.BYTES;
-                final long handleId = bytes.getLong(offset);
-                offset += Long.BYTES;
-
-                // Now resolve what we can
-                final TypeDescription iface = myTypeMapping.getDescription(ifaceId);
-                if (iface == null) {
-                    throw new IllegalArgumentException(
-                        "No known class type for interface ID " + ifaceId
-                    );
-                }
-                final TypeDescription klass = myTypeMapping.getDescription(klassId);
-                if (klass == null) {
-                    throw new IllegalArgumentException(
-                        "No known class type for method class ID " + klassId
-                    );
-                }
-                final MethodDescription method = isConstructor
-                    ? klass.getConstructor(methodId)
-                    : klass.getMethod     (methodId);
-                if (method == null) {
-                    throw new IllegalArgumentException(
-                        (isConstructor ? "Constructor" : "Method") + " " +
-                        "with ID " + methodId + " not found in " + klass
-                    );
-                }
-
-                // It's okay for the instance to be null, depending on how we're
-                // binding etc.
-                final Object instance = myHandleMapping.getObject(handleId);
-
-                // And defer to the helper method to give back the object that
-                // we want
-                if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.finest("Turning " +
-                               (isConstructor ? "constructor " : "method ") +
-                               method + " into functional call for " + iface);
-                }
-                result = getProxyForMethod(iface.getRepresentedClass(),
-                                           klass,
-                                           method,
-                                           isConstructor,
-                                           instance);
-            }   break;
-
-            case LAMBDA: {
-                // The argument is given by invoking a lambda. We should get
-                // method details (similar to the above) and then the arguments.
-                final boolean isConstructor = (bytes.get(offset++) != 0);
-                final int klassId = bytes.getInt(offset);
-                offset += Integer.BYTES;
-                final int methodId = bytes.getInt(offset);
-                offset += Integer.BYTES;
-                final long handleId = bytes.getLong(offset);
-                offset += Long.BYTES;
-
-                // Now the arguments
-                final short numArgs = bytes.getShort(offset);
-                offset += Short.BYTES;
-                final Object args[] = new Object[numArgs];
-                for (int i=0; i < numArgs; i++) {
-                    final ReadObjectResult ror = readObject(bytes, offset);
-                    args[i] = ror.object;
-                    offset  = ror.offset;
-                }
-
-                // Now resolve what we got
-                final TypeDescription typeDesc =
-                    myTypeMapping.getDescription(klassId);
-                if (typeDesc == null) {
-                    throw new IllegalArgumentException(
-                        "No known class type for method class ID " + klassId
-                    );
+                // Populate with the exception information
+                try {
+                    bados.dataOut.writeInt (exDesc.getTypeId());
+                    bados.dataOut.writeLong(exHandle);
+                    bados.dataOut.writeInt (-1);
+
+                    // And create it. We will need to reset the send buffer here
+                    // since it might have been partially written to
+                    sendBuf.reset();
+                    buildMessage(sendBuf.dataOut,
+                                 MessageType.EXCEPTION,
+                                 threadId,
+                                 reqId,
+                                 bados.bytes);
                 }
-                final MethodDescription method =
-                    isConstructor ? typeDesc.getConstructor(methodId)
-                                  : typeDesc.getMethod     (methodId);
-                if (method == null) {
-                    throw new IllegalArgumentException(
-                        (isConstructor ? "Constructor" : "Method") + " " +
-                        "with ID " + methodId + " not found in " + typeDesc
-                    );
+                catch (IOException ioe) {
+                    // This should never happen when writing to a byte stream
+                    throw new RuntimeException("Should not happen", ioe);
                 }
-                final Object instance = myHandleMapping.getObject(handleId);
-
-                // We invoke the method and give back its result
+            }
+            finally {
+                // Done with the global lock, and any side-channel data
+                if (lockedGlobal) {
+                    myLockManager.unlockGlobal();
+                }
+                bulkRequestDone(reqId);
+                instr.end(start);
+
+                // Now that we have dropped the lock it's safe to send the
+                // reply. This is the last thing we need to do as part of our
+                // work for the client. Control messages are handled by the
+                // reading thread, which mustn't wait to send, so their replies
+                // are handed off.
                 try {
-                    result =
-                        isConstructor ? typeDesc.callConstructor(method.getIndex(),
-                                                                 args)
-                                      : typeDesc.callMethod     (method.getIndex(),
-                                                                 instance,
-                                                                 args);
+                    if (type.isControl && myControlReplier != null) {
+                        myControlReplier.enqueue(sendBuf);
+                    }
+                    else {
+                        send(sendBuf, out);
+                    }
                 }
-                catch (Throwable t) {
-                    throw new RuntimeException(
-                        "Failed to invoke " +
-                        (isConstructor ? "constructor" : "method") + " " +
-                        "with ID " + methodId + " in " + typeDesc +
-                        (instance == null ? "" : " on object"),
-                        t
-                    );
+                catch (Throwable e) {
+                    // This is probably fine if the other side closed the
+                    // connection. If that happened we'll see an EOFException.
+                    if (caught instanceof EOFException) {
+                        LOG.info("Looks like the client disconnected: " + e);
+                    }
+                    else if (caught == null) {
+                        LOG.warning("Error when sending: " + e);
+                    }
+                    else {
+                        LOG.warning("Error when sending back " + caught + ": " + e);
+                    }
                 }
-            }   break;
 
-            default:
-                throw new RuntimeException(
-                    "Unhandled argument type " +
-                    "received on the wire: " + wireType
-                );
+                // Disassociate
+                VirtualThreadLock.setThread(null);
             }
-
-            myReadObjectInstrumentor.end(start);
-            return new ReadObjectResult(offset, result);
         }
 
-        // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - //
-        //                             HANDLERS                                  //
-
         /**
-         * Handle an INSTANCE_REQUEST message.
-         *
-         * This is of the form:
-         *  int16  : String length
-         *  byte[] : String bytes (string length in total)
+         * Handle a raw set of bytes making up a payload. This could throw
+         * pretty much any exception depending on what it does.
          *
-         * Gives back:
-         *  int32  : Type ID
-         *  int64  : Handle
-         *  int32  : -1 (no raw data)
-         * where Handle will be -ve if the result was null.
+         * <p>The clientReceiver stream should <i>not</i> be used for sending back
+         * messages directly from this method; they should be put into the
+         * result stream. This is to avoid race conditions in the worker code.
          */
-        private void handleInstanceRequest(final long                      threadId,
-                                           final int                       reqId,
-                                           final ByteList                  payload,
-                                           final ByteArrayDataOutputStream buf)
-            throws IOException
+        private void receive(final MessageType type,
+                             final long threadId,
+                             final VirtualThread thread,
+                             final int reqId,
+                             final ByteList payload,
+                             final ByteArrayDataOutputStream result,
+                             final DataOutputStream clientReceiver)
+            throws Throwable
         {
-            // Need at least 4 bytes at the start of the message, for the string length
-            if (payload.size() < 4) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
-            }
-
-            // Grab the name of the object which we want
-            final int size = payload.getInt(0);
-
-            // These are sent over as UTF-16
-            final byte[] buffer = getByteArray(size);
-            for (int i=0; i < size; i++) {
-                buffer[i] = payload.get(i + 4);
-            }
-            final String name = new String(buffer, 0, size, "UTF-16");
-
-            // Get the object
-            final Object instance = getObjectInstance(name);
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            if (instance == null) {
-                bados.dataOut.writeInt (myTypeMapping.getId(Object.class));
-                bados.dataOut.writeLong(HandleMapping.NULL_HANDLE);
-                bados.dataOut.writeInt (-1);
-            }
-            else {
-                bados.dataOut.writeInt (myTypeMapping  .getId       (instance));
-                bados.dataOut.writeLong(myHandleMapping.addReference(instance));
-                bados.dataOut.writeInt (-1);
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest("Handling " + type + ": " + PJRmi.toString(payload));
             }
-            buildMessage(buf.dataOut,
-                         MessageType.OBJECT_REFERENCE,
-                         threadId,
-                         reqId,
-                         bados.bytes);
-        }
 
-        /**
-         * Handle an ADD_REFERENCE message.
-         *
-         * This is of the form:
-         *  int64   : Handle
-         *
-         * Gives back and empty ACK.
-         */
-        private void handleAddReference(final long                      threadId,
-                                        final int                       reqId,
-                                        final ByteList                  payload,
-                                        final ByteArrayDataOutputStream buf)
-            throws IOException
-        {
-            if (payload.size() != 8) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
+            // This should always be empty when we get it
+            if (result.bytes.size() != 0) {
+                throw new IllegalStateException(
+                    "Result buffer was non-empty: " +
+                    PJRmi.toString(result.bytes.toByteArray())
                 );
             }
 
-            final long handle = payload.getLong(0);
-            myHandleMapping.addReference(handle);
-
-            buildMessage(buf.dataOut, MessageType.EMPTY_ACK, threadId, reqId, null);
-        }
+            // Handle whatever it ws
+            switch (type) {
+            case INSTANCE_REQUEST:
+                handleInstanceRequest(threadId, reqId, payload, result);
+                return;
 
-        /**
-         * Handle a DROP_REFERENCES message.
-         *
-         * This is of the form:
-         *  int32     : Num handles
-         *  handles[] :
-         *    int64   : Handle
-         *
-         * Gives back an empty ACK.
-         */
-        private void handleDropReferences(final long                      threadId,
-                                          final int                       reqId,
-                                          final ByteList                  payload,
-                                          final ByteArrayDataOutputStream buf)
-            throws IOException
-        {
-            if (payload.size() < 4) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
-            }
+            case ADD_REFERENCE:
+                handleAddReference(threadId, reqId, payload, result);
+                return;
 
-            // Our position in the payload data
-            int offset = 0;
+            case DROP_REFERENCES:
+                handleDropReferences(threadId, reqId, payload, result);
+                return;
 
-            // How many to drop
-            final int count = payload.getInt(offset);
-            offset += Integer.BYTES;
+            case TYPE_REQUEST:
+                handleTypeRequest(threadId, reqId, payload, result);
+                return;
 
-            if (LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Dropping " + count + " references...");
-            }
-
-            // Drop them
-            for (int i=0; i < count; i++) {
-                final long handle = payload.getLong(offset);
-                offset += Long.BYTES;
-
-                myHandleMapping.dropReference(handle);
-            }
+            case METHOD_CALL:
+                handleMethodCall(threadId, thread, reqId, payload, result);
+                return;
 
-            // ACK back
-            buildMessage(buf.dataOut, MessageType.EMPTY_ACK, threadId, reqId, null);
-        }
+            case TO_STRING:
+                handleToString(threadId, reqId, payload, result);
+                return;
 
-        /**
-         * Handle a TYPE_REQUEST message.
-         *
-         * This is of the form:
-         *  boolean : by-id or by-string flag
-         *  type:
-         *   int32  : Type ID
-         *  or
-         *   int32  : Name length
-         *   byte[] : Name
-         *
-         * Gives back by deferring to writeTypeDesc().
-         */
-        private void handleTypeRequest(final long                      threadId,
-                                       final int                       reqId,
-                                       final ByteList                  payload,
-                                       final ByteArrayDataOutputStream buf)
-            throws ClassNotFoundException,
-                   IOException,
-                   SecurityException
-        {
-            if (payload.size() < 1) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
-            }
+            case GET_FIELD:
+                handleGetField(threadId, reqId, payload, result);
+                return;
 
-            // Our position in the payload data
-            int offset = 0;
+            case SET_FIELD:
+                handleSetField(threadId, reqId, payload, result);
+                return;
 
-            // Start off by finding out what sort of call this is
-            final boolean isById = (payload.get(offset++) != 0);
+            case GET_ARRAY_LENGTH:
+                handleGetArrayLength(threadId, reqId, payload, result);
+                return;
 
-            // Get the type description
-            final TypeDescription desc;
-            final int int32 = payload.getInt(offset);
-            offset += Integer.BYTES;
+            case NEW_ARRAY_INSTANCE:
+                handleNewArrayInstance(threadId, reqId, payload, result);
+                return;
 
-            if (isById) {
-                desc = myTypeMapping.getDescription(int32);
-            }
-            else {
-                final StringBuilder sb = new StringBuilder();
-                while (sb.length() < int32) {
-                    sb.append((char)payload.get(offset++));
-                }
-                final String className = sb.toString();
+            case OBJECT_CAST:
+                handleObjectCast(threadId, reqId, payload, result);
+                return;
 
-                // See if we are allowed to give back this class
-                if (!isClassPermitted(className)) {
-                    final String msg = getClassNotPermittedMessage();
-                    final String txt = "Access permission denied for class " +
-                                       "\"" + className + "\"" +
-                                       (msg == null ? "" : ": " + msg);
-                    LOG.warning(txt);
-                    throw new SecurityException(txt);
-                }
+            case LOCK:
+                handleLock(threadId, reqId, payload, result);
+                return;
 
-                // Okay to give back, handle requests for primitives specially
-                final Class<?> klass;
-                switch (className) {
-                case "void":    klass = Void     .TYPE;           break;
-                case "boolean": klass = Boolean  .TYPE;           break;
-                case "byte":    klass = Byte     .TYPE;           break;
-                case "short":   klass = Short    .TYPE;           break;
-                case "int":     klass = Integer  .TYPE;           break;
-                case "long":    klass = Long     .TYPE;           break;
-                case "float":   klass = Float    .TYPE;           break;
-                case "double":  klass = Double   .TYPE;           break;
-                case "char":    klass = Character.TYPE;           break;
-                default:        klass = Class.forName(className); break;
-                }
-                desc = myTypeMapping.getDescription(klass);
-            }
+            case UNLOCK:
+                handleUnlock(threadId, reqId, payload, result);
+                return;
 
-            // Second check for the class being permissioned, this time by its
-            // concrete type
-            if (!isClassPermitted(desc.getRepresentedClass())) {
-                final String msg = getClassNotPermittedMessage();
-                final String txt = "Access permission denied for class " +
-                                   desc.getRepresentedClass() +
-                                   (msg == null ? "" : ": " + msg);
-                LOG.warning(txt);
-                throw new SecurityException(txt);
-            }
+            case INJECT_CLASS:
+                handleInjectClass(threadId, reqId, payload, result);
+                return;
 
-            // Send it back
-            writeTypeDesc(desc, threadId, reqId, buf);
-        }
+            case INJECT_SOURCE:
+                handleInjectSource(threadId, reqId, payload, result);
+                return;
 
-        /**
-         * Handle an METHOD_CALL message.
-         *
-         * This is of the form:
-         *  boolean : isConstructor flag
-         *  int32   : Type ID
-         *  byte    : PythonValueFormat
-         *  int64   : Object handle
-         *  int32   : Method/constructor index as defined by TypeDescription
-         *  byte[]  : Arguments (if any) as raw bytes
-         *
-         * Gives back:
-         *  int32   : Result type (possibly void)
-         *  byte[]  : The result (if native), or its handle (if an Object),
-         *            or nothing (if void)
-         */
-        private void handleMethodCall(final long                      threadId,
-                                      final VirtualThread             virtualThread,
-                                      final int                       reqId,
-                                      final ByteList                  payload,
-                                      final ByteArrayDataOutputStream buf)
-            throws Throwable
-        {
-            if (payload.size() < 18) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
-            }
+            case GET_VALUE_OF:
+                handleGetValueOf(threadId, reqId, payload, result);
+                return;
 
-            // Our position in the payload data
-            int offset = 0;
+            case GET_CALLBACK_HANDLE:
+                handleGetCallbackHandle(threadId, reqId, payload, result,
+                                        clientReceiver);
+                return;
 
-            // Pull in the header information from the wire, everything up to
-            // the, optional, arguments
-            final boolean isConstructor = (payload.get(offset++) != 0);
+            case CALLBACK_RESPONSE:
+                handleCallbackResponse(threadId, reqId, payload, result);
+                return;
 
-            final int typeId = payload.getInt(offset);
-            offset += Integer.BYTES;
+            case GET_PROXY:
+                handleGetProxy(threadId, reqId, payload, result,
+                               clientReceiver);
+                return;
 
-            final byte valueFormatId = payload.get(offset++);
+            case REPLACE_CLASS:
+                handleReplaceClass(threadId, reqId, payload, result);
+                return;
 
-            final byte syncModeId = payload.get(offset++);
+            case ITERATE:
+                handleIterate(threadId, reqId, payload, result);
+                return;
 
-            final long handle = payload.getLong(offset);
-            offset += Long.BYTES;
+            case GET_ARRAY_SLICE:
+                handleGetArraySlice(threadId, reqId, payload, result);
+                return;
 
-            final int index = payload.getInt(offset);
-            offset += Integer.BYTES;
+            case SET_ARRAY_SLICE:
+                handleSetArraySlice(threadId, reqId, payload, result);
+                return;
 
-            // Figure out what we need to know in order to invoke this method
-            final Object          object = myHandleMapping.getObject(handle);
-            final TypeDescription klass  = myTypeMapping.getDescription(typeId);
+            case BULK_SETUP:
+                handleBulkSetup(threadId, reqId, payload, result);
+                return;
 
-            // Known type?
-            if (klass == null) {
-                throw new IllegalArgumentException("Unknown type " + typeId);
+            default:
+                throw new IllegalArgumentException(
+                    "Unhandled incoming message type: " + type
+                );
             }
+        }
 
-            // Get the return format
-            final PythonValueFormat valueFormat =
-                PythonValueFormat.byId(valueFormatId);
+        /**
+         * Put a ByteArrayOutputStream as the payload into a buffer which we can
+         * later send over the wire.
+         *
+         * <p>The payload may be null if there is none. This can be true for
+         * simple ACK messages, for example.
+         */
+        private void buildMessage(final DataOutputStream      out,
+                                  final MessageType           type,
+                                  final long                  threadId,
+                                  final int                   reqId,
+                                  final ByteArrayOutputStream payload)
+            throws IOException
+        {
+            final long start = myInstrumentors[type.ordinal()].start();
+            try {
+                // The message type is always the first byte in the message
+                out.writeByte(type.id);
 
-            // Get the calling mode
-            final SyncMode syncMode = SyncMode.byId(syncModeId);
+                // And the thread ID and request number is the next 12 (8 and 4)
+                out.writeLong(threadId);
+                out.writeInt (reqId);
 
-            // Grab the method info, different depending on the type of call
-            final MethodDescription method;
-            if (isConstructor) {
-                if (index < 0 || index >= klass.getNumConstructors()) {
-                    throw new ArrayIndexOutOfBoundsException(
-                        "Bad constructor index: " + index
-                    );
+                // Send any payload
+                if (payload != null && payload.size() > 0) {
+                    if (LOG.isLoggable(Level.FINER)) {
+                        LOG.finer(
+                            "Creating " + type + " '" + (char)type.id + "' " +
+                            "for thread ID " + threadId + " " +
+                            "and request ID " + reqId + ": " +
+                            PJRmi.toString(payload.toByteArray())
+                        );
+                    }
+
+                    // Write out the payload size and whatever it is
+                    out.writeInt(payload.size());
+                    payload.writeTo(out);
                 }
                 else {
-                    method = klass.getConstructor(index);
+                    if (LOG.isLoggable(Level.FINER)) {
+                        LOG.finer("Building: " + type + " <>");
+                    }
+
+                    // No payload so size is zero
+                    out.writeInt(0);
                 }
-            }
-            else {
-                if (index < 0 || index >= klass.getNumMethods()) {
-                    throw new ArrayIndexOutOfBoundsException(
-                        "Bad method index: " + index
-                    );
+
+                // Ensure everything is in there
+                out.flush();
+            }
+            finally {
+                myInstrumentors[type.ordinal()].end(start);
+            }
+        }
+
+        /**
+         * Send a ByteArrayDataOutputStream over the wire.
+         *
+         * <p>This could be called from multiple threads so it needs to be
+         * synchronized in order to prevent mangling the output stream.
+         */
+        private synchronized void send(final ByteArrayDataOutputStream msg,
+                                       final DataOutputStream          out)
+            throws IOException
+        {
+            // Push the bytes to the output stream and ensure that they are
+            // sent, using a flush(). If we are coalescing replies then the
+            // writer thread does that for us.
+            if (msg.bytes.size() > 0) {
+                if (LOG.isLoggable(Level.FINER)) {
+                    LOG.finer("Sending: " + PJRmi.toString(msg.bytes.toByteArray()));
+                }
+                if (myReplyWriter != null && out == myOut) {
+                    myReplyWriter.enqueue(msg);
                 }
                 else {
-                    method = klass.getMethod(index);
+                    msg.bytes.writeTo(out);
+                    out.flush();
                 }
             }
+        }
 
-            // What we now know
-            if (LOG.isLoggable(Level.FINEST)) {
-                // Don't call toString() on the object here since it might be a
-                // Python shim and we don't want to wind up either recursing
-                // indefinitely or similar if that call invokes Java methods or
-                // similar.
-                LOG.finest(
-                    "Going to call " + method + " on " +
-                    ((object == null) ? "" : "an instance of ") +
-                    "class " + klass
-                );
-            }
-
-            // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+        /**
+         * Build a message and send it.
+         */
+        private void sendMessage(final DataOutputStream      out,
+                                 final MessageType           type,
+                                 final long                  threadId,
+                                 final int                   reqId,
+                                 final ByteArrayOutputStream payload)
+            throws IOException
+        {
+            final ByteArrayDataOutputStream sendBuf = mySendMessageBufs.get();
+            buildMessage(sendBuf.dataOut, type, threadId, reqId, payload);
+            send(sendBuf, out);
+        }
+        /** Only used by sendMessage(). */
+        private final ThreadLocalByteArrayDataOutputStream mySendMessageBufs =
+            new ThreadLocalByteArrayDataOutputStream();
 
-            // Pull out all the arguments and turn them into Objects
-            final Object[] args = new Object[method.getNumArguments()];
-            for (short i=0; i < args.length; i++) {
-                // Pull it from the data
-                final ReadObjectResult read = readObject(payload, offset);
-                offset  = read.offset;
-                args[i] = read.object;
+        /**
+         * Convert an object to a payload byte stream, following the given
+         * return format.
+         *
+         * @param objectType Type that the client should use when interpreting
+         *                   the object. May be {@code null} when
+         *                   {@code valueFormat} is not
+         *                   {@link PythonValueFormat#REFERENCE}
+         */
+        private void renderObject(final long                      threadId,
+                                  final int                       reqId,
+                                  final ByteArrayDataOutputStream buf,
+                                  final PythonValueFormat         valueFormat,
+                                  final Object                    object,
+                                  final TypeDescription           objectType)
+            throws Throwable
+        {
+            // What we'll be sending back
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
 
-                // What did we get?
-                if (LOG.isLoggable(Level.FINEST)) {
-                    try {
-                        LOG.finest("Argument " + i + " is: <" + args[i] + ">");
-                    }
-                    catch (Exception e) {
-                        // Proxy classes might balk here, for example
-                        LOG.finest("Error rendering argument " + i + ": e" + e);
-                    }
+            switch (valueFormat) {
+            case REFERENCE:
+            case PYTHON_REFERENCE:
+                // What do we have to give back?
+                if (object instanceof PythonObjectImpl) {
+                    // A wrapped Python object
+                    bados.dataOut.writeInt(((PythonObjectImpl)object).getId());
+                    buildMessage(buf.dataOut,
+                                 MessageType.PYTHON_REFERENCE,
+                                 threadId,
+                                 reqId,
+                                 bados.bytes);
                 }
-            }
-
-            // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+                else if (object instanceof PythonProxyHandler) {
+                    // A Python object proxying for a Java one
+                    bados.dataOut.writeInt(((PythonProxyHandler)object).getId());
+                    buildMessage(buf.dataOut,
+                                 MessageType.PYTHON_REFERENCE,
+                                 threadId,
+                                 reqId,
+                                 bados.bytes);
+                }
+                else if (valueFormat == PythonValueFormat.PYTHON_REFERENCE) {
+                    // We can't turn this into a Python object reference, sorry
+                    throw new IllegalArgumentException(
+                        "Can't send a " +
+                        (object == null ? "null" : object.getClass().toString()) + " " +
+                        "as a Python reference"
+                    );
+                }
+                else {
+                    // This this is just a Java object
+                    writeObject(bados.dataOut, object, objectType);
+                    buildMessage(buf.dataOut,
+                                 MessageType.ARBITRARY_ITEM,
+                                 threadId,
+                                 reqId,
+                                 bados.bytes);
+                }
+                return;
 
-            try {
-                // We're calling down a level in the "stack"
-                myCallDepth++;
-                if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.finest("Call depth is now " + myCallDepth);
+            case RAW_PICKLE:
+            case SNAPPY_PICKLE:
+            case BESTEFFORT_PICKLE:
+            case BESTEFFORT_SNAPPY_PICKLE:
+                // Figure out which PythonPickle instance to use
+                final PythonPickle pickle;
+                if (valueFormat == PythonValueFormat.RAW_PICKLE ||
+                    valueFormat == PythonValueFormat.SNAPPY_PICKLE)
+                {
+                    pickle = ourPythonPickle.get();
                 }
-                if (myCallDepth >= MAX_CALL_DEPTH) {
-                    throw new StackOverflowError("Call depth became " + myCallDepth);
+                else {
+                    pickle = myBestEffortPythonPickle.get();
                 }
 
-                // Say what we're about to do
-                if (LOG.isLoggable(Level.FINEST)) {
-                    final StringBuilder sb = new StringBuilder();
-                    for (Object arg : args) {
-                        if (sb.length() > 0) {
-                            sb.append(", ");
-                        }
-                        try {
-                            sb.append(arg);
-                        }
-                        catch (Exception e) {
-                            sb.append("<???>");
-                        }
-                        sb.append('<')
-                          .append((arg == null) ? "NULL" : arg.getClass())
-                          .append('>');
-                    }
-                    if (isConstructor) {
-                        LOG.finest("Calling constructor " + index + " for " +
-                                   klass + " with arguments [" + sb + "]");
+                // Convert it to a byte[], and possibly compress it
+                byte[] bytes = pickle.toByteArray(object);
+                if (valueFormat == PythonValueFormat.SNAPPY_PICKLE ||
+                    valueFormat == PythonValueFormat.BESTEFFORT_SNAPPY_PICKLE)
+                {
+                    bytes = Snappy.compress(bytes);
+                }
+
+                // Stuff this into our buffer
+                // Number of bytes sent = data size + valueFormat byte
+                bados.dataOut.writeInt (bytes.length + 1);
+                bados.dataOut.writeByte(valueFormat.id);
+                bados.dataOut.write    (bytes, 0, bytes.length);
+
+                // And package it up
+                buildMessage(buf.dataOut,
+                             MessageType.PICKLE_BYTES,
+                             threadId,
+                             reqId,
+                             bados.bytes);
+                return;
+
+            case SHMDATA:
+            case AUTO_SHMDATA: {
+                // Primitive arrays and hypercubes may be sent via shared
+                // memory, if we are on the same host as the client. With the
+                // AUTO_SHMDATA format only the big ones are; everything else
+                // is sent as a reference, as per usual.
+                final long numBytes = ShmDataWriter.getNumBytes(object);
+                if (valueFormat == PythonValueFormat.AUTO_SHMDATA &&
+                    (numBytes < 0 || numBytes < shmReturnThreshold()))
+                {
+                    renderObject(threadId,
+                                 reqId,
+                                 buf,
+                                 PythonValueFormat.REFERENCE,
+                                 object,
+                                 objectType);
+                    return;
+                }
+                if (numBytes >= 0 && myUseShmdata && myTransport.isLocalhost()) {
+                    try {
+                        writeShmArray(threadId, reqId, buf, object);
+                        return;
                     }
-                    else {
-                        LOG.finest("Calling method " + index + " "+
-                                   "'" + method + "' " +
-                                   "with arguments [" + sb + "]");
+                    catch (Exception e) {
+                        // Nothing, we'll fall back to pickling it
+                        LOG.log(Level.FINE, "writeShmArray() failed unexpectedly", e);
                     }
                 }
 
-                // Now we can actually call the method
-                final Object result;
-                if (syncMode == SyncMode.SYNCHRONOUS) {
-                    // A straight call. Give back whatever we got.
-                    result = isConstructor
-                        ? klass.callConstructor(index,         args)
-                        : klass.callMethod     (index, object, args);
-                }
-                else if (syncMode == SyncMode.JAVA_THREAD) {
-                    // Create a Future instance to give back and spawn the
-                    // thread to set the result into that future. Try to give
-                    // the future a reasonable name so that the user knows what
-                    // it is. However we avoid expanding all the arguments for
-                    // the same of brevity.
-                    final MethodCallFuture future =
-                        new MethodCallFuture(
-                            "Future for call to: " +
-                            method.getReturnType      ()
-                                  .getRepresentedClass()
-                                  .getSimpleName      () + " " +
-                            klass .getRepresentedClass()
-                                  .getSimpleName      () + "." +
-                            (isConstructor ? "<init>"
-                                           : method.getName() + "") +
-                            (args.length > 0 ? "(...)" : "()")
-                        );
+                // Not local, or not something which we can put into shared
+                // memory, so we just pickle it instead
+                renderObject(threadId,
+                             reqId,
+                             buf,
+                             PythonValueFormat.SNAPPY_PICKLE,
+                             object,
+                             objectType);
+                return;
+            }
 
-                    // Get a caller, creating if needbe
-                    MethodCaller caller = myMethodCallers.poll();
-                    if (caller == null) {
-                        // Create and spawn the caller thread
-                        caller = new MethodCaller();
-                        caller.start();
-                    }
-
-                    // And actually tell it to do the work
-                    caller.handle(
-                        () -> {
-                            // Make the call, reaping any exceptions along the
-                            // way and also giving them back via the Future
-                            try {
-                                // This is a method call so we need to acquire
-                                // the global lock, if any, like any other
-                                // method call would.
-                                myLockManager.lockGlobal();
-                                future.done(
-                                    isConstructor
-                                        ? klass.callConstructor(index,         args)
-                                        : klass.callMethod     (index, object, args),
-                                    false
-                                );
-                            }
-                            catch (Throwable t) {
-                                future.done(t, true);
-                            }
-                            finally {
-                                myLockManager.unlockGlobal();
-                            }
-                        }
-                    );
-
-                    // And we'll be giving back the Future, rather than the
-                    // result, for this calling mode
-                    result = future;
-                }
-                else {
-                    throw new UnsupportedOperationException(
-                        "Unhandle sync mode " + syncMode
-                    );
-                }
-
-                // What did we get?
-                if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.finest("Result was <" + result + ">");
-                }
-
-                // Figure out what type to associate with the result.
-                //
-                // What we are trying to deal with here is type erasure of the
-                // information associated with generics. For something like
-                // Set<Integer> the get() method will always return an Object
-                // since the runtime environment doesn't know the real type;
-                // that it becomes an Int happens because the compiler inserts a
-                // cast along the way. (This is why it's possible to put a
-                // Double into such a List if we cast away its type information.
-                // We'll only discover that when we pull the Double out as an
-                // Integer.)
-                //
-                // What this means for us is that such methods return fun values
-                // which have to be downcast into their "real" type on the
-                // Python side if we want to use them. In order to deal with
-                // this we give back the _actual_ type associated with the value
-                // which the method returns. This is slightly icky since it
-                // means that, say, get() on a List of CharSequences will
-                // actually return a String, or StringBuilder, or whatever the
-                // concrete implementation happens to be. Since we have _no_ way
-                // to knowing at runtime that the E in List<E> is a CharSequence
-                // we don't know to hand back a CharSequence. We argue that this
-                // is actually okay and vaguely Pythonic since Python employs
-                // duck-typing most of the time and what we hand back conforms
-                // better with this view of the world. However, it's open to
-                // abuse on the other side and we simply have to trust that the
-                // Python users won't to anything special with the concrete
-                // class; if they do then their code may fail if the class
-                // changes.
-                final TypeDescription returnType;
-                if (syncMode != SyncMode.SYNCHRONOUS) {
-                    assert(result instanceof Future);
-                    returnType = myTypeMapping.getDescription(Future.class);
-                    if (LOG.isLoggable(Level.FINEST)) {
-                        LOG.finest("Return type is " + returnType);
-                    }
-                }
-                else if (result != null && method.isGenericReturnType()) {
-                    returnType = myTypeMapping.getDescription(result.getClass());
-                    if (LOG.isLoggable(Level.FINEST)) {
-                        LOG.finest("Return type is exposed as " + returnType);
-                    }
-                }
-                else {
-                    returnType = method.getReturnType();
-                    if (LOG.isLoggable(Level.FINEST)) {
-                        LOG.finest(
-                            "Return type matches method result " + returnType
-                        );
-                    }
-                }
-
-                // Convert the result to a payload byte stream
-                renderObject(threadId, reqId, buf, valueFormat, result, returnType);
-            }
-            finally {
-                // We're coming back up here so reduce the depth
-                myCallDepth--;
-            }
-        }
+            default:
+                throw new IllegalArgumentException(
+                    "Unhandled return format " + valueFormat
+                );
+            }
+        }
 
         /**
-         * Handle a TO_STRING message.
-         *
-         * This is of the form:
-         *  int64   : Handle
+         * Convert a deconstructed {@link JniPJRmi$ArrayHandle} object to a
+         * payload byte stream.
          *
-         * Gives back the UTF16 string representation, or -1
+         * @param threadId Logical thread ID.
+         * @param reqId    Request number.
+         * @param buf      The buffer which will eventually be sent.
+         * @param filename Name of the file to read from.
+         * @param numElems Number of elements we expect to read.
+         * @param type     Type of the array represented as a char, that
+         *                 {@link JniPJRmi} understands.
          */
-        private void handleToString(final long                      threadId,
+        private void writeShmObject(final long                      threadId,
                                     final int                       reqId,
-                                    final ByteList                  payload,
-                                    final ByteArrayDataOutputStream buf)
-            throws IOException
+                                    final ByteArrayDataOutputStream buf,
+                                    final String                    filename,
+                                    final int                       numElems,
+                                    final char                      type)
+            throws Throwable
         {
-            if (payload.size() != 8) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
-            }
+            // What we'll be sending back
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
 
-            final long handle = payload.getLong(0);
+            // Let 'em know we're sending an ArrayHandle
+            bados.dataOut.writeByte(PythonValueFormat.SHMDATA.id);
 
-            final Object instance = myHandleMapping.getObject(handle);
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            if (instance == null) {
-                bados.dataOut.writeInt(-1);
-            }
-            else {
-                final String string = instance.toString();
-                writeUTF16(bados.dataOut, string);
-            }
+            // Write each input object to the output stream
+            writeUTF16(bados.dataOut, filename);
+            bados.dataOut.writeInt (numElems);
+            bados.dataOut.writeChar(type);
+
+            // And push it out over the wire
             buildMessage(buf.dataOut,
-                         MessageType.UTF16_VALUE,
+                         MessageType.SHMDATA_BYTES,
                          threadId,
                          reqId,
                          bados.bytes);
         }
 
         /**
-         * Handle an GET_FIELD message.
-         *
-         * This is of the form:
-         *  int32 : Object type ID
-         *  int64 : Object handle
-         *  int32 : Field index as defined by TypeDescription
-         *
-         * Gives back:
-         *  int32  : Field type ID
-         *  byte[] : The field (if native), or its handle (if an Object)
+         * Write a primitive array into a shared-memory file and put the
+         * resultant {@link JniPJRmi$ArrayHandle} details into the given buffer.
          */
-        private void handleGetField(final long                      threadId,
-                                    final int                       reqId,
-                                    final ByteList                  payload,
-                                    final ByteArrayDataOutputStream buf)
+        private void writeShmArray(final long                      threadId,
+                                   final int                       reqId,
+                                   final ByteArrayDataOutputStream buf,
+                                   final Object                    object)
             throws Throwable
         {
-            if (payload.size() != 16) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
+            // If we can put it into our arena then we avoid the cost of
+            // creating a file for it
+            final ShmArena.Region region = writeToShmArena(object);
+            if (region != null) {
+                final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+                bados.dataOut.writeByte(PythonValueFormat.SHM_ARENA.id);
+                writeShmArenaRegion(bados.dataOut, region);
+                buildMessage(buf.dataOut,
+                             MessageType.SHMDATA_BYTES,
+                             threadId,
+                             reqId,
+                             bados.bytes);
+                return;
             }
 
-            final int  typeId = payload.getInt ( 0);
-            final long handle = payload.getLong( 4);
-            final int  index  = payload.getInt (12);
+            // Hypercubes and multi-dimensional arrays are sent along with
+            // their shape
+            if (!(object instanceof boolean[] || object instanceof byte[]  ||
+                  object instanceof short[]   || object instanceof int[]   ||
+                  object instanceof long[]    || object instanceof float[] ||
+                  object instanceof double[]) &&
+                ShmDataWriter.isSupported(object))
+            {
+                final ShmDataWriter.Handle handle = ShmDataWriter.write(object);
+                final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+                bados.dataOut.writeByte(PythonValueFormat.SHMDATA_SHAPED.id);
+                writeShmDataHandle(bados.dataOut, handle);
+                buildMessage(buf.dataOut,
+                             MessageType.SHMDATA_BYTES,
+                             threadId,
+                             reqId,
+                             bados.bytes);
+                return;
+            }
 
-            final TypeDescription desc = myTypeMapping.getDescription(typeId);
-            final Object object = myHandleMapping.getObject(handle);
+            // Here's where we'll store the information from the write
+            final JniPJRmi.ArrayHandle arrayInfo;
 
-            // Grab the field and its type
-            final Object          field;
-            final TypeDescription fieldType;
-            if (desc.isArray()) {
-                // For arrays, this is the array index
-                if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.finest("Getting array index " + index + " from " + handle);
-                }
-                field     = Array.get(object, index);
-                fieldType =
-                    myTypeMapping.getDescription(
-                        object.getClass().getComponentType()
-                    );
+            // Determine the type of the array and write it natively
+            if (object instanceof boolean[]) {
+                arrayInfo = JniPJRmi.writeArray((boolean[])object);
+            }
+            else if (object instanceof byte[]) {
+                arrayInfo = JniPJRmi.writeArray((byte[])object);
+            }
+            else if (object instanceof short[]) {
+                arrayInfo = JniPJRmi.writeArray((short[])object);
+            }
+            else if (object instanceof int[]) {
+                arrayInfo = JniPJRmi.writeArray((int[])object);
+            }
+            else if (object instanceof long[]) {
+                arrayInfo = JniPJRmi.writeArray((long[])object);
+            }
+            else if (object instanceof float[]) {
+                arrayInfo = JniPJRmi.writeArray((float[])object);
+            }
+            else if (object instanceof double[]) {
+                arrayInfo = JniPJRmi.writeArray((double[])object);
             }
             else {
-                // Else it's just an actual field, grab its value
-                if (LOG.isLoggable(Level.FINEST)) {
-                    LOG.finest("Getting field index " + index + " from " + handle);
-                }
-                field = desc.getField(index, object);
-
-                // The type is the declared type, not the type of the object
-                // (which might be a subclass)
-                fieldType = desc.getField(index).getType();
+                throw new IllegalArgumentException(
+                  "Unhandled array type for object: " +
+                  (object == null ? "null" : object.getClass()) +
+                  "`. Only primitive, non-char arrays are supported."
+                );
             }
 
-            // Simply marshal up the value which we got back
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            writeObject(bados.dataOut, field, fieldType);
-            buildMessage(buf.dataOut,
-                         MessageType.ARBITRARY_ITEM,
-                         threadId,
-                         reqId,
-                         bados.bytes);
+            // Write the resulting information
+            writeShmObject(threadId, reqId, buf, arrayInfo.filename,
+                                                 arrayInfo.numElems,
+                                                 arrayInfo.type);
         }
 
         /**
-         * Handle an SET_FIELD message.
-         *
-         * This is of the form:
-         *  int64  : Object handle
-         *  int32  : Field index as defined by TypeDescription
-         *  int32  : Field type
-         *  byte[] : The new value of the field (if native), or a handle
-         *
-         * Gives back empty ACK.
+         * Write an Object to an output stream along with its type information,
+         * according to that given type information.
          */
-        private void handleSetField(final long                      threadId,
-                                    final int                       reqId,
-                                    final ByteList                  payload,
-                                    final ByteArrayDataOutputStream buf)
-            throws Throwable
+        private void writeObject(final DataOutputStream dataOut,
+                                 final Object           object,
+                                 final TypeDescription  typeInfo)
+            throws IOException
         {
-            if (payload.size() < 17) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
-            }
+            final long start = myWriteObjectInstrumentor.start();
 
-            final int objTypeId = payload.getInt ( 0);
-            final long handle   = payload.getLong( 4);
-            final int index     = payload.getInt (12);
+            // Always write the type
+            dataOut.writeInt(typeInfo.getTypeId());
 
-            final Object value = readObject(payload, 16).object;
-
-            // The object we're setting on, this may be null if we're setting a
-            // static field
-            final Object object = myHandleMapping.getObject(handle);
+            // Now handle the object itself
+            if (!typeInfo.isPrimitive()) {
+                // Get a handle on the object to give back. If it's null then we
+                // use the NULL handle.
+                if (object == null) {
+                    dataOut.writeLong(HandleMapping.NULL_HANDLE);
+                }
+                else {
+                    dataOut.writeLong(
+                        myHandleMapping.addReference(object)
+                    );
+                }
 
-            // The type information comes from the object itself
-            final TypeDescription desc = myTypeMapping.getDescription(objTypeId);
+                // Potentially write out the value as raw data too. This is pro-
+                // active support for the boxing on the Python side (so that it
+                // doesn't have to make another callback to determine the raw
+                // value of a boxed object). Note that not all primitive types
+                // are boxed on the Python side.
+                if (object instanceof java.lang.String) {
+                    // Don't send "large" strings automatically out over the
+                    // wire; wait for them to be requested.
+                    final String string = (String)object;
+                    if (string.length() < 32768) {
+                        writeUTF16(dataOut, string);
+                    }
+                    else {
+                        dataOut.writeInt(-1);
+                    }
+                }
+                else if (object instanceof java.lang.Boolean) {
+                    dataOut.writeInt(1);
+                    dataOut.writeBoolean((Boolean)object);
+                }
+                else if (object instanceof java.lang.Byte) {
+                    dataOut.writeInt(Byte.BYTES);
+                    dataOut.writeByte((Byte)object);
+                }
+                else if (object instanceof java.lang.Short) {
+                    dataOut.writeInt(Short.BYTES);
+                    dataOut.writeShort((Short)object);
+                }
+                else if (object instanceof java.lang.Integer) {
+                    dataOut.writeInt(Integer.BYTES);
+                    dataOut.writeInt((Integer)object);
+                }
+                else if (object instanceof java.lang.Long) {
+                    dataOut.writeInt(Long.BYTES);
+                    dataOut.writeLong((Long)object);
+                }
+                else if (object instanceof java.lang.Float) {
+                    dataOut.writeInt(Float.BYTES);
+                    dataOut.writeFloat((Float)object);
+                }
+                else if (object instanceof java.lang.Double) {
+                    dataOut.writeInt(Double.BYTES);
+                    dataOut.writeDouble((Double)object);
+                }
+                else {
+                    // No raw representation
+                    dataOut.writeInt(-1);
+                }
+            }
+            else if (typeInfo.isVoid()) {
+                // You can't have an object of type 'void' so grumble about this
+                if (object != null) {
+                    throw new IllegalArgumentException(
+                        "Attempt to write out a non-null as 'void': " + object
+                    );
+                }
 
-            // Now just set it
-            if (desc.isArray()) {
-                // For arrays, this is the array index
-                Array.set(object, index, value);
+                // Push out the NULL handle
+                dataOut.writeLong(HandleMapping.NULL_HANDLE);
+                dataOut.writeInt(-1);
             }
-            else {
-                // Else it's just an actual field
-                desc.setField(index, object, value);
+            else if (object == null) {
+                throw new NullPointerException(
+                    "Attempt to write out null as a primitive"
+                );
             }
+            else {
+                // We need to marshal the object as a native value
+                switch (typeInfo.getName()) {
+                case "boolean":
+                    dataOut.writeBoolean((Boolean)object);
+                    break;
 
-            // ACK comes back
-            buildMessage(buf.dataOut, MessageType.EMPTY_ACK, threadId, reqId, null);
-        }
+                case "byte":
+                    dataOut.writeByte((Byte)object);
+                    break;
 
-        /**
-         * Handle a GET_ARRAY_LENGTH message.
-         *
-         * This is of the form:
-         *  int64   : Handle
-         *
-         * Gives back:
-         *  int32   : The length
-         */
-        private void handleGetArrayLength(final long                      threadId,
-                                          final int                       reqId,
-                                          final ByteList                  payload,
-                                          final ByteArrayDataOutputStream buf)
-            throws IOException
-        {
-            if (payload.size() != 8) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
-            }
+                case "char":
+                    dataOut.writeChar((Character)object);
+                    break;
 
-            final long handle = payload.getLong(0);
+                case "double":
+                    dataOut.writeDouble((Double)object);
+                    break;
 
-            final Object object = myHandleMapping.getObject(handle);
-            if (object == null) {
-                throw new IllegalArgumentException(
-                    "No object for handle " + handle
-                );
-            }
+                case "float":
+                    dataOut.writeFloat((Float)object);
+                    break;
 
-            // Simply marshal up the value which we got back. If the object is
-            // not an array then getLength() will throw an exception.
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            bados.dataOut.writeInt(Array.getLength(object));
-            buildMessage(buf.dataOut,
-                         MessageType.ARRAY_LENGTH,
-                         threadId,
-                         reqId,
-                         bados.bytes);
+                case "int":
+                    dataOut.writeInt((Integer)object);
+                    break;
+
+                case "long":
+                    dataOut.writeLong((Long)object);
+                    break;
+
+                case "short":
+                    dataOut.writeShort((Short)object);
+                    break;
+
+                case "void":
+                    // We write nothing out
+                    break;
+
+                default:
+                    throw new RuntimeException(
+                        "Unhandled type when marshalling object: " +
+                        typeInfo
+                    );
+                }
+            }
+            myWriteObjectInstrumentor.end(start);
         }
 
         /**
-         * Handle a NEW_ARRAY_INSTANCE message.
-         *
-         * This is of the form:
-         *  int32   : Type ID
-         *  int32   : Length
-         *
-         * Gives back:
-         *  int32   : Type ID
-         *  int64   : The array handle
-         *  int32   : -1 (no raw data)
+         * Write a boxed value out as the raw bits of the given primitive type.
          */
-        private void handleNewArrayInstance(final long                      threadId,
-                                            final int                       reqId,
-                                            final ByteList                  payload,
-                                            final ByteArrayDataOutputStream buf)
+        private void writePrimitive(final DataOutputStream dataOut,
+                                    final Class<?>         primitiveType,
+                                    final Object           value)
             throws IOException
         {
-            if (payload.size() != 8) {
+            if (primitiveType == Boolean.TYPE) {
+                dataOut.writeBoolean((Boolean)value);
+            }
+            else if (primitiveType == Byte.TYPE) {
+                dataOut.writeByte((Byte)value);
+            }
+            else if (primitiveType == Character.TYPE) {
+                dataOut.writeChar((Character)value);
+            }
+            else if (primitiveType == Short.TYPE) {
+                dataOut.writeShort((Short)value);
+            }
+            else if (primitiveType == Integer.TYPE) {
+                dataOut.writeInt((Integer)value);
+            }
+            else if (primitiveType == Long.TYPE) {
+                dataOut.writeLong((Long)value);
+            }
+            else if (primitiveType == Float.TYPE) {
+                dataOut.writeFloat((Float)value);
+            }
+            else if (primitiveType == Double.TYPE) {
+                dataOut.writeDouble((Double)value);
+            }
+            else {
                 throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
+                    "Not a primitive type: " + primitiveType
                 );
             }
-
-            final int typeId = payload.getInt(0);
-            final int length = payload.getInt(4);
-
-            // Known type?
-            final TypeDescription klass  = myTypeMapping.getDescription(typeId);
-            if (klass == null) {
-                throw new IllegalArgumentException("Unknown type " + typeId);
-            }
-
-            // Create it
-            final Object array =
-                Array.newInstance(klass.getArrayComponentType(), length);
-
-            // Return the new instance along with its type information
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            bados.dataOut.writeInt (typeId);
-            bados.dataOut.writeLong(myHandleMapping.addReference(array));
-            bados.dataOut.writeInt (-1);
-            buildMessage(buf.dataOut,
-                         MessageType.OBJECT_REFERENCE,
-                         threadId,
-                         reqId,
-                         bados.bytes);
         }
 
         /**
-         * Handle a OBJECT_CAST message.
-         *
-         * This is of the form:
-         *  int32   : Type ID
-         *  int64   : Handle
-         *
-         * Gives back:
-         *  int32   : Type ID
-         *  int64   : The cast'd instance's handle
-         *  int32   : -1 (no raw data)
+         * Read an Object from an input stream along with its type information.
          */
-        private void handleObjectCast(final long                      threadId,
-                                      final int                       reqId,
-                                      final ByteList                  payload,
-                                      final ByteArrayDataOutputStream buf)
+        private ReadObjectResult readObject(final ByteList bytes, int offset)
             throws IOException
         {
-            if (payload.size() != 12) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
-            }
+            final long start = myReadObjectInstrumentor.start();
 
-            final int typeId  = payload.getInt (0);
-            final long handle = payload.getLong(4);
+            // How it's being sent down the wire.
+            final MethodDescription.ArgumentType wireType =
+                MethodDescription.ArgumentType.byId(bytes.get(offset++));
 
-            // Known type?
-            final TypeDescription klass  = myTypeMapping.getDescription(typeId);
-            if (klass == null) {
-                throw new IllegalArgumentException("Unknown type " + typeId);
-            }
+            // What we'll give back
+            Object result;
 
-            // Get the object for this handle, allow it to be the null pointer
-            final Object object = myHandleMapping.getObject(handle);
-            if (object == null && handle != HandleMapping.NULL_HANDLE) {
+            // See what we were given
+            switch (wireType) {
+            case VALUE: {
+                // First read the type information
+                final int typeId = bytes.getInt(offset);
+                offset += Integer.BYTES;
+
+                final TypeDescription typeDesc = myTypeMapping.getDescription(typeId);
+                if (typeDesc == null) {
+                    throw new IllegalArgumentException("Unknown type ID: " + typeId);
+                }
+
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest(
+                        "Unmarshalling " + typeId + " " +
+                        "from raw bits at offset " + offset
+                    );
+                }
+
+                // If it's sent natively down the wire then we convert from
+                // the raw bits
+                if (typeDesc.getName().equals("void")) {
+                    // Like Method#invoke() we treat voids as nulls; there will
+                    // not be any associated data.
+                    result = null;
+                }
+                else if (typeDesc.getName().equals("boolean") ||
+                         typeDesc.getName().equals("java.lang.Boolean"))
+                {
+                    result = Boolean.valueOf(
+                        bytes.get(offset++) != 0
+                    );
+                }
+                else if (typeDesc.getName().equals("byte") ||
+                         typeDesc.getName().equals("java.lang.Byte"))
+                {
+                    result = Byte.valueOf(
+                        bytes.get(offset++)
+                    );
+                }
+                else if (typeDesc.getName().equals("double") ||
+                         typeDesc.getName().equals("java.lang.Double"))
+                {
+                    result = Double.valueOf(bytes.getDouble(offset));
+                    offset += Long.BYTES;
+                }
+                else if (typeDesc.getName().equals("float") ||
+                         typeDesc.getName().equals("java.lang.Float"))
+                {
+                    result = Float.valueOf(bytes.getFloat(offset));
+                    offset += Integer.BYTES;
+                }
+                else if (typeDesc.getName().equals("int") ||
+                         typeDesc.getName().equals("java.lang.Integer"))
+                {
+                    result = Integer.valueOf(bytes.getInt(offset));
+                    offset += Integer.BYTES;
+                }
+                else if (typeDesc.getName().equals("long") ||
+                         typeDesc.getName().equals("java.lang.Long"))
+                {
+                    result = Long.valueOf(bytes.getLong(offset));
+                    offset += Long.BYTES;
+                }
+                else if (typeDesc.getName().equals("short") ||
+                         typeDesc.getName().equals("java.lang.Short"))
+                {
+                    result = Short.valueOf(bytes.getShort(offset));
+                    offset += Short.BYTES;
+                }
+                else if (typeDesc.getName().equals("char")                ||
+                         typeDesc.getName().equals("java.lang.Character") ||
+                         typeDesc.getName().equals("[C")                  ||
+                         typeDesc.getName().equals("java.lang.String"))
+                {
+                    // Strings, char[]s, chars are sent over as UTF-16 strings
+                    // and handled appropriately
+                    final int count = bytes.getInt(offset);
+                    offset += Integer.BYTES;
+                    final byte[] buffer = getByteArray(count);
+                    for (int i=0; i < count; i++) {
+                        buffer[i] = bytes.get(offset++);
+                    }
+                    final String string = new String(buffer, 0, count, "UTF-16");
+
+                    // Switch to the desired type
+                    if (typeDesc.getName().equals("char") ||
+                        typeDesc.getName().equals("java.lang.Character"))
+                    {
+                        if (string.length() != 1) {
+                            throw new IllegalArgumentException(
+                                "Got a char in a String of length other than 1: " +
+                                "'" + string + "'"
+                            );
+                        }
+                        result = Character.valueOf(string.charAt(0));
+                    }
+                    else if (typeDesc.getName().equals("[C")) {
+                        result = string.toCharArray();
+                    }
+                    else if (typeDesc.getName().equals("java.lang.String")) {
+                        result = string;
+                    }
+                    else {
+                        // Ensure that the if statements all match up
+                        throw new AssertionError("Unexpected type: " + typeDesc);
+                    }
+                }
+                else if (typeDesc.getName().equals("[Z")) {
+                    final boolean[] array = new boolean[bytes.getInt(offset)];
+                    offset += Integer.BYTES;
+                    for (int i=0; i < array.length; i++) {
+                        array[i] = bytes.getBoolean(offset++);
+                    }
+                    result = array;
+                }
+                else if (typeDesc.getName().equals("[B")) {
+                    final byte[] array = new byte[bytes.getInt(offset)];
+                    offset += Integer.BYTES;
+                    for (int i=0; i < array.length; i++) {
+                        array[i] = bytes.get(offset++);
+                    }
+                    result = array;
+                }
+                else if (typeDesc.getName().equals("[D")) {
+                    final double[] array = new double[bytes.getInt(offset)];
+                    offset += Integer.BYTES;
+                    for (int i=0; i < array.length; i++) {
+                        array[i] = bytes.getDouble(offset);
+                        offset += Long.BYTES;
+                    }
+                    result = array;
+                }
+                else if (typeDesc.getName().equals("[F")) {
+                    final float[] array = new float[bytes.getInt(offset)];
+                    offset += Integer.BYTES;
+                    for (int i=0; i < array.length; i++) {
+                        array[i] = bytes.getFloat(offset);
+                        offset += Integer.BYTES;
+                    }
+                    result = array;
+                }
+                else if (typeDesc.getName().equals("[I")) {
+                    final int[] array = new int[bytes.getInt(offset)];
+                    offset += Integer.BYTES;
+                    for (int i=0; i < array.length; i++) {
+                        array[i] = bytes.getInt(offset);
+                        offset += Integer.BYTES;
+                    }
+                    result = array;
+                }
+                else if (typeDesc.getName().equals("[J")) {
+                    final long[] array = new long[bytes.getInt(offset)];
+                    offset += Integer.BYTES;
+                    for (int i=0; i < array.length; i++) {
+                        array[i] = bytes.getLong(offset);
+                        offset += Long.BYTES;
+                    }
+                    result = array;
+                }
+                else if (typeDesc.getName().equals("[S")) {
+                    final short[] array = new short[bytes.getInt(offset)];
+                    offset += Integer.BYTES;
+                    for (int i=0; i < array.length; i++) {
+                        array[i] = bytes.getShort(offset);
+                        offset += Short.BYTES;
+                    }
+                    result = array;
+                }
+                else if (typeDesc.getName().startsWith("[")) {
+                    // An array of <something>s with a known length
+                    final int length = bytes.getInt(offset);
+                    offset += Integer.BYTES;
+
+                    // Create an array of the right type by reflection, and
+                    // populate it
+                    result = Array.newInstance(typeDesc.getArrayComponentType(),
+                                               length);
+                    for (int i=0; i < length; i++) {
+                        final ReadObjectResult ror = readObject(bytes, offset);
+                        offset = ror.offset;
+                        Array.set(result, i, ror.object);
+                    }
+                }
+                else if (typeDesc.getName().equals("java.util.Map")) {
+                    // How many entries
+                    final int count = bytes.getInt(offset);
+                    offset += Integer.BYTES;
+
+                    // Create and populate
+                    final Map<Object, Object> map = new HashMap<>(count);
+                    for (int i=0; i < count; i++) {
+                        // Pull out the key and value
+                        final ReadObjectResult keyRor   = readObject(bytes, offset);
+                        offset = keyRor.offset;
+                        final ReadObjectResult valueRor = readObject(bytes, offset);
+                        offset = valueRor.offset;
+
+                        // Stuff them into the map
+                        map.put(keyRor.object, valueRor.object);
+                    }
+
+                    result = map;
+                }
+                else if (typeDesc.getName().equals("java.util.Set")) {
+                    final int count = bytes.getInt(offset);
+                    offset += Integer.BYTES;
+
+                    final Set<Object> set = new HashSet<>(count);
+                    for (int i=0; i < count; i++) {
+                        final ReadObjectResult ror = readObject(bytes, offset);
+                        offset = ror.offset;
+                        set.add(ror.object);
+                    }
+                    result = set;
+                }
+                else if (typeDesc.getName().equals("java.lang.Iterable")   ||
+                         typeDesc.getName().equals("java.util.Collection") ||
+                         typeDesc.getName().equals("java.util.List"))
+                {
+                    final int count = bytes.getInt(offset);
+                    offset += Integer.BYTES;
+
+                    final List<Object> list = new ArrayList<>(count);
+                    for (int i=0; i < count; i++) {
+                        final ReadObjectResult ror = readObject(bytes, offset);
+                        offset = ror.offset;
+                        list.add(ror.object);
+                    }
+                    result = list;
+                }
+                else if (typeDesc.getName().equals("com.deshaw.pjrmi.PythonObject")) {
+                    // A negative ID means null
+                    final int objectId = bytes.getInt(offset);
+                    offset += Integer.BYTES;
+                    result = (objectId < 0)
+                        ? null
+                        : new PythonObjectImpl("PythonObject#" + objectId,
+                                               objectId,
+                                               myOut);
+                }
+                else if (typeDesc.getName().equals("com.deshaw.pjrmi.PythonSlice")) {
+                    ReadObjectResult ror = readObject(bytes, offset);
+                    offset = ror.offset;
+                    final Object sliceStart = ror.object;
+                    ror = readObject(bytes, offset);
+                    offset = ror.offset;
+                    final Object sliceStop = ror.object;
+                    ror = readObject(bytes, offset);
+                    offset = ror.offset;
+                    final Object sliceStep = ror.object;
+
+                    // Now build it. We might have been given any form of Number
+                    // but we convert them all to longs.
+                    result = new PythonSlice(
+                        (sliceStart != null) ? ((Number)sliceStart).longValue() : null,
+                        (sliceStop  != null) ? ((Number)sliceStop ).longValue() : null,
+                        (sliceStep  != null) ? ((Number)sliceStep ).longValue() : null
+                    );
+                }
+                else if (typeDesc.getName().equals("com.deshaw.hypercube.Hypercube")) {
+                    // We have a basic understanding for certain types of
+                    // hypercube. In the future we will add code to allow the
+                    // array data to be broken up into chunks, so that cubes of
+                    // more than 2^31 elements can be passed (and we don't need
+                    // to change the wire format to handle it). Since that's
+                    // quite a lot to be passing as a single argument, we don't
+                    // yet supoort it, and right now we can't do that in a
+                    // ByteList anyhow.
+                    ReadObjectResult ror = readObject(bytes, offset);
+                    offset = ror.offset;
+                    final Object shape = ror.object;
+                    final int chunks = bytes.getInt(offset);
+                    offset += Integer.BYTES;
+                    ror = readObject(bytes, offset);
+                    offset = ror.offset;
+                    final Object array = ror.object;
+                    final Hypercube<?> cube;
+                    if (chunks != 1) {
+                        throw new IllegalArgumentException(
+                            "Expected only one array chunk"
+                        );
+                    }
+                    if (array instanceof boolean[]) {
+                        cube = BooleanHypercube.wrap((boolean[])array);
+                    }
+                    else if (array instanceof float[]) {
+                        cube = FloatHypercube.wrap((float[])array);
+                    }
+                    else if (array instanceof double[]) {
+                        cube = DoubleHypercube.wrap((double[])array);
+                    }
+                    else if (array instanceof int[]) {
+                        cube = IntegerHypercube.wrap((int[])array);
+                    }
+                    else if (array instanceof long[]) {
+                        cube = LongHypercube.wrap((long[])array);
+                    }
+                    else {
+                        throw new UnsupportedOperationException(
+                            "Don't know how to wrap a " +
+                            array.getClass().getSimpleName() + " in a hypercube"
+                        );
+                    }
+                    result = cube.reshape((long[])shape);
+                }
+                else {
+                    throw new UnsupportedOperationException(
+                        "Don't know how to convert " + typeDesc + " " +
+                        "from raw bytes"
+                    );
+                }
+            }   break;
+
+            case REFERENCE: {
+                // Simply grab the handle and add the associated object, it
+                // may be null which is okay
+                final long handle = bytes.getLong(offset);
+                offset += Long.BYTES;
+
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("Grabbed handle " + handle);
+                }
+                result = myHandleMapping.getObject(handle);
+            }   break;
+
+            case SHMDATA: {
+                // The object of interest was written natively, and we have to
+                // read it. We use the incoming object, which is a deconstructed
+                // {@link JniPJRmi$ArrayHandle}, to read it.
+
+                // First, we read the filename as a String
+                final int countString = bytes.getInt(offset);
+                offset += Integer.BYTES;
+                final byte[] bufferString = getByteArray(countString);
+                for (int i=0; i < countString; i++) {
+                    bufferString[i] = bytes.get(offset++);
+                }
+                final String filename = new String(bufferString, 0, countString, "UTF-16");
+
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("SHMDATA filename: " + filename);
+                }
+
+                // Then we read the number of elements
+                final int numElems = Integer.valueOf(bytes.getInt(offset));
+                offset += Integer.BYTES;
+
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("SHMDATA numElems: " + numElems);
+                }
+
+                // Read in the array type
+                final int countChar = bytes.getInt(offset);
+                offset += Integer.BYTES;
+                final byte[] bufferChar = getByteArray(countChar);
+                for (int i=0; i < countChar; i++) {
+                    bufferChar[i] = bytes.get(offset++);
+                }
+                final String stringType = new String(bufferChar, 0, countChar, "UTF-16");
+
+                // Let's make sure it was actually a char
+                if (stringType.length() != 1) {
+                    throw new IllegalArgumentException(
+                        "Got a char in a String of length other than 1: " +
+                        "'" + stringType + "'"
+                    );
+                }
+                final char type = Character.valueOf(stringType.charAt(0));
+
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("SHMDATA type: " + type);
+                }
+
+                // Now, we can read from the file
+                result = JniPJRmi.readArray(filename, numElems, type);
+            }   break;
+
+            case BULK: {
+                // The object's data is coming in over the side channels; we
+                // are told what to turn it into here. This is of the form:
+                //  int32   : Type ID, a primitive array or a Hypercube
+                //  int64   : Transfer ID
+                //  byte    : Element type, per JniPJRmi's type characters
+                //  byte    : Non-zero if the data is little-endian
+                //  int32   : Number of dimensions
+                //  int64[] : The shape
+                final int typeId = bytes.getInt(offset);
+                offset += Integer.BYTES;
+                final long transferId = bytes.getLong(offset);
+                offset += Long.BYTES;
+                final char type = (char)bytes.get(offset++);
+                final ByteOrder byteOrder = (bytes.get(offset++) != 0)
+                    ? ByteOrder.LITTLE_ENDIAN
+                    : ByteOrder.BIG_ENDIAN;
+                final int numDims = bytes.getInt(offset);
+                offset += Integer.BYTES;
+                if (numDims < 0) {
+                    throw new IllegalArgumentException(
+                        "Bad number of dimensions: " + numDims
+                    );
+                }
+                final long[] shape = new long[numDims];
+                for (int i=0; i < numDims; i++) {
+                    shape[i] = bytes.getLong(offset);
+                    offset += Long.BYTES;
+                }
+
+                final TypeDescription typeDesc = myTypeMapping.getDescription(typeId);
+                if (typeDesc == null) {
+                    throw new IllegalArgumentException("Unknown type ID: " + typeId);
+                }
+                final BulkTransferService.Endpoint endpoint;
+                synchronized (myBulkEndpointLock) {
+                    endpoint = myBulkEndpoint;
+                }
+                if (endpoint == null) {
+                    throw new IllegalArgumentException(
+                        "Got a bulk transfer without any side channels"
+                    );
+                }
+
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest(
+                        "Receiving bulk transfer " + transferId + " " +
+                        "of type '" + type + "' " +
+                        "with shape " + Arrays.toString(shape)
+                    );
+                }
+                result = endpoint.receive(
+                    transferId,
+                    type,
+                    byteOrder,
+                    shape,
+                    typeDesc.getName().equals("com.deshaw.hypercube.Hypercube")
+                );
+            }   break;
+
+            case METHOD: {
+                // This is a method handle which we want to turn into a
+                // functional interface.
+                //
+                // Right now we expect to be given the exact method which is
+                // going to be used by the functional interface. However, that
+                // requires the user to determine this up front. While that's
+                // not particularly onerous, we might one day look to perform
+                // the method binding on this side, as an extended feature. We
+                // would probably do this by adding a flag to the request
+                // indicating as such, and just using the method ID to allow us
+                // to look up the name. Getting such method binding correct
+                // probably isn't hard, per se, but will require a lot of care;
+                // there are a number of gotchas in it. The method's relative
+                // specificities values might come into play if and when we
+                // choose to do it.
+                //
+                // The first value we read is a boolean represented by a byte.
+                // At some point we might want to turn this into an 8bit flags
+                // value (see above), but we can do that without changing the
+                // wire format.
+
+                final boolean isConstructor = (bytes.get(offset++) != 0);
+                final int ifaceId = bytes.getInt(offset);
+                offset += Integer.BYTES;
+                final int klassId = bytes.getInt(offset);
+                offset += Integer.BYTES;
+                final int methodId = bytes.getInt(offset);
+                offset += Integer.BYTES;
+                final long handleId = bytes.getLong(offset);
+                offset += Long.BYTES;
+
+                // Now resolve what we can
+                final TypeDescription iface = myTypeMapping.getDescription(ifaceId);
+                if (iface == null) {
+                    throw new IllegalArgumentException(
+                        "No known class type for interface ID " + ifaceId
+                    );
+                }
+                final TypeDescription klass = myTypeMapping.getDescription(klassId);
+                if (klass == null) {
+                    throw new IllegalArgumentException(
+                        "No known class type for method class ID " + klassId
+                    );
+                }
+                final MethodDescription method = isConstructor
+                    ? klass.getConstructor(methodId)
+                    : klass.getMethod     (methodId);
+                if (method == null) {
+                    throw new IllegalArgumentException(
+                        (isConstructor ? "Constructor" : "Method") + " " +
+                        "with ID " + methodId + " not found in " + klass
+                    );
+                }
+
+                // It's okay for the instance to be null, depending on how we're
+                // binding etc.
+                final Object instance = myHandleMapping.getObject(handleId);
+
+                // And defer to the helper method to give back the object that
+                // we want
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("Turning " +
+                               (isConstructor ? "constructor " : "method ") +
+                               method + " into functional call for " + iface);
+                }
+                result = getProxyForMethod(iface.getRepresentedClass(),
+                                           klass,
+                                           method,
+                                           isConstructor,
+                                           instance);
+            }   break;
+
+            case LAMBDA: {
+                // The argument is given by invoking a lambda. We should get
+                // method details (similar to the above) and then the arguments.
+                final boolean isConstructor = (bytes.get(offset++) != 0);
+                final int klassId = bytes.getInt(offset);
+                offset += Integer.BYTES;
+                final int methodId = bytes.getInt(offset);
+                offset += Integer.BYTES;
+                final long handleId = bytes.getLong(offset);
+                offset += Long.BYTES;
+
+                // Now the arguments
+                final short numArgs = bytes.getShort(offset);
+                offset += Short.BYTES;
+                final Object args[] = new Object[numArgs];
+                for (int i=0; i < numArgs; i++) {
+                    final ReadObjectResult ror = readObject(bytes, offset);
+                    args[i] = ror.object;
+                    offset  = ror.offset;
+                }
+
+                // Now resolve what we got
+                final TypeDescription typeDesc =
+                    myTypeMapping.getDescription(klassId);
+                if (typeDesc == null) {
+                    throw new IllegalArgumentException(
+                        "No known class type for method class ID " + klassId
+                    );
+                }
+                final MethodDescription method =
+                    isConstructor ? typeDesc.getConstructor(methodId)
+                                  : typeDesc.getMethod     (methodId);
+                if (method == null) {
+                    throw new IllegalArgumentException(
+                        (isConstructor ? "Constructor" : "Method") + " " +
+                        "with ID " + methodId + " not found in " + typeDesc
+                    );
+                }
+                final Object instance = myHandleMapping.getObject(handleId);
+
+                // We invoke the method and give back its result
+                try {
+                    result =
+                        isConstructor ? typeDesc.callConstructor(method.getIndex(),
+                                                                 args)
+                                      : typeDesc.callMethod     (method.getIndex(),
+                                                                 instance,
+                                                                 args);
+                }
+                catch (Throwable t) {
+                    throw new RuntimeException(
+                        "Failed to invoke " +
+                        (isConstructor ? "constructor" : "method") + " " +
+                        "with ID " + methodId + " in " + typeDesc +
+                        (instance == null ? "" : " on object"),
+                        t
+                    );
+                }
+            }   break;
+
+            default:
+                throw new RuntimeException(
+                    "Unhandled argument type " +
+                    "received on the wire: " + wireType
+                );
+            }
+
+            myReadObjectInstrumentor.end(start);
+            return new ReadObjectResult(offset, result);
+        }
+
+        // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - //
+        //                             HANDLERS                                  //
+
+        /**
+         * Handle an INSTANCE_REQUEST message.
+         *
+         * This is of the form:
+         *  int16  : String length
+         *  byte[] : String bytes (string length in total)
+         *
+         * Gives back:
+         *  int32  : Type ID
+         *  int64  : Handle
+         *  int32  : -1 (no raw data)
+         * where Handle will be -ve if the result was null.
+         */
+        private void handleInstanceRequest(final long                      threadId,
+                                           final int                       reqId,
+                                           final ByteList                  payload,
+                                           final ByteArrayDataOutputStream buf)
+            throws IOException
+        {
+            // Need at least 4 bytes at the start of the message, for the string length
+            if (payload.size() < 4) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            // Grab the name of the object which we want
+            final int size = payload.getInt(0);
+
+            // These are sent over as UTF-16
+            final byte[] buffer = getByteArray(size);
+            for (int i=0; i < size; i++) {
+                buffer[i] = payload.get(i + 4);
+            }
+            final String name = new String(buffer, 0, size, "UTF-16");
+
+            // Get the object
+            final Object instance = getObjectInstance(name);
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            if (instance == null) {
+                bados.dataOut.writeInt (myTypeMapping.getId(Object.class));
+                bados.dataOut.writeLong(HandleMapping.NULL_HANDLE);
+                bados.dataOut.writeInt (-1);
+            }
+            else {
+                bados.dataOut.writeInt (myTypeMapping  .getId       (instance));
+                bados.dataOut.writeLong(myHandleMapping.addReference(instance));
+                bados.dataOut.writeInt (-1);
+            }
+            buildMessage(buf.dataOut,
+                         MessageType.OBJECT_REFERENCE,
+                         threadId,
+                         reqId,
+                         bados.bytes);
+        }
+
+        /**
+         * Handle an ADD_REFERENCE message.
+         *
+         * This is of the form:
+         *  int64   : Handle
+         *
+         * Gives back and empty ACK.
+         */
+        private void handleAddReference(final long                      threadId,
+                                        final int                       reqId,
+                                        final ByteList                  payload,
+                                        final ByteArrayDataOutputStream buf)
+            throws IOException
+        {
+            if (payload.size() != 8) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            final long handle = payload.getLong(0);
+            myHandleMapping.addReference(handle);
+
+            buildMessage(buf.dataOut, MessageType.EMPTY_ACK, threadId, reqId, null);
+        }
+
+        /**
+         * Handle a DROP_REFERENCES message.
+         *
+         * This is of the form:
+         *  int32     : Num handles
+         *  handles[] :
+         *    int64   : Handle
+         *
+         * Gives back an empty ACK.
+         */
+        private void handleDropReferences(final long                      threadId,
+                                          final int                       reqId,
+                                          final ByteList                  payload,
+                                          final ByteArrayDataOutputStream buf)
+            throws IOException
+        {
+            if (payload.size() < 4) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            // Our position in the payload data
+            int offset = 0;
+
+            // How many to drop
+            final int count = payload.getInt(offset);
+            offset += Integer.BYTES;
+
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest("Dropping " + count + " references...");
+            }
+
+            // Drop them
+            for (int i=0; i < count; i++) {
+                final long handle = payload.getLong(offset);
+                offset += Long.BYTES;
+
+                myHandleMapping.dropReference(handle);
+            }
+
+            // ACK back
+            buildMessage(buf.dataOut, MessageType.EMPTY_ACK, threadId, reqId, null);
+        }
+
+        /**
+         * Handle a TYPE_REQUEST message.
+         *
+         * This is of the form:
+         *  boolean : by-id or by-string flag
+         *  type:
+         *   int32  : Type ID
+         *  or
+         *   int32  : Name length
+         *   byte[] : Name
+         *
+         * Gives back by deferring to writeTypeDesc().
+         */
+        private void handleTypeRequest(final long                      threadId,
+                                       final int                       reqId,
+                                       final ByteList                  payload,
+                                       final ByteArrayDataOutputStream buf)
+            throws ClassNotFoundException,
+                   IOException,
+                   SecurityException
+        {
+            if (payload.size() < 1) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            // Our position in the payload data
+            int offset = 0;
+
+            // Start off by finding out what sort of call this is
+            final boolean isById = (payload.get(offset++) != 0);
+
+            // Get the type description
+            final TypeDescription desc;
+            final int int32 = payload.getInt(offset);
+            offset += Integer.BYTES;
+
+            if (isById) {
+                desc = myTypeMapping.getDescription(int32);
+            }
+            else {
+                final StringBuilder sb = new StringBuilder();
+                while (sb.length() < int32) {
+                    sb.append((char)payload.get(offset++));
+                }
+                final String className = sb.toString();
+
+                // See if we are allowed to give back this class
+                if (!isClassPermitted(className)) {
+                    final String msg = getClassNotPermittedMessage();
+                    final String txt = "Access permission denied for class " +
+                                       "\"" + className + "\"" +
+                                       (msg == null ? "" : ": " + msg);
+                    LOG.warning(txt);
+                    throw new SecurityException(txt);
+                }
+
+                // Okay to give back, handle requests for primitives specially
+                final Class<?> klass;
+                switch (className) {
+                case "void":    klass = Void     .TYPE;           break;
+                case "boolean": klass = Boolean  .TYPE;           break;
+                case "byte":    klass = Byte     .TYPE;           break;
+                case "short":   klass = Short    .TYPE;           break;
+                case "int":     klass = Integer  .TYPE;           break;
+                case "long":    klass = Long     .TYPE;           break;
+                case "float":   klass = Float    .TYPE;           break;
+                case "double":  klass = Double   .TYPE;           break;
+                case "char":    klass = Character.TYPE;           break;
+                default:        klass = Class.forName(className); break;
+                }
+                desc = myTypeMapping.getDescription(klass);
+            }
+
+            // Second check for the class being permissioned, this time by its
+            // concrete type
+            if (!isClassPermitted(desc.getRepresentedClass())) {
+                final String msg = getClassNotPermittedMessage();
+                final String txt = "Access permission denied for class " +
+                                   desc.getRepresentedClass() +
+                                   (msg == null ? "" : ": " + msg);
+                LOG.warning(txt);
+                throw new SecurityException(txt);
+            }
+
+            // Send it back
+            writeTypeDesc(desc, threadId, reqId, buf);
+        }
+
+        /**
+         * Handle an METHOD_CALL message.
+         *
+         * This is of the form:
+         *  boolean : isConstructor flag
+         *  int32   : Type ID
+         *  byte    : PythonValueFormat
+         *  int64   : Object handle
+         *  int32   : Method/constructor index as defined by TypeDescription
+         *  byte[]  : Arguments (if any) as raw bytes
+         *
+         * Gives back:
+         *  int32   : Result type (possibly void)
+         *  byte[]  : The result (if native), or its handle (if an Object),
+         *            or nothing (if void)
+         */
+        private void handleMethodCall(final long                      threadId,
+                                      final VirtualThread             virtualThread,
+                                      final int                       reqId,
+                                      final ByteList                  payload,
+                                      final ByteArrayDataOutputStream buf)
+            throws Throwable
+        {
+            if (payload.size() < 18) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            // Our position in the payload data
+            int offset = 0;
+
+            // Pull in the header information from the wire, everything up to
+            // the, optional, arguments
+            final boolean isConstructor = (payload.get(offset++) != 0);
+
+            final int typeId = payload.getInt(offset);
+            offset += Integer.BYTES;
+
+            final byte valueFormatId = payload.get(offset++);
+
+            final byte syncModeId = payload.get(offset++);
+
+            final long handle = payload.getLong(offset);
+            offset += Long.BYTES;
+
+            final int index = payload.getInt(offset);
+            offset += Integer.BYTES;
+
+            // Figure out what we need to know in order to invoke this method
+            final Object          object = myHandleMapping.getObject(handle);
+            final TypeDescription klass  = myTypeMapping.getDescription(typeId);
+
+            // Known type?
+            if (klass == null) {
+                throw new IllegalArgumentException("Unknown type " + typeId);
+            }
+
+            // Get the return format
+            final PythonValueFormat valueFormat =
+                PythonValueFormat.byId(valueFormatId);
+
+            // Get the calling mode
+            final SyncMode syncMode = SyncMode.byId(syncModeId);
+
+            // Grab the method info, different depending on the type of call
+            final MethodDescription method;
+            if (isConstructor) {
+                if (index < 0 || index >= klass.getNumConstructors()) {
+                    throw new ArrayIndexOutOfBoundsException(
+                        "Bad constructor index: " + index
+                    );
+                }
+                else {
+                    method = klass.getConstructor(index);
+                }
+            }
+            else {
+                if (index < 0 || index >= klass.getNumMethods()) {
+                    throw new ArrayIndexOutOfBoundsException(
+                        "Bad method index: " + index
+                    );
+                }
+                else {
+                    method = klass.getMethod(index);
+                }
+            }
+
+            // What we now know
+            if (LOG.isLoggable(Level.FINEST)) {
+                // Don't call toString() on the object here since it might be a
+                // Python shim and we don't want to wind up either recursing
+                // indefinitely or similar if that call invokes Java methods or
+                // similar.
+                LOG.finest(
+                    "Going to call " + method + " on " +
+                    ((object == null) ? "" : "an instance of ") +
+                    "class " + klass
+                );
+            }
+
+            // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+
+            // Pull out all the arguments and turn them into Objects
+            final Object[] args = new Object[method.getNumArguments()];
+            for (short i=0; i < args.length; i++) {
+                // Pull it from the data
+                final ReadObjectResult read = readObject(payload, offset);
+                offset  = read.offset;
+                args[i] = read.object;
+
+                // What did we get?
+                if (LOG.isLoggable(Level.FINEST)) {
+                    try {
+                        LOG.finest("Argument " + i + " is: <" + args[i] + ">");
+                    }
+                    catch (Exception e) {
+                        // Proxy classes might balk here, for example
+                        LOG.finest("Error rendering argument " + i + ": e" + e);
+                    }
+                }
+            }
+
+            // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+
+            try {
+                // We're calling down a level in the "stack"
+                myCallDepth++;
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("Call depth is now " + myCallDepth);
+                }
+                if (myCallDepth >= MAX_CALL_DEPTH) {
+                    throw new StackOverflowError("Call depth became " + myCallDepth);
+                }
+
+                // Say what we're about to do
+                if (LOG.isLoggable(Level.FINEST)) {
+                    final StringBuilder sb = new StringBuilder();
+                    for (Object arg : args) {
+                        if (sb.length() > 0) {
+                            sb.append(", ");
+                        }
+                        try {
+                            sb.append(arg);
+                        }
+                        catch (Exception e) {
+                            sb.append("<???>");
+                        }
+                        sb.append('<')
+                          .append((arg == null) ? "NULL" : arg.getClass())
+                          .append('>');
+                    }
+                    if (isConstructor) {
+                        LOG.finest("Calling constructor " + index + " for " +
+                                   klass + " with arguments [" + sb + "]");
+                    }
+                    else {
+                        LOG.finest("Calling method " + index + " "+
+                                   "'" + method + "' " +
+                                   "with arguments [" + sb + "]");
+                    }
+                }
+
+                // Now we can actually call the method
+                final Object result;
+                if (syncMode == SyncMode.SYNCHRONOUS) {
+                    // A straight call. Give back whatever we got.
+                    result = isConstructor
+                        ? klass.callConstructor(index,         args)
+                        : klass.callMethod     (index, object, args);
+                }
+                else if (syncMode == SyncMode.JAVA_THREAD) {
+                    // Create a Future instance to give back and spawn the
+                    // thread to set the result into that future. Try to give
+                    // the future a reasonable name so that the user knows what
+                    // it is. However we avoid expanding all the arguments for
+                    // the same of brevity.
+                    final MethodCallFuture future =
+                        new MethodCallFuture(
+                            "Future for call to: " +
+                            method.getReturnType      ()
+                                  .getRepresentedClass()
+                                  .getSimpleName      () + " " +
+                            klass .getRepresentedClass()
+                                  .getSimpleName      () + "." +
+                            (isConstructor ? "<init>"
+                                           : method.getName() + "") +
+                            (args.length > 0 ? "(...)" : "()")
+                        );
+
+                    // Get a caller, creating if needbe
+                    MethodCaller caller = myMethodCallers.poll();
+                    if (caller == null) {
+                        // Create and spawn the caller thread
+                        caller = new MethodCaller();
+                        caller.start();
+                    }
+
+                    // And actually tell it to do the work
+                    caller.handle(
+                        () -> {
+                            // Make the call, reaping any exceptions along the
+                            // way and also giving them back via the Future
+                            try {
+                                // This is a method call so we need to acquire
+                                // the global lock, if any, like any other
+                                // method call would.
+                                myLockManager.lockGlobal();
+                                future.done(
+                                    isConstructor
+                                        ? klass.callConstructor(index,         args)
+                                        : klass.callMethod     (index, object, args),
+                                    false
+                                );
+                            }
+                            catch (Throwable t) {
+                                future.done(t, true);
+                            }
+                            finally {
+                                myLockManager.unlockGlobal();
+                            }
+                        }
+                    );
+
+                    // And we'll be giving back the Future, rather than the
+                    // result, for this calling mode
+                    result = future;
+                }
+                else {
+                    throw new UnsupportedOperationException(
+                        "Unhandle sync mode " + syncMode
+                    );
+                }
+
+                // What did we get?
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("Result was <" + result + ">");
+                }
+
+                // Figure out what type to associate with the result.
+                //
+                // What we are trying to deal with here is type erasure of the
+                // information associated with generics. For something like
+                // Set<Integer> the get() method will always return an Object
+                // since the runtime environment doesn't know the real type;
+                // that it becomes an Int happens because the compiler inserts a
+                // cast along the way. (This is why it's possible to put a
+                // Double into such a List if we cast away its type information.
+                // We'll only discover that when we pull the Double out as an
+                // Integer.)
+                //
+                // What this means for us is that such methods return fun values
+                // which have to be downcast into their "real" type on the
+                // Python side if we want to use them. In order to deal with
+                // this we give back the _actual_ type associated with the value
+                // which the method returns. This is slightly icky since it
+                // means that, say, get() on a List of CharSequences will
+                // actually return a String, or StringBuilder, or whatever the
+                // concrete implementation happens to be. Since we have _no_ way
+                // to knowing at runtime that the E in List<E> is a CharSequence
+                // we don't know to hand back a CharSequence. We argue that this
+                // is actually okay and vaguely Pythonic since Python employs
+                // duck-typing most of the time and what we hand back conforms
+                // better with this view of the world. However, it's open to
+                // abuse on the other side and we simply have to trust that the
+                // Python users won't to anything special with the concrete
+                // class; if they do then their code may fail if the class
+                // changes.
+                final TypeDescription returnType;
+                if (syncMode != SyncMode.SYNCHRONOUS) {
+                    assert(result instanceof Future);
+                    returnType = myTypeMapping.getDescription(Future.class);
+                    if (LOG.isLoggable(Level.FINEST)) {
+                        LOG.finest("Return type is " + returnType);
+                    }
+                }
+                else if (result != null && method.isGenericReturnType()) {
+                    returnType = myTypeMapping.getDescription(result.getClass());
+                    if (LOG.isLoggable(Level.FINEST)) {
+                        LOG.finest("Return type is exposed as " + returnType);
+                    }
+                }
+                else {
+                    returnType = method.getReturnType();
+                    if (LOG.isLoggable(Level.FINEST)) {
+                        LOG.finest(
+                            "Return type matches method result " + returnType
+                        );
+                    }
+                }
+
+                // Convert the result to a payload byte stream
+                renderObject(threadId, reqId, buf, valueFormat, result, returnType);
+            }
+            finally {
+                // We're coming back up here so reduce the depth
+                myCallDepth--;
+            }
+        }
+
+        /**
+         * Handle a TO_STRING message.
+         *
+         * This is of the form:
+         *  int64   : Handle
+         *
+         * Gives back the UTF16 string representation, or -1
+         */
+        private void handleToString(final long                      threadId,
+                                    final int                       reqId,
+                                    final ByteList                  payload,
+                                    final ByteArrayDataOutputStream buf)
+            throws IOException
+        {
+            if (payload.size() != 8) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            final long handle = payload.getLong(0);
+
+            final Object instance = myHandleMapping.getObject(handle);
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            if (instance == null) {
+                bados.dataOut.writeInt(-1);
+            }
+            else {
+                final String string = instance.toString();
+                writeUTF16(bados.dataOut, string);
+            }
+            buildMessage(buf.dataOut,
+                         MessageType.UTF16_VALUE,
+                         threadId,
+                         reqId,
+                         bados.bytes);
+        }
+
+        /**
+         * Handle an GET_FIELD message.
+         *
+         * This is of the form:
+         *  int32 : Object type ID
+         *  int64 : Object handle
+         *  int32 : Field index as defined by TypeDescription
+         *
+         * Gives back:
+         *  int32  : Field type ID
+         *  byte[] : The field (if native), or its handle (if an Object)
+         */
+        private void handleGetField(final long                      threadId,
+                                    final int                       reqId,
+                                    final ByteList                  payload,
+                                    final ByteArrayDataOutputStream buf)
+            throws Throwable
+        {
+            if (payload.size() != 16) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            final int  typeId = payload.getInt ( 0);
+            final long handle = payload.getLong( 4);
+            final int  index  = payload.getInt (12);
+
+            final TypeDescription desc = myTypeMapping.getDescription(typeId);
+            final Object object = myHandleMapping.getObject(handle);
+
+            // Grab the field and its type
+            final Object          field;
+            final TypeDescription fieldType;
+            if (desc.isArray()) {
+                // For arrays, this is the array index
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("Getting array index " + index + " from " + handle);
+                }
+                field     = Array.get(object, index);
+                fieldType =
+                    myTypeMapping.getDescription(
+                        object.getClass().getComponentType()
+                    );
+            }
+            else {
+                // Else it's just an actual field, grab its value
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("Getting field index " + index + " from " + handle);
+                }
+                field = desc.getField(index, object);
+
+                // The type is the declared type, not the type of the object
+                // (which might be a subclass)
+                fieldType = desc.getField(index).getType();
+            }
+
+            // Simply marshal up the value which we got back
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            writeObject(bados.dataOut, field, fieldType);
+            buildMessage(buf.dataOut,
+                         MessageType.ARBITRARY_ITEM,
+                         threadId,
+                         reqId,
+                         bados.bytes);
+        }
+
+        /**
+         * Handle an SET_FIELD message.
+         *
+         * This is of the form:
+         *  int64  : Object handle
+         *  int32  : Field index as defined by TypeDescription
+         *  int32  : Field type
+         *  byte[] : The new value of the field (if native), or a handle
+         *
+         * Gives back empty ACK.
+         */
+        private void handleSetField(final long                      threadId,
+                                    final int                       reqId,
+                                    final ByteList                  payload,
+                                    final ByteArrayDataOutputStream buf)
+            throws Throwable
+        {
+            if (payload.size() < 17) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            final int objTypeId = payload.getInt ( 0);
+            final long handle   = payload.getLong( 4);
+            final int index     = payload.getInt (12);
+
+            final Object value = readObject(payload, 16).object;
+
+            // The object we're setting on, this may be null if we're setting a
+            // static field
+            final Object object = myHandleMapping.getObject(handle);
+
+            // The type information comes from the object itself
+            final TypeDescription desc = myTypeMapping.getDescription(objTypeId);
+
+            // Now just set it
+            if (desc.isArray()) {
+                // For arrays, this is the array index
+                Array.set(object, index, value);
+            }
+            else {
+                // Else it's just an actual field
+                desc.setField(index, object, value);
+            }
+
+            // ACK comes back
+            buildMessage(buf.dataOut, MessageType.EMPTY_ACK, threadId, reqId, null);
+        }
+
+        /**
+         * Handle a GET_ARRAY_LENGTH message.
+         *
+         * This is of the form:
+         *  int64   : Handle
+         *
+         * Gives back:
+         *  int32   : The length
+         */
+        private void handleGetArrayLength(final long                      threadId,
+                                          final int                       reqId,
+                                          final ByteList                  payload,
+                                          final ByteArrayDataOutputStream buf)
+            throws IOException
+        {
+            if (payload.size() != 8) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            final long handle = payload.getLong(0);
+
+            final Object object = myHandleMapping.getObject(handle);
+            if (object == null) {
+                throw new IllegalArgumentException(
+                    "No object for handle " + handle
+                );
+            }
+
+            // Simply marshal up the value which we got back. If the object is
+            // not an array then getLength() will throw an exception.
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            bados.dataOut.writeInt(Array.getLength(object));
+            buildMessage(buf.dataOut,
+                         MessageType.ARRAY_LENGTH,
+                         threadId,
+                         reqId,
+                         bados.bytes);
+        }
+
+        /**
+         * Handle a NEW_ARRAY_INSTANCE message.
+         *
+         * This is of the form:
+         *  int32   : Type ID
+         *  int32   : Length
+         *
+         * Gives back:
+         *  int32   : Type ID
+         *  int64   : The array handle
+         *  int32   : -1 (no raw data)
+         */
+        private void handleNewArrayInstance(final long                      threadId,
+                                            final int                       reqId,
+                                            final ByteList                  payload,
+                                            final ByteArrayDataOutputStream buf)
+            throws IOException
+        {
+            if (payload.size() != 8) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            final int typeId = payload.getInt(0);
+            final int length = payload.getInt(4);
+
+            // Known type?
+            final TypeDescription klass  = myTypeMapping.getDescription(typeId);
+            if (klass == null) {
+                throw new IllegalArgumentException("Unknown type " + typeId);
+            }
+
+            // Create it
+            final Object array =
+                Array.newInstance(klass.getArrayComponentType(), length);
+
+            // Return the new instance along with its type information
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            bados.dataOut.writeInt (typeId);
+            bados.dataOut.writeLong(myHandleMapping.addReference(array));
+            bados.dataOut.writeInt (-1);
+            buildMessage(buf.dataOut,
+                         MessageType.OBJECT_REFERENCE,
+                         threadId,
+                         reqId,
+                         bados.bytes);
+        }
+
+        /**
+         * Handle a OBJECT_CAST message.
+         *
+         * This is of the form:
+         *  int32   : Type ID
+         *  int64   : Handle
+         *
+         * Gives back:
+         *  int32   : Type ID
+         *  int64   : The cast'd instance's handle
+         *  int32   : -1 (no raw data)
+         */
+        private void handleObjectCast(final long                      threadId,
+                                      final int                       reqId,
+                                      final ByteList                  payload,
+                                      final ByteArrayDataOutputStream buf)
+            throws IOException
+        {
+            if (payload.size() != 12) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            final int typeId  = payload.getInt (0);
+            final long handle = payload.getLong(4);
+
+            // Known type?
+            final TypeDescription klass  = myTypeMapping.getDescription(typeId);
+            if (klass == null) {
+                throw new IllegalArgumentException("Unknown type " + typeId);
+            }
+
+            // Get the object for this handle, allow it to be the null pointer
+            final Object object = myHandleMapping.getObject(handle);
+            if (object == null && handle != HandleMapping.NULL_HANDLE) {
+                throw new IllegalArgumentException(
+                    "No object for handle " + handle
+                );
+            }
+
+            // Do the cast, we simply try to do it here; it doesn't matter
+            // what we get back as we are only interested in if it throws an
+            // exception when we do so.
+            klass.getRepresentedClass().cast(object);
+
+            // That worked so add a new reference to this object since the other
+            // side will create a new object to track it
+            myHandleMapping.addReference(handle);
+
+            // Echo back the instance along with the type ID
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            bados.dataOut.writeInt (typeId);
+            bados.dataOut.writeLong(handle);
+            bados.dataOut.writeInt (-1);
+            buildMessage(buf.dataOut,
+                         MessageType.OBJECT_REFERENCE,
+                         threadId,
+                         reqId,
+                         bados.bytes);
+        }
+
+        /**
+         * Handle a LOCK message.
+         *
+         * This is of the form:
+         *  int32   : lock-name length
+         *  bytes   : lock-name as ASCII bytes
+         *
+         * Gives back empty ACK.
+         */
+        private void handleLock(final long                      threadId,
+                                final int                       reqId,
+                                final ByteList                  payload,
+                                final ByteArrayDataOutputStream buf)
+            throws Throwable
+        {
+            if (payload.size() < 4) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+            else {
+                final int length = payload.getInt(0);
+                final CharSequence name = new HashableSubSequence(payload, 4, length);
+                myLockManager.getExclusiveLockFor(name).lock();
+            }
+
+            // ACK comes back
+            buildMessage(buf.dataOut, MessageType.EMPTY_ACK, threadId, reqId, null);
+        }
+
+        /**
+         * Handle an UNLOCK message.
+         *
+         * This is of the form:
+         *  int32   : lock-name length
+         *  bytes   : lock-name as ASCII bytes
+         *
+         * Gives back empty ACK.
+         */
+        private void handleUnlock(final long                      threadId,
+                                  final int                       reqId,
+                                  final ByteList                  payload,
+                                  final ByteArrayDataOutputStream buf)
+            throws Throwable
+        {
+            if (payload.size() < 4) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+            else {
+                final int length = payload.getInt(0);
+                final CharSequence name = new HashableSubSequence(payload, 4, length);
+                myLockManager.getExclusiveLockFor(name).unlock();
+            }
+
+            // ACK comes back
+            buildMessage(buf.dataOut,
+                         MessageType.EMPTY_ACK,
+                         threadId,
+                         reqId,
+                         null);
+        }
+
+        /**
+         * Handle an INJECT_CLASS message.
+         *
+         * Gives back by deferring to writeTypeDesc().
+         */
+        private void handleInjectClass(final long                      threadId,
+                                       final int                       reqId,
+                                       final ByteList                  payload,
+                                       final ByteArrayDataOutputStream buf)
+            throws Throwable
+        {
+            if (payload.size() == 0) {
+                throw new IllegalArgumentException("Got an empty payload");
+            }
+
+            // Disallow class injection?
+            if (!isClassInjectionPermitted()) {
+                throw new SecurityException("Class injection not permitted");
+            }
+
+            // Inject it
+            final Class<?> klass =
+                myClassInjector.inject(payload.toArray(), payload.size());
+
+            // And give it back
+            writeTypeDesc(myTypeMapping.getDescription(klass),
+                          threadId,
+                          reqId,
+                          buf);
+        }
+
+        /**
+         * Handle an INJECT_SOURCE message.
+         *
+         * This is of the form:
+         *  int32  : Class name length
+         *  byte[] : Class name
+         *  int32  : Source code length
+         *  byte[] : Source code
+         *
+         * Gives back by deferring to writeTypeDesc().
+         */
+        private void handleInjectSource(final long                      threadId,
+                                        final int                       reqId,
+                                        final ByteList                  payload,
+                                        final ByteArrayDataOutputStream buf)
+            throws Throwable
+        {
+            if (payload.size() == 0) {
+                throw new IllegalArgumentException("Got an empty payload");
+            }
+
+            // Disallow source injection? We don't allow this if we don't allow
+            // Java class injection; they are basically the same thing when it
+            // comes to security.
+            if (!isClassInjectionPermitted()) {
+                throw new SecurityException("Source injection not permitted");
+            }
+
+            // Our position in the payload data
+            int offset = 0;
+
+            // Get the class name
+            final int lenClassName = payload.getInt(offset);
+            offset += Integer.BYTES;
+            final StringBuilder sbClassName = new StringBuilder();
+            while (sbClassName.length() < lenClassName) {
+                sbClassName.append((char)payload.get(offset++));
+            }
+            final String className = sbClassName.toString();
+
+            // Get the source code
+            final int lenSource = payload.getInt(offset);
+            offset += Integer.BYTES;
+            final StringBuilder sbSource = new StringBuilder();
+            while (sbSource.length() < lenSource) {
+                sbSource.append((char)payload.get(offset++));
+            }
+            final String source = sbSource.toString();
+
+            // Compile the class and make it available to the JVM
+            final Class<?> klass = mySourceInjector.inject(className, source);
+
+            // And send it back
+            writeTypeDesc(myTypeMapping.getDescription(klass),
+                          threadId,
+                          reqId,
+                          buf);
+        }
+
+        /**
+         * Handle an REPLACE_CLASS message.
+         *
+         * Gives back by deferring to writeTypeDesc().
+         */
+        private void handleReplaceClass(final long                      threadId,
+                                        final int                       reqId,
+                                        final ByteList                  payload,
+                                        final ByteArrayDataOutputStream buf)
+            throws Throwable
+        {
+            // Usual care needs to be taken
+            if (!isClassInjectionPermitted()) {
+                throw new SecurityException("Source replacement not permitted");
+            }
+
+            // Pull in the full payload, including the bytecode at the end
+            int offset = 0;
+            final int typeId = payload.getInt(offset); offset += Integer.BYTES;
+            final int len    = payload.getInt(offset); offset += Integer.BYTES;
+            final byte[] bytecode = new byte[len];
+            for (int i=0; i < len; i++) {
+                bytecode[i] = payload.get(offset++);
+            }
+
+            // This will only work if we have a Instrumentation class in the
+            // Agent
+            final Instrumentation instr = PJRmiAgent.getInstrumentation();
+            if (instr == null) {
+                throw new UnsupportedOperationException(
+                    "Classes can't be redefined " +
+                    "since the PJRmiAgent is not loaded"
+                );
+            }
+
+            // Known type?
+            final TypeDescription desc = myTypeMapping.getDescription(typeId);
+            if (desc == null) {
+                throw new IllegalArgumentException("Unknown type " + typeId);
+            }
+            final Class<?> klass = desc.getRepresentedClass();
+
+            // Attempt to do the replacement
+            instr.redefineClasses(new ClassDefinition(klass, bytecode));
+            final Class<?> newKlass = Class.forName(klass.getName());
+            final TypeDescription newDesc =
+                myTypeMapping.replaceDescription(typeId, newKlass);
+
+            // And give back the new description
+            writeTypeDesc(newDesc, threadId, reqId, buf);
+        }
+
+        /**
+         * Handle a GET_VALUE_OF message.
+         *
+         * This is of the form:
+         *  int64 : Object handle
+         *  byte  : PythonValueFormat
+         *
+         * Gives back:
+         *  int32  : Number of bytes
+         *  byte[] : The pickled form of the object, or each component of a
+         *           {@link JniPJRmi$ArrayHandle}, depending on the specified
+         *           {@link PythonValueFormat}. Hypercubes, and
+         *           multi-dimensional arrays, which are requested as
+         *           {@link PythonValueFormat#SHMDATA} are sent along with their
+         *           shape, as {@link PythonValueFormat#SHMDATA_SHAPED}.
+         */
+        private void handleGetValueOf(final long                      threadId,
+                                      final int                       reqId,
+                                      final ByteList                  payload,
+                                      final ByteArrayDataOutputStream buf)
+            throws Throwable
+        {
+            if (payload.size() != 9) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            // The object handle
+            final long handle = payload.getLong(0);
+
+            // The return format
+            final PythonValueFormat valueFormat =
+                PythonValueFormat.byId(payload.get(8));
+            switch (valueFormat) {
+            case RAW_PICKLE:
+            case SNAPPY_PICKLE:
+            case BESTEFFORT_PICKLE:
+            case BESTEFFORT_SNAPPY_PICKLE:
+            case SHMDATA:
+                // These are handled below
+                break;
+
+            default:
+                // Anything else isn't
+                throw new IllegalArgumentException(
+                  "Unhandled return format `" + valueFormat + "`; " +
+                  "only Python pickle and SHM-data formats are supported."
+                );
+            }
+
+            // Get the object for this handle, allow it to be the null pointer
+            final Object object = myHandleMapping.getObject(handle);
+            if (object == null && handle != HandleMapping.NULL_HANDLE) {
+                throw new IllegalArgumentException(
+                    "No object for handle " + handle
+                );
+            }
+
+            // Send result based on return type
+            if (valueFormat == PythonValueFormat.RAW_PICKLE        ||
+                valueFormat == PythonValueFormat.SNAPPY_PICKLE     ||
+                valueFormat == PythonValueFormat.BESTEFFORT_PICKLE ||
+                valueFormat == PythonValueFormat.BESTEFFORT_SNAPPY_PICKLE)
+            {
+                // Convert the result to a payload byte stream
+                renderObject(threadId, reqId, buf, valueFormat, object, null);
+            }
+            else if (valueFormat == PythonValueFormat.SHMDATA) {
+                // Cubes and multi-dimensional arrays can only go via shared
+                // memory if they are primitive, and rectangular. Anything
+                // else gets pickled instead.
+                if ((object instanceof Hypercube || object instanceof Object[]) &&
+                    !ShmDataWriter.isSupported(object))
+                {
+                    renderObject(threadId,
+                                 reqId,
+                                 buf,
+                                 PythonValueFormat.SNAPPY_PICKLE,
+                                 object,
+                                 null);
+                }
+                else {
+                    writeShmArray(threadId, reqId, buf, object);
+                }
+            }
+            else {
+                throw new IllegalStateException("Someone can't code");
+            }
+        }
+
+        /**
+         * Handle a GET_CALLBACK_HANDLE message.
+         *
+         * This is of the form:
+         *  int32  : Python function ID
+         *  int32  : Java Type ID, or -1
+         *  byte   : Argument count
+         *
+         * Gives back:
+         *  int32  : Function type ID
+         *  byte[] : The function type
+         */
+        private void handleGetCallbackHandle(final long                      threadId,
+                                             final int                       reqId,
+                                             final ByteList                  payload,
+                                             final ByteArrayDataOutputStream buf,
+                                             final DataOutputStream          out)
+            throws Throwable
+        {
+            if (payload.size() != 9) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            // The object handle
+            final int functionId = payload.getInt(0);
+            final int typeId     = payload.getInt(4);
+            final int numArgs    = payload.get(8) & 0xff; // '&' up-casts to int
+
+            // Create the appropriate function wrapper
+            final Object callback;
+            TypeDescription typeDesc = myTypeMapping.getDescription(typeId);
+            if (typeDesc == null) {
+                // Need to guess a function
+                switch (numArgs) {
+                case 1:
+                    final PythonCallbackFunction<?,?> f =
+                        new PythonCallbackFunction<>(functionId, out);
+                    callback = f;
+                    typeDesc = f.getType();
+                    break;
+
+                case 2:
+                    final PythonCallbackBiFunction<?,?,?> bf =
+                        new PythonCallbackBiFunction<>(functionId, out);
+                    callback = bf;
+                    typeDesc = bf.getType();
+                    break;
+
+                default:
+                    final PythonCallback<TypeDescription> c =
+                        new PythonCallback<TypeDescription>(functionId, out)
+                        {
+                            @Override public TypeDescription getType()
+                            {
+                                return myTypeMapping.getDescription(
+                                    PythonKwargsFunction.class
+                                );
+                            }
+                        };
+                    callback = c;
+                    typeDesc = c.getType();
+                    break;
+                }
+            }
+            else {
+                // We should be able to create it directly since we know the
+                // type of the class were are aiming to invoke for.
+                final Class<?> klass = typeDesc.getRepresentedClass();
+                if (Runnable.class.equals(klass)) {
+                    callback = new PythonCallbackRunnable(functionId, out);
+                }
+                else if (Function.class.equals(klass)) {
+                    callback = new PythonCallbackFunction<>(functionId, out);
+                }
+                else if (BiFunction.class.equals(klass)) {
+                    callback = new PythonCallbackBiFunction<>(functionId, out);
+                }
+                else if (Consumer.class.equals(klass)) {
+                    callback = new PythonCallbackConsumer<>(functionId, out);
+                }
+                else if (BiConsumer.class.equals(klass)) {
+                    callback = new PythonCallbackBiConsumer<>(functionId, out);
+                }
+                else if (Predicate.class.equals(klass)) {
+                    callback = new PythonCallbackPredicate<>(functionId, out);
+                }
+                else if (BiPredicate.class.equals(klass)) {
+                    callback = new PythonCallbackBiPredicate<>(functionId, out);
+                }
+                else if (UnaryOperator.class.equals(klass)) {
+                    callback = new PythonCallbackUnaryOperator<>(functionId, out);
+                }
+                else if (PythonFunction      .class.equals(klass) ||
+                         PythonKwargsFunction.class.equals(klass))
+                {
+                    callback =
+                        new PythonCallback<TypeDescription>(functionId, out)
+                        {
+                            @Override public TypeDescription getType()
+                            {
+                                return myTypeMapping.getDescription(klass);
+                            }
+                        };
+                }
+                else {
+                    // Okay, we are going to try to inspect the class to see if
+                    // it has a single non-default, non-static, method which
+                    // looks like it might match the one we have been given.
+                    // This is determined by looking at the number of args since
+                    // we can't use anything else (the arg types are unknown and
+                    // the name is irrelevant for lambdas). This is roughly
+                    // similar to what Java does with allowing users to supply
+                    // lambdas for factory classes etc.
+                    final List<MethodDescription> methods = new ArrayList<>();
+                    for (int i=0; i < typeDesc.getNumMethods(); i++) {
+                        // Determine if the method is magically handled by
+                        // PythonLambdaHandler or not. Ideally this would be a
+                        // static method of the class but it's not a static
+                        // class and the current Java version doesn't allow
+                        // static methods in instance classes so...
+                        final MethodDescription method = typeDesc.getMethod(i);
+                        switch (method.getName()) {
+                        case "getClass":
+                        case "equals":
+                        case "hashCode":
+                        case "notify":
+                        case "notifyAll":
+                        case "toString":
+                        case "wait":
+                            // Magically handled
+                            break;
+
+                        default:
+                            // Any non-default, non-static method is not handled
+                            if (!method.isDefault() && !method.isStatic()) {
+                                methods.add(method);
+                            }
+                        }
+                    }
+
+                    // Now, see if we got a single method with the right number
+                    // of arguments
+                    if (methods.size() == 1 &&
+                        methods.get(0).getNumArguments() == numArgs)
+                    {
+                        // Okay, we got a match, create a proxy which wraps just
+                        // that method alone
+                        callback =
+                            Proxy.newProxyInstance(
+                                klass.getClassLoader(),
+                                new Class<?>[] { klass },
+                                new PythonLambdaHandler(
+                                    methods.get(0).getName(),
+                                    functionId,
+                                    out
+                                )
+                            );
+                    }
+                    else {
+                        // Failed, say why
+                        throw new UnsupportedOperationException(
+                            "Can't create a callback wrapper " +
+                            "for Python function with " + numArgs + " " +
+                            "argument" + (numArgs == 1 ? "" : "s") + " " +
+                            "for " + klass + " " +
+                            "with methods: " + methods
+                        );
+                    }
+                }
+            }
+
+            // Convert the callback, whatever it was, to a payload byte stream
+            // and send it
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            writeObject(bados.dataOut, callback, typeDesc);
+            buildMessage(buf.dataOut,
+                         MessageType.ARBITRARY_ITEM,
+                         threadId,
+                         reqId,
+                         bados.bytes);
+        }
+
+        /**
+         * Handle a CALLBACK_RESPONSE message.
+         *
+         * This is of the form:
+         *  int32   : Java request ID
+         *  ...     : Arbitrary item
+         *
+         * Gives back:
+         *  Nothing(!)
+         */
+        private void handleCallbackResponse(final long                      threadId,
+                                            final int                       reqId,
+                                            final ByteList                  payload,
+                                            final ByteArrayDataOutputStream buf)
+            throws Throwable
+        {
+            if (payload.size() < 5) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            // The Java request ID and the kind of result. Raw primitive
+            // results are decoded directly, and general objects are read
+            // before we look for the listener so that we always consume them.
+            final int  requestId = payload.getInt (0);
+            final byte kind      = payload.getByte(4);
+            final long primitive;
+            final Object result;
+            switch (kind) {
+            case CALLBACK_RESPONSE_BOOLEAN:
+                primitive = payload.getBoolean(5) ? 1 : 0;
+                result    = null;
+                break;
+
+            case CALLBACK_RESPONSE_LONG:
+                primitive = payload.getLong(5);
+                result    = null;
+                break;
+
+            case CALLBACK_RESPONSE_DOUBLE:
+                primitive = Double.doubleToRawLongBits(payload.getDouble(5));
+                result    = null;
+                break;
+
+            case CALLBACK_RESPONSE_OBJECT:
+            case CALLBACK_RESPONSE_EXCEPTION:
+                primitive = 0;
+                result    = readObject(payload, 5).object;
+                break;
+
+            default:
+                throw new IllegalArgumentException(
+                    "Unknown callback response kind: " + kind
+                );
+            }
+
+            // Give them to the appropriate callback listener, if we can find it
+            final PythonCallbackResult cbr =
+                removePythonCallbackResult(requestId);
+            if (cbr == null) {
+                LOG.warning(
+                    "No callback response found for Java request ID " + requestId
+                );
+            }
+            else if (kind == CALLBACK_RESPONSE_OBJECT ||
+                     kind == CALLBACK_RESPONSE_EXCEPTION)
+            {
+                cbr.setResult(kind == CALLBACK_RESPONSE_EXCEPTION, result);
+            }
+            else {
+                cbr.setPrimitive(primitive);
+            }
+        }
+
+        /**
+         * Handle a GET_PROXY message.
+         *
+         * This is of the form:
+         *  int32   : Python object ID
+         *  int32   : Java Type ID
+         *
+         * Gives back:
+         *  ...     : Arbitrary item (Proxy instance)
+         */
+        private void handleGetProxy(final long                      threadId,
+                                    final int                       reqId,
+                                    final ByteList                  payload,
+                                    final ByteArrayDataOutputStream buf,
+                                    final DataOutputStream          out)
+            throws Throwable
+        {
+            if (payload.size() != 8) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            // The object handle
+            final int objectId = payload.getInt(0);
+            final int typeId   = payload.getInt(4);
+
+            // Grab the type
+            final TypeDescription typeDesc = myTypeMapping.getDescription(typeId);
+            if (typeDesc == null) {
+                throw new IllegalArgumentException("Unknown type ID: " + typeId);
+            }
+            final Class<?> klass = typeDesc.getRepresentedClass();
+
+            // We can create the proxy now
+            final Object proxy =
+                Proxy.newProxyInstance(
+                    klass.getClassLoader(),
+                    new Class<?>[] { klass },
+                    new PythonProxyHandler(objectId, out)
+                );
+
+            // And send it back
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            writeObject(bados.dataOut, proxy, typeDesc);
+            buildMessage(buf.dataOut,
+                         MessageType.ARBITRARY_ITEM,
+                         threadId,
+                         reqId,
+                         bados.bytes);
+        }
+
+        /**
+         * Handle an ITERATE message. This pulls up to the given number of
+         * elements from an {@link Iterator} or {@link Spliterator} and sends
+         * them all back in a single reply, so that the client doesn't have to
+         * make a pair of {@code hasNext()} and {@code next()} calls for each
+         * element.
+         *
+         * <p>If every element is a boxed primitive of the same type then they
+         * are sent back as packed raw values, otherwise they are sent as
+         * individual objects.
+         *
+         * <p>If the iteration throws an exception after some elements have been
+         * retrieved then those elements are sent back along with the exception,
+         * so that the client sees them before it sees the exception. A
+         * {@link NoSuchElementException} is taken to mean the end of the
+         * iteration.
+         *
+         * This is of the form:
+         *  int64   : Iterator or Spliterator handle
+         *  int32   : The maximum number of elements to return
+         *
+         * Gives back:
+         *  boolean : Whether there may be more elements to come
+         *  int32   : The number of elements
+         *  int32   : The primitive type ID of the elements, or -1 if not packed
+         *  byte[]  : The raw primitive values, if packed
+         *  ...     : Otherwise, the elements as arbitrary items
+         *  boolean : Whether an exception follows
+         *  ...     : The exception, as an arbitrary item, if any
+         */
+        private void handleIterate(final long                      threadId,
+                                   final int                       reqId,
+                                   final ByteList                  payload,
+                                   final ByteArrayDataOutputStream buf)
+            throws IOException
+        {
+            if (payload.size() != 12) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            final long handle   = payload.getLong(0);
+            final int  maxCount = Math.min(payload.getInt(8), MAX_ITERATE_COUNT);
+            if (maxCount <= 0) {
+                throw new IllegalArgumentException(
+                    "Bad element count: " + payload.getInt(8)
+                );
+            }
+
+            final Object object = myHandleMapping.getObject(handle);
+            if (object == null) {
                 throw new IllegalArgumentException(
                     "No object for handle " + handle
                 );
             }
 
-            // Do the cast, we simply try to do it here; it doesn't matter
-            // what we get back as we are only interested in if it throws an
-            // exception when we do so.
-            klass.getRepresentedClass().cast(object);
+            // Pull out as many elements as we were asked for, or as many as
+            // there are, whichever is fewer
+            final List<Object> elements = new ArrayList<>(Math.min(maxCount, 1024));
+            boolean hasMore = false;
+            RuntimeException exception = null;
+            try {
+                if (object instanceof Iterator) {
+                    final Iterator<?> iterator = (Iterator<?>)object;
+                    while (elements.size() < maxCount && iterator.hasNext()) {
+                        elements.add(iterator.next());
+                    }
+                    hasMore = iterator.hasNext();
+                }
+                else if (object instanceof Spliterator) {
+                    // We can't peek at a Spliterator so we say that there might
+                    // be more if we filled up the chunk. At worst this means
+                    // that the client gets back an empty chunk next time.
+                    final Spliterator<?> spliterator = (Spliterator<?>)object;
+                    boolean advanced = true;
+                    while (elements.size() < maxCount && advanced) {
+                        advanced = spliterator.tryAdvance(elements::add);
+                    }
+                    hasMore = advanced;
+                }
+                else {
+                    throw new IllegalArgumentException(
+                        "Can't iterate over a " + object.getClass().getName() +
+                        "; expected an Iterator or a Spliterator"
+                    );
+                }
+            }
+            catch (NoSuchElementException e) {
+                // Some iterators don't honour hasNext() so we treat this as
+                // the end of the iteration
+                hasMore = false;
+            }
+            catch (RuntimeException e) {
+                // If we have nothing to give back then just throw this now,
+                // otherwise we send it along with what we got
+                if (elements.isEmpty()) {
+                    throw e;
+                }
+                hasMore   = false;
+                exception = e;
+            }
 
-            // That worked so add a new reference to this object since the other
-            // side will create a new object to track it
-            myHandleMapping.addReference(handle);
+            // See if we can send these as packed primitives, which we can do
+            // if they are all boxed values of the same type
+            Class<?> boxType = null;
+            for (Object element : elements) {
+                final Class<?> klass = (element == null) ? null
+                                                         : element.getClass();
+                if (boxType == null) {
+                    boxType = klass;
+                }
+                if (klass == null || klass != boxType) {
+                    boxType = null;
+                    break;
+                }
+            }
+            final Class<?> primitiveType =
+                (boxType == null) ? null : BOXED_TO_PRIMITIVE.get(boxType);
 
-            // Echo back the instance along with the type ID
+            // And send them back
             final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            bados.dataOut.writeInt (typeId);
-            bados.dataOut.writeLong(handle);
-            bados.dataOut.writeInt (-1);
+            bados.dataOut.writeBoolean(hasMore);
+            bados.dataOut.writeInt    (elements.size());
+            if (primitiveType != null) {
+                bados.dataOut.writeInt(myTypeMapping.getId(primitiveType));
+                for (Object element : elements) {
+                    writePrimitive(bados.dataOut, primitiveType, element);
+                }
+            }
+            else {
+                bados.dataOut.writeInt(-1);
+                for (Object element : elements) {
+                    writeObject(
+                        bados.dataOut,
+                        element,
+                        myTypeMapping.getDescription(
+                            (element == null) ? Object.class : element.getClass()
+                        )
+                    );
+                }
+            }
+            bados.dataOut.writeBoolean(exception != null);
+            if (exception != null) {
+                writeObject(bados.dataOut,
+                            exception,
+                            myTypeMapping.getDescription(exception.getClass()));
+            }
             buildMessage(buf.dataOut,
-                         MessageType.OBJECT_REFERENCE,
+                         MessageType.ITERATED_ITEMS,
                          threadId,
                          reqId,
                          bados.bytes);
         }
 
         /**
-         * Handle a LOCK message.
+         * Handle a GET_ARRAY_SLICE message. This gives back a selection of the
+         * elements of an array, {@link ArrayLike} or {@link Hypercube} in one
+         * go. Hypercubes are indexed by their flattened, C-style, positions.
+         *
+         * <p>Primitive elements are sent back as a packed array of raw values,
+         * or via shared memory if the client asks for that, and other elements
+         * are sent back as individual objects.
          *
          * This is of the form:
-         *  int32   : lock-name length
-         *  bytes   : lock-name as ASCII bytes
+         *  int64   : Handle
+         *  boolean : Whether to send primitives back via shared memory
+         *  ...     : The {@link ElementSelection}
+         *
+         * Gives back, if via shared memory:
+         *  ...     : The {@link JniPJRmi$ArrayHandle} details
+         *
+         * Otherwise:
+         *  int32   : The primitive element type ID, or -1 if not packed
+         *  int32   : The number of elements
+         *  byte[]  : The raw primitive values, if packed
+         *  ...     : Otherwise, the elements as arbitrary items
+         */
+        private void handleGetArraySlice(final long                      threadId,
+                                         final int                       reqId,
+                                         final ByteList                  payload,
+                                         final ByteArrayDataOutputStream buf)
+            throws Throwable
+        {
+            if (payload.size() < 10) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            final long    handle = payload.getLong   (0);
+            final boolean useShm = payload.getBoolean(8);
+
+            final Object object = getSliceable(handle);
+            final ElementSelection selection =
+                new ElementSelection(payload, 9, getSliceableLength(object));
+            if (selection.offset != payload.size()) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            // Pull out the elements, into a primitive array if we can
+            final Object elements = getElements(object, selection);
+            final Class<?> elementType = elements.getClass().getComponentType();
+
+            // And send them back in the requested form
+            if (useShm                      &&
+                elementType.isPrimitive()   &&
+                elementType != Character.TYPE)
+            {
+                writeShmArray(threadId, reqId, buf, elements);
+            }
+            else {
+                final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+                if (elementType.isPrimitive()) {
+                    bados.dataOut.writeInt(myTypeMapping.getId(elementType));
+                    bados.dataOut.writeInt(selection.size);
+                    writePackedArray(bados.dataOut, elements);
+                }
+                else {
+                    bados.dataOut.writeInt(-1);
+                    bados.dataOut.writeInt(selection.size);
+                    for (int i=0; i < selection.size; i++) {
+                        final Object element = Array.get(elements, i);
+                        writeObject(
+                            bados.dataOut,
+                            element,
+                            myTypeMapping.getDescription(
+                                (element == null) ? Object.class
+                                                  : element.getClass()
+                            )
+                        );
+                    }
+                }
+                buildMessage(buf.dataOut,
+                             MessageType.ARRAY_ELEMENTS,
+                             threadId,
+                             reqId,
+                             bados.bytes);
+            }
+        }
+
+        /**
+         * Handle a SET_ARRAY_SLICE message. This sets a selection of the
+         * elements of an array, {@link ArrayLike} or {@link Hypercube} in one
+         * go. Hypercubes are indexed by their flattened, C-style, positions.
+         *
+         * <p>The values are given as an array. If it has a single element then
+         * that is assigned to all the selected elements, otherwise it must have
+         * the same size as the selection.
+         *
+         * This is of the form:
+         *  int64   : Handle
+         *  ...     : The {@link ElementSelection}
+         *  ...     : The values, as an array argument
          *
          * Gives back empty ACK.
          */
-        private void handleLock(final long                      threadId,
-                                final int                       reqId,
-                                final ByteList                  payload,
-                                final ByteArrayDataOutputStream buf)
+        private void handleSetArraySlice(final long                      threadId,
+                                         final int                       reqId,
+                                         final ByteList                  payload,
+                                         final ByteArrayDataOutputStream buf)
             throws Throwable
         {
-            if (payload.size() < 4) {
+            if (payload.size() < 9) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+
+            final long handle = payload.getLong(0);
+
+            final Object object = getSliceable(handle);
+            final ElementSelection selection =
+                new ElementSelection(payload, 8, getSliceableLength(object));
+
+            // Read in the values
+            final ReadObjectResult values = readObject(payload, selection.offset);
+            if (values.offset != payload.size()) {
+                throw new IllegalArgumentException(
+                    "Got a malformed payload: " + PJRmi.toString(payload)
+                );
+            }
+            if (values.object == null || !values.object.getClass().isArray()) {
+                throw new IllegalArgumentException(
+                    "Values were not given as an array: " + values.object
+                );
+            }
+            final int numValues = Array.getLength(values.object);
+            if (numValues != 1 && numValues != selection.size) {
+                throw new IllegalArgumentException(
+                    "Can't assign " + numValues + " elements " +
+                    "to a selection of size " + selection.size
+                );
+            }
+
+            setElements(object, selection, values.object);
+
+            // ACK comes back
+            buildMessage(buf.dataOut, MessageType.EMPTY_ACK, threadId, reqId, null);
+        }
+
+        /**
+         * Handle a BULK_SETUP message. This gives the client what it needs to
+         * open the side channels for bulk transfers, creating our end of them
+         * if need be.
+         *
+         * This is of the form:
+         *  (empty)
+         *
+         * Gives back:
+         *  int32   : The port to connect the side channels to
+         *  int32   : The number of side channels to open, zero if disabled
+         *  int64   : The size, in bytes, above which to use them
+         *  int64   : The token to identify the side channels with
+         */
+        private void handleBulkSetup(final long                      threadId,
+                                     final int                       reqId,
+                                     final ByteList                  payload,
+                                     final ByteArrayDataOutputStream buf)
+            throws IOException
+        {
+            if (payload.size() != 0) {
                 throw new IllegalArgumentException(
                     "Got a malformed payload: " + PJRmi.toString(payload)
                 );
             }
+
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            final int numStreams = numBulkTransferStreams();
+            if (numStreams > 0) {
+                final BulkTransferService.Endpoint endpoint = getBulkEndpoint();
+                bados.dataOut.writeInt (getBulkTransferService().getPort());
+                bados.dataOut.writeInt (numStreams);
+                bados.dataOut.writeLong(bulkTransferThreshold());
+                bados.dataOut.writeLong(endpoint.getToken());
+            }
             else {
-                final int length = payload.getInt(0);
-                final CharSequence name = new HashableSubSequence(payload, 4, length);
-                myLockManager.getExclusiveLockFor(name).lock();
+                bados.dataOut.writeInt (0);
+                bados.dataOut.writeInt (0);
+                bados.dataOut.writeLong(0);
+                bados.dataOut.writeLong(0);
+            }
+            buildMessage(buf.dataOut,
+                         MessageType.BULK_TRANSFER_INFO,
+                         threadId,
+                         reqId,
+                         bados.bytes);
+        }
+
+        /**
+         * Tell the bulk-transfer side channels, if any, that we are done with
+         * the given request.
+         */
+        private void bulkRequestDone(final int reqId)
+        {
+            final BulkTransferService.Endpoint endpoint = myBulkEndpoint;
+            if (endpoint != null) {
+                endpoint.requestDone(reqId);
+            }
+        }
+
+        /**
+         * Get our end of the bulk-transfer side channels, creating it if
+         * needed.
+         */
+        private BulkTransferService.Endpoint getBulkEndpoint()
+            throws IOException
+        {
+            synchronized (myBulkEndpointLock) {
+                if (myBulkEndpoint == null) {
+                    if (!myIsActive) {
+                        throw new IOException("Connection is closed");
+                    }
+                    myBulkEndpoint = getBulkTransferService().newEndpoint();
+                }
+                return myBulkEndpoint;
+            }
+        }
+
+        /**
+         * Get the arena which we copy arrays into for the other side to read,
+         * creating it if needed.
+         *
+         * @return the arena, or {@code null} if we are not using one.
+         */
+        private ShmArena getShmArena()
+        {
+            synchronized (myShmArenaLock) {
+                if (myShmArena == null && !myShmArenaFailed) {
+                    final long size = shmArenaSize();
+                    if (size > 0) {
+                        try {
+                            myShmArena = new ShmArena(size);
+                            LOG.fine("Created " + myShmArena);
+                        }
+                        catch (IOException | RuntimeException e) {
+                            LOG.warning(
+                                "Failed to create a shared-memory arena, " +
+                                "falling back to per-array files: " + e
+                            );
+                        }
+                    }
+                    myShmArenaFailed = (myShmArena == null);
+                }
+                return myShmArena;
+            }
+        }
+
+        /**
+         * Attempt to copy the given primitive array into our shared-memory
+         * arena.
+         *
+         * @return where it was written, or {@code null} if it could not be.
+         */
+        private ShmArena.Region writeToShmArena(final Object array)
+        {
+            final ShmArena arena = getShmArena();
+            return (arena == null) ? null : arena.write(array);
+        }
+
+        /**
+         * Write the details of an array which is in our shared-memory arena,
+         * in the {@link PythonValueFormat#SHM_ARENA} format, sans the format
+         * byte.
+         */
+        private void writeShmArenaRegion(final DataOutputStream out,
+                                         final ShmArena.Region  region)
+            throws IOException
+        {
+            writeUTF16   (out, region.filename);
+            out.writeLong(region.offset);
+            out.writeInt (region.numElems);
+            out.writeChar(region.type);
+        }
+
+        /**
+         * Write the details of something which was written by the
+         * {@link ShmDataWriter}, in the {@link PythonValueFormat#SHMDATA_SHAPED}
+         * format, sans the format byte.
+         */
+        private void writeShmDataHandle(final DataOutputStream     out,
+                                        final ShmDataWriter.Handle handle)
+            throws IOException
+        {
+            writeUTF16  (out, handle.filename);
+            out.writeInt(handle.shape.length);
+            for (long length : handle.shape) {
+                out.writeLong(length);
+            }
+            out.writeChar(handle.type);
+        }
+
+        /**
+         * Get the object, for the given handle, which we are going to slice.
+         */
+        private Object getSliceable(final long handle)
+        {
+            final Object object = myHandleMapping.getObject(handle);
+            if (object == null) {
+                throw new IllegalArgumentException(
+                    "No object for handle " + handle
+                );
+            }
+
+            // Slices of ArrayLikes are slices of what they wrap
+            if (object instanceof WrappedArrayLike) {
+                return ((WrappedArrayLike)object).getWrappedArray();
+            }
+            else if (object.getClass().isArray() || object instanceof Hypercube) {
+                return object;
+            }
+            else {
+                throw new IllegalArgumentException(
+                    "Can't slice a " + object.getClass().getName() + "; " +
+                    "expected an array, ArrayLike or Hypercube"
+                );
+            }
+        }
+
+        /**
+         * Get the length of the flattened form of a sliceable object.
+         */
+        private long getSliceableLength(final Object object)
+        {
+            return (object instanceof Hypercube) ? ((Hypercube<?>)object).getSize()
+                                                 : Array.getLength(object);
+        }
+
+        /**
+         * Copy the selected elements out of an array or {@link Hypercube}.
+         * Where the elements are boxed primitives we give back an array of the
+         * primitive type.
+         */
+        private Object getElements(final Object           object,
+                                   final ElementSelection selection)
+        {
+            if (object instanceof Hypercube) {
+                final Hypercube<?> cube = (Hypercube<?>)object;
+                final Class<?> primitiveType =
+                    BOXED_TO_PRIMITIVE.get(cube.getElementType());
+                final Object result =
+                    Array.newInstance(
+                        (primitiveType == null) ? cube.getElementType()
+                                                : primitiveType,
+                        selection.size
+                    );
+
+                // Contiguous runs can be copied out in bulk
+                final int     size  = selection.size;
+                final long    start = (size == 0) ? 0 : selection.indexAt(0);
+                final boolean bulk  = selection.isContiguous();
+                if (bulk && cube instanceof DoubleHypercube) {
+                    ((DoubleHypercube)cube).toFlattened(start, (double[])result, 0, size);
+                }
+                else if (bulk && cube instanceof FloatHypercube) {
+                    ((FloatHypercube)cube).toFlattened(start, (float[])result, 0, size);
+                }
+                else if (bulk && cube instanceof IntegerHypercube) {
+                    ((IntegerHypercube)cube).toFlattened(start, (int[])result, 0, size);
+                }
+                else if (bulk && cube instanceof LongHypercube) {
+                    ((LongHypercube)cube).toFlattened(start, (long[])result, 0, size);
+                }
+                else if (bulk && cube instanceof BooleanHypercube) {
+                    ((BooleanHypercube)cube).toFlattened(start, (boolean[])result, 0, size);
+                }
+                else {
+                    for (int i=0; i < selection.size; i++) {
+                        Array.set(result, i, cube.getObjectAt(selection.indexAt(i)));
+                    }
+                }
+                return result;
+            }
+            else {
+                final Object result =
+                    Array.newInstance(object.getClass().getComponentType(),
+                                      selection.size);
+                if (selection.isContiguous()) {
+                    if (selection.size > 0) {
+                        System.arraycopy(object, (int)selection.indexAt(0),
+                                         result, 0,
+                                         selection.size);
+                    }
+                }
+                else {
+                    for (int i=0; i < selection.size; i++) {
+                        Array.set(result, i,
+                                  Array.get(object, (int)selection.indexAt(i)));
+                    }
+                }
+                return result;
             }
-
-            // ACK comes back
-            buildMessage(buf.dataOut, MessageType.EMPTY_ACK, threadId, reqId, null);
         }
 
         /**
-         * Handle an UNLOCK message.
-         *
-         * This is of the form:
-         *  int32   : lock-name length
-         *  bytes   : lock-name as ASCII bytes
-         *
-         * Gives back empty ACK.
+         * Set the selected elements of an array or {@link Hypercube} from the
+         * given array of values. If there is only one value then it's assigned
+         * to all the selected elements.
          */
-        private void handleUnlock(final long                      threadId,
-                                  final int                       reqId,
-                                  final ByteList                  payload,
-                                  final ByteArrayDataOutputStream buf)
-            throws Throwable
+        private void setElements(final Object           object,
+                                 final ElementSelection selection,
+                                 final Object           values)
         {
-            if (payload.size() < 4) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
+            final boolean broadcast = (Array.getLength(values) != selection.size);
+            if (object instanceof Hypercube) {
+                // Contiguous runs of the right type can be copied in bulk
+                final Hypercube<?> cube  = (Hypercube<?>)object;
+                final int          size  = selection.size;
+                final long         start = (size == 0) ? 0 : selection.indexAt(0);
+                final boolean      bulk  = selection.isContiguous() && !broadcast;
+                if (bulk && cube   instanceof DoubleHypercube &&
+                            values instanceof double[])
+                {
+                    ((DoubleHypercube)cube).fromFlattened((double[])values, 0, start, size);
+                }
+                else if (bulk && cube   instanceof FloatHypercube &&
+                                 values instanceof float[])
+                {
+                    ((FloatHypercube)cube).fromFlattened((float[])values, 0, start, size);
+                }
+                else if (bulk && cube   instanceof IntegerHypercube &&
+                                 values instanceof int[])
+                {
+                    ((IntegerHypercube)cube).fromFlattened((int[])values, 0, start, size);
+                }
+                else if (bulk && cube   instanceof LongHypercube &&
+                                 values instanceof long[])
+                {
+                    ((LongHypercube)cube).fromFlattened((long[])values, 0, start, size);
+                }
+                else if (bulk && cube   instanceof BooleanHypercube &&
+                                 values instanceof boolean[])
+                {
+                    ((BooleanHypercube)cube).fromFlattened((boolean[])values, 0, start, size);
+                }
+                else {
+                    for (int i=0; i < selection.size; i++) {
+                        cube.setFromObjectAt(selection.indexAt(i),
+                                             Array.get(values, broadcast ? 0 : i));
+                    }
+                }
+            }
+            else if (selection.isContiguous()                &&
+                     !broadcast                              &&
+                     object.getClass() == values.getClass())
+            {
+                if (selection.size > 0) {
+                    System.arraycopy(values, 0,
+                                     object, (int)selection.indexAt(0),
+                                     selection.size);
+                }
             }
             else {
-                final int length = payload.getInt(0);
-                final CharSequence name = new HashableSubSequence(payload, 4, length);
-                myLockManager.getExclusiveLockFor(name).unlock();
+                for (int i=0; i < selection.size; i++) {
+                    Array.set(object,
+                              (int)selection.indexAt(i),
+                              Array.get(values, broadcast ? 0 : i));
+                }
             }
-
-            // ACK comes back
-            buildMessage(buf.dataOut,
-                         MessageType.EMPTY_ACK,
-                         threadId,
-                         reqId,
-                         null);
         }
 
         /**
-         * Handle an INJECT_CLASS message.
-         *
-         * Gives back by deferring to writeTypeDesc().
+         * Write out the contents of a primitive array as packed, big-endian,
+         * raw values.
          */
-        private void handleInjectClass(final long                      threadId,
-                                       final int                       reqId,
-                                       final ByteList                  payload,
-                                       final ByteArrayDataOutputStream buf)
-            throws Throwable
+        private void writePackedArray(final DataOutputStream dataOut,
+                                      final Object           array)
+            throws IOException
         {
-            if (payload.size() == 0) {
-                throw new IllegalArgumentException("Got an empty payload");
+            if (array instanceof byte[]) {
+                dataOut.write((byte[])array);
             }
-
-            // Disallow class injection?
-            if (!isClassInjectionPermitted()) {
-                throw new SecurityException("Class injection not permitted");
+            else if (array instanceof boolean[]) {
+                for (boolean v : (boolean[])array) {
+                    dataOut.writeBoolean(v);
+                }
+            }
+            else {
+                // Go via a ByteBuffer, which is big-endian by default, so that
+                // we get bulk copies out of the array
+                final int length = Array.getLength(array);
+                final ByteBuffer bb;
+                if (array instanceof char[]) {
+                    bb = ByteBuffer.allocate(length * Character.BYTES);
+                    bb.asCharBuffer().put((char[])array);
+                }
+                else if (array instanceof short[]) {
+                    bb = ByteBuffer.allocate(length * Short.BYTES);
+                    bb.asShortBuffer().put((short[])array);
+                }
+                else if (array instanceof int[]) {
+                    bb = ByteBuffer.allocate(length * Integer.BYTES);
+                    bb.asIntBuffer().put((int[])array);
+                }
+                else if (array instanceof long[]) {
+                    bb = ByteBuffer.allocate(length * Long.BYTES);
+                    bb.asLongBuffer().put((long[])array);
+                }
+                else if (array instanceof float[]) {
+                    bb = ByteBuffer.allocate(length * Float.BYTES);
+                    bb.asFloatBuffer().put((float[])array);
+                }
+                else if (array instanceof double[]) {
+                    bb = ByteBuffer.allocate(length * Double.BYTES);
+                    bb.asDoubleBuffer().put((double[])array);
+                }
+                else {
+                    throw new IllegalArgumentException(
+                        "Not a primitive array: " +
+                        (array == null ? "null" : array.getClass())
+                    );
+                }
+                dataOut.write(bb.array());
             }
-
-            // Inject it
-            final Class<?> klass =
-                myClassInjector.inject(payload.toArray(), payload.size());
-
-            // And give it back
-            writeTypeDesc(myTypeMapping.getDescription(klass),
-                          threadId,
-                          reqId,
-                          buf);
         }
 
+        // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+
         /**
-         * Handle an INJECT_SOURCE message.
-         *
-         * This is of the form:
-         *  int32  : Class name length
-         *  byte[] : Class name
-         *  int32  : Source code length
-         *  byte[] : Source code
+         * Write a type description message into the given buffer.
          *
-         * Gives back by deferring to writeTypeDesc().
+         * Gives back:
+         *  int32    : Type ID, or -1 then nothing else if the type was not found
+         *  int32    : Name length
+         *  byte[]   : Name
+         *  int32    : TypeFlags as int
+         *  int32    : The type ID of the array element type, or -1 if not an array
+         *  int32    : Number of super-type IDs
+         *  types[]  :
+         *    int32    : Type ID
+         *  int32    : Number of fields
+         *  Field[]  :
+         *    int32    : Field name length
+         *    byte[]   : Field name
+         *    int32    : Type ID
+         *  int32    : Number of constructors
+         *  CTOR[]   :
+         *    int16    : Flags
+         *    int16    : Number of arguments
+         *    Param[]  :
+         *      int32    : Argument type ID
+         *      int32    : Parameter name length
+         *      byte[]   : Parameter name
+         *    int16    : Number of accepted kwargs
+         *    Kwarg[]  :
+         *      int32    : Kwarg name length
+         *      byte[]   : Kwarg name
+         *    byte[]   : Relative specificities
+         *  int32    : Number of methods
+         *  Method[] :
+         *    int32    : Method name length
+         *    byte[]   : Method name
+         *    int16    : Flags
+         *    int32    : Return type ID
+         *    int16    : Number of arguments
+         *    Param[]  :
+         *      int32    : Argument type ID
+         *      int32    : Parameter name length
+         *      byte[]   : Parameter name
+         *    int16    : Number of accepted kwargs
+         *    Kwarg[]  :
+         *      int32    : Kwarg name length
+         *      byte[]   : Kwarg name
+         *    byte[]   : Relative specificities
          */
-        private void handleInjectSource(final long                      threadId,
-                                        final int                       reqId,
-                                        final ByteList                  payload,
-                                        final ByteArrayDataOutputStream buf)
-            throws Throwable
+        private void writeTypeDesc(final TypeDescription           desc,
+                                   final long                      threadId,
+                                   final int                       reqId,
+                                   final ByteArrayDataOutputStream buf)
+            throws IOException
         {
-            if (payload.size() == 0) {
-                throw new IllegalArgumentException("Got an empty payload");
+            // Look up the description
+            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
+            if (desc == null) {
+                bados.dataOut.writeInt(-1);
             }
+            else {
+                bados.dataOut.writeInt(desc.getTypeId());
 
-            // Disallow source injection? We don't allow this if we don't allow
-            // Java class injection; they are basically the same thing when it
-            // comes to security.
-            if (!isClassInjectionPermitted()) {
-                throw new SecurityException("Source injection not permitted");
+                final String typeName = desc.getName();
+                bados.dataOut.writeInt  (typeName.length());
+                bados.dataOut.writeBytes(typeName);
+                bados.dataOut.writeInt  (desc.getFlagsValue());
+
+                final Class<?> elementType = desc.getArrayComponentType();
+                if (elementType == null) {
+                    bados.dataOut.writeInt(-1);
+                }
+                else {
+                    bados.dataOut.writeInt(
+                        myTypeMapping.getDescription(elementType).getTypeId()
+                    );
+                }
+
+                bados.dataOut.writeInt(desc.getNumSupertypes());
+                for (int i=0; i < desc.getNumSupertypes(); i++) {
+                    bados.dataOut.writeInt(desc.getSupertypeId(i));
+                }
+
+                bados.dataOut.writeInt(desc.getNumFields());
+                for (int i=0; i < desc.getNumFields(); i++) {
+                    final FieldDescription field = desc.getField(i);
+                    final String fieldName = field.getName();
+                    bados.dataOut.writeInt    (fieldName.length());
+                    bados.dataOut.writeBytes  (fieldName);
+                    bados.dataOut.writeInt    (field.getType().getTypeId());
+                    bados.dataOut.writeBoolean(field.isStatic());
+                }
+
+                bados.dataOut.writeInt(desc.getNumConstructors());
+                for (int i=0; i < desc.getNumConstructors(); i++) {
+                    final MethodDescription ctor = desc.getConstructor(i);
+
+                    bados.dataOut.writeShort(ctor.getFlags());
+
+                    bados.dataOut.writeShort(ctor.getNumArguments());
+                    for (short j=0; j < ctor.getNumArguments(); j++) {
+                        final String parameterName = ctor.getParameterName(j);
+                        bados.dataOut.writeInt(ctor.getArgument(j).getTypeId());
+                        bados.dataOut.writeInt(parameterName.length());
+                        bados.dataOut.writeBytes(parameterName);
+                    }
+
+                    bados.dataOut.writeShort(ctor.getNumAcceptedKwargs());
+                    for (short j=0; j < ctor.getNumAcceptedKwargs(); j++) {
+                        final String kwargName = ctor.getAcceptedKwargName(j);
+                        bados.dataOut.writeInt(kwargName.length());
+                        bados.dataOut.writeBytes(kwargName);
+                    }
+
+                    bados.dataOut.writeInt(desc.getNumConstructors());
+                    for (int j=0; j < desc.getNumConstructors(); j++) {
+                        bados.dataOut.write(
+                            desc.getRelativeConstructorSpecificity(i, j)
+                        );
+                    }
+                }
+
+                bados.dataOut.writeInt(desc.getNumMethods());
+                for (int i=0; i < desc.getNumMethods(); i++) {
+                    final MethodDescription method = desc.getMethod(i);
+
+                    final String methodName = method.getName();
+                    bados.dataOut.writeInt  (methodName.length());
+                    bados.dataOut.writeBytes(methodName);
+
+                    bados.dataOut.writeShort(method.getFlags());
+
+                    bados.dataOut.writeInt(method.getReturnType().getTypeId());
+
+                    bados.dataOut.writeShort(method.getNumArguments());
+                    for (short j=0; j < method.getNumArguments(); j++) {
+                        final String parameterName = method.getParameterName(j);
+                        bados.dataOut.writeInt(method.getArgument(j).getTypeId());
+                        bados.dataOut.writeInt(parameterName.length());
+                        bados.dataOut.writeBytes(parameterName);
+                    }
+
+                    bados.dataOut.writeShort(method.getNumAcceptedKwargs());
+                    for (short j=0; j < method.getNumAcceptedKwargs(); j++) {
+                        final String kwargName = method.getAcceptedKwargName(j);
+                        bados.dataOut.writeInt(kwargName.length());
+                        bados.dataOut.writeBytes(kwargName);
+                    }
+
+                    bados.dataOut.writeInt(desc.getNumMethods());
+                    for (int j=0; j < desc.getNumMethods(); j++) {
+                        bados.dataOut.write(
+                            desc.getRelativeMethodSpecificity(i, j)
+                        );
+                    }
+                }
             }
+            buildMessage(buf.dataOut,
+                         MessageType.TYPE_DESCRIPTION,
+                         threadId,
+                         reqId,
+                         bados.bytes);
+        }
 
-            // Our position in the payload data
-            int offset = 0;
-
-            // Get the class name
-            final int lenClassName = payload.getInt(offset);
-            offset += Integer.BYTES;
-            final StringBuilder sbClassName = new StringBuilder();
-            while (sbClassName.length() < lenClassName) {
-                sbClassName.append((char)payload.get(offset++));
-            }
-            final String className = sbClassName.toString();
+        /**
+         * Await the response from a Python callback.
+         */
+        private <T> T awaitCallbackReponse(final PythonCallbackResult result)
+            throws PythonCallbackException
+        {
+            awaitCallbackReady(result);
 
-            // Get the source code
-            final int lenSource = payload.getInt(offset);
-            offset += Integer.BYTES;
-            final StringBuilder sbSource = new StringBuilder();
-            while (sbSource.length() < lenSource) {
-                sbSource.append((char)payload.get(offset++));
+            // Primitive results are only given to the typed waiters below, but
+            // be safe
+            final Object pythonResult =
+                result.isPrimitive() ? Long.valueOf(result.getPrimitive())
+                                     : result.getResult();
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest(
+                    "Result was " +
+                    pythonResult + " " +
+                    (pythonResult == null ? "" : pythonResult.getClass())
+                );
             }
-            final String source = sbSource.toString();
-
-            // Compile the class and make it available to the JVM
-            final Class<?> klass = mySourceInjector.inject(className, source);
 
-            // And send it back
-            writeTypeDesc(myTypeMapping.getDescription(klass),
-                          threadId,
-                          reqId,
-                          buf);
+            @SuppressWarnings("unchecked")
+            final T pr = (T)pythonResult;
+            return pr;
         }
 
         /**
-         * Handle an REPLACE_CLASS message.
-         *
-         * Gives back by deferring to writeTypeDesc().
+         * Await the {@code boolean} response from a Python callback. Python
+         * works out the truthiness of the value itself, and only sends back a
+         * general object if it couldn't. In that case we do our best with it.
          */
-        private void handleReplaceClass(final long                      threadId,
-                                        final int                       reqId,
-                                        final ByteList                  payload,
-                                        final ByteArrayDataOutputStream buf)
-            throws Throwable
+        private boolean awaitCallbackBoolean(final PythonCallbackResult result)
+            throws PythonCallbackException
         {
-            // Usual care needs to be taken
-            if (!isClassInjectionPermitted()) {
-                throw new SecurityException("Source replacement not permitted");
+            awaitCallbackReady(result);
+            if (result.isPrimitive()) {
+                return (result.getPrimitive() != 0);
             }
 
-            // Pull in the full payload, including the bytecode at the end
-            int offset = 0;
-            final int typeId = payload.getInt(offset); offset += Integer.BYTES;
-            final int len    = payload.getInt(offset); offset += Integer.BYTES;
-            final byte[] bytecode = new byte[len];
-            for (int i=0; i < len; i++) {
-                bytecode[i] = payload.get(offset++);
+            final Object value = result.getResult();
+            if (value instanceof Boolean) {
+                return ((Boolean)value).booleanValue();
             }
-
-            // This will only work if we have a Instrumentation class in the
-            // Agent
-            final Instrumentation instr = PJRmiAgent.getInstrumentation();
-            if (instr == null) {
-                throw new UnsupportedOperationException(
-                    "Classes can't be redefined " +
-                    "since the PJRmiAgent is not loaded"
-                );
+            else if (value instanceof String) {
+                return !((String)value).isEmpty();
             }
-
-            // Known type?
-            final TypeDescription desc = myTypeMapping.getDescription(typeId);
-            if (desc == null) {
-                throw new IllegalArgumentException("Unknown type " + typeId);
+            else if (value instanceof Number) {
+                return ((Number)value).doubleValue() != 0.0;
+            }
+            else {
+                return (value != null);
             }
-            final Class<?> klass = desc.getRepresentedClass();
-
-            // Attempt to do the replacement
-            instr.redefineClasses(new ClassDefinition(klass, bytecode));
-            final Class<?> newKlass = Class.forName(klass.getName());
-            final TypeDescription newDesc =
-                myTypeMapping.replaceDescription(typeId, newKlass);
-
-            // And give back the new description
-            writeTypeDesc(newDesc, threadId, reqId, buf);
         }
 
         /**
-         * Handle a GET_VALUE_OF message.
-         *
-         * This is of the form:
-         *  int64 : Object handle
-         *  byte  : PythonValueFormat
-         *
-         * Gives back:
-         *  int32  : Number of bytes
-         *  byte[] : The pickled form of the object, or each component of a
-         *           {@link JniPJRmi$ArrayHandle}, depending on the specified
-         *           {@link PythonValueFormat}.
+         * Await the integral response from a Python callback.
          */
-        private void handleGetValueOf(final long                      threadId,
-                                      final int                       reqId,
-                                      final ByteList                  payload,
-                                      final ByteArrayDataOutputStream buf)
-            throws Throwable
+        private long awaitCallbackLong(final PythonCallbackResult result)
+            throws PythonCallbackException
         {
-            if (payload.size() != 9) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
+            awaitCallbackReady(result);
+            if (result.isPrimitive()) {
+                return result.getPrimitive();
             }
 
-            // The object handle
-            final long handle = payload.getLong(0);
-
-            // The return format
-            final PythonValueFormat valueFormat =
-                PythonValueFormat.byId(payload.get(8));
-            switch (valueFormat) {
-            case RAW_PICKLE:
-            case SNAPPY_PICKLE:
-            case BESTEFFORT_PICKLE:
-            case BESTEFFORT_SNAPPY_PICKLE:
-            case SHMDATA:
-                // These are handled below
-                break;
-
-            default:
-                // Anything else isn't
-                throw new IllegalArgumentException(
-                  "Unhandled return format `" + valueFormat + "`; " +
-                  "only Python pickle and SHM-data formats are supported."
-                );
+            final Object value = result.getResult();
+            if (value instanceof Number) {
+                return ((Number)value).longValue();
             }
-
-            // Get the object for this handle, allow it to be the null pointer
-            final Object object = myHandleMapping.getObject(handle);
-            if (object == null && handle != HandleMapping.NULL_HANDLE) {
-                throw new IllegalArgumentException(
-                    "No object for handle " + handle
+            else {
+                throw new ClassCastException(
+                    "Python callback did not give back an integer: " + value
                 );
             }
+        }
 
-            // Send result based on return type
-            if (valueFormat == PythonValueFormat.RAW_PICKLE        ||
-                valueFormat == PythonValueFormat.SNAPPY_PICKLE     ||
-                valueFormat == PythonValueFormat.BESTEFFORT_PICKLE ||
-                valueFormat == PythonValueFormat.BESTEFFORT_SNAPPY_PICKLE)
-            {
-                // Convert the result to a payload byte stream
-                renderObject(threadId, reqId, buf, valueFormat, object, null);
+        /**
+         * Await the floating point response from a Python callback.
+         */
+        private double awaitCallbackDouble(final PythonCallbackResult result)
+            throws PythonCallbackException
+        {
+            awaitCallbackReady(result);
+            if (result.isPrimitive()) {
+                return Double.longBitsToDouble(result.getPrimitive());
             }
-            else if (valueFormat == PythonValueFormat.SHMDATA) {
-                // Here's where we'll store the information from the write
-                final JniPJRmi.ArrayHandle arrayInfo;
-
-                // Determine the type of the array and write it natively
-                if (object instanceof boolean[]) {
-                    arrayInfo = JniPJRmi.writeArray((boolean[])object);
-                }
-                else if (object instanceof byte[]) {
-                    arrayInfo = JniPJRmi.writeArray((byte[])object);
-                }
-                else if (object instanceof short[]) {
-                    arrayInfo = JniPJRmi.writeArray((short[])object);
-                }
-                else if (object instanceof int[]) {
-                    arrayInfo = JniPJRmi.writeArray((int[])object);
-                }
-                else if (object instanceof long[]) {
-                    arrayInfo = JniPJRmi.writeArray((long[])object);
-                }
-                else if (object instanceof float[]) {
-                    arrayInfo = JniPJRmi.writeArray((float[])object);
-                }
-                else if (object instanceof double[]) {
-                    arrayInfo = JniPJRmi.writeArray((double[])object);
-                }
-                else {
-                    throw new IllegalArgumentException(
-                      "Unhandled array type for object: " +
-                      object.getClass() +
-                      "`. Only primitive, non-char arrays are supported."
-                    );
-                }
 
-                // Write the resulting information
-                writeShmObject(threadId, reqId, buf, arrayInfo.filename,
-                                                     arrayInfo.numElems,
-                                                     arrayInfo.type);
+            final Object value = result.getResult();
+            if (value instanceof Number) {
+                return ((Number)value).doubleValue();
             }
             else {
-                throw new IllegalStateException("Someone can't code");
+                throw new ClassCastException(
+                    "Python callback did not give back a number: " + value
+                );
             }
         }
 
         /**
-         * Handle a GET_CALLBACK_HANDLE message.
-         *
-         * This is of the form:
-         *  int32  : Python function ID
-         *  int32  : Java Type ID, or -1
-         *  byte   : Argument count
-         *
-         * Gives back:
-         *  int32  : Function type ID
-         *  byte[] : The function type
+         * Wait for the response from a Python callback to be ready, throwing
+         * if it was an exception.
          */
-        private void handleGetCallbackHandle(final long                      threadId,
-                                             final int                       reqId,
-                                             final ByteList                  payload,
-                                             final ByteArrayDataOutputStream buf,
-                                             final DataOutputStream          out)
-            throws Throwable
+        private void awaitCallbackReady(final PythonCallbackResult result)
+            throws PythonCallbackException
         {
-            if (payload.size() != 9) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
-            }
-
-            // The object handle
-            final int functionId = payload.getInt(0);
-            final int typeId     = payload.getInt(4);
-            final int numArgs    = payload.get(8) & 0xff; // '&' up-casts to int
-
-            // Create the appropriate function wrapper
-            final Object callback;
-            TypeDescription typeDesc = myTypeMapping.getDescription(typeId);
-            if (typeDesc == null) {
-                // Need to guess a function
-                switch (numArgs) {
-                case 1:
-                    final PythonCallbackFunction<?,?> f =
-                        new PythonCallbackFunction<>(functionId, out);
-                    callback = f;
-                    typeDesc = f.getType();
-                    break;
-
-                case 2:
-                    final PythonCallbackBiFunction<?,?,?> bf =
-                        new PythonCallbackBiFunction<>(functionId, out);
-                    callback = bf;
-                    typeDesc = bf.getType();
-                    break;
-
-                default:
-                    final PythonCallback<TypeDescription> c =
-                        new PythonCallback<TypeDescription>(functionId, out)
-                        {
-                            @Override public TypeDescription getType()
-                            {
-                                return myTypeMapping.getDescription(
-                                    PythonKwargsFunction.class
-                                );
-                            }
-                        };
-                    callback = c;
-                    typeDesc = c.getType();
-                    break;
-                }
-            }
-            else {
-                // We should be able to create it directly since we know the
-                // type of the class were are aiming to invoke for.
-                final Class<?> klass = typeDesc.getRepresentedClass();
-                if (Runnable.class.equals(klass)) {
-                    callback = new PythonCallbackRunnable(functionId, out);
-                }
-                else if (Function.class.equals(klass)) {
-                    callback = new PythonCallbackFunction<>(functionId, out);
-                }
-                else if (BiFunction.class.equals(klass)) {
-                    callback = new PythonCallbackBiFunction<>(functionId, out);
-                }
-                else if (Consumer.class.equals(klass)) {
-                    callback = new PythonCallbackConsumer<>(functionId, out);
-                }
-                else if (BiConsumer.class.equals(klass)) {
-                    callback = new PythonCallbackBiConsumer<>(functionId, out);
-                }
-                else if (Predicate.class.equals(klass)) {
-                    callback = new PythonCallbackPredicate<>(functionId, out);
-                }
-                else if (BiPredicate.class.equals(klass)) {
-                    callback = new PythonCallbackBiPredicate<>(functionId, out);
-                }
-                else if (UnaryOperator.class.equals(klass)) {
-                    callback = new PythonCallbackUnaryOperator<>(functionId, out);
+            // Loop until we get it back
+            while (true) {
+                // We won't get an answer back from a closed transport
+                if (myTransport.isClosed()) {
+                    throw new PythonCallbackException(
+                        "Connection to Python is closed",
+                        new IOException(
+                            "Connection to Python is closed"
+                        )
+                    );
                 }
-                else if (PythonFunction      .class.equals(klass) ||
-                         PythonKwargsFunction.class.equals(klass))
-                {
-                    callback =
-                        new PythonCallback<TypeDescription>(functionId, out)
-                        {
-                            @Override public TypeDescription getType()
-                            {
-                                return myTypeMapping.getDescription(klass);
-                            }
-                        };
+
+                // Is the result ready?
+                if (result.isReady()) {
+                    if (result.isException()) {
+                        final Throwable t = (Throwable)result.getResult();
+                        throw new PythonCallbackException(t.getMessage(), t);
+                    }
+                    return;
                 }
                 else {
-                    // Okay, we are going to try to inspect the class to see if
-                    // it has a single non-default, non-static, method which
-                    // looks like it might match the one we have been given.
-                    // This is determined by looking at the number of args since
-                    // we can't use anything else (the arg types are unknown and
-                    // the name is irrelevant for lambdas). This is roughly
-                    // similar to what Java does with allowing users to supply
-                    // lambdas for factory classes etc.
-                    final List<MethodDescription> methods = new ArrayList<>();
-                    for (int i=0; i < typeDesc.getNumMethods(); i++) {
-                        // Determine if the method is magically handled by
-                        // PythonLambdaHandler or not. Ideally this would be a
-                        // static method of the class but it's not a static
-                        // class and the current Java version doesn't allow
-                        // static methods in instance classes so...
-                        final MethodDescription method = typeDesc.getMethod(i);
-                        switch (method.getName()) {
-                        case "getClass":
-                        case "equals":
-                        case "hashCode":
-                        case "notify":
-                        case "notifyAll":
-                        case "toString":
-                        case "wait":
-                            // Magically handled
-                            break;
+                    // Busy-ish wait
+                    LockSupport.parkNanos(1000);
+                }
+            }
+        }
 
-                        default:
-                            // Any non-default, non-static method is not handled
-                            if (!method.isDefault() && !method.isStatic()) {
-                                methods.add(method);
+        /**
+         * Return a proxy interface, targeting the given interface class, by
+         * using the given method.
+         */
+        public Object getProxyForMethod(final Class<?> iface,
+                                        final TypeDescription typeDesc,
+                                        final MethodDescription methodDesc,
+                                        final boolean isConstructor,
+                                        final Object instance)
+        {
+            // Make sure everything is in order
+            Objects.requireNonNull(iface);
+            Objects.requireNonNull(typeDesc);
+            Objects.requireNonNull(methodDesc);
+
+            // We will build a proxy for the given interface class. For this we
+            // will need a handler.
+            final InvocationHandler handler =
+                new InvocationHandler() {
+                    public Object invoke(final Object proxy,
+                                         final Method method,
+                                         final Object[] args)
+                        throws Throwable
+                    {
+                        // Determine the arguments which we are passing along
+                        final Object   callInst;
+                        final Object[] callArgs;
+                        if (methodDesc.isStatic() || isConstructor) {
+                            // This is a static method. Hence we will always
+                            // pass in null as the first argument to its
+                            // invocation and the call args are just passed
+                            // through.
+                            callInst = null;
+                            callArgs = args;
+                        }
+                        else if (instance == null) {
+                            // This is an instance method the method which we
+                            // have was not bound to any particular instance.
+                            // The first argument is thus the instance. E.g.
+                            // map(values, Integer::toString).
+                            if (args == null || args.length == 0) {
+                                throw new IllegalArgumentException(
+                                    "Given no arguments to instance method call " +
+                                    method.getName() + " but need an instance"
+                                );
                             }
+                            callInst = args[0];
+                            callArgs =
+                                (args.length == 1)
+                                ? EMPTY_OBJECTS // Avoid creating empty arrays
+                                : Arrays.copyOfRange(args, 1, args.length);
+                        }
+                        else {
+                            // We have an instance so use that, and just pass
+                            // through the arguments. We could roll this into
+                            // the first if block but (I assert without proof
+                            // that) it's clearer this way.
+                            callInst = instance;
+                            callArgs = args;
                         }
-                    }
 
-                    // Now, see if we got a single method with the right number
-                    // of arguments
-                    if (methods.size() == 1 &&
-                        methods.get(0).getNumArguments() == numArgs)
-                    {
-                        // Okay, we got a match, create a proxy which wraps just
-                        // that method alone
-                        callback =
-                            Proxy.newProxyInstance(
-                                klass.getClassLoader(),
-                                new Class<?>[] { klass },
-                                new PythonLambdaHandler(
-                                    methods.get(0).getName(),
-                                    functionId,
-                                    out
+                        // Do a bit of brief checking to make sure that the
+                        // method being called looks vaguely compatible with the
+                        // one which we're about to invoke. We'll catch any true
+                        // problems when we actually come to invoke the method.
+                        //
+                        // First, check that we are not trying to get a value
+                        // out of a function which has a void return type.
+                        final Class<?> returnType =
+                            methodDesc.getReturnType().getRepresentedClass();
+                        if (!Void.TYPE.equals(method.getReturnType()) &&
+                            Void.TYPE.equals(returnType))
+
+                        {
+                            throw new InvocationTargetException(
+                                new IllegalArgumentException(
+                                    "Functional method, " + method + ", " +
+                                    "expects to return a " +
+                                    method.getReturnType() + " " +
+                                    "but target method, " + methodDesc + ", " +
+                                    "is void"
                                 )
                             );
+                        }
+                        // Second, check that the number of arguments looks okay
+                        final int numCallArgs =
+                            (callArgs == null) ? 0 : callArgs.length;
+                        if (numCallArgs != methodDesc.getNumArguments()) {
+                            throw new InvocationTargetException(
+                                new IllegalArgumentException(
+                                    "Functional method, " + method + ", " +
+                                    "was given " + numCallArgs + " " +
+                                    "argument" + (numCallArgs == 1 ? " " : "s ") +
+                                    "but target method, " + methodDesc + ", " +
+                                    "takes " + methodDesc.getNumArguments()
+                                )
+                            );
+                        }
+
+                        // Now attempt to invoke it
+                        try {
+                            return isConstructor
+                                ? typeDesc.callConstructor(methodDesc.getIndex(),
+                                                           callArgs)
+                                : typeDesc.callMethod     (methodDesc.getIndex(),
+                                                           callInst,
+                                                           callArgs);
+                        }
+                        catch (Throwable t) {
+                            // Give a decent message back
+                            final String inst;
+                            if (callInst == null) {
+                                inst = "";
+                            }
+                            else {
+                                inst = "on " + callInst + " " +
+                                       "<" + callInst.getClass() + "> ";
+                            }
+
+                            // And throw
+                            throw new InvocationTargetException(
+                                t,
+                                "Failed to call " +
+                                (methodDesc.isStatic() ? "static " : "") +
+                                "method " +
+                                typeDesc.getName() + "::" +
+                                methodDesc.getName() + " " + inst +
+                                "with arguments " +
+                                Arrays.toString(callArgs) + " " +
+                                "via " +
+                                iface.getSimpleName() + "::" + method.getName()
+                            );
+                        }
                     }
-                    else {
-                        // Failed, say why
-                        throw new UnsupportedOperationException(
-                            "Can't create a callback wrapper " +
-                            "for Python function with " + numArgs + " " +
-                            "argument" + (numArgs == 1 ? "" : "s") + " " +
-                            "for " + klass + " " +
-                            "with methods: " + methods
-                        );
-                    }
-                }
-            }
+                };
 
-            // Convert the callback, whatever it was, to a payload byte stream
-            // and send it
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            writeObject(bados.dataOut, callback, typeDesc);
-            buildMessage(buf.dataOut,
-                         MessageType.ARBITRARY_ITEM,
-                         threadId,
-                         reqId,
-                         bados.bytes);
+            // Now it's easy to make the proxy class
+            return Proxy.newProxyInstance(iface.getClassLoader(),
+                                          new Class<?>[] { iface },
+                                          handler);
+        }
+    }
+
+    /**
+     * A request which is waiting to be handled by the shared worker pool.
+     */
+    private static class Request
+    {
+        /*
+         * What the request is, and the queue which it belongs to.
+         */
+        public final RequestQueue  queue;
+        public final MessageType   type;
+        public final long          threadId;
+        public final VirtualThread thread;
+        public final int           reqId;
+        public final long          deadlineNs;
+        public final ByteList      payload;
+
+        /**
+         * CTOR. This takes a copy of the payload since the caller will reuse
+         * its buffer.
+         */
+        public Request(final RequestQueue  queue,
+                       final MessageType   type,
+                       final long          threadId,
+                       final VirtualThread thread,
+                       final int           reqId,
+                       final long          deadlineNs,
+                       final ByteList      payload)
+        {
+            this.queue      = queue;
+            this.type       = type;
+            this.threadId   = threadId;
+            this.thread     = thread;
+            this.reqId      = reqId;
+            this.deadlineNs = deadlineNs;
+            this.payload    = new ByteList(Math.max(16, payload.size()));
+            this.payload.addAll(payload);
+        }
+    }
+
+    /**
+     * The requests for a single connection which are waiting for the shared
+     * worker pool, along with what it is currently working on. All the state
+     * here is guarded by the instance's monitor.
+     */
+    private static class RequestQueue
+    {
+        /**
+         * The connection which we are queueing for.
+         */
+        public final Connection connection;
+
+        /**
+         * The maximum number of requests which may be handled at once, or
+         * non-positive if there is no limit.
+         */
+        private final int myMaxInFlight;
+
+        /**
+         * The requests which are waiting to be handled, in arrival order.
+         */
+        private final Queue<Request> myPending;
+
+        /**
+         * How many requests are currently being handled.
+         */
+        private int myInFlight;
+
+        /**
+         * Whether we are currently in the pool's run-queue.
+         */
+        private boolean myIsScheduled;
+
+        /**
+         * CTOR.
+         */
+        public RequestQueue(final Connection connection, final int maxInFlight)
+        {
+            this.connection = connection;
+            myMaxInFlight   = maxInFlight;
+            myPending       = new ArrayDeque<>();
+            myInFlight      = 0;
+            myIsScheduled   = false;
         }
 
         /**
-         * Handle a CALLBACK_RESPONSE message.
+         * Add a request which will be handled in turn.
          *
-         * This is of the form:
-         *  int32   : Java request ID
-         *  ...     : Arbitrary item
+         * @return whether the queue needs to be put into the run-queue.
+         */
+        public synchronized boolean add(final Request request)
+        {
+            myPending.add(request);
+            return schedule();
+        }
+
+        /**
+         * Take the next request to handle, if we are allowed to.
          *
-         * Gives back:
-         *  Nothing(!)
+         * @return the request, or {@code null} if there is none.
          */
-        private void handleCallbackResponse(final long                      threadId,
-                                            final int                       reqId,
-                                            final ByteList                  payload,
-                                            final ByteArrayDataOutputStream buf)
-            throws Throwable
+        public synchronized Request take()
         {
-            if (payload.size() < 5) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
+            // We are no longer in the run-queue
+            myIsScheduled = false;
+            if (myMaxInFlight > 0 && myInFlight >= myMaxInFlight) {
+                return null;
             }
 
-            // The Java request ID
-            final int     requestId   = payload.getInt    (0);
-            final boolean isException = payload.getBoolean(4);
-            final Object  result      = readObject(payload, 5).object;
-
-            // Give them to the appropriate callback listener, if we can find it
-            final PythonCallbackResult cbr =
-                myPythonCallbackResults.remove(requestId);
-            if (cbr != null) {
-                cbr.setResult(isException, result);
-            }
-            else {
-                LOG.warning(
-                    "No callback response found for Java request ID " + requestId
-                );
+            final Request request = myPending.poll();
+            if (request != null) {
+                myInFlight++;
             }
+            return request;
         }
 
         /**
-         * Handle a GET_PROXY message.
+         * Note that we are handling the given request, without it having gone
+         * through the queue.
+         */
+        public synchronized void started(final Request request)
+        {
+            myInFlight++;
+        }
+
+        /**
+         * Note that we are done with the given request.
          *
-         * This is of the form:
-         *  int32   : Python object ID
-         *  int32   : Java Type ID
+         * @return whether the queue needs to be put into the run-queue.
+         */
+        public synchronized boolean finished(final Request request)
+        {
+            myInFlight--;
+            return schedule();
+        }
+
+        /**
+         * Called after we have been taken from the run-queue, to see if we
+         * need to go back onto it.
          *
-         * Gives back:
-         *  ...     : Arbitrary item (Proxy instance)
+         * @return whether the queue needs to be put into the run-queue.
          */
-        private void handleGetProxy(final long                      threadId,
-                                    final int                       reqId,
-                                    final ByteList                  payload,
-                                    final ByteArrayDataOutputStream buf,
-                                    final DataOutputStream          out)
-            throws Throwable
+        public synchronized boolean requeue()
         {
-            if (payload.size() != 8) {
-                throw new IllegalArgumentException(
-                    "Got a malformed payload: " + PJRmi.toString(payload)
-                );
-            }
+            return schedule();
+        }
 
-            // The object handle
-            final int objectId = payload.getInt(0);
-            final int typeId   = payload.getInt(4);
+        /**
+         * Drop all the pending requests.
+         */
+        public synchronized void clear()
+        {
+            myPending.clear();
+        }
 
-            // Grab the type
-            final TypeDescription typeDesc = myTypeMapping.getDescription(typeId);
-            if (typeDesc == null) {
-                throw new IllegalArgumentException("Unknown type ID: " + typeId);
+        /**
+         * Whether we should be put into the run-queue, marking ourselves as
+         * being in it if so.
+         */
+        private boolean schedule()
+        {
+            if (!myIsScheduled &&
+                !myPending.isEmpty() &&
+                (myMaxInFlight <= 0 || myInFlight < myMaxInFlight))
+            {
+                myIsScheduled = true;
+                return true;
             }
-            final Class<?> klass = typeDesc.getRepresentedClass();
+            else {
+                return false;
+            }
+        }
+    }
 
-            // We can create the proxy now
-            final Object proxy =
-                Proxy.newProxyInstance(
-                    klass.getClassLoader(),
-                    new Class<?>[] { klass },
-                    new PythonProxyHandler(objectId, out)
-                );
+    /**
+     * A worker thread which is shared between all the connections which use
+     * the worker pool. It takes the next connection from the pool's run-queue,
+     * handles one of its requests, and then goes back for more.
+     */
+    private class PooledWorker
+        extends    Thread
+        implements ThreadId
+    {
+        /**
+         * The request which we were created to handle, if any.
+         */
+        private Request myFirstRequest;
 
-            // And send it back
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            writeObject(bados.dataOut, proxy, typeDesc);
-            buildMessage(buf.dataOut,
-                         MessageType.ARBITRARY_ITEM,
-                         threadId,
-                         reqId,
-                         bados.bytes);
-        }
+        /**
+         * The ID of the thread which we are currently working for.
+         */
+        private volatile long myThreadId = -1L;
 
-        // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+        /**
+         * The buffer which we build up our responses in.
+         */
+        private final ByteArrayDataOutputStream mySendBuf =
+            new ByteArrayDataOutputStream();
 
         /**
-         * Write a type description message into the given buffer.
+         * Constructor.
          *
-         * Gives back:
-         *  int32    : Type ID, or -1 then nothing else if the type was not found
-         *  int32    : Name length
-         *  byte[]   : Name
-         *  int32    : TypeFlags as int
-         *  int32    : The type ID of the array element type, or -1 if not an array
-         *  int32    : Number of super-type IDs
-         *  types[]  :
-         *    int32    : Type ID
-         *  int32    : Number of fields
-         *  Field[]  :
-         *    int32    : Field name length
-         *    byte[]   : Field name
-         *    int32    : Type ID
-         *  int32    : Number of constructors
-         *  CTOR[]   :
-         *    int16    : Flags
-         *    int16    : Number of arguments
-         *    Param[]  :
-         *      int32    : Argument type ID
-         *      int32    : Parameter name length
-         *      byte[]   : Parameter name
-         *    int16    : Number of accepted kwargs
-         *    Kwarg[]  :
-         *      int32    : Kwarg name length
-         *      byte[]   : Kwarg name
-         *    byte[]   : Relative specificities
-         *  int32    : Number of methods
-         *  Method[] :
-         *    int32    : Method name length
-         *    byte[]   : Method name
-         *    int16    : Flags
-         *    int32    : Return type ID
-         *    int16    : Number of arguments
-         *    Param[]  :
-         *      int32    : Argument type ID
-         *      int32    : Parameter name length
-         *      byte[]   : Parameter name
-         *    int16    : Number of accepted kwargs
-         *    Kwarg[]  :
-         *      int32    : Kwarg name length
-         *      byte[]   : Kwarg name
-         *    byte[]   : Relative specificities
+         * @param firstRequest  A request to handle straight away, which the
+         *                      given queue has already noted as started, or
+         *                      {@code null}.
          */
-        private void writeTypeDesc(final TypeDescription           desc,
-                                   final long                      threadId,
-                                   final int                       reqId,
-                                   final ByteArrayDataOutputStream buf)
-            throws IOException
+        public PooledWorker(final String name, final Request firstRequest)
         {
-            // Look up the description
-            final ByteArrayDataOutputStream bados = ourByteOutBuffer.get();
-            if (desc == null) {
-                bados.dataOut.writeInt(-1);
+            super(name);
+            setDaemon(true);
+            myFirstRequest = firstRequest;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run()
+        {
+            LOG.fine("Pooled worker thread starts");
+
+            // Anything which we were spawned for. If there wasn't anything
+            // then we were created to serve the run-queue.
+            if (myFirstRequest != null) {
+                final Request request = myFirstRequest;
+                myFirstRequest = null;
+                work(request);
             }
             else {
-                bados.dataOut.writeInt(desc.getTypeId());
-
-                final String typeName = desc.getName();
-                bados.dataOut.writeInt  (typeName.length());
-                bados.dataOut.writeBytes(typeName);
-                bados.dataOut.writeInt  (desc.getFlagsValue());
+                myWorkerPool.started();
+            }
 
-                final Class<?> elementType = desc.getArrayComponentType();
-                if (elementType == null) {
-                    bados.dataOut.writeInt(-1);
-                }
-                else {
-                    bados.dataOut.writeInt(
-                        myTypeMapping.getDescription(elementType).getTypeId()
-                    );
+            // Now work through the run-queue until there's nothing to do for
+            // long enough
+            while (!myIsClosed.get()) {
+                final RequestQueue queue = myWorkerPool.next();
+                if (queue == null) {
+                    break;
                 }
 
-                bados.dataOut.writeInt(desc.getNumSupertypes());
-                for (int i=0; i < desc.getNumSupertypes(); i++) {
-                    bados.dataOut.writeInt(desc.getSupertypeId(i));
+                final Request request = queue.take();
+                if (request != null) {
+                    // If there's more for this connection then it goes to the
+                    // back of the run-queue, so that all the connections get a
+                    // fair crack of the whip
+                    if (queue.requeue()) {
+                        myWorkerPool.schedule(queue);
+                    }
+                    work(request);
                 }
+            }
 
-                bados.dataOut.writeInt(desc.getNumFields());
-                for (int i=0; i < desc.getNumFields(); i++) {
-                    final FieldDescription field = desc.getField(i);
-                    final String fieldName = field.getName();
-                    bados.dataOut.writeInt    (fieldName.length());
-                    bados.dataOut.writeBytes  (fieldName);
-                    bados.dataOut.writeInt    (field.getType().getTypeId());
-                    bados.dataOut.writeBoolean(field.isStatic());
-                }
+            LOG.fine("Pooled worker thread stops");
+        }
 
-                bados.dataOut.writeInt(desc.getNumConstructors());
-                for (int i=0; i < desc.getNumConstructors(); i++) {
-                    final MethodDescription ctor = desc.getConstructor(i);
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getThreadId()
+        {
+            return myThreadId;
+        }
 
-                    bados.dataOut.writeShort(ctor.getFlags());
+        /**
+         * Handle the given request.
+         */
+        private void work(final Request request)
+        {
+            final RequestQueue queue      = request.queue;
+            final Connection   connection = queue.connection;
+            try {
+                myThreadId = request.threadId;
+                if (!connection.isClosed()) {
+                    connection.process(request.type,
+                                       request.threadId,
+                                       request.thread,
+                                       request.reqId,
+                                       request.deadlineNs,
+                                       request.payload,
+                                       mySendBuf,
+                                       connection.myOut);
+                }
+            }
+            finally {
+                myThreadId = -1L;
+                if (queue.finished(request)) {
+                    myWorkerPool.schedule(queue);
+                }
+            }
+        }
+    }
 
-                    bados.dataOut.writeShort(ctor.getNumArguments());
-                    for (short j=0; j < ctor.getNumArguments(); j++) {
-                        final String parameterName = ctor.getParameterName(j);
-                        bados.dataOut.writeInt(ctor.getArgument(j).getTypeId());
-                        bados.dataOut.writeInt(parameterName.length());
-                        bados.dataOut.writeBytes(parameterName);
-                    }
+    /**
+     * The pool of workers which is shared by connections, instead of each one
+     * having its own set.
+     *
+     * <p>Each connection queues its requests in its own {@link RequestQueue}
+     * and the queues which have work waiting go into a single run-queue. Any
+     * idle worker takes the queue at the head of it, handles a single request
+     * and puts the queue back at the tail if it has more. This means that
+     * connections are served in a round-robin fashion, so a burst from one
+     * client can't starve the others, and that no worker sits idle while any
+     * connection has work which it is allowed to start. Each connection may
+     * also be capped in how many of its requests are handled at once.
+     *
+     * <p>The number of workers is bounded, except that a request from a
+     * (Python) thread which is already in the middle of a request is always
+     * handled straight away, since it must be a re-entrant call and the first
+     * request can't complete until it does.
+     */
+    private class WorkerPool
+    {
+        /**
+         * The queues which have work waiting, in the order in which they
+         * should be served.
+         */
+        private final BlockingQueue<RequestQueue> myRunQueue;
 
-                    bados.dataOut.writeShort(ctor.getNumAcceptedKwargs());
-                    for (short j=0; j < ctor.getNumAcceptedKwargs(); j++) {
-                        final String kwargName = ctor.getAcceptedKwargName(j);
-                        bados.dataOut.writeInt(kwargName.length());
-                        bados.dataOut.writeBytes(kwargName);
-                    }
+        /**
+         * The number of workers to keep around when idle.
+         */
+        private final int myNumIdle;
+
+        /**
+         * The maximum number of workers serving the run-queue.
+         */
+        private final int myMaxWorkers;
 
-                    bados.dataOut.writeInt(desc.getNumConstructors());
-                    for (int j=0; j < desc.getNumConstructors(); j++) {
-                        bados.dataOut.write(
-                            desc.getRelativeConstructorSpecificity(i, j)
-                        );
-                    }
-                }
+        /**
+         * The number of workers which we currently have.
+         */
+        private final AtomicInteger myNumWorkers;
 
-                bados.dataOut.writeInt(desc.getNumMethods());
-                for (int i=0; i < desc.getNumMethods(); i++) {
-                    final MethodDescription method = desc.getMethod(i);
+        /**
+         * The number of workers which are waiting for work.
+         */
+        private final AtomicInteger myNumWaiting;
 
-                    final String methodName = method.getName();
-                    bados.dataOut.writeInt  (methodName.length());
-                    bados.dataOut.writeBytes(methodName);
+        /**
+         * How many workers we have created; used for naming.
+         */
+        private final AtomicInteger myWorkerIndex;
 
-                    bados.dataOut.writeShort(method.getFlags());
+        /**
+         * CTOR.
+         */
+        public WorkerPool(final int numIdle, final int maxWorkers)
+        {
+            myRunQueue    = new LinkedBlockingQueue<>();
+            myNumIdle     = Math.max(1, numIdle);
+            myMaxWorkers  = Math.max(myNumIdle, maxWorkers);
+            myNumWorkers  = new AtomicInteger();
+            myNumWaiting  = new AtomicInteger();
+            myWorkerIndex = new AtomicInteger();
+        }
 
-                    bados.dataOut.writeInt(method.getReturnType().getTypeId());
+        /**
+         * Create the queue for a connection which will use this pool.
+         */
+        public RequestQueue newQueue(final Connection connection)
+        {
+            return new RequestQueue(connection,
+                                    maxConcurrentRequestsPerConnection());
+        }
 
-                    bados.dataOut.writeShort(method.getNumArguments());
-                    for (short j=0; j < method.getNumArguments(); j++) {
-                        final String parameterName = method.getParameterName(j);
-                        bados.dataOut.writeInt(method.getArgument(j).getTypeId());
-                        bados.dataOut.writeInt(parameterName.length());
-                        bados.dataOut.writeBytes(parameterName);
-                    }
+        /**
+         * Hand a request for the given connection off to the pool.
+         */
+        public void handle(final RequestQueue  queue,
+                           final MessageType   type,
+                           final long          threadId,
+                           final VirtualThread thread,
+                           final int           reqId,
+                           final long          deadlineNs,
+                           final ByteList      payload)
+        {
+            final Request request =
+                new Request(queue, type, threadId, thread, reqId, deadlineNs, payload);
 
-                    bados.dataOut.writeShort(method.getNumAcceptedKwargs());
-                    for (short j=0; j < method.getNumAcceptedKwargs(); j++) {
-                        final String kwargName = method.getAcceptedKwargName(j);
-                        bados.dataOut.writeInt(kwargName.length());
-                        bados.dataOut.writeBytes(kwargName);
-                    }
+            // Re-entrant calls can't wait, since the request which they are
+            // being made from can't complete until they do
+            if (queue.connection.isAwaitingCallback(threadId)) {
+                queue.started(request);
+                final PooledWorker worker =
+                    new PooledWorker(
+                        myName + "#PooledWorker" + myWorkerIndex.incrementAndGet(),
+                        request
+                    );
+                myNumWorkers.incrementAndGet();
+                worker.start();
+            }
+            else if (queue.add(request)) {
+                schedule(queue);
+            }
+        }
 
-                    bados.dataOut.writeInt(desc.getNumMethods());
-                    for (int j=0; j < desc.getNumMethods(); j++) {
-                        bados.dataOut.write(
-                            desc.getRelativeMethodSpecificity(i, j)
-                        );
-                    }
+        /**
+         * Put the given queue onto the tail of the run-queue, making sure that
+         * there is a worker to pick it up. The queue must already have been
+         * marked as scheduled.
+         */
+        public void schedule(final RequestQueue queue)
+        {
+            myRunQueue.add(queue);
+
+            // If there is more work waiting than workers waiting for it then
+            // we might need another worker. New workers count as waiting, so
+            // that a burst doesn't create more than are needed.
+            while (myRunQueue.size() > myNumWaiting.get()) {
+                final int numWorkers = myNumWorkers.get();
+                if (numWorkers >= myMaxWorkers) {
+                    break;
+                }
+                if (myNumWorkers.compareAndSet(numWorkers, numWorkers + 1)) {
+                    myNumWaiting.incrementAndGet();
+                    new PooledWorker(
+                        myName + "#PooledWorker" + myWorkerIndex.incrementAndGet(),
+                        null
+                    ).start();
+                    break;
                 }
             }
-            buildMessage(buf.dataOut,
-                         MessageType.TYPE_DESCRIPTION,
-                         threadId,
-                         reqId,
-                         bados.bytes);
         }
 
         /**
-         * Await the response from a Python callback.
+         * Called by a worker which was created by {@link #schedule} when it
+         * starts, since it was counted as waiting until then.
          */
-        private <T> T awaitCallbackReponse(final PythonCallbackResult result)
-            throws PythonCallbackException
+        public void started()
         {
-            // Loop until we get it back
-            while (true) {
-                // We won't get an answer back from a closed transport
-                if (myTransport.isClosed()) {
-                    throw new PythonCallbackException(
-                        "Connection to Python is closed",
-                        new IOException(
-                            "Connection to Python is closed"
-                        )
-                    );
+            myNumWaiting.decrementAndGet();
+        }
+
+        /**
+         * Get the next queue to serve, waiting for one if need be.
+         *
+         * @return the queue, or {@code null} if the worker should exit.
+         */
+        public RequestQueue next()
+        {
+            while (!myIsClosed.get()) {
+                RequestQueue queue = myRunQueue.poll();
+                if (queue != null) {
+                    return queue;
                 }
 
-                // Is the result ready?
-                if (result.isReady()) {
-                    final Object pythonResult = result.getResult();
-                    if (LOG.isLoggable(Level.FINEST)) {
-                        LOG.finest(
-                            "Result was " +
-                            pythonResult + " " +
-                            (pythonResult == null ? "" : pythonResult.getClass())
-                        );
-                    }
+                // Nothing yet so wait for a bit. If we are surplus to
+                // requirements and nothing turns up then we can go.
+                myNumWaiting.incrementAndGet();
+                try {
+                    queue = myRunQueue.poll(1, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    // Just go around again
+                }
+                finally {
+                    myNumWaiting.decrementAndGet();
+                }
 
-                    // Either throw or return, depending
-                    if (result.isException()) {
-                        final Throwable t = (Throwable)pythonResult;
-                        throw new PythonCallbackException(t.getMessage(), t);
-                    }
-                    else {
-                        @SuppressWarnings("unchecked")
-                        final T pr = (T)pythonResult;
-                        return pr;
-                    }
+                if (queue != null) {
+                    return queue;
                 }
-                else {
-                    // Busy-ish wait
-                    LockSupport.parkNanos(1000);
+                else if (retire()) {
+                    return null;
                 }
             }
+            return null;
         }
 
         /**
-         * Return a proxy interface, targeting the given interface class, by
-         * using the given method.
+         * See if an idle worker may exit, accounting for it if so.
          */
-        public Object getProxyForMethod(final Class<?> iface,
-                                        final TypeDescription typeDesc,
-                                        final MethodDescription methodDesc,
-                                        final boolean isConstructor,
-                                        final Object instance)
+        private boolean retire()
         {
-            // Make sure everything is in order
-            Objects.requireNonNull(iface);
-            Objects.requireNonNull(typeDesc);
-            Objects.requireNonNull(methodDesc);
+            final int numWorkers = myNumWorkers.get();
+            if (numWorkers <= myNumIdle ||
+                !myNumWorkers.compareAndSet(numWorkers, numWorkers - 1))
+            {
+                return false;
+            }
 
-            // We will build a proxy for the given interface class. For this we
-            // will need a handler.
-            final InvocationHandler handler =
-                new InvocationHandler() {
-                    public Object invoke(final Object proxy,
-                                         final Method method,
-                                         final Object[] args)
-                        throws Throwable
-                    {
-                        // Determine the arguments which we are passing along
-                        final Object   callInst;
-                        final Object[] callArgs;
-                        if (methodDesc.isStatic() || isConstructor) {
-                            // This is a static method. Hence we will always
-                            // pass in null as the first argument to its
-                            // invocation and the call args are just passed
-                            // through.
-                            callInst = null;
-                            callArgs = args;
-                        }
-                        else if (instance == null) {
-                            // This is an instance method the method which we
-                            // have was not bound to any particular instance.
-                            // The first argument is thus the instance. E.g.
-                            // map(values, Integer::toString).
-                            if (args == null || args.length == 0) {
-                                throw new IllegalArgumentException(
-                                    "Given no arguments to instance method call " +
-                                    method.getName() + " but need an instance"
-                                );
-                            }
-                            callInst = args[0];
-                            callArgs =
-                                (args.length == 1)
-                                ? EMPTY_OBJECTS // Avoid creating empty arrays
-                                : Arrays.copyOfRange(args, 1, args.length);
-                        }
-                        else {
-                            // We have an instance so use that, and just pass
-                            // through the arguments. We could roll this into
-                            // the first if block but (I assert without proof
-                            // that) it's clearer this way.
-                            callInst = instance;
-                            callArgs = args;
-                        }
+            // Something might have been scheduled while we were deciding, in
+            // which case the scheduler will have seen us as waiting and not
+            // created a worker for it
+            if (myRunQueue.isEmpty()) {
+                return true;
+            }
+            else {
+                myNumWorkers.incrementAndGet();
+                return false;
+            }
+        }
+    }
 
-                        // Do a bit of brief checking to make sure that the
-                        // method being called looks vaguely compatible with the
-                        // one which we're about to invoke. We'll catch any true
-                        // problems when we actually come to invoke the method.
-                        //
-                        // First, check that we are not trying to get a value
-                        // out of a function which has a void return type.
-                        final Class<?> returnType =
-                            methodDesc.getReturnType().getRepresentedClass();
-                        if (!Void.TYPE.equals(method.getReturnType()) &&
-                            Void.TYPE.equals(returnType))
+    /**
+     * A thread which owns the channels of a set of connections, reading from
+     * them as data arrives and dispatching the complete requests to the shared
+     * worker pool. It also sends any replies which the channels could not take
+     * straight away, once they can. This means that idle connections do not
+     * cost us any threads.
+     */
+    private class Multiplexer
+        extends Thread
+    {
+        /**
+         * The selector which tells us which channels have data.
+         */
+        private final Selector mySelector;
 
-                        {
-                            throw new InvocationTargetException(
-                                new IllegalArgumentException(
-                                    "Functional method, " + method + ", " +
-                                    "expects to return a " +
-                                    method.getReturnType() + " " +
-                                    "but target method, " + methodDesc + ", " +
-                                    "is void"
-                                )
-                            );
-                        }
-                        // Second, check that the number of arguments looks okay
-                        final int numCallArgs =
-                            (callArgs == null) ? 0 : callArgs.length;
-                        if (numCallArgs != methodDesc.getNumArguments()) {
-                            throw new InvocationTargetException(
-                                new IllegalArgumentException(
-                                    "Functional method, " + method + ", " +
-                                    "was given " + numCallArgs + " " +
-                                    "argument" + (numCallArgs == 1 ? " " : "s ") +
-                                    "but target method, " + methodDesc + ", " +
-                                    "takes " + methodDesc.getNumArguments()
-                                )
-                            );
-                        }
+        /**
+         * Connections waiting to be registered with the selector. This has to
+         * be done from within our thread.
+         */
+        private final Queue<Connection> myRegistrations;
 
-                        // Now attempt to invoke it
-                        try {
-                            return isConstructor
-                                ? typeDesc.callConstructor(methodDesc.getIndex(),
-                                                           callArgs)
-                                : typeDesc.callMethod     (methodDesc.getIndex(),
-                                                           callInst,
-                                                           callArgs);
-                        }
-                        catch (Throwable t) {
-                            // Give a decent message back
-                            final String inst;
-                            if (callInst == null) {
-                                inst = "";
-                            }
-                            else {
-                                inst = "on " + callInst + " " +
-                                       "<" + callInst.getClass() + "> ";
-                            }
+        /**
+         * Where we read data into.
+         */
+        private final ByteBuffer myBuffer;
+
+        /**
+         * CTOR.
+         */
+        public Multiplexer(final String name)
+            throws IOException
+        {
+            super(name);
+            setDaemon(true);
+
+            mySelector      = Selector.open();
+            myRegistrations = new ConcurrentLinkedQueue<>();
+            myBuffer        = ByteBuffer.allocate(64 * 1024);
+        }
+
+        /**
+         * Add a connection, and its non-blocking channel, to the set which we
+         * are reading from.
+         */
+        public void register(final Connection connection)
+        {
+            myRegistrations.add(connection);
+            mySelector.wakeup();
+        }
+
+        /**
+         * Wake up the thread, so that it can notice that we are closed.
+         */
+        public void terminate()
+        {
+            mySelector.wakeup();
+        }
 
-                            // And throw
-                            throw new InvocationTargetException(
-                                t,
-                                "Failed to call " +
-                                (methodDesc.isStatic() ? "static " : "") +
-                                "method " +
-                                typeDesc.getName() + "::" +
-                                methodDesc.getName() + " " + inst +
-                                "with arguments " +
-                                Arrays.toString(callArgs) + " " +
-                                "via " +
-                                iface.getSimpleName() + "::" + method.getName()
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run()
+        {
+            LOG.info("Multiplexer thread starts");
+
+            try {
+                while (!myIsClosed.get()) {
+                    mySelector.select();
+
+                    // Pick up any new connections
+                    for (Connection connection = myRegistrations.poll();
+                         connection != null;
+                         connection = myRegistrations.poll())
+                    {
+                        try {
+                            getTransport(connection).setSelectionKey(
+                                getTransport(connection).getChannel().register(
+                                    mySelector,
+                                    SelectionKey.OP_READ,
+                                    connection
+                                )
                             );
                         }
+                        catch (IOException e) {
+                            LOG.warning("Failed to register " + connection + ": " + e);
+                            connection.shutdown();
+                        }
                     }
-                };
 
-            // Now it's easy to make the proxy class
-            return Proxy.newProxyInstance(iface.getClassLoader(),
-                                          new Class<?>[] { iface },
-                                          handler);
+                    // And write to, and read from, the ones which are ready
+                    final Iterator<SelectionKey> keys =
+                        mySelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+
+                        final Connection connection = (Connection)key.attachment();
+                        if (!write(key, connection) || !read(key, connection)) {
+                            key.cancel();
+                            connection.shutdown();
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                LOG.log(Level.SEVERE, "Multiplexer failed", e);
+            }
+            finally {
+                // Drop all our connections, since no-one else will be reading
+                // from them now
+                for (SelectionKey key : mySelector.keys()) {
+                    ((Connection)key.attachment()).shutdown();
+                }
+                for (Connection connection = myRegistrations.poll();
+                     connection != null;
+                     connection = myRegistrations.poll())
+                {
+                    connection.shutdown();
+                }
+                try {
+                    mySelector.close();
+                }
+                catch (IOException e) {
+                    // Nothing
+                }
+            }
+
+            LOG.info("Multiplexer thread stops");
+        }
+
+        /**
+         * Send whatever output the given connection has pending, if its
+         * channel will now take it.
+         *
+         * @return whether the connection should keep going.
+         */
+        private boolean write(final SelectionKey key, final Connection connection)
+        {
+            if (!key.isValid()) {
+                return false;
+            }
+            if (!key.isWritable()) {
+                return true;
+            }
+
+            try {
+                getTransport(connection).flushPendingOutput();
+                return true;
+            }
+            catch (IOException e) {
+                LOG.info("Error writing to " + connection + ": " + e);
+                return false;
+            }
+        }
+
+        /**
+         * Read whatever is available for the given connection and hand it to
+         * its decoder. We only do a single read from the channel each time
+         * around so that a busy connection can't starve the others.
+         *
+         * @return whether the connection should keep going.
+         */
+        private boolean read(final SelectionKey key, final Connection connection)
+        {
+            if (!key.isValid()) {
+                return false;
+            }
+            if (!key.isReadable()) {
+                return true;
+            }
+
+            // The transport may have read more than it handed back to us, in
+            // which case we have to go back for the rest since the selector
+            // won't tell us about it
+            final SocketChannelTransport transport = getTransport(connection);
+            try {
+                do {
+                    myBuffer.clear();
+                    final int read = transport.read(myBuffer);
+                    if (read < 0) {
+                        LOG.info("Looks like the client disconnected: " + connection);
+                        return false;
+                    }
+                    myBuffer.flip();
+                    if (!connection.myFrameDecoder.decode(myBuffer)) {
+                        return false;
+                    }
+                } while (transport.hasPendingInput());
+
+                return true;
+            }
+            catch (IOException e) {
+                LOG.info("Error reading from " + connection + ": " + e);
+                return false;
+            }
+        }
+
+        /**
+         * Get the transport for a multiplexed connection.
+         */
+        private SocketChannelTransport getTransport(final Connection connection)
+        {
+            return (SocketChannelTransport)connection.myTransport;
         }
     }
 
@@ -9010,6 +12483,7 @@ public abstract class PJRmi
                 "com.deshaw.hypercube.DoubleHypercube",
                 "com.deshaw.hypercube.DoubleMappedHypercube",
                 "com.deshaw.hypercube.DoubleMaskedHypercube",
+                "com.deshaw.hypercube.DoubleShmHypercube",
                 "com.deshaw.hypercube.DoubleSlicedHypercube",
                 "com.deshaw.hypercube.DoubleTransposedHypercube",
                 "com.deshaw.hypercube.DoubleWrappingHypercube",
@@ -9028,6 +12502,7 @@ public abstract class PJRmi
                 "com.deshaw.hypercube.FloatHypercube",
                 "com.deshaw.hypercube.FloatMappedHypercube",
                 "com.deshaw.hypercube.FloatMaskedHypercube",
+                "com.deshaw.hypercube.FloatShmHypercube",
                 "com.deshaw.hypercube.FloatSlicedHypercube",
                 "com.deshaw.hypercube.FloatWrappingHypercube",
                 "com.deshaw.hypercube.GenericArrayHypercube",
@@ -9048,6 +12523,7 @@ public abstract class PJRmi
                 "com.deshaw.hypercube.IntegerHypercube",
                 "com.deshaw.hypercube.IntegerMappedHypercube",
                 "com.deshaw.hypercube.IntegerMaskedHypercube",
+                "com.deshaw.hypercube.IntegerShmHypercube",
                 "com.deshaw.hypercube.IntegerSlicedHypercube",
                 "com.deshaw.hypercube.IntegerWrappingHypercube",
                 "com.deshaw.hypercube.Long1dWrappingHypercube",
@@ -9064,6 +12540,7 @@ public abstract class PJRmi
                 "com.deshaw.hypercube.LongHypercube",
                 "com.deshaw.hypercube.LongMappedHypercube",
                 "com.deshaw.hypercube.LongMaskedHypercube",
+                "com.deshaw.hypercube.LongShmHypercube",
                 "com.deshaw.hypercube.LongSlicedHypercube",
                 "com.deshaw.hypercube.LongWrappingHypercube",
                 "com.deshaw.hypercube.MaskedHypercube",
@@ -9144,6 +12621,7 @@ public abstract class PJRmi
                 "java.util.NoSuchElementException",
                 "java.util.RandomAccess",
                 "java.util.Set",
+                "java.util.Spliterator",
                 "java.util.concurrent.Future",
                 "java.util.function.BiFunction",
                 "java.util.function.Consumer",
@@ -9151,6 +12629,7 @@ public abstract class PJRmi
                 "java.util.function.Supplier",
                 "java.util.logging.Level",
                 "java.util.logging.LogManager",
+                "java.util.stream.BaseStream",
                 "java.util.stream.DoubleStream",
                 "java.util.stream.Collectors",
                 "java.util.stream.IntStream",
@@ -9172,7 +12651,7 @@ public abstract class PJRmi
      * {@code pjrmiVersion} values in {@code gradle.properties}. Typically the
      * minor version number should change whenever the wire format changes.
      */
-    private static final String HELLO = "PJRMI_1.13";
+    /*package*/ static final String HELLO = "PJRMI_1.24";
 
     /**
      * The request ID to use for callbacks (which are unsolicited from Python's
@@ -9188,6 +12667,29 @@ public abstract class PJRmi
             Arrays.asList(Object.class.getMethods())
         );
 
+    /**
+     * The largest number of elements which we will hand back in response to a
+     * single ITERATE request. This bounds the size of the reply.
+     */
+    private static final int MAX_ITERATE_COUNT = 1 << 20;
+
+    /**
+     * The mapping from boxed classes to their primitive types.
+     */
+    private static final Map<Class<?>,Class<?>> BOXED_TO_PRIMITIVE;
+    static {
+        final Map<Class<?>,Class<?>> boxed = new HashMap<>();
+        boxed.put(Boolean  .class, Boolean  .TYPE);
+        boxed.put(Byte     .class, Byte     .TYPE);
+        boxed.put(Character.class, Character.TYPE);
+        boxed.put(Short    .class, Short    .TYPE);
+        boxed.put(Integer  .class, Integer  .TYPE);
+        boxed.put(Long     .class, Long     .TYPE);
+        boxed.put(Float    .class, Float    .TYPE);
+        boxed.put(Double   .class, Double   .TYPE);
+        BOXED_TO_PRIMITIVE = Collections.unmodifiableMap(boxed);
+    }
+
     /**
      * How much we're allowed to recurse from Java to Python to Java before we
      * decide it's too much. Note that each level of recursion is a new thread
@@ -9195,6 +12697,17 @@ public abstract class PJRmi
      */
     private static final int MAX_CALL_DEPTH = 128;
 
+    /**
+     * The value used to denote that a request has no deadline.
+     */
+    private static final long NO_DEADLINE = Long.MIN_VALUE;
+
+    /**
+     * The longest timeout which we honour for a request deadline, in millis.
+     * Anything longer than this, roughly a year, is clipped to it.
+     */
+    private static final long MAX_DEADLINE_MS = 365L * 24 * 60 * 60 * 1000;
+
     /**
      * The global XOR value to use then creating thread IDs. This mimics the
      * code on the Python side.
@@ -9286,6 +12799,30 @@ public abstract class PJRmi
      */
     private final boolean myUseShmdata;
 
+    /**
+     * The threads which read from the multiplexed connections, if any. These
+     * are created when they are first needed.
+     */
+    private Multiplexer[] myMultiplexers;
+
+    /**
+     * How many requests, over all connections, were dropped since their
+     * deadline passed.
+     */
+    private final AtomicLong myNumExpiredRequests = new AtomicLong();
+
+    /**
+     * The workers which are shared by connections, if any. This is created
+     * when it is first needed.
+     */
+    private volatile WorkerPool myWorkerPool;
+
+    /**
+     * The service which accepts the bulk-transfer side channels, if any. This
+     * is created when it is first needed. Guarded by {@code this}.
+     */
+    private BulkTransferService myBulkTransferService;
+
     /**
      * The collection of classes which the user is allowed to get using a
      * TYPE_REQUEST. If this is null then all classes are permitted.
@@ -9493,6 +13030,17 @@ public abstract class PJRmi
         myClassNameAllowlist = allowlist;
     }
 
+    /**
+     * Get the number of requests which have been dropped, without being
+     * handled, since the deadline which the client gave them had passed.
+     *
+     * @return the number of expired requests.
+     */
+    public long getNumExpiredRequests()
+    {
+        return myNumExpiredRequests.get();
+    }
+
     /**
      * Get a handle on the lock manager.
      *
@@ -9855,6 +13403,189 @@ public abstract class PJRmi
         return (numWorkers() > 0);
     }
 
+    /**
+     * Whether connections should share a single pool of worker threads, rather
+     * than each having its own workers.
+     *
+     * <p>When this is {@code true}, and workers are being used, requests from
+     * all the connections are handled by a shared pool. Connections are served
+     * in turn so that a burst of requests from one client does not hold up
+     * the others, and the total number of workers is bounded by {@link
+     * #maxPooledWorkers()}. The pool is always used for multiplexed
+     * connections.
+     *
+     * <p>By default this returns {@code false}.
+     *
+     * @return whether to use the shared worker pool.
+     */
+    protected boolean useWorkerPool()
+    {
+        return false;
+    }
+
+    /**
+     * The maximum number of threads in the shared worker pool. The pool will
+     * keep {@link #numWorkers()} threads around when it is idle.
+     *
+     * <p>Re-entrant calls, where Java calls Python which calls back into Java,
+     * are not subject to this limit since they can't wait for another request
+     * to finish.
+     *
+     * @return the maximum number of pooled workers.
+     */
+    protected int maxPooledWorkers()
+    {
+        return Math.max(numWorkers(),
+                        4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The maximum number of requests from any single connection which the
+     * shared worker pool will handle at once. Any others will wait for one of
+     * them to finish, leaving the rest of the pool free for other
+     * connections.
+     *
+     * <p>By default this returns {@code 0}, meaning no limit.
+     *
+     * @return the per-connection limit, or a non-positive value for none.
+     */
+    protected int maxConcurrentRequestsPerConnection()
+    {
+        return 0;
+    }
+
+    /**
+     * How many selector threads this PJRmi instance should use to multiplex
+     * its connections.
+     *
+     * <p>If this value is greater than zero, and workers are being used, then
+     * connections which come from a {@link SocketChannelProvider}, or a {@link
+     * UnixDomainSocketProvider}, do not get a thread, and workers, of their
+     * own. Instead their channels are owned by this many selector threads,
+     * which read in the requests and hand them off to the shared worker pool
+     * (see {@link #useWorkerPool()}). This means that the number of threads
+     * does not grow with the number of clients, which is useful when there are
+     * a large number of mostly idle clients.
+     *
+     * <p>By default this returns {@code 0}, implying a thread per connection.
+     *
+     * @return the number of selector threads.
+     */
+    protected int numSelectorThreads()
+    {
+        return 0;
+    }
+
+    /**
+     * Whether connections should coalesce their replies.
+     *
+     * <p>If this is {@code true}, and workers are being used, then each
+     * connection gets a writer thread. Rather than each worker writing out,
+     * and flushing, its own reply, the replies are handed to this thread, which
+     * writes out everything which is pending with a single flush. This means
+     * fewer system calls, and fewer packets, when there are many requests in
+     * flight at once. When traffic is light each reply is still written out as
+     * soon as it is ready.
+     *
+     * <p>Note that multiplexed connections (see {@link #numSelectorThreads()})
+     * also each get a writer thread when this is enabled.
+     *
+     * <p>By default this returns {@code false}.
+     *
+     * @return whether to coalesce replies.
+     */
+    protected boolean useReplyCoalescing()
+    {
+        return false;
+    }
+
+    /**
+     * The longest time, in microseconds, which the reply writer will wait for
+     * more replies to add to a batch, when it is busy. See {@link
+     * #useReplyCoalescing()}. A value of zero means that it never waits and
+     * only coalesces replies which are already pending.
+     *
+     * @return the maximum batching delay, in micros.
+     */
+    protected long maxReplyCoalescingDelayMicros()
+    {
+        return 50;
+    }
+
+    /**
+     * How many side channels a client should open for bulk transfers.
+     *
+     * <p>If this value is greater than zero then clients may send large arrays,
+     * and hypercubes, over this many extra sockets in parallel, rather than as
+     * part of a message on their connection. This can make better use of the
+     * bandwidth of a long, fat, network link than a single stream would. See
+     * {@link BulkTransferService} for details.
+     *
+     * <p>Note that the side channels are not encrypted, so clients will only
+     * use them when their connection is not encrypted either.
+     *
+     * <p>By default this returns {@code 0}, implying that they are not used.
+     *
+     * @return the number of side channels.
+     */
+    protected int numBulkTransferStreams()
+    {
+        return 0;
+    }
+
+    /**
+     * The size, in bytes, above which clients should send payloads over the
+     * side channels. See {@link #numBulkTransferStreams()}.
+     *
+     * @return the bulk transfer threshold.
+     */
+    protected long bulkTransferThreshold()
+    {
+        return 16L * 1024 * 1024;
+    }
+
+    /**
+     * The port which the side channels should connect to. See {@link
+     * #numBulkTransferStreams()}. A value of zero means any free port.
+     *
+     * @return the bulk transfer port.
+     */
+    protected int bulkTransferPort()
+    {
+        return 0;
+    }
+
+    /**
+     * The size, in bytes, of the shared-memory arena which each connection
+     * copies primitive arrays into when sending them to a Python process on
+     * the same host. This saves creating a new file for each array. Arrays
+     * which don't fit into the free space of the arena are sent via their own
+     * files, as before.
+     *
+     * <p>The arena is only created once a connection first sends an array via
+     * shared memory. A value of zero means that arenas are not used.
+     *
+     * @return the arena size.
+     */
+    protected long shmArenaSize()
+    {
+        return 64L * 1024 * 1024;
+    }
+
+    /**
+     * The size, in bytes, above which the results of method calls made with
+     * the {@code AUTO_SHMDATA} return format are sent back by value. Primitive
+     * arrays and hypercubes at least this big are sent via shared memory, if
+     * the client is on the same host, or pickled otherwise. Everything else is
+     * sent back by reference.
+     *
+     * @return the threshold size.
+     */
+    protected long shmReturnThreshold()
+    {
+        return 64L * 1024;
+    }
+
     /**
      * Whether or not to instrument method calls using the instrumentation
      * framework.
@@ -9917,6 +13648,7 @@ public abstract class PJRmi
                 for (int j=0; j < len; j++) {
                     os.write((int)error.charAt(j));
                 }
+                os.flush();
                 transport.close();
                 throw new IOException(error + "; dropping connection");
             }
@@ -9959,6 +13691,7 @@ public abstract class PJRmi
             for (int i=0; i < len; i++) {
                 os.write((int)error.charAt(i));
             }
+            os.flush();
 
             // Close, flag and bail
             transport.close();
@@ -9974,6 +13707,7 @@ public abstract class PJRmi
             for (int i=0; i < len; i++) {
                 os.write((int)error.charAt(i));
             }
+            os.flush();
 
             // Close, flag and bail
             transport.close();
@@ -9997,25 +13731,106 @@ public abstract class PJRmi
             final byte flags =
                 (byte)((useWorkers() ? Flags.USE_WORKERS.value : 0));
             os.write(flags);
+
+            // Some transports buffer their output so make sure it goes
+            os.flush();
         }
 
         // Flag a successful connection
         connectionAccepted(username, address, transport, argv, pid, id);
 
-        // Create it the handler thread and set it rolling
+        // See if we should be multiplexing this connection
+        final Multiplexer multiplexer =
+            (transport instanceof SocketChannelTransport) ? getMultiplexer()
+                                                          : null;
+
+        // Create it the handler and set it rolling, either in its own thread
+        // or by handing it to a multiplexer
         final Connection c =
             new Connection(
                 myName + ":" + (myConnectionIndex++) + ":" + username,
                 transport,
                 id
             );
-        c.setDaemon(true);
-        c.start();
+        if (multiplexer != null || (useWorkers() && useWorkerPool())) {
+            c.useWorkerPool(getWorkerPool());
+        }
+        if (multiplexer != null) {
+            c.multiplex(multiplexer);
+        }
+        else {
+            c.setDaemon(true);
+            c.start();
+        }
 
         // Now give it back
         return c;
     }
 
+    /**
+     * Get the multiplexer which the next connection should use, creating them,
+     * and the worker pool, if needed. This is only called when accepting
+     * connections.
+     *
+     * @return the multiplexer, or {@code null} if we are not multiplexing.
+     */
+    private Multiplexer getMultiplexer()
+        throws IOException
+    {
+        // The multiplexers never handle requests themselves so we need to have
+        // workers in order to use them
+        final int numSelectors = numSelectorThreads();
+        if (numSelectors <= 0 || !useWorkers()) {
+            return null;
+        }
+
+        // Create on demand
+        if (myMultiplexers == null) {
+            final Multiplexer[] multiplexers = new Multiplexer[numSelectors];
+            for (int i=0; i < numSelectors; i++) {
+                multiplexers[i] = new Multiplexer(myName + "#Multiplexer" + i);
+                multiplexers[i].start();
+            }
+            myMultiplexers = multiplexers;
+        }
+
+        // Spread the connections across them
+        return myMultiplexers[myConnectionIndex % myMultiplexers.length];
+    }
+
+    /**
+     * Get the shared worker pool, creating it if needed. This is only called
+     * when accepting connections.
+     *
+     * @return the pool.
+     */
+    private WorkerPool getWorkerPool()
+    {
+        if (myWorkerPool == null) {
+            myWorkerPool = new WorkerPool(numWorkers(), maxPooledWorkers());
+        }
+        return myWorkerPool;
+    }
+
+    /**
+     * Get the bulk-transfer service, creating it if needed.
+     *
+     * @return the service.
+     *
+     * @throws IOException if it could not be created.
+     */
+    private synchronized BulkTransferService getBulkTransferService()
+        throws IOException
+    {
+        if (myBulkTransferService == null) {
+            if (myIsClosed.get()) {
+                throw new IOException("PJRmi instance is closed");
+            }
+            myBulkTransferService = new BulkTransferService(bulkTransferPort());
+        }
+        return myBulkTransferService;
+    }
+
     /**
      * Terminates the PJRmi service, rendering this instance unusable.
      *
@@ -10029,6 +13844,22 @@ public abstract class PJRmi
                 myTransportProvider.close();
             }
 
+            // Stop taking bulk-transfer side channels
+            synchronized (this) {
+                if (myBulkTransferService != null) {
+                    myBulkTransferService.close();
+                }
+            }
+
+            // Wake up any multiplexers so that they will drop their
+            // connections and exit
+            final Multiplexer[] multiplexers = myMultiplexers;
+            if (multiplexers != null) {
+                for (Multiplexer multiplexer : multiplexers) {
+                    multiplexer.terminate();
+                }
+            }
+
             // Interrupt the PJRmi thread so that (hopefully) it wakes up from
             // any blocked calls it's in and is able to terminate
             this.interrupt();
@@ -10075,6 +13906,15 @@ public abstract class PJRmi
         final String port      = System.getProperty(prefix + "port", "65432");
         final String storeName = System.getProperty(prefix + "storeName");
         final String storePass = System.getProperty(prefix + "storePassword");
+        final String udsPath   = System.getProperty(prefix + "unixSocketPath");
+        final int    selectors =
+            Integer.parseInt(System.getProperty(prefix + "numSelectors", "0"));
+        final boolean coalesce =
+            Boolean.parseBoolean(System.getProperty(prefix + "coalesceReplies"));
+        final boolean useEngine =
+            Boolean.parseBoolean(System.getProperty(prefix + "useSSLEngine"));
+        final int    bulkStreams =
+            Integer.parseInt(System.getProperty(prefix + "numBulkStreams", "0"));
 
         // Set up logging
         LOG.setLevel(Level.parse(logLevel));
@@ -10082,9 +13922,15 @@ public abstract class PJRmi
         // Set up the transport
         final int portNum = Integer.parseInt(port);
         final Transport.Provider provider =
+            (storeName != null && storePass != null && useEngine)
+                ? new SSLEngineProvider    (portNum, storeName, storePass) :
             (storeName != null && storePass != null)
-                ? new SSLSocketProvider(portNum, storeName, storePass)
-                : new SocketProvider   (portNum);
+                ? new SSLSocketProvider    (portNum, storeName, storePass) :
+            (udsPath != null)
+                ? new UnixDomainSocketProvider(udsPath) :
+            (selectors > 0)
+                ? new SocketChannelProvider(portNum)
+                : new SocketProvider       (portNum);
 
         // Create a simple instance which just echoes back the name it's given
         LOG.info("Waiting for connections with " + provider);
@@ -10102,6 +13948,24 @@ public abstract class PJRmi
                     return 2;
                 }
 
+                @Override
+                protected int numSelectorThreads()
+                {
+                    return selectors;
+                }
+
+                @Override
+                protected boolean useReplyCoalescing()
+                {
+                    return coalesce;
+                }
+
+                @Override
+                protected int numBulkTransferStreams()
+                {
+                    return bulkStreams;
+                }
+
                 @Override
                 protected Object getObjectInstance(CharSequence name)
                 {
@@ -9,6 +9,8 @@ import java.io.OutputStream;
 
 import java.net.InetAddress;
 
+import java.nio.ByteBuffer;
+
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
@@ -158,14 +160,45 @@ public class PipedProvider
 
     /**
      * The pipe.
+     *
+     * <p>The outside world may read and write a byte at a time, or in bulk.
+     * For the latter, native code may use the direct transfer buffers so that
+     * it only has to make one JNI call for each chunk of data, instead of
+     * marshalling arrays back and forth.
      */
     public static class BidirectionalPipe
     {
+        /**
+         * The size of the transfer buffers.
+         */
+        private static final int TRANSFER_SIZE = 64 * 1024;
+
         /**
          * Set to true when closed.
          */
         private volatile boolean myIsClosed;
 
+        /**
+         * What we hold when reading or writing, respectively. These are
+         * distinct so that a blocked reader does not prevent a writer from
+         * writing.
+         */
+        private final Object myReadLock  = new Object();
+        private final Object myWriteLock = new Object();
+
+        /**
+         * The direct buffers which native code uses to read from, and write
+         * to, the pipe in bulk.
+         */
+        private final ByteBuffer myReadBuffer;
+        private final ByteBuffer myWriteBuffer;
+
+        /**
+         * The arrays which we copy to and from the transfer buffers via.
+         */
+        private final byte[] myReadBytes;
+        private final byte[] myWriteBytes;
+
         /**
          * The input pipe going from outside into us.
          */
@@ -201,6 +234,12 @@ public class PipedProvider
             myJavaOutputStream   = out.getOutputStream();
             myPythonInputStream  = out.getInputStream();
             myPythonOutputStream = in.getOutputStream();
+
+            // The bulk transfer buffers
+            myReadBuffer  = ByteBuffer.allocateDirect(TRANSFER_SIZE);
+            myWriteBuffer = ByteBuffer.allocateDirect(TRANSFER_SIZE);
+            myReadBytes   = new byte[TRANSFER_SIZE];
+            myWriteBytes  = new byte[TRANSFER_SIZE];
         }
 
         /**
@@ -233,10 +272,63 @@ public class PipedProvider
          *
          * @throws IOException if there was a problem.
          */
-        public synchronized int read()
+        public int read()
+            throws IOException
+        {
+            synchronized (myReadLock) {
+                return myPythonInputStream.read();
+            }
+        }
+
+        /**
+         * Read bytes from the pipe (from the outside world). This blocks until
+         * at least one byte is available and then reads as many as it can
+         * without blocking further.
+         *
+         * @param b    Where to read the bytes into.
+         * @param off  The offset in {@code b} to start at.
+         * @param len  The maximum number of bytes to read.
+         *
+         * @return the number of bytes read, or -1 if EOF.
+         *
+         * @throws IOException if there was a problem.
+         */
+        public int read(final byte[] b, final int off, final int len)
             throws IOException
         {
-            return myPythonInputStream.read();
+            if (len <= 0) {
+                return 0;
+            }
+
+            synchronized (myReadLock) {
+                return myPythonInputStream.read(b, off, len);
+            }
+        }
+
+        /**
+         * Read bytes from the pipe into the read transfer buffer, starting at
+         * its beginning. This has the same blocking semantics as {@link
+         * #read(byte[],int,int)}.
+         *
+         * @param len  The maximum number of bytes to read. This is clipped to
+         *             the buffer's capacity.
+         *
+         * @return the number of bytes read, or -1 if EOF.
+         *
+         * @throws IOException if there was a problem.
+         */
+        public int readToBuffer(final int len)
+            throws IOException
+        {
+            synchronized (myReadLock) {
+                final int read =
+                    read(myReadBytes, 0, Math.min(len, TRANSFER_SIZE));
+                if (read > 0) {
+                    myReadBuffer.clear();
+                    myReadBuffer.put(myReadBytes, 0, read);
+                }
+                return read;
+            }
         }
 
         /**
@@ -246,10 +338,73 @@ public class PipedProvider
          *
          * @throws IOException if there was a problem.
          */
-        public synchronized void write(int b)
+        public void write(int b)
             throws IOException
         {
-            myPythonOutputStream.write(b);
+            synchronized (myWriteLock) {
+                myPythonOutputStream.write(b);
+            }
+        }
+
+        /**
+         * Write bytes into the pipe (from the outside world).
+         *
+         * @param b    The bytes to write.
+         * @param off  The offset in {@code b} to start at.
+         * @param len  The number of bytes to write.
+         *
+         * @throws IOException if there was a problem.
+         */
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            synchronized (myWriteLock) {
+                myPythonOutputStream.write(b, off, len);
+            }
+        }
+
+        /**
+         * Write bytes into the pipe from the start of the write transfer
+         * buffer.
+         *
+         * @param len  The number of bytes to write. This must not be more than
+         *             the buffer's capacity.
+         *
+         * @throws IOException if there was a problem.
+         */
+        public void writeFromBuffer(final int len)
+            throws IOException
+        {
+            if (len < 0 || len > TRANSFER_SIZE) {
+                throw new IllegalArgumentException("Bad length: " + len);
+            }
+
+            synchronized (myWriteLock) {
+                myWriteBuffer.clear();
+                myWriteBuffer.get(myWriteBytes, 0, len);
+                myPythonOutputStream.write(myWriteBytes, 0, len);
+            }
+        }
+
+        /**
+         * Get the direct buffer which {@link #readToBuffer(int)} reads into.
+         *
+         * @return the buffer.
+         */
+        public ByteBuffer getReadBuffer()
+        {
+            return myReadBuffer;
+        }
+
+        /**
+         * Get the direct buffer which {@link #writeFromBuffer(int)} writes
+         * from.
+         *
+         * @return the buffer.
+         */
+        public ByteBuffer getWriteBuffer()
+        {
+            return myWriteBuffer;
         }
 
         /**
@@ -1,8 +1,23 @@
 package com.deshaw.pjrmi;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * A Python function which may be invoked with regular (non-kwarg) arguments
  * only.
+ *
+ * <p>Calling a Python function for each element of a collection means a round
+ * trip to Python per element. The batch methods allow many calls to be made at
+ * once; functions which are callbacks into Python send the whole batch over in
+ * a single message.
  */
 @FunctionalInterface
 public interface PythonFunction<T>
@@ -20,4 +35,113 @@ public interface PythonFunction<T>
      */
     public T invoke(final Object... args)
         throws Throwable;
+
+    /**
+     * Invoke the function once for each of the given arguments.
+     *
+     * @param args  The arguments, one per call.
+     *
+     * @return the results of the calls, in the same order as the arguments.
+     *
+     * @throws Throwable if any of the calls failed.
+     */
+    public default List<T> applyBatch(final List<?> args)
+        throws Throwable
+    {
+        final List<T> result = new ArrayList<>(args.size());
+        for (Object arg : args) {
+            result.add(invoke(arg));
+        }
+        return result;
+    }
+
+    /**
+     * Invoke the function once for each of the given values, where the
+     * function returns a number.
+     *
+     * <p>For callbacks into Python the array is sent over in one go. If the
+     * Python function is marked with {@code pjrmi.vectorized()} then it is
+     * called just once, with the array as a {@code numpy} array, and should
+     * return an array of the same length.
+     *
+     * @param args  The arguments, one per call.
+     *
+     * @return the results of the calls, in the same order as the arguments.
+     *
+     * @throws Throwable if any of the calls failed.
+     */
+    public default double[] applyToArray(final double[] args)
+        throws Throwable
+    {
+        final double[] result = new double[args.length];
+        for (int i=0; i < args.length; i++) {
+            result[i] = ((Number)invoke(args[i])).doubleValue();
+        }
+        return result;
+    }
+
+    /**
+     * Lazily apply this function to each element of a stream, by pulling the
+     * elements in batches and handing each batch to {@link #applyBatch}. This
+     * may be used in place of {@code stream.map(function)}.
+     *
+     * <p>Any failure of the function is thrown as a {@link RuntimeException}
+     * from the terminal operation of the returned stream.
+     *
+     * @param stream     The stream of arguments.
+     * @param batchSize  The most elements to hand to the function at once.
+     *
+     * @return the stream of results.
+     *
+     * @throws IllegalArgumentException if the batch size was not positive.
+     */
+    public default Stream<T> applyToStream(final Stream<?> stream,
+                                           final int       batchSize)
+        throws IllegalArgumentException
+    {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                "Batch size must be positive: " + batchSize
+            );
+        }
+
+        final Iterator<?> source = stream.iterator();
+        final Spliterator<T> spliterator =
+            new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+                                                    Spliterator.ORDERED)
+            {
+                private Iterator<T> myResults = Collections.emptyIterator();
+
+                @Override
+                public boolean tryAdvance(final Consumer<? super T> action)
+                {
+                    if (!myResults.hasNext()) {
+                        // Grab the next batch, if any
+                        final List<Object> batch = new ArrayList<>(batchSize);
+                        while (batch.size() < batchSize && source.hasNext()) {
+                            batch.add(source.next());
+                        }
+                        if (batch.isEmpty()) {
+                            return false;
+                        }
+
+                        try {
+                            myResults = applyBatch(batch).iterator();
+                        }
+                        catch (PythonCallbackException e) {
+                            throw new RuntimeException("Failed to invoke callback",
+                                                       e.getCause());
+                        }
+                        catch (Throwable t) {
+                            throw new RuntimeException("Failed to invoke callback", t);
+                        }
+                    }
+
+                    action.accept(myResults.next());
+                    return true;
+                }
+            };
+
+        return StreamSupport.stream(spliterator, false).onClose(stream::close);
+    }
 }
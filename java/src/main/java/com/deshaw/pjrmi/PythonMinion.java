@@ -4,6 +4,9 @@ import com.deshaw.python.PythonPickle;
 
 import java.io.IOException;
 
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * How one may call into Python.
  */
@@ -53,6 +56,56 @@ public interface PythonMinion
         }
     }
 
+    /**
+     * Python code which has been compiled once, by {@link #prepare}, so that it
+     * may be run many times without being parsed each time.
+     *
+     * <p>Instances may be used by multiple threads at once.
+     */
+    public static interface PreparedCode
+    {
+        /**
+         * Run the code.
+         *
+         * @param locals  The local variables to run the code with, if any
+         *                (may be null).
+         *
+         * @return the value of the expression, or null for statements.
+         *
+         * @throws ClassCastException      if there was a problem returning the result.
+         * @throws IOException             if there was a problem.
+         * @throws PythonCallbackException if calling Python resulted in an exception.
+         */
+        public default Object invoke(final Map<String,Object> locals)
+            throws ClassCastException,
+                   IOException,
+                   PythonCallbackException
+        {
+            return invoke(Object.class, locals);
+        }
+
+        /**
+         * Run the code. The returnType tells Python what we expect to get
+         * back.
+         *
+         * @param <T>         The type of the return value.
+         * @param returnType  The type to return the value as.
+         * @param locals      The local variables to run the code with, if any
+         *                    (may be null).
+         *
+         * @return the value of the expression, or null for statements.
+         *
+         * @throws ClassCastException      if there was a problem returning the result.
+         * @throws IOException             if there was a problem.
+         * @throws PythonCallbackException if calling Python resulted in an exception.
+         */
+        public <T> T invoke(final Class<T>           returnType,
+                            final Map<String,Object> locals)
+            throws ClassCastException,
+                   IOException,
+                   PythonCallbackException;
+    }
+
     /**
      * Method to "annotate" a reference and denote that it should be sent by
      * value in invoke() calls.
@@ -123,6 +176,50 @@ public interface PythonMinion
                IOException,
                PythonCallbackException;
 
+    /**
+     * Perform a python eval() call on an expression, without waiting for the
+     * result.
+     *
+     * @param string  The code to eval.
+     *
+     * @return the future result of the eval.
+     *
+     * @see #evalAsync(String, Class)
+     */
+    public default CompletableFuture<Object> evalAsync(final String string)
+    {
+        return evalAsync(string, Object.class);
+    }
+
+    /**
+     * Perform a python eval() call on an expression, without waiting for the
+     * result. The returnType tells Python what we expect to get back.
+     *
+     * <p>Many calls may be outstanding at once. Any failure, including a
+     * {@link PythonCallbackException} should the eval raise an exception,
+     * completes the future exceptionally.
+     *
+     * <p>The default implementation simply makes the call synchronously.
+     *
+     * @param <T>         The type of the return value.
+     * @param string      The code to eval.
+     * @param returnType  The type to return the value as.
+     *
+     * @return the future result of the eval.
+     */
+    public default <T> CompletableFuture<T> evalAsync(final String   string,
+                                                      final Class<T> returnType)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            result.complete(eval(string, returnType));
+        }
+        catch (IOException | PythonCallbackException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
     /**
      * Set a variable to point to a Java value in the Python globals.
      *
@@ -187,6 +284,58 @@ public interface PythonMinion
                IOException,
                PythonCallbackException;
 
+    /**
+     * Call a python function with the given args, without waiting for the
+     * result.
+     *
+     * @param functionName  The name of the function to invoke.
+     * @param args          The function arguments.
+     *
+     * @return the future result.
+     *
+     * @see #invokeAsync(String, Class, Object...)
+     */
+    public default CompletableFuture<Object> invokeAsync(final String    functionName,
+                                                         final Object... args)
+    {
+        return invokeAsync(functionName, Object.class, args);
+    }
+
+    /**
+     * Call a python function with the given args, without waiting for the
+     * result. The returnType tells Python what we expect to get back.
+     *
+     * <p>Many calls may be outstanding at once, which allows work to be fanned
+     * out to Python without needing a thread to wait on each call. Any
+     * failure, including a {@link PythonCallbackException} should the function
+     * raise an exception, completes the future exceptionally.
+     *
+     * <p>The calls are not made on behalf of the calling thread and so, should
+     * the function call back into Java, it will not share that thread's locks.
+     *
+     * <p>The default implementation simply makes the call synchronously.
+     *
+     * @param <T>           The type of the return value.
+     * @param functionName  The name of the function to invoke.
+     * @param returnType    The type to return the value as.
+     * @param args          The function arguments.
+     *
+     * @return the future result.
+     */
+    public default <T> CompletableFuture<T> invokeAsync(final String    functionName,
+                                                        final Class<T>  returnType,
+                                                        final Object... args)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            result.complete(invoke(functionName, returnType, args));
+        }
+        catch (IOException | PythonCallbackException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
     /**
      * Get a wrapper around a Python object.
      *
@@ -231,6 +380,97 @@ public interface PythonMinion
                                            final Object... args)
         throws Throwable;
 
+    /**
+     * Compile some Python code, so that it may be run many times without the
+     * cost of parsing it each time. This is worthwhile for code which is run
+     * a lot, with different values.
+     *
+     * <p>If the code is an expression then running it gives back its value,
+     * like {@link #eval}, otherwise it is run as statements, like {@link
+     * #exec}. The code sees the global context, along with the locals which
+     * it is run with.
+     *
+     * <p>The default implementation compiles the code into a Python code
+     * object, via {@link #getObject}, and runs that with {@code eval()}
+     * each time. Implementations may be able to do this in fewer round trips.
+     *
+     * @param source  The code to compile.
+     *
+     * @return the compiled code.
+     *
+     * @throws IOException             if there was a problem.
+     * @throws PythonCallbackException if compiling the code resulted in an
+     *                                 exception, e.g. a syntax error.
+     */
+    public default PreparedCode prepare(final String source)
+        throws IOException,
+               PythonCallbackException
+    {
+        final PythonObject code;
+        final PythonObject runner;
+        try {
+            // Compile it as an expression, if it is one, else as statements.
+            // Running statements in eval() simply gives back None.
+            final PythonObject compile = getObject("compile");
+            PythonObject compiled;
+            try {
+                compiled = compile.invoke("__call__", source, "<pjrmi>", "eval");
+            }
+            catch (Throwable t) {
+                compiled = compile.invoke("__call__", source, "<pjrmi>", "exec");
+            }
+            code   = compiled;
+            runner = getObject(
+                "lambda __pjrmi_code, **kwargs: " +
+                    "eval(__pjrmi_code, globals(), kwargs)"
+            );
+        }
+        catch (IOException | PythonCallbackException | RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            throw new IOException("Failed to prepare code", t);
+        }
+
+        return
+            new PreparedCode()
+            {
+                @Override
+                public <T> T invoke(final Class<T>           returnType,
+                                    final Map<String,Object> locals)
+                    throws ClassCastException,
+                           IOException,
+                           PythonCallbackException
+                {
+                    try {
+                        return runner.invoke(returnType, "__call__", locals, code);
+                    }
+                    catch (IOException | PythonCallbackException | RuntimeException | Error e) {
+                        throw e;
+                    }
+                    catch (Throwable t) {
+                        throw new IOException("Failed to run prepared code", t);
+                    }
+                }
+
+                @Override
+                public String toString()
+                {
+                    return "PreparedCode{" + source + "}";
+                }
+            };
+    }
+
+    /**
+     * Whether the connection to the minion has been closed, or has died.
+     *
+     * @return whether the minion is no longer usable.
+     */
+    public default boolean isClosed()
+    {
+        return false;
+    }
+
     /**
      * Close the connection.
      */
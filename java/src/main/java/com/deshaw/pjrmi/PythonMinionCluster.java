@@ -0,0 +1,930 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import java.util.logging.Logger;
+
+/**
+ * A group of Python minions which work can be spread across. Each minion is a
+ * separate Python process, so CPU-bound Python code can run in parallel
+ * without being serialised by a single interpreter's GIL.
+ *
+ * <p>The cluster may be used as a {@link PythonMinion} itself, where:
+ * <ul>
+ *   <li>{@code exec()} and {@code setGlobalVariable()} are sent to every
+ *       member, so that they all end up with the same functions and data.
+ *   <li>{@code eval()}, {@code invoke()} and friends are sent to whichever
+ *       member has the fewest calls in flight.
+ * </ul>
+ *
+ * <p>Calls which rely on state built up by previous calls, in a single
+ * interpreter, should go through the minion returned by {@link #forKey}, which
+ * always routes the same key to the same member.
+ *
+ * <p>The {@code map()} methods split their input into chunks and hand these out
+ * to the members, so that the work is shared between them for as long as there
+ * is any left. If the cluster was created with shared-memory argument passing
+ * enabled then the chunks of primitive arrays are sent to the members that way.
+ */
+public class PythonMinionCluster
+    implements AutoCloseable,
+               PythonMinion
+{
+    /**
+     * A minion in the cluster, and how busy it is.
+     */
+    private static final class Member
+    {
+        /**
+         * The minion.
+         */
+        public final PythonMinion minion;
+
+        /**
+         * How many calls are in flight on it.
+         */
+        public final AtomicInteger inFlight;
+
+        /**
+         * CTOR.
+         */
+        public Member(final PythonMinion minion)
+        {
+            this.minion   = minion;
+            this.inFlight = new AtomicInteger(0);
+        }
+    }
+
+    /**
+     * A call to make on a member.
+     */
+    @FunctionalInterface
+    private static interface Call<T>
+    {
+        /**
+         * Make the call.
+         */
+        public T call(final PythonMinion minion)
+            throws IOException,
+                   PythonCallbackException;
+    }
+
+    /**
+     * A task which handles a chunk of a {@code map()}.
+     */
+    @FunctionalInterface
+    private static interface ChunkTask
+    {
+        /**
+         * Handle the given chunk.
+         */
+        public void run(final int chunk)
+            throws IOException,
+                   PythonCallbackException;
+    }
+
+    /**
+     * A minion which always routes to the same member of the cluster.
+     */
+    private final class StickyMinion
+        implements PythonMinion
+    {
+        /**
+         * Who we route to.
+         */
+        private final Member myMember;
+
+        /**
+         * CTOR.
+         */
+        public StickyMinion(final Member member)
+        {
+            myMember = member;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void exec(final String string)
+            throws IOException,
+                   PythonCallbackException
+        {
+            call(myMember, m -> { m.exec(string); return null; });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> T eval(final String string, final Class<T> returnType)
+            throws ClassCastException,
+                   IOException,
+                   PythonCallbackException
+        {
+            return call(myMember, m -> m.eval(string, returnType));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> CompletableFuture<T> evalAsync(final String   string,
+                                                  final Class<T> returnType)
+        {
+            return callAsync(myMember, m -> m.evalAsync(string, returnType));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setGlobalVariable(final String name, final Object value)
+            throws IOException,
+                   PythonCallbackException
+        {
+            call(myMember, m -> { m.setGlobalVariable(name, value); return null; });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> T invoke(final String    functionName,
+                            final Class<T>  returnType,
+                            final Object... args)
+            throws ClassCastException,
+                   IOException,
+                   PythonCallbackException
+        {
+            return call(myMember, m -> m.invoke(functionName, returnType, args));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> CompletableFuture<T> invokeAsync(final String    functionName,
+                                                    final Class<T>  returnType,
+                                                    final Object... args)
+        {
+            return callAsync(myMember, m -> m.invokeAsync(functionName, returnType, args));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PythonObject getObject(final String string, final String name)
+            throws Throwable
+        {
+            return myMember.minion.getObject(string, name);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PythonObject invokeAndGetObject(final String    functionName,
+                                               final Object... args)
+            throws Throwable
+        {
+            return myMember.minion.invokeAndGetObject(functionName, args);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PreparedCode prepare(final String source)
+            throws IOException,
+                   PythonCallbackException
+        {
+            return myMember.minion.prepare(source);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isClosed()
+        {
+            return myMember.minion.isClosed();
+        }
+
+        /**
+         * Does nothing, the cluster owns the minion.
+         */
+        @Override
+        public void close()
+        {
+            // Nothing
+        }
+    }
+
+    // ---------------------------------------------------------------------- //
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOG = PJRmi.LOG;
+
+    /**
+     * The name of the function which we define in each member to map a
+     * function over a chunk of a list.
+     */
+    private static final String MAP_FUNCTION = "_pjrmi_cluster_map";
+
+    /**
+     * The code which defines {@link #MAP_FUNCTION}. This is exec'd in the PJRmi
+     * module's globals, where {@code str2obj()} lives.
+     */
+    private static final String MAP_FUNCTION_DEFINITION =
+        "def " + MAP_FUNCTION + "(function, items):\n" +
+        "    function = str2obj(str(function))\n" +
+        "    return [function(item) for item in items]\n";
+
+    /**
+     * How many chunks we aim to give each member in a {@code map()}, by
+     * default. Having more than one means that faster members can pick up the
+     * slack from slower ones.
+     */
+    private static final int CHUNKS_PER_MEMBER = 4;
+
+    /**
+     * For naming our threads.
+     */
+    private static final AtomicInteger ourClusterId = new AtomicInteger(0);
+
+    /**
+     * Our members.
+     */
+    private final Member[] myMembers;
+
+    /**
+     * Where we start looking for the least busy member, so that ties are
+     * spread around.
+     */
+    private final AtomicInteger myNext;
+
+    /**
+     * Our name, used for our threads.
+     */
+    private final String myName;
+
+    /**
+     * CTOR, with shared-memory argument passing disabled.
+     *
+     * @param size  How many minions to spawn.
+     *
+     * @throws IllegalArgumentException if the size was not positive.
+     * @throws IOException              if the minions could not be spawned.
+     */
+    public PythonMinionCluster(final int size)
+        throws IllegalArgumentException,
+               IOException
+    {
+        this(size, false);
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param size              How many minions to spawn.
+     * @param useShmArgPassing  Whether the minions should use native array
+     *                          handling.
+     *
+     * @throws IllegalArgumentException if the size was not positive.
+     * @throws IOException              if the minions could not be spawned.
+     */
+    public PythonMinionCluster(final int size, final boolean useShmArgPassing)
+        throws IllegalArgumentException,
+               IOException
+    {
+        this(() -> PythonMinionProvider.spawn(useShmArgPassing), size);
+    }
+
+    /**
+     * CTOR. The minions are spawned in parallel.
+     *
+     * @param spawner  How to spawn the minions.
+     * @param size     How many minions to spawn.
+     *
+     * @throws IllegalArgumentException if the size was not positive.
+     * @throws IOException              if the minions could not be spawned.
+     */
+    /*package*/ PythonMinionCluster(final PythonMinionPool.Spawner spawner,
+                                    final int                     size)
+        throws IllegalArgumentException,
+               IOException
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("Bad size: " + size);
+        }
+
+        myName    = "PythonMinionCluster-" + ourClusterId.incrementAndGet();
+        myNext    = new AtomicInteger(0);
+        myMembers = new Member[size];
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final Thread[] threads = new Thread[size];
+        for (int i=0; i < size; i++) {
+            final int index = i;
+            threads[i] = new Thread(
+                () -> {
+                    try {
+                        final PythonMinion minion = spawner.spawn();
+                        myMembers[index] = new Member(minion);
+                        minion.exec(MAP_FUNCTION_DEFINITION);
+                    }
+                    catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                },
+                myName + "-Spawner-" + i
+            );
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                error.compareAndSet(null, e);
+            }
+        }
+
+        // If anything went wrong then tidy up and bail
+        if (error.get() != null) {
+            close();
+            final Throwable t = error.get();
+            if (t instanceof IOException) {
+                throw (IOException)t;
+            }
+            throw new IOException("Failed to spawn minions", t);
+        }
+    }
+
+    /**
+     * How many minions there are in the cluster.
+     *
+     * @return the cluster size.
+     */
+    public int getSize()
+    {
+        return myMembers.length;
+    }
+
+    /**
+     * Get a minion which always routes to the same member of the cluster for
+     * the given key. This should be used for calls which rely on state which
+     * was set up by previous ones.
+     *
+     * @param key  The key to route by.
+     *
+     * @return the minion for the key. Closing it has no effect.
+     */
+    public PythonMinion forKey(final Object key)
+    {
+        final int hash = (key == null) ? 0 : key.hashCode();
+        return new StickyMinion(
+            myMembers[Math.floorMod(hash, myMembers.length)]
+        );
+    }
+
+    /**
+     * Exec the given code on every member of the cluster.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void exec(final String string)
+        throws IOException,
+               PythonCallbackException
+    {
+        for (Member member : myMembers) {
+            call(member, m -> { m.exec(string); return null; });
+        }
+    }
+
+    /**
+     * Eval the given expression on the least busy member of the cluster.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> T eval(final String string, final Class<T> returnType)
+        throws ClassCastException,
+               IOException,
+               PythonCallbackException
+    {
+        return call(leastBusy(), m -> m.eval(string, returnType));
+    }
+
+    /**
+     * Eval the given expression on the least busy member of the cluster,
+     * without waiting for the result.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> CompletableFuture<T> evalAsync(final String   string,
+                                              final Class<T> returnType)
+    {
+        try {
+            return callAsync(leastBusy(), m -> m.evalAsync(string, returnType));
+        }
+        catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Set the given global variable on every member of the cluster.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void setGlobalVariable(final String name, final Object value)
+        throws IOException,
+               PythonCallbackException
+    {
+        for (Member member : myMembers) {
+            call(member, m -> { m.setGlobalVariable(name, value); return null; });
+        }
+    }
+
+    /**
+     * Invoke the given function on the least busy member of the cluster.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> T invoke(final String    functionName,
+                        final Class<T>  returnType,
+                        final Object... args)
+        throws ClassCastException,
+               IOException,
+               PythonCallbackException
+    {
+        return call(leastBusy(), m -> m.invoke(functionName, returnType, args));
+    }
+
+    /**
+     * Invoke the given function on the least busy member of the cluster,
+     * without waiting for the result.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> CompletableFuture<T> invokeAsync(final String    functionName,
+                                                final Class<T>  returnType,
+                                                final Object... args)
+    {
+        try {
+            return callAsync(leastBusy(),
+                             m -> m.invokeAsync(functionName, returnType, args));
+        }
+        catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Get the object from the least busy member of the cluster. The object
+     * lives in that member, and calls made on it go there.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public PythonObject getObject(final String string, final String name)
+        throws Throwable
+    {
+        return leastBusy().minion.getObject(string, name);
+    }
+
+    /**
+     * Invoke the given function on the least busy member of the cluster. The
+     * resulting object lives in that member, and calls made on it go there.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public PythonObject invokeAndGetObject(final String    functionName,
+                                           final Object... args)
+        throws Throwable
+    {
+        return leastBusy().minion.invokeAndGetObject(functionName, args);
+    }
+
+    /**
+     * Prepare the given code on every member of the cluster. Each time that
+     * it is run, it is run on the least busy member.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public PreparedCode prepare(final String source)
+        throws IOException,
+               PythonCallbackException
+    {
+        final Map<Member,PreparedCode> prepared = new IdentityHashMap<>();
+        for (Member member : myMembers) {
+            prepared.put(member, call(member, m -> m.prepare(source)));
+        }
+
+        return
+            new PreparedCode()
+            {
+                @Override
+                public <T> T invoke(final Class<T>           returnType,
+                                    final Map<String,Object> locals)
+                    throws ClassCastException,
+                           IOException,
+                           PythonCallbackException
+                {
+                    final Member member = leastBusy();
+                    return call(member,
+                                m -> prepared.get(member).invoke(returnType, locals));
+                }
+
+                @Override
+                public String toString()
+                {
+                    return "PreparedCode{" + source + "}";
+                }
+            };
+    }
+
+    /**
+     * Apply the given Python function to each of the items, in parallel across
+     * the cluster. The items are sent to Python by value, in chunks.
+     *
+     * @param functionName  The name of the function to apply.
+     * @param items         The items to apply it to. These must be supported
+     *                      by the {@link com.deshaw.python.PythonPickle} class.
+     *
+     * @return the results, in the same order as the items.
+     *
+     * @throws IOException             if there was a problem.
+     * @throws PythonCallbackException if calling Python resulted in an exception.
+     */
+    public List<Object> map(final String functionName, final List<?> items)
+        throws IOException,
+               PythonCallbackException
+    {
+        return map(functionName, items, defaultChunkSize(items.size()));
+    }
+
+    /**
+     * Apply the given Python function to each of the items, in parallel across
+     * the cluster. The items are sent to Python by value, in chunks of the
+     * given size.
+     *
+     * @param functionName  The name of the function to apply.
+     * @param items         The items to apply it to. These must be supported
+     *                      by the {@link com.deshaw.python.PythonPickle} class.
+     * @param chunkSize     How many items to send to a member at a time.
+     *
+     * @return the results, in the same order as the items.
+     *
+     * @throws IllegalArgumentException if the chunk size was not positive.
+     * @throws IOException              if there was a problem.
+     * @throws PythonCallbackException  if calling Python resulted in an
+     *                                  exception.
+     */
+    public List<Object> map(final String  functionName,
+                            final List<?> items,
+                            final int     chunkSize)
+        throws IllegalArgumentException,
+               IOException,
+               PythonCallbackException
+    {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Bad chunk size: " + chunkSize);
+        }
+
+        final int size = items.size();
+        final List<?>[] results = new List<?>[numChunks(size, chunkSize)];
+        forEachChunk(
+            results.length,
+            chunk -> {
+                final int start = chunk * chunkSize;
+                final int end   = Math.min(size, start + chunkSize);
+                results[chunk] =
+                    call(leastBusy(),
+                         m -> m.invoke(MAP_FUNCTION,
+                                       List.class,
+                                       PythonMinion.byValue(functionName),
+                                       PythonMinion.byValue(
+                                           new ArrayList<>(items.subList(start, end))
+                                       )));
+                if (results[chunk] == null ||
+                    results[chunk].size() != end - start)
+                {
+                    throw new IOException(
+                        "Expected " + (end - start) + " results for chunk " +
+                        chunk + " but got " +
+                        (results[chunk] == null ? null : results[chunk].size())
+                    );
+                }
+            }
+        );
+
+        final List<Object> result = new ArrayList<>(size);
+        for (List<?> chunk : results) {
+            result.addAll(chunk);
+        }
+        return result;
+    }
+
+    /**
+     * Apply the given vectorised Python function to the values, in parallel
+     * across the cluster. The values are split into chunks, each of which is
+     * given to the function as a single numpy array, and it should return an
+     * array of the same length. For example, {@code "numpy.sqrt"}.
+     *
+     * @param functionName  The name of the function to apply.
+     * @param values        The values to apply it to.
+     *
+     * @return the results, in the same order as the values.
+     *
+     * @throws IOException             if there was a problem.
+     * @throws PythonCallbackException if calling Python resulted in an exception.
+     */
+    public double[] map(final String functionName, final double[] values)
+        throws IOException,
+               PythonCallbackException
+    {
+        return map(functionName, values, defaultChunkSize(values.length));
+    }
+
+    /**
+     * Apply the given vectorised Python function to the values, in parallel
+     * across the cluster, in chunks of the given size. See {@link
+     * #map(String,double[])}.
+     *
+     * @param functionName  The name of the function to apply.
+     * @param values        The values to apply it to.
+     * @param chunkSize     How many values to send to a member at a time.
+     *
+     * @return the results, in the same order as the values.
+     *
+     * @throws IllegalArgumentException if the chunk size was not positive.
+     * @throws IOException              if there was a problem.
+     * @throws PythonCallbackException  if calling Python resulted in an
+     *                                  exception.
+     */
+    public double[] map(final String   functionName,
+                        final double[] values,
+                        final int      chunkSize)
+        throws IllegalArgumentException,
+               IOException,
+               PythonCallbackException
+    {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Bad chunk size: " + chunkSize);
+        }
+
+        final double[] result = new double[values.length];
+        forEachChunk(
+            numChunks(values.length, chunkSize),
+            chunk -> {
+                final int start = chunk * chunkSize;
+                final int end   = Math.min(values.length, start + chunkSize);
+                final double[] mapped =
+                    call(leastBusy(),
+                         m -> m.invoke(functionName,
+                                       double[].class,
+                                       PythonMinion.byValue(
+                                           Arrays.copyOfRange(values, start, end)
+                                       )));
+                if (mapped == null || mapped.length != end - start) {
+                    throw new IOException(
+                        "Expected " + (end - start) + " results for chunk " +
+                        chunk + " but got " +
+                        (mapped == null ? null : mapped.length)
+                    );
+                }
+                System.arraycopy(mapped, 0, result, start, mapped.length);
+            }
+        );
+        return result;
+    }
+
+    /**
+     * Whether all the members of the cluster have been closed, or have died.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        for (Member member : myMembers) {
+            if (member != null && !member.minion.isClosed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Close all the members of the cluster.
+     */
+    @Override
+    public void close()
+    {
+        for (Member member : myMembers) {
+            if (member != null) {
+                try {
+                    member.minion.close();
+                }
+                catch (RuntimeException e) {
+                    LOG.warning(myName + ": Failed to close minion: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder(myName).append('[');
+        for (int i=0; i < myMembers.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(myMembers[i].inFlight.get());
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Make a call on the given member, keeping track of how busy it is.
+     */
+    private <T> T call(final Member member, final Call<T> call)
+        throws IOException,
+               PythonCallbackException
+    {
+        member.inFlight.incrementAndGet();
+        try {
+            return call.call(member.minion);
+        }
+        finally {
+            member.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Make an asynchronous call on the given member, counting it as in flight
+     * until it completes.
+     */
+    private <T> CompletableFuture<T> callAsync(
+        final Member                                       member,
+        final Function<PythonMinion,CompletableFuture<T>> call
+    )
+    {
+        member.inFlight.incrementAndGet();
+        final CompletableFuture<T> future;
+        try {
+            future = call.apply(member.minion);
+        }
+        catch (RuntimeException e) {
+            member.inFlight.decrementAndGet();
+            throw e;
+        }
+        return future.whenComplete((result, t) -> member.inFlight.decrementAndGet());
+    }
+
+    /**
+     * Find the member with the fewest calls in flight, skipping any which have
+     * died.
+     */
+    private Member leastBusy()
+        throws IOException
+    {
+        final int start = Math.floorMod(myNext.getAndIncrement(),
+                                        myMembers.length);
+        Member best = null;
+        int bestInFlight = Integer.MAX_VALUE;
+        for (int i=0; i < myMembers.length; i++) {
+            final Member member = myMembers[(start + i) % myMembers.length];
+            final int inFlight = member.inFlight.get();
+            if (inFlight < bestInFlight && !member.minion.isClosed()) {
+                best = member;
+                bestInFlight = inFlight;
+                if (inFlight == 0) {
+                    break;
+                }
+            }
+        }
+        if (best == null) {
+            throw new IOException("All minions in " + myName + " are closed");
+        }
+        return best;
+    }
+
+    /**
+     * How big to make the chunks for a {@code map()} over the given number of
+     * items.
+     */
+    private int defaultChunkSize(final int size)
+    {
+        return Math.max(1, numChunks(size, myMembers.length * CHUNKS_PER_MEMBER));
+    }
+
+    /**
+     * How many chunks of the given size we need to cover the given number of
+     * items.
+     */
+    private static int numChunks(final int size, final int chunkSize)
+    {
+        return (int)(((long)size + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Run the given task for each chunk, using as many threads as we have
+     * members, one of which is the calling thread. The threads pull the next
+     * chunk to do as they finish the previous one, until they are all done or
+     * one of them fails.
+     */
+    private void forEachChunk(final int numChunks, final ChunkTask task)
+        throws IOException,
+               PythonCallbackException
+    {
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final Runnable worker = () -> {
+            while (error.get() == null) {
+                final int chunk = next.getAndIncrement();
+                if (chunk >= numChunks) {
+                    return;
+                }
+                try {
+                    task.run(chunk);
+                }
+                catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            }
+        };
+
+        // Start the helpers and do our share
+        final Thread[] helpers =
+            new Thread[Math.max(0, Math.min(myMembers.length, numChunks) - 1)];
+        for (int i=0; i < helpers.length; i++) {
+            helpers[i] = new Thread(worker, myName + "-Mapper-" + i);
+            helpers[i].setDaemon(true);
+            helpers[i].start();
+        }
+        worker.run();
+
+        // Wait for everyone to finish
+        boolean interrupted = false;
+        for (Thread helper : helpers) {
+            while (true) {
+                try {
+                    helper.join();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Surface any failure as the caller would expect to see it
+        final Throwable t = error.get();
+        if (t instanceof IOException) {
+            throw (IOException)t;
+        }
+        else if (t instanceof PythonCallbackException) {
+            throw (PythonCallbackException)t;
+        }
+        else if (t instanceof RuntimeException) {
+            throw (RuntimeException)t;
+        }
+        else if (t instanceof Error) {
+            throw (Error)t;
+        }
+        else if (t != null) {
+            throw new IOException(t);
+        }
+    }
+}
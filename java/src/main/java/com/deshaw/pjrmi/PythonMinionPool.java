@@ -0,0 +1,638 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of Python minions which are kept warm, so that callers who need a
+ * Python process on demand don't have to wait for one to be spawned.
+ *
+ * <p>Spawning a minion means starting a Python interpreter and importing PJRmi,
+ * and its dependencies, which takes seconds. The pool does this ahead of time,
+ * in the background, so that taking a minion from it is just a matter of
+ * pulling it off a queue. Minions are handed out as {@link Lease}s, which are
+ * given back to the pool when they are closed:
+ * <pre>
+ *   try (PythonMinionPool.Lease python = pool.lease()) {
+ *       python.exec("import math");
+ *       return python.eval("math.sqrt(2)", Double.class);
+ *   }
+ * </pre>
+ *
+ * <p>When a minion is given back its global state is reset, by removing any
+ * global variables which were added to it while it was leased. Other changes,
+ * like rebinding an existing global or altering an imported module, are not
+ * undone, so users should not rely on the pool to clean up after them in those
+ * cases. A minion which can't be reset, or which has died, is discarded and a
+ * new one is spawned to replace it.
+ */
+public class PythonMinionPool
+    implements AutoCloseable
+{
+    /**
+     * How we spawn minions.
+     */
+    @FunctionalInterface
+    /*package*/ static interface Spawner
+    {
+        /**
+         * Spawn a new minion.
+         */
+        public PythonMinion spawn()
+            throws IOException;
+    }
+
+    /**
+     * A minion which has been leased from the pool. Closing it gives it back
+     * to the pool, after which it may no longer be used.
+     */
+    public static final class Lease
+        implements AutoCloseable,
+                   PythonMinion
+    {
+        /**
+         * The pool which we came from.
+         */
+        private final PythonMinionPool myPool;
+
+        /**
+         * The minion which we wrap.
+         */
+        private final PythonMinion myMinion;
+
+        /**
+         * Whether we have been given back.
+         */
+        private final AtomicBoolean myIsReturned;
+
+        /**
+         * CTOR.
+         */
+        private Lease(final PythonMinionPool pool, final PythonMinion minion)
+        {
+            myPool       = pool;
+            myMinion     = minion;
+            myIsReturned = new AtomicBoolean(false);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void exec(final String string)
+            throws IOException,
+                   PythonCallbackException
+        {
+            get().exec(string);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> T eval(final String string, final Class<T> returnType)
+            throws ClassCastException,
+                   IOException,
+                   PythonCallbackException
+        {
+            return get().eval(string, returnType);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> CompletableFuture<T> evalAsync(final String   string,
+                                                  final Class<T> returnType)
+        {
+            return get().evalAsync(string, returnType);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setGlobalVariable(final String name, final Object value)
+            throws IOException,
+                   PythonCallbackException
+        {
+            get().setGlobalVariable(name, value);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> T invoke(final String    functionName,
+                            final Class<T>  returnType,
+                            final Object... args)
+            throws ClassCastException,
+                   IOException,
+                   PythonCallbackException
+        {
+            return get().invoke(functionName, returnType, args);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> CompletableFuture<T> invokeAsync(final String    functionName,
+                                                    final Class<T>  returnType,
+                                                    final Object... args)
+        {
+            return get().invokeAsync(functionName, returnType, args);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PythonObject getObject(final String string,
+                                      final String name)
+            throws Throwable
+        {
+            return get().getObject(string, name);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PythonObject invokeAndGetObject(final String functionName,
+                                               final Object... args)
+            throws Throwable
+        {
+            return get().invokeAndGetObject(functionName, args);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PreparedCode prepare(final String source)
+            throws IOException,
+                   PythonCallbackException
+        {
+            return get().prepare(source);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isClosed()
+        {
+            return myIsReturned.get() || myMinion.isClosed();
+        }
+
+        /**
+         * Give the minion back to the pool. Calling this more than once has
+         * no effect.
+         */
+        @Override
+        public void close()
+        {
+            if (myIsReturned.compareAndSet(false, true)) {
+                myPool.giveBack(myMinion);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return "Lease[" + myMinion + "]";
+        }
+
+        /**
+         * Get the minion, if we still have it.
+         */
+        private PythonMinion get()
+        {
+            if (myIsReturned.get()) {
+                throw new IllegalStateException(
+                    "Minion has been given back to the pool"
+                );
+            }
+            return myMinion;
+        }
+    }
+
+    // ---------------------------------------------------------------------- //
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOG = PJRmi.LOG;
+
+    /**
+     * How long, in millis, we wait before retrying after failing to spawn a
+     * minion.
+     */
+    private static final long RESPAWN_DELAY_MS = 1000;
+
+    /**
+     * What we exec in a new minion to remember the global variables which it
+     * starts off with.
+     */
+    private static final String SNAPSHOT_GLOBALS =
+        "_pjrmi_pool_globals = frozenset(globals()) | {'_pjrmi_pool_globals'}";
+
+    /**
+     * What we exec in a minion, when it's given back, to remove any global
+     * variables which the user added. The comprehension's variable doesn't
+     * leak into the globals.
+     */
+    private static final String RESET_GLOBALS =
+        "[globals().pop(_k) for _k in list(globals()) " +
+         "if _k not in _pjrmi_pool_globals]";
+
+    /**
+     * For naming our threads.
+     */
+    private static final AtomicInteger ourPoolId = new AtomicInteger(0);
+
+    /**
+     * How we spawn minions.
+     */
+    private final Spawner mySpawner;
+
+    /**
+     * What we exec in each new minion, to warm it up, if anything.
+     */
+    private final String myWarmUpCode;
+
+    /**
+     * How many minions we keep.
+     */
+    private final int mySize;
+
+    /**
+     * Our name, used for our threads.
+     */
+    private final String myName;
+
+    /**
+     * The minions which are ready to be leased.
+     */
+    private final BlockingQueue<PythonMinion> myIdle;
+
+    /**
+     * How many minions we have, whether they are idle, leased or being
+     * spawned.
+     */
+    private final AtomicInteger myNumMinions;
+
+    /**
+     * How many minions we have replaced since they died, or couldn't be reset.
+     */
+    private final AtomicInteger myNumReplaced;
+
+    /**
+     * Whether we have been closed.
+     */
+    private volatile boolean myIsClosed;
+
+    /**
+     * CTOR, with shared-memory argument passing disabled.
+     *
+     * @param size  How many minions to keep in the pool.
+     *
+     * @throws IllegalArgumentException if the size was not positive.
+     */
+    public PythonMinionPool(final int size)
+        throws IllegalArgumentException
+    {
+        this(size, false, null);
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param size              How many minions to keep in the pool.
+     * @param useShmArgPassing  Whether the minions should use native array
+     *                          handling.
+     * @param warmUpCode        Code to exec in each minion after it is spawned,
+     *                          for example {@code "import numpy"}, or {@code
+     *                          null} if none. Any globals which this creates
+     *                          survive the minion being reset.
+     *
+     * @throws IllegalArgumentException if the size was not positive.
+     */
+    public PythonMinionPool(final int     size,
+                            final boolean useShmArgPassing,
+                            final String  warmUpCode)
+        throws IllegalArgumentException
+    {
+        this(() -> PythonMinionProvider.spawn(useShmArgPassing),
+             size,
+             warmUpCode);
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param spawner     How to spawn the minions.
+     * @param size        How many minions to keep in the pool.
+     * @param warmUpCode  Code to exec in each new minion, if any.
+     *
+     * @throws IllegalArgumentException if the size was not positive.
+     */
+    /*package*/ PythonMinionPool(final Spawner spawner,
+                                 final int     size,
+                                 final String  warmUpCode)
+        throws IllegalArgumentException
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("Bad size: " + size);
+        }
+
+        mySpawner     = spawner;
+        mySize        = size;
+        myWarmUpCode  = warmUpCode;
+        myName        = "PythonMinionPool-" + ourPoolId.incrementAndGet();
+        myIdle        = new LinkedBlockingQueue<>();
+        myNumMinions  = new AtomicInteger(0);
+        myNumReplaced = new AtomicInteger(0);
+        myIsClosed    = false;
+
+        // Start filling up the pool
+        replenish();
+    }
+
+    /**
+     * Lease a minion from the pool, waiting for one to become available if
+     * need be. The lease should be closed once the caller is done with it.
+     *
+     * @return the leased minion.
+     *
+     * @throws IllegalStateException if the pool is closed.
+     * @throws InterruptedException  if interrupted while waiting.
+     */
+    public Lease lease()
+        throws IllegalStateException,
+               InterruptedException
+    {
+        while (true) {
+            checkOpen();
+            final PythonMinion minion = myIdle.poll(1, TimeUnit.SECONDS);
+            if (minion != null && isAlive(minion)) {
+                return new Lease(this, minion);
+            }
+        }
+    }
+
+    /**
+     * Lease a minion from the pool, waiting up to the given amount of time for
+     * one to become available. The lease should be closed once the caller is
+     * done with it.
+     *
+     * @param timeout  How long to wait for.
+     * @param unit     The units of the timeout.
+     *
+     * @return the leased minion, or {@code null} if none became available in
+     *         time.
+     *
+     * @throws IllegalStateException if the pool is closed.
+     * @throws InterruptedException  if interrupted while waiting.
+     */
+    public Lease lease(final long timeout, final TimeUnit unit)
+        throws IllegalStateException,
+               InterruptedException
+    {
+        final long end = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            checkOpen();
+            final PythonMinion minion =
+                myIdle.poll(Math.max(0, end - System.nanoTime()),
+                            TimeUnit.NANOSECONDS);
+            if (minion == null) {
+                return null;
+            }
+            if (isAlive(minion)) {
+                return new Lease(this, minion);
+            }
+        }
+    }
+
+    /**
+     * How many minions the pool keeps.
+     *
+     * @return the pool size.
+     */
+    public int getSize()
+    {
+        return mySize;
+    }
+
+    /**
+     * How many minions are ready to be leased right now.
+     *
+     * @return the number of idle minions.
+     */
+    public int getNumIdle()
+    {
+        return myIdle.size();
+    }
+
+    /**
+     * How many minions have been replaced, since they died or couldn't be
+     * reset.
+     *
+     * @return the number of replaced minions.
+     */
+    public int getNumReplaced()
+    {
+        return myNumReplaced.get();
+    }
+
+    /**
+     * Close the pool, and all the minions which are idle in it. Any which are
+     * leased will be closed when they are given back.
+     */
+    @Override
+    public void close()
+    {
+        myIsClosed = true;
+        for (PythonMinion minion = myIdle.poll();
+             minion != null;
+             minion = myIdle.poll())
+        {
+            discard(minion);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return myName + "[" +
+            "size=" + mySize + "," +
+            "idle=" + myIdle.size() + "," +
+            "replaced=" + myNumReplaced.get() +
+        "]";
+    }
+
+    /**
+     * Take back a minion which was leased, resetting it so that it's ready
+     * for the next user.
+     */
+    private void giveBack(final PythonMinion minion)
+    {
+        if (myIsClosed) {
+            discard(minion);
+            return;
+        }
+
+        try {
+            minion.exec(RESET_GLOBALS);
+        }
+        catch (IOException | PythonCallbackException | RuntimeException e) {
+            LOG.log(Level.WARNING,
+                    myName + ": Replacing minion which could not be reset",
+                    e);
+            myNumReplaced.incrementAndGet();
+            discard(minion);
+            replenish();
+            return;
+        }
+
+        if (isAlive(minion)) {
+            myIdle.add(minion);
+
+            // We might have been closed in the meantime, in which case no-one
+            // else will pick it up
+            if (myIsClosed && myIdle.remove(minion)) {
+                discard(minion);
+            }
+        }
+    }
+
+    /**
+     * Check that the given minion is still usable, replacing it if not.
+     */
+    private boolean isAlive(final PythonMinion minion)
+    {
+        if (!minion.isClosed()) {
+            return true;
+        }
+
+        LOG.warning(myName + ": Replacing minion which died");
+        myNumReplaced.incrementAndGet();
+        discard(minion);
+        replenish();
+        return false;
+    }
+
+    /**
+     * Get rid of a minion, for good.
+     */
+    private void discard(final PythonMinion minion)
+    {
+        myNumMinions.decrementAndGet();
+        try {
+            minion.close();
+        }
+        catch (RuntimeException e) {
+            // Nothing
+        }
+    }
+
+    /**
+     * Spawn minions, in the background, until we have enough.
+     */
+    private void replenish()
+    {
+        while (!myIsClosed) {
+            final int count = myNumMinions.get();
+            if (count >= mySize) {
+                return;
+            }
+            if (myNumMinions.compareAndSet(count, count + 1)) {
+                final Thread thread =
+                    new Thread(this::spawn, myName + "-Spawner");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Spawn a single minion, and put it in the pool once it's warm. We retry
+     * until we succeed, or the pool is closed.
+     */
+    private void spawn()
+    {
+        while (true) {
+            PythonMinion minion = null;
+            try {
+                minion = mySpawner.spawn();
+                if (myWarmUpCode != null) {
+                    minion.exec(myWarmUpCode);
+                }
+                minion.exec(SNAPSHOT_GLOBALS);
+            }
+            catch (IOException | PythonCallbackException | RuntimeException e) {
+                LOG.log(Level.WARNING, myName + ": Failed to spawn minion", e);
+                if (minion != null) {
+                    try {
+                        minion.close();
+                    }
+                    catch (RuntimeException ee) {
+                        // Nothing
+                    }
+                }
+                minion = null;
+            }
+
+            if (myIsClosed) {
+                myNumMinions.decrementAndGet();
+                if (minion != null) {
+                    minion.close();
+                }
+                return;
+            }
+            if (minion != null) {
+                myIdle.add(minion);
+                if (myIsClosed && myIdle.remove(minion)) {
+                    discard(minion);
+                }
+                return;
+            }
+
+            // Back off before trying again
+            try {
+                Thread.sleep(RESPAWN_DELAY_MS);
+            }
+            catch (InterruptedException e) {
+                myNumMinions.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ensure that we are not closed.
+     */
+    private void checkOpen()
+        throws IllegalStateException
+    {
+        if (myIsClosed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+    }
+}
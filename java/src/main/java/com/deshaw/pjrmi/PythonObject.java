@@ -138,6 +138,47 @@ public abstract class PythonObject
                                   final String   fieldName)
         throws Throwable;
 
+    /**
+     * Bind to an attribute of the object, typically a method, as a function.
+     * The attribute is looked up in Python just the once, by this call, and
+     * each call to the returned function then invokes it directly. This is
+     * cheaper than calling {@code invoke()} with the method name each time,
+     * which is worthwhile for methods which are called a lot.
+     *
+     * <p>Note that the bound function sees the attribute as it was when it was
+     * bound, should it later be replaced in the object.
+     *
+     * @param name  The name of the attribute in the object.
+     *
+     * @return the function.
+     *
+     * @throws Throwable if there was a problem, including if there was no such
+     *                   attribute.
+     */
+    public PythonKwargsFunction<PythonObject> bind(final String name)
+        throws Throwable
+    {
+        return bind(PythonObject.class, name);
+    }
+
+    /**
+     * Bind to an attribute of the object, typically a method, as a function.
+     * The attribute is looked up in Python just the once, by this call, and
+     * each call to the returned function then invokes it directly.
+     *
+     * @param <T>         The function return type.
+     * @param returnType  The type to cast the result to.
+     * @param name        The name of the attribute in the object.
+     *
+     * @return the function.
+     *
+     * @throws Throwable if there was a problem, including if there was no such
+     *                   attribute.
+     */
+    public abstract <T> PythonKwargsFunction<T> bind(final Class<T> returnType,
+                                                     final String   name)
+        throws Throwable;
+
     /**
      * Get a wrapper for this object which attempts to treat it as the given
      * Java interface.
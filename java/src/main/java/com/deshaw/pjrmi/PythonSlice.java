@@ -52,6 +52,94 @@ public class PythonSlice
         this.step  = step;
     }
 
+    /**
+     * Compute the concrete start, stop and step values which this slice
+     * would have when applied to a sequence of the given length. This has the
+     * same semantics as Python's {@code slice.indices()} method, so negative
+     * values count back from the end and out-of-range values are clipped.
+     *
+     * @param length  The length of the sequence being sliced.
+     *
+     * @return the {@code start}, {@code stop} and {@code step} values.
+     *
+     * @throws IllegalArgumentException if the step was zero or the length was
+     *                                  negative.
+     */
+    public long[] indices(final long length)
+        throws IllegalArgumentException
+    {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length: " + length);
+        }
+
+        final long step = (this.step == null) ? 1 : this.step;
+        if (step == 0) {
+            throw new IllegalArgumentException("Slice step cannot be zero");
+        }
+
+        // The bounds which we clip to depend on the direction of travel
+        final long lower = (step < 0) ? -1         : 0;
+        final long upper = (step < 0) ? length - 1 : length;
+
+        long start;
+        if (this.start == null) {
+            start = (step < 0) ? upper : lower;
+        }
+        else {
+            start = this.start;
+            if (start < 0) {
+                start = Math.max(start + length, lower);
+            }
+            else {
+                start = Math.min(start, upper);
+            }
+        }
+
+        long stop;
+        if (this.stop == null) {
+            stop = (step < 0) ? lower : upper;
+        }
+        else {
+            stop = this.stop;
+            if (stop < 0) {
+                stop = Math.max(stop + length, lower);
+            }
+            else {
+                stop = Math.min(stop, upper);
+            }
+        }
+
+        return new long[] { start, stop, step };
+    }
+
+    /**
+     * Compute the number of elements which this slice would select from a
+     * sequence of the given length. This is the same as the length of the
+     * {@code range} created from {@code slice.indices()} in Python.
+     *
+     * @param length  The length of the sequence being sliced.
+     *
+     * @return the number of selected elements.
+     *
+     * @throws IllegalArgumentException if the step was zero or the length was
+     *                                  negative.
+     */
+    public long size(final long length)
+        throws IllegalArgumentException
+    {
+        final long[] indices = indices(length);
+        final long   start   = indices[0];
+        final long   stop    = indices[1];
+        final long   step    = indices[2];
+
+        if (step > 0) {
+            return (start < stop) ? (stop - start - 1) / step + 1 : 0;
+        }
+        else {
+            return (start > stop) ? (start - stop - 1) / -step + 1 : 0;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
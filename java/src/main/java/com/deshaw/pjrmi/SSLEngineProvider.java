@@ -0,0 +1,268 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * A transport provider for SSL connections which are handled by an {@link
+ * SSLEngine} over a {@link SocketChannel}.
+ *
+ * <p>On the wire this is identical to the {@link SSLSocketProvider}, and uses
+ * the same key store, so clients may talk to either. However it avoids some of
+ * the overheads of a blocking {@link javax.net.ssl.SSLSocket} when sending a
+ * lot of small messages; see {@link SSLEngineTransport} for details. And, as
+ * with the {@link SocketChannelProvider}, a {@link PJRmi} instance which has
+ * selector threads may multiplex the connections.
+ *
+ * <p>The server keeps a cache of recent sessions so that clients which
+ * reconnect, and which offer up their previous session, may resume it and skip
+ * the expensive parts of the handshake.
+ *
+ * <p>The handshake is done when the connection is accepted. Since that's on
+ * the thread which accepts all the connections, a client which does not
+ * complete its handshake in a timely fashion is dropped.
+ *
+ * @see PJRmi#numSelectorThreads()
+ */
+public class SSLEngineProvider
+    implements Transport.Provider
+{
+    /**
+     * The default TLS version which we use.
+     */
+    private static final String TLS_VERSION = "TLSv1.2";
+
+    /**
+     * How many sessions we remember, for clients to resume.
+     */
+    private static final int SESSION_CACHE_SIZE = 1024;
+
+    /**
+     * How long, in seconds, a session may be resumed for.
+     */
+    private static final int SESSION_TIMEOUT_SECS = 24 * 60 * 60;
+
+    /**
+     * The default time, in millis, which a client has to complete its
+     * handshake.
+     */
+    private static final long HANDSHAKE_TIMEOUT_MS = 10_000;
+
+    /**
+     * What we use to give up on handshakes which take too long. This is shared
+     * by all the providers, and only has a thread while there are handshakes
+     * in progress.
+     */
+    private static final ScheduledThreadPoolExecutor ourHandshakeTimer;
+    static {
+        ourHandshakeTimer = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, "SSLEngineProvider#HandshakeTimer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ourHandshakeTimer.setKeepAliveTime(1, TimeUnit.SECONDS);
+        ourHandshakeTimer.allowCoreThreadTimeOut(true);
+        ourHandshakeTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * The server socket channel which we use.
+     */
+    private final ServerSocketChannel myServerChannel;
+
+    /**
+     * The context which we create the engines from.
+     */
+    private final SSLContext myContext;
+
+    /**
+     * The TLS version which we use.
+     */
+    private final String myTlsVersion;
+
+    /**
+     * How long, in millis, a client has to complete its handshake.
+     */
+    private final long myHandshakeTimeoutMs;
+
+    /**
+     * Our string representation.
+     */
+    private final String myString;
+
+    /**
+     * CTOR using the default TLS 1.2 version.
+     */
+    public SSLEngineProvider(final int    port,
+                             final String storeFilename,
+                             final String storePassword)
+        throws IOException
+    {
+        this(port, TLS_VERSION, storeFilename, storePassword);
+    }
+
+    /**
+     * CTOR using the default handshake timeout.
+     */
+    public SSLEngineProvider(final int    port,
+                             final String tlsVersion,
+                             final String storeFilename,
+                             final String storePassword)
+        throws IOException
+    {
+        this(port, tlsVersion, storeFilename, storePassword, HANDSHAKE_TIMEOUT_MS);
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param handshakeTimeoutMs  How long, in millis, a client has to complete
+     *                            its handshake before it is dropped.
+     */
+    public SSLEngineProvider(final int    port,
+                             final String tlsVersion,
+                             final String storeFilename,
+                             final String storePassword,
+                             final long   handshakeTimeoutMs)
+        throws IOException
+    {
+        // We need these, but we'll allow missing/empty passwords
+        Objects.requireNonNull(tlsVersion,
+                               "TLS version was null");
+        Objects.requireNonNull(storeFilename,
+                               "Store filename was null");
+        if (handshakeTimeoutMs <= 0) {
+            throw new IllegalArgumentException(
+                "Non-positive handshake timeout: " + handshakeTimeoutMs
+            );
+        }
+
+        // Our descriptive string
+        myString = "SSLEngine[" +
+            port          + ":" +
+            tlsVersion    + ":" +
+            storeFilename +
+        "]";
+
+        // Set up the context, and make sure that it remembers sessions so that
+        // clients may resume them
+        myContext            = SSLSocketProvider.createContext(storeFilename,
+                                                               storePassword);
+        myTlsVersion         = tlsVersion;
+        myHandshakeTimeoutMs = handshakeTimeoutMs;
+        final SSLSessionContext sessions = myContext.getServerSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout  (SESSION_TIMEOUT_SECS);
+
+        // And start listening
+        myServerChannel = ServerSocketChannel.open();
+        myServerChannel.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Transport accept()
+        throws IOException
+    {
+        final SocketChannel channel = myServerChannel.accept();
+        try {
+            // Give the engine the peer's details, as a hint for session reuse
+            final InetSocketAddress address =
+                (InetSocketAddress)channel.getRemoteAddress();
+            final SSLEngine engine =
+                myContext.createSSLEngine(address.getHostString(),
+                                          address.getPort());
+            engine.setUseClientMode(false);
+            engine.setNeedClientAuth(true);
+            engine.setEnabledProtocols(new String[] {myTlsVersion});
+
+            // We do the handshake here, in blocking mode, so that the
+            // transport is ready to go when we hand it back. Blocking channels
+            // don't have read timeouts so, if the client stalls, we close the
+            // channel out from under it.
+            final SSLEngineTransport transport =
+                new SSLEngineTransport(channel, engine);
+            final AtomicBoolean isTimedOut = new AtomicBoolean(false);
+            final ScheduledFuture<?> timeout =
+                ourHandshakeTimer.schedule(
+                    () -> {
+                        isTimedOut.set(true);
+                        try {
+                            channel.close();
+                        }
+                        catch (IOException e) {
+                            // Nothing
+                        }
+                    },
+                    myHandshakeTimeoutMs,
+                    TimeUnit.MILLISECONDS
+                );
+            try {
+                transport.handshake();
+            }
+            catch (ClosedChannelException e) {
+                if (isTimedOut.get()) {
+                    throw new SocketTimeoutException(
+                        "Handshake with " + address + " did not complete " +
+                        "within " + myHandshakeTimeoutMs + "ms"
+                    );
+                }
+                throw e;
+            }
+            finally {
+                timeout.cancel(false);
+            }
+            return transport;
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return myString;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        myServerChannel.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return !myServerChannel.isOpen();
+    }
+}
@@ -0,0 +1,668 @@
+package com.deshaw.pjrmi;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import java.security.cert.Certificate;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * An SSL transport which drives an {@link SSLEngine} over a {@link
+ * SocketChannel}, rather than using a blocking {@link
+ * javax.net.ssl.SSLSocket}.
+ *
+ * <p>Outgoing data is buffered up until the stream is flushed, or until there
+ * is enough of it to fill a TLS record, before it is encrypted. This means that
+ * many small PJRmi messages which are sent together, for example when replies
+ * are being coalesced (see {@link PJRmi#useReplyCoalescing()}), go out in a
+ * handful of full records instead of one record each. The encrypted records
+ * are then written to the channel in a single go.
+ *
+ * <p>Since the underlying transport is a selectable channel, a {@link PJRmi}
+ * instance which has selector threads may multiplex these connections in the
+ * same way as it does for a {@link SocketChannelTransport}. The streams which
+ * this transport hands out work whether or not the channel is in blocking
+ * mode.
+ *
+ * <p>All the buffers which the engine reads from, and writes to, are direct
+ * ones so that the channel I/O does not need to copy them.
+ */
+/*package*/ class SSLEngineTransport
+    extends SocketChannelTransport
+{
+    /**
+     * The most plaintext which a single TLS record may carry.
+     */
+    private static final int MAX_RECORD_SIZE = 16 * 1024;
+
+    /**
+     * How many records' worth of ciphertext we buffer up before writing it out
+     * to the channel.
+     */
+    private static final int NUM_OUTPUT_RECORDS = 4;
+
+    /**
+     * An empty buffer, for when we have nothing to give the engine.
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * An input stream which reads the decrypted data.
+     */
+    private class EngineInputStream
+        extends InputStream
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read()
+            throws IOException
+        {
+            final byte[] b = new byte[1];
+            final int read = read(b, 0, 1);
+            return (read < 0) ? -1 : Byte.toUnsignedInt(b[0]);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+
+            synchronized (myReadLock) {
+                final int available = fill(true);
+                if (available < 0) {
+                    return -1;
+                }
+                final int count = Math.min(available, len);
+                myAppIn.get(b, off, count);
+                return count;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int available()
+        {
+            synchronized (myReadLock) {
+                return myAppIn.remaining();
+            }
+        }
+    }
+
+    /**
+     * An output stream which encrypts what it is given.
+     */
+    private class EngineOutputStream
+        extends OutputStream
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            synchronized (myWriteLock) {
+                myAppOut.put((byte)b);
+                if (!myAppOut.hasRemaining()) {
+                    wrapAppOut();
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final byte[] b, int off, int len)
+            throws IOException
+        {
+            // Fill up the records as we go, only encrypting once we have a
+            // full one
+            synchronized (myWriteLock) {
+                while (len > 0) {
+                    final int count = Math.min(len, myAppOut.remaining());
+                    myAppOut.put(b, off, count);
+                    off += count;
+                    len -= count;
+                    if (!myAppOut.hasRemaining()) {
+                        wrapAppOut();
+                    }
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void flush()
+            throws IOException
+        {
+            synchronized (myWriteLock) {
+                wrapAppOut();
+                writeNetOut();
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    /**
+     * The engine which does all the work.
+     */
+    private final SSLEngine myEngine;
+
+    /**
+     * The channel which we talk over.
+     */
+    private final SocketChannel myChannel;
+
+    /**
+     * Our input stream.
+     */
+    private final InputStream myInputStream;
+
+    /**
+     * Our output stream.
+     */
+    private final OutputStream myOutputStream;
+
+    /**
+     * Guards the read side of things.
+     */
+    private final Object myReadLock = new Object();
+
+    /**
+     * Ciphertext which we have read from the channel, but not yet decrypted.
+     * This is always ready to be read into.
+     */
+    private ByteBuffer myNetIn;
+
+    /**
+     * Plaintext which we have decrypted, but not yet handed back. This is
+     * always ready to be read from.
+     */
+    private ByteBuffer myAppIn;
+
+    /**
+     * Whether the other side has closed its end of things.
+     */
+    private boolean myIsInputDone;
+
+    /**
+     * Guards the write side of things.
+     */
+    private final Object myWriteLock = new Object();
+
+    /**
+     * Plaintext which is waiting to be encrypted. This is the size of a full
+     * TLS record and is always ready to be written into.
+     */
+    private final ByteBuffer myAppOut;
+
+    /**
+     * Ciphertext which is waiting to be written to the channel. This is always
+     * ready to be written into.
+     */
+    private ByteBuffer myNetOut;
+
+    /**
+     * CTOR.
+     *
+     * @param channel      The accepted channel.
+     * @param engine       The engine to use for it, which has been configured
+     *                     but has not yet started its handshake.
+     */
+    public SSLEngineTransport(final SocketChannel channel,
+                              final SSLEngine     engine)
+    {
+        super(channel);
+
+        myChannel      = channel;
+        myEngine       = engine;
+        myInputStream  = new EngineInputStream();
+        myOutputStream = new EngineOutputStream();
+
+        final int packetSize = engine.getSession().getPacketBufferSize();
+        final int appSize    = engine.getSession().getApplicationBufferSize();
+        myNetIn  = ByteBuffer.allocateDirect(packetSize);
+        myAppIn  = ByteBuffer.allocateDirect(appSize);
+        myAppOut = ByteBuffer.allocateDirect(MAX_RECORD_SIZE);
+        myNetOut = ByteBuffer.allocateDirect(NUM_OUTPUT_RECORDS * packetSize);
+
+        // Nothing to read yet
+        myAppIn.flip();
+        myIsInputDone = false;
+    }
+
+    /**
+     * Perform the TLS handshake with the other side. This must be called, to
+     * completion, before the streams are used.
+     *
+     * @throws IOException if the handshake failed.
+     */
+    public void handshake()
+        throws IOException
+    {
+        myEngine.beginHandshake();
+        while (true) {
+            switch (myEngine.getHandshakeStatus()) {
+            case NEED_TASK:
+                runTasks();
+                break;
+
+            case NEED_WRAP:
+                synchronized (myWriteLock) {
+                    wrap(EMPTY);
+                    writeNetOut();
+                }
+                break;
+
+            case NEED_UNWRAP:
+            case NEED_UNWRAP_AGAIN:
+                synchronized (myReadLock) {
+                    if (!unwrap() && readNetIn(true) < 0) {
+                        throw new EOFException(
+                            "Connection closed during handshake"
+                        );
+                    }
+                }
+                break;
+
+            default:
+                // FINISHED or NOT_HANDSHAKING, either way we're done
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the certificates associated with this connection.
+     *
+     * @throws SSLPeerUnverifiedException if the peer's credentials have not
+     *                                    been authoritatively checked.
+     */
+    public Certificate[] getPeerCertificates()
+        throws SSLPeerUnverifiedException
+    {
+        return myEngine.getSession().getPeerCertificates();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getUserName()
+    {
+        return SSLSocketTransport.getUserName(myEngine.getSession(), this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getInputStream()
+    {
+        return myInputStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return myOutputStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    /*package*/ int read(final ByteBuffer buffer)
+        throws IOException
+    {
+        synchronized (myReadLock) {
+            final int available = fill(false);
+            if (available <= 0) {
+                return available;
+            }
+
+            // Hand back as much as will fit
+            final int count = Math.min(available, buffer.remaining());
+            final int limit = myAppIn.limit();
+            myAppIn.limit(myAppIn.position() + count);
+            buffer.put(myAppIn);
+            myAppIn.limit(limit);
+            return count;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    /*package*/ boolean hasPendingInput()
+    {
+        synchronized (myReadLock) {
+            return myAppIn.hasRemaining();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        // Make a best effort to tell the other side that we're going away,
+        // without waiting around if it's not listening
+        synchronized (myWriteLock) {
+            try {
+                myEngine.closeOutbound();
+                myEngine.wrap(EMPTY, myNetOut);
+                myNetOut.flip();
+                myChannel.write(myNetOut);
+            }
+            catch (IOException e) {
+                // Nothing
+            }
+            finally {
+                myNetOut.clear();
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "SSLEngine[" + super.toString() + "]";
+    }
+
+    // ----------------------------------------------------------------------
+
+    /**
+     * Make sure that there is some plaintext for the reader, decrypting, and
+     * reading from the channel, as need be. Must be called holding the read
+     * lock.
+     *
+     * @param block  Whether to wait for data, if there is none.
+     *
+     * @return the amount of plaintext available, or {@code -1} on EOF.
+     */
+    private int fill(final boolean block)
+        throws IOException
+    {
+        while (!myAppIn.hasRemaining()) {
+            if (myIsInputDone) {
+                return -1;
+            }
+
+            // Decrypt whatever we have and, if that didn't give us anything,
+            // go and get some more
+            unwrap();
+            if (myAppIn.hasRemaining() || myIsInputDone) {
+                continue;
+            }
+            final int read = readNetIn(block);
+            if (read < 0) {
+                return -1;
+            }
+            else if (read == 0 && !block) {
+                return 0;
+            }
+        }
+        return myAppIn.remaining();
+    }
+
+    /**
+     * Decrypt as much of myNetIn as we can into myAppIn. Must be called
+     * holding the read lock.
+     *
+     * @return whether we consumed any of the input.
+     */
+    private boolean unwrap()
+        throws IOException
+    {
+        boolean consumed = false;
+        myNetIn.flip();
+        myAppIn.compact();
+        try {
+            while (myNetIn.hasRemaining()) {
+                final SSLEngineResult result = myEngine.unwrap(myNetIn, myAppIn);
+                consumed |= (result.bytesConsumed() > 0);
+
+                // Handle anything which the engine needs to do as a result
+                switch (result.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    break;
+
+                case NEED_WRAP:
+                    // E.g. a post-handshake message which needs a response
+                    synchronized (myWriteLock) {
+                        wrap(EMPTY);
+                        writeNetOut();
+                    }
+                    break;
+
+                default:
+                    break;
+                }
+
+                // And see if we can keep going
+                switch (result.getStatus()) {
+                case OK:
+                    break;
+
+                case BUFFER_UNDERFLOW:
+                    // We need more input to make up a full record
+                    return consumed;
+
+                case BUFFER_OVERFLOW:
+                    // Not enough room for the plaintext. If we have some
+                    // then the reader should take it first, else we need a
+                    // bigger buffer.
+                    if (myAppIn.position() > 0) {
+                        return consumed;
+                    }
+                    myAppIn = grow(
+                        myAppIn, myEngine.getSession().getApplicationBufferSize()
+                    );
+                    break;
+
+                case CLOSED:
+                    myIsInputDone = true;
+                    return consumed;
+
+                default:
+                    throw new SSLException("Unexpected unwrap result: " + result);
+                }
+            }
+            return consumed;
+        }
+        finally {
+            myNetIn.compact();
+            myAppIn.flip();
+        }
+    }
+
+    /**
+     * Read some ciphertext from the channel into myNetIn. Must be called
+     * holding the read lock.
+     *
+     * @param block  Whether to wait for data, if there is none.
+     *
+     * @return the number of bytes read, or {@code -1} on EOF.
+     */
+    private int readNetIn(final boolean block)
+        throws IOException
+    {
+        // If the buffer is full then it must be holding a partial record
+        // which is bigger than we expected
+        if (!myNetIn.hasRemaining()) {
+            myNetIn = grow(
+                myNetIn, myEngine.getSession().getPacketBufferSize()
+            );
+        }
+
+        // If the channel is non-blocking then this waits on a selector for
+        // there to be something, rather than spinning
+        final int read = readChannel(myNetIn, block);
+        if (read < 0) {
+            // The other side went away. If it didn't tell us that it was going
+            // to then the engine will complain, but there's not a lot which we
+            // can do about that now.
+            myIsInputDone = true;
+            try {
+                myEngine.closeInbound();
+            }
+            catch (SSLException e) {
+                // Nothing
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Encrypt everything in myAppOut into myNetOut. Must be called holding the
+     * write lock.
+     */
+    private void wrapAppOut()
+        throws IOException
+    {
+        if (myAppOut.position() > 0) {
+            myAppOut.flip();
+            try {
+                wrap(myAppOut);
+            }
+            finally {
+                myAppOut.clear();
+            }
+        }
+    }
+
+    /**
+     * Encrypt all of the given buffer into myNetOut, writing out myNetOut to
+     * the channel if it fills up. Must be called holding the write lock.
+     */
+    private void wrap(final ByteBuffer src)
+        throws IOException
+    {
+        do {
+            final SSLEngineResult result = myEngine.wrap(src, myNetOut);
+            switch (result.getStatus()) {
+            case OK:
+                // If the engine neither took nor gave anything then it is
+                // waiting for the other side, which means it is being asked
+                // to renegotiate. We don't support that.
+                if (result.bytesConsumed() == 0 &&
+                    result.bytesProduced() == 0 &&
+                    src.hasRemaining())
+                {
+                    throw new SSLException(
+                        "Unexpected handshake status when sending: " + result
+                    );
+                }
+                break;
+
+            case BUFFER_OVERFLOW:
+                // Make room, either by sending what we have or, if we have
+                // nothing, by getting a bigger buffer
+                if (myNetOut.position() > 0) {
+                    writeNetOut();
+                }
+                else {
+                    myNetOut = grow(
+                        myNetOut, myEngine.getSession().getPacketBufferSize()
+                    );
+                }
+                break;
+
+            case CLOSED:
+                throw new SSLException("Connection is closed");
+
+            default:
+                throw new SSLException("Unexpected wrap result: " + result);
+            }
+
+            if (result.getHandshakeStatus() ==
+                    SSLEngineResult.HandshakeStatus.NEED_TASK)
+            {
+                runTasks();
+            }
+        } while (src.hasRemaining());
+    }
+
+    /**
+     * Write out all of myNetOut to the channel. Must be called holding the
+     * write lock.
+     */
+    private void writeNetOut()
+        throws IOException
+    {
+        // A non-blocking channel may only accept some of what we give it, in
+        // which case the rest is queued up for the selector to send
+        myNetOut.flip();
+        try {
+            writeChannel(myNetOut);
+        }
+        finally {
+            myNetOut.compact();
+        }
+    }
+
+    /**
+     * Run any tasks which the engine has for us. These are typically the
+     * expensive bits of the handshake. We don't expect to see many of these so
+     * we just do them inline.
+     */
+    private void runTasks()
+    {
+        for (Runnable task = myEngine.getDelegatedTask();
+             task != null;
+             task = myEngine.getDelegatedTask())
+        {
+            task.run();
+        }
+    }
+
+    /**
+     * Get a bigger buffer, with the same contents as the given one, which can
+     * hold at least the given amount. The buffer should be ready to be written
+     * into, as will the result be.
+     */
+    private static ByteBuffer grow(final ByteBuffer buffer,
+                                   final int        capacity)
+    {
+        final ByteBuffer result =
+            ByteBuffer.allocateDirect(Math.max(capacity,
+                                               2 * buffer.capacity()));
+        buffer.flip();
+        result.put(buffer);
+        return result;
+    }
+}
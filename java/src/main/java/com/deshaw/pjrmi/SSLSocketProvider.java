@@ -75,6 +75,31 @@ public class SSLSocketProvider
             storeFilename +
         "]";
 
+        // Create the SSL socket
+        final SSLContext context = createContext(storeFilename, storePassword);
+        final SSLServerSocketFactory socketFactory =
+            context.getServerSocketFactory();
+        myServerSocket =
+            (SSLServerSocket)socketFactory.createServerSocket(port);
+        myServerSocket.setNeedClientAuth(true);
+        myServerSocket.setEnabledProtocols(new String[] {tlsVersion});
+    }
+
+    /**
+     * Create an SSL context using the key and trust material in the given
+     * store.
+     *
+     * @param storeFilename  The path of the key store.
+     * @param storePassword  The password for the store, if any.
+     *
+     * @return the new context.
+     *
+     * @throws IOException if there was a problem.
+     */
+    /*package*/ static SSLContext createContext(final String storeFilename,
+                                                final String storePassword)
+        throws IOException
+    {
         // Build our factories by reading in the store's contents
         final KeyManagerFactory keyFactory;
         final TrustManagerFactory trustFactory;
@@ -115,19 +140,13 @@ public class SSLSocketProvider
             );
         }
 
-        // Create the SSL socket
+        // Create the context from them
         try {
             final SSLContext context = SSLContext.getInstance("TLS");
             context.init(keyFactory  .getKeyManagers(),
                          trustFactory.getTrustManagers(),
                          SecureRandom.getInstanceStrong());
-
-            final SSLServerSocketFactory socketFactory =
-                context.getServerSocketFactory();
-            myServerSocket =
-                (SSLServerSocket)socketFactory.createServerSocket(port);
-            myServerSocket.setNeedClientAuth(true);
-            myServerSocket.setEnabledProtocols(new String[] {tlsVersion});
+            return context;
         }
         catch (KeyManagementException |
                NoSuchAlgorithmException e)
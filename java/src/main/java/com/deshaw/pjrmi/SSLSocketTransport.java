@@ -45,11 +45,38 @@ import static com.deshaw.pjrmi.PJRmi.LOG;
      */
     @Override
     public String getUserName()
+    {
+        return getUserName(mySocket.getSession(), mySocket);
+    }
+
+    /**
+     * Get the certificates associated with this connection.
+     *
+     * @throws SSLPeerUnverifiedException if the peer's credentials have not
+     *                                    been authoritatively checked.
+     */
+    public Certificate[] getPeerCertificates()
+        throws SSLPeerUnverifiedException
+    {
+        return mySocket.getSession().getPeerCertificates();
+    }
+
+    /**
+     * Get the username from the given session's peer certificates. This is
+     * the "common name" in the first certificate which has one.
+     *
+     * @param session     The session to look in.
+     * @param connection  What the session is for, used when logging.
+     *
+     * @return the username, or {@code null} if it could not be found.
+     */
+    /*package*/ static String getUserName(final SSLSession session,
+                                          final Object     connection)
     {
         // Look through all the certificates for the one with the common name in
         // it, which we interpret as the username
         try {
-            for (Certificate cert : mySocket.getSession().getPeerCertificates()) {
+            for (Certificate cert : session.getPeerCertificates()) {
                 // This has to be an x509 certificate for us to process it. If
                 // it's not then there's not a lot that we can do.
                 final X509Certificate x509 = (X509Certificate)cert;
@@ -83,20 +110,8 @@ import static com.deshaw.pjrmi.PJRmi.LOG;
 
         // If we got here then we could not find it
         LOG.warning(
-            "Failed to find the username from the connection " + mySocket
+            "Failed to find the username from the connection " + connection
         );
         return null;
     }
-
-    /**
-     * Get the certificates associated with this connection.
-     *
-     * @throws SSLPeerUnverifiedException if the peer's credentials have not
-     *                                    been authoritatively checked.
-     */
-    public Certificate[] getPeerCertificates()
-        throws SSLPeerUnverifiedException
-    {
-        return mySocket.getSession().getPeerCertificates();
-    }
 }
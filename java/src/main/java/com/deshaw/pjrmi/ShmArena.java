@@ -0,0 +1,399 @@
+package com.deshaw.pjrmi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived shared-memory region which primitive arrays are copied into,
+ * for a process on the same host to read out of. This avoids creating, sizing,
+ * mapping and unlinking a new file in {@code /dev/shm} for every array, which
+ * can cost more than copying the data for arrays of modest size. It also means
+ * that the pages are already faulted in when we come to reuse them.
+ *
+ * <p>Space is handed out by bumping a head pointer around the arena, as a ring.
+ * Each block is laid out as:
+ * <pre>
+ *   +0   int64 : The length of the block, including this header
+ *   +8   int64 : Zero while the reader owns the block, non-zero once released
+ *   +64  bytes : The array's elements, in native byte order
+ * </pre>
+ * The reader is given the offset of the block and, once it has copied the data
+ * out, it releases the block by setting its flag. Blocks are reclaimed, in the
+ * order in which they were handed out, when the next allocation is made. A
+ * block which is never released will therefore stop the arena from being
+ * reused past it, in which case allocations fail and callers should fall back
+ * to some other means of sending their arrays.
+ */
+/*package*/ class ShmArena
+{
+    /**
+     * A region of the arena which an array has been written into.
+     */
+    /*package*/ static final class Region
+    {
+        /**
+         * The name of the arena's file.
+         */
+        public final String filename;
+
+        /**
+         * The offset of the block in the arena.
+         */
+        public final long offset;
+
+        /**
+         * The number of elements in the array.
+         */
+        public final int numElems;
+
+        /**
+         * The type of the array, per {@link JniPJRmi}'s type characters.
+         */
+        public final char type;
+
+        /**
+         * CTOR.
+         */
+        private Region(final String filename,
+                       final long   offset,
+                       final int    numElems,
+                       final char   type)
+        {
+            this.filename = filename;
+            this.offset   = offset;
+            this.numElems = numElems;
+            this.type     = type;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return "Region[" + offset + "," + numElems + "," + type + "]";
+        }
+    }
+
+    /**
+     * The size of a block's header. This is a cache line so that the data is
+     * nicely aligned.
+     */
+    /*package*/ static final int HEADER_SIZE = 64;
+
+    /**
+     * The offsets of the values in a block's header.
+     */
+    /*package*/ static final int LENGTH_OFFSET   = 0;
+    /*package*/ static final int RELEASED_OFFSET = 8;
+
+    /**
+     * How we access the header values, with the appropriate memory ordering.
+     */
+    private static final VarHandle LONGS =
+        MethodHandles.byteBufferViewVarHandle(long[].class,
+                                              ByteOrder.nativeOrder());
+
+    /**
+     * Where we create our files.
+     */
+    private static final File SHM_DIR = new File("/dev/shm");
+
+    /**
+     * For making our filenames unique within this process.
+     */
+    private static final AtomicInteger ourArenaId = new AtomicInteger(0);
+
+    /**
+     * The file which backs the arena.
+     */
+    private final File myFile;
+
+    /**
+     * The mapped arena.
+     */
+    private final MappedByteBuffer myBuffer;
+
+    /**
+     * The size of the arena, in bytes.
+     */
+    private final long myCapacity;
+
+    /**
+     * Where the next block will go. Guarded by {@code this}.
+     */
+    private long myHead;
+
+    /**
+     * Where the oldest unreclaimed block is. Guarded by {@code this}.
+     */
+    private long myTail;
+
+    /**
+     * How many bytes are in unreclaimed blocks. Guarded by {@code this}.
+     */
+    private long myUsed;
+
+    /**
+     * Whether we have been closed. Guarded by {@code this}.
+     */
+    private boolean myIsClosed;
+
+    /**
+     * CTOR.
+     *
+     * @param capacity  The size of the arena, in bytes. This is rounded down to
+     *                  a multiple of {@link #HEADER_SIZE}.
+     *
+     * @throws IllegalArgumentException if the capacity was too small, or too
+     *                                  large.
+     * @throws IOException              if the arena could not be created.
+     */
+    public ShmArena(final long capacity)
+        throws IllegalArgumentException,
+               IOException
+    {
+        myCapacity = capacity - (capacity % HEADER_SIZE);
+        if (myCapacity < 2 * HEADER_SIZE || myCapacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+
+        myFile =
+            new File(SHM_DIR,
+                     "pjrmi-arena-" + ProcessHandle.current().pid() + "-" +
+                     ourArenaId.incrementAndGet() + "-" + System.nanoTime());
+        myFile.deleteOnExit();
+        try (RandomAccessFile file = new RandomAccessFile(myFile, "rw")) {
+            file.setLength(myCapacity);
+            myBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                             0,
+                                             myCapacity);
+        }
+        catch (IOException | RuntimeException e) {
+            myFile.delete();
+            throw e;
+        }
+        myBuffer.order(ByteOrder.nativeOrder());
+
+        myHead     = 0;
+        myTail     = 0;
+        myUsed     = 0;
+        myIsClosed = false;
+    }
+
+    /**
+     * Get the name of the file which the reader should map.
+     *
+     * @return the filename.
+     */
+    public String getFilename()
+    {
+        return myFile.getPath();
+    }
+
+    /**
+     * Get the size of the arena.
+     *
+     * @return the size, in bytes.
+     */
+    public long getCapacity()
+    {
+        return myCapacity;
+    }
+
+    /**
+     * Copy the given primitive array into the arena.
+     *
+     * @param array  The array to write.
+     *
+     * @return where it was written, or {@code null} if it was not a supported
+     *         type, or there was not enough free space for it.
+     */
+    public Region write(final Object array)
+    {
+        final char type;
+        final int  numElems;
+        final int  elemSize;
+        if (array instanceof boolean[]) {
+            type = 'z'; numElems = ((boolean[])array).length; elemSize = 1;
+        }
+        else if (array instanceof byte[]) {
+            type = 'b'; numElems = ((byte   [])array).length; elemSize = Byte   .BYTES;
+        }
+        else if (array instanceof short[]) {
+            type = 's'; numElems = ((short  [])array).length; elemSize = Short  .BYTES;
+        }
+        else if (array instanceof int[]) {
+            type = 'i'; numElems = ((int    [])array).length; elemSize = Integer.BYTES;
+        }
+        else if (array instanceof long[]) {
+            type = 'j'; numElems = ((long   [])array).length; elemSize = Long   .BYTES;
+        }
+        else if (array instanceof float[]) {
+            type = 'f'; numElems = ((float  [])array).length; elemSize = Float  .BYTES;
+        }
+        else if (array instanceof double[]) {
+            type = 'd'; numElems = ((double [])array).length; elemSize = Double .BYTES;
+        }
+        else {
+            return null;
+        }
+
+        final long offset = allocate((long)numElems * elemSize);
+        if (offset < 0) {
+            return null;
+        }
+
+        // Copy the data in. We do this outside of the lock since the block is
+        // ours until we hand it to the reader.
+        final ByteBuffer data = myBuffer.duplicate().order(ByteOrder.nativeOrder());
+        data.position((int)offset + HEADER_SIZE);
+        if (array instanceof boolean[]) {
+            final boolean[] values = (boolean[])array;
+            for (boolean value : values) {
+                data.put(value ? (byte)1 : (byte)0);
+            }
+        }
+        else if (array instanceof byte[]) {
+            data.put((byte[])array);
+        }
+        else if (array instanceof short[]) {
+            data.asShortBuffer().put((short[])array);
+        }
+        else if (array instanceof int[]) {
+            data.asIntBuffer().put((int[])array);
+        }
+        else if (array instanceof long[]) {
+            data.asLongBuffer().put((long[])array);
+        }
+        else if (array instanceof float[]) {
+            data.asFloatBuffer().put((float[])array);
+        }
+        else {
+            data.asDoubleBuffer().put((double[])array);
+        }
+
+        return new Region(myFile.getPath(), offset, numElems, type);
+    }
+
+    /**
+     * Close the arena, removing its file. Any reader which has already mapped
+     * the file may continue to use it.
+     */
+    public synchronized void close()
+    {
+        if (!myIsClosed) {
+            myIsClosed = true;
+            myFile.delete();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return "ShmArena[" + myFile + "," +
+            "capacity=" + myCapacity + "," +
+            "used=" + myUsed +
+        "]";
+    }
+
+    /**
+     * Allocate a block big enough to hold the given number of bytes of data,
+     * reclaiming any released ones first.
+     *
+     * @return the offset of the block, or {@code -1} if there was no room.
+     */
+    private synchronized long allocate(final long numBytes)
+    {
+        if (myIsClosed) {
+            return -1;
+        }
+
+        // How much space we need, rounded up to keep the blocks aligned
+        final long size =
+            HEADER_SIZE + ((numBytes + HEADER_SIZE - 1) / HEADER_SIZE) * HEADER_SIZE;
+        if (size > myCapacity) {
+            return -1;
+        }
+
+        reclaim();
+
+        // Find a place to put it
+        final long offset;
+        if (myUsed == 0) {
+            // Empty, so start from the beginning again
+            myHead = myTail = 0;
+            offset = 0;
+        }
+        else if (myHead > myTail) {
+            // The free space is at the end, and possibly the start
+            if (myCapacity - myHead >= size) {
+                offset = myHead;
+            }
+            else if (myTail >= size) {
+                // Skip the end by making it a released block, which will be
+                // reclaimed in turn, unless we're right at the end already
+                if (myHead < myCapacity) {
+                    final long filler = myCapacity - myHead;
+                    LONGS.set(myBuffer, (int)myHead + LENGTH_OFFSET, filler);
+                    LONGS.setRelease(myBuffer, (int)myHead + RELEASED_OFFSET, 1L);
+                    myUsed += filler;
+                }
+                offset = 0;
+            }
+            else {
+                return -1;
+            }
+        }
+        else if (myHead < myTail && myTail - myHead >= size) {
+            // The free space is between the head and the tail
+            offset = myHead;
+        }
+        else {
+            // Full, or not enough space
+            return -1;
+        }
+
+        // Mark out the block
+        LONGS.set(myBuffer, (int)offset + LENGTH_OFFSET, size);
+        LONGS.setRelease(myBuffer, (int)offset + RELEASED_OFFSET, 0L);
+        myHead  = offset + size;
+        myUsed += size;
+        return offset;
+    }
+
+    /**
+     * Reclaim the blocks at the tail which have been released.
+     */
+    private void reclaim()
+    {
+        while (myUsed > 0) {
+            final long released =
+                (long)LONGS.getAcquire(myBuffer, (int)myTail + RELEASED_OFFSET);
+            if (released == 0) {
+                return;
+            }
+            final long length =
+                (long)LONGS.get(myBuffer, (int)myTail + LENGTH_OFFSET);
+            myUsed -= length;
+            myTail += length;
+            if (myTail >= myCapacity) {
+                myTail = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies large amounts of primitive data into and out of shared memory, in
+ * parallel.
+ *
+ * <p>The data is split into ranges, each of which is copied by a separate
+ * task, and each task copies its range a chunk at a time. Keeping the chunks
+ * bounded in size means that no single bulk copy holds up a safepoint, and
+ * therefore the garbage collector, for long; the whole of a multi-GB array is
+ * never copied in one go.
+ */
+/*package*/ class ShmCopier
+{
+    /**
+     * Something which copies a range of elements.
+     */
+    @FunctionalInterface
+    /*package*/ static interface RangeCopier
+    {
+        /**
+         * Copy the elements in the given range.
+         *
+         * @param start  The index of the first element to copy, inclusive.
+         * @param end    The index of the last element to copy, exclusive.
+         *
+         * @throws IOException if there was a problem.
+         */
+        public void copy(final long start, final long end)
+            throws IOException;
+    }
+
+    /**
+     * The most elements which we copy in any one bulk copy.
+     */
+    /*package*/ static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The size, in bytes, below which we don't bother to copy in parallel.
+     */
+    /*package*/ static final long PARALLEL_THRESHOLD = 16L * 1024 * 1024;
+
+    /**
+     * The size, in bytes, of the range which each task copies. This is a
+     * multiple of all the element sizes.
+     */
+    private static final long TASK_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * For naming our threads.
+     */
+    private static final AtomicInteger ourThreadId = new AtomicInteger(0);
+
+    /**
+     * The threads which do the copying.
+     */
+    private static final ExecutorService ourExecutor =
+        Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors()),
+            runnable -> {
+                final Thread thread =
+                    new Thread(runnable,
+                               "ShmCopier-" + ourThreadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+
+    /**
+     * Not instantiable.
+     */
+    private ShmCopier()
+    {
+        // Nothing
+    }
+
+    /**
+     * Copy the given number of elements, in parallel if there are enough of
+     * them, and wait for the copy to complete.
+     *
+     * @param numElems  How many elements to copy.
+     * @param elemSize  The size of each element, in bytes.
+     * @param copier    What to use to copy each range.
+     *
+     * @throws IOException if there was a problem.
+     */
+    public static void copy(final long        numElems,
+                            final int         elemSize,
+                            final RangeCopier copier)
+        throws IOException
+    {
+        join(copyAsync(numElems, elemSize, copier));
+    }
+
+    /**
+     * Wait for a future from {@link #copyAsync} to complete, rethrowing any
+     * failure in its original form.
+     *
+     * @param future  The future to wait for.
+     *
+     * @throws IOException if the copy failed with one.
+     */
+    public static void join(final CompletableFuture<?> future)
+        throws IOException
+    {
+        try {
+            future.join();
+        }
+        catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)cause).getCause();
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Copy the given number of elements, in parallel if there are enough of
+     * them. Small copies are done by the calling thread.
+     *
+     * @param numElems  How many elements to copy.
+     * @param elemSize  The size of each element, in bytes.
+     * @param copier    What to use to copy each range.
+     *
+     * @return the future which completes when all the copying is done. It
+     *         completes exceptionally, with an {@link UncheckedIOException}
+     *         wrapping any {@link IOException}, if there was a problem.
+     */
+    public static CompletableFuture<Void> copyAsync(final long        numElems,
+                                                    final int         elemSize,
+                                                    final RangeCopier copier)
+    {
+        // Small enough to do here?
+        if (numElems * elemSize < PARALLEL_THRESHOLD) {
+            final CompletableFuture<Void> result = new CompletableFuture<>();
+            try {
+                copier.copy(0, numElems);
+                result.complete(null);
+            }
+            catch (IOException e) {
+                result.completeExceptionally(new UncheckedIOException(e));
+            }
+            catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+
+        // Farm it out
+        final long perTask = TASK_SIZE / elemSize;
+        final List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (long start = 0; start < numElems; start += perTask) {
+            final long from = start;
+            final long to   = Math.min(numElems, start + perTask);
+            tasks.add(
+                CompletableFuture.runAsync(
+                    () -> {
+                        try {
+                            copier.copy(from, to);
+                        }
+                        catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    },
+                    ourExecutor
+                )
+            );
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Put part of a primitive array into the buffer, a chunk at a time,
+     * advancing its position.
+     *
+     * @param buffer  Where to put the values, in native byte order.
+     * @param type    The type of the array, per {@link JniPJRmi}'s type
+     *                characters.
+     * @param array   The array to take the values from.
+     * @param offset  Where to start in the array.
+     * @param length  How many values to put.
+     */
+    public static void put(final ByteBuffer buffer,
+                           final char       type,
+                           final Object     array,
+                           final int        offset,
+                           final int        length)
+    {
+        for (int done = 0; done < length; ) {
+            final int position = buffer.position();
+            final int from     = offset + done;
+            final int count    = Math.min(CHUNK_SIZE, length - done);
+            switch (type) {
+            case 'z': {
+                final boolean[] values = (boolean[])array;
+                for (int i = from, end = from + count; i < end; i++) {
+                    buffer.put(values[i] ? (byte)1 : (byte)0);
+                }
+                break;
+            }
+            case 'b': buffer                .put((byte  [])array, from, count); break;
+            case 's': buffer.asShortBuffer ().put((short [])array, from, count); break;
+            case 'i': buffer.asIntBuffer   ().put((int   [])array, from, count); break;
+            case 'j': buffer.asLongBuffer  ().put((long  [])array, from, count); break;
+            case 'f': buffer.asFloatBuffer ().put((float [])array, from, count); break;
+            case 'd': buffer.asDoubleBuffer().put((double[])array, from, count); break;
+            default:  throw new IllegalArgumentException("Unhandled type: " + type);
+            }
+            buffer.position(position + count * getElementSize(type));
+            done += count;
+        }
+    }
+
+    /**
+     * Get values from the buffer into part of a primitive array, a chunk at a
+     * time, advancing its position.
+     *
+     * @param buffer  Where to get the values from, in native byte order.
+     * @param type    The type of the array, per {@link JniPJRmi}'s type
+     *                characters.
+     * @param array   The array to put the values into.
+     * @param offset  Where to start in the array.
+     * @param length  How many values to get.
+     */
+    public static void get(final ByteBuffer buffer,
+                           final char       type,
+                           final Object     array,
+                           final int        offset,
+                           final int        length)
+    {
+        for (int done = 0; done < length; ) {
+            final int position = buffer.position();
+            final int from     = offset + done;
+            final int count    = Math.min(CHUNK_SIZE, length - done);
+            switch (type) {
+            case 'z': {
+                final boolean[] values = (boolean[])array;
+                for (int i = from, end = from + count; i < end; i++) {
+                    values[i] = (buffer.get() != 0);
+                }
+                break;
+            }
+            case 'b': buffer                .get((byte  [])array, from, count); break;
+            case 's': buffer.asShortBuffer ().get((short [])array, from, count); break;
+            case 'i': buffer.asIntBuffer   ().get((int   [])array, from, count); break;
+            case 'j': buffer.asLongBuffer  ().get((long  [])array, from, count); break;
+            case 'f': buffer.asFloatBuffer ().get((float [])array, from, count); break;
+            case 'd': buffer.asDoubleBuffer().get((double[])array, from, count); break;
+            default:  throw new IllegalArgumentException("Unhandled type: " + type);
+            }
+            buffer.position(position + count * getElementSize(type));
+            done += count;
+        }
+    }
+
+    /**
+     * Get the size of an element of the given type, in bytes.
+     *
+     * @param type  The type, per {@link JniPJRmi}'s type characters.
+     *
+     * @return the size.
+     */
+    public static int getElementSize(final char type)
+    {
+        switch (type) {
+        case 'z': return 1;
+        case 'b': return Byte   .BYTES;
+        case 's': return Short  .BYTES;
+        case 'i': return Integer.BYTES;
+        case 'j': return Long   .BYTES;
+        case 'f': return Float  .BYTES;
+        case 'd': return Double .BYTES;
+        default:  throw new IllegalArgumentException("Unhandled type: " + type);
+        }
+    }
+
+    /**
+     * Create a new primitive array of the given type.
+     *
+     * @param type    The type, per {@link JniPJRmi}'s type characters.
+     * @param length  The length of the array.
+     *
+     * @return the array.
+     */
+    public static Object newArray(final char type, final int length)
+    {
+        switch (type) {
+        case 'z': return new boolean[length];
+        case 'b': return new byte   [length];
+        case 's': return new short  [length];
+        case 'i': return new int    [length];
+        case 'j': return new long   [length];
+        case 'f': return new float  [length];
+        case 'd': return new double [length];
+        default:  throw new IllegalArgumentException("Unhandled type: " + type);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package com.deshaw.pjrmi;
+
+import com.deshaw.hypercube.BooleanHypercube;
+import com.deshaw.hypercube.DoubleHypercube;
+import com.deshaw.hypercube.FloatHypercube;
+import com.deshaw.hypercube.Hypercube;
+import com.deshaw.hypercube.IntegerHypercube;
+import com.deshaw.hypercube.LongHypercube;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Array;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes primitive hypercubes, and rectangular multi-dimensional primitive
+ * arrays, into files in {@code /dev/shm} for a process on the same host to
+ * read. The values are written flattened, C-style, in native byte order. The
+ * reader is told the shape and the type separately, so that it may map the file
+ * directly as an array of the right shape, instead of copying out of it.
+ *
+ * <p>Each file is laid out as:
+ * <pre>
+ *   +0   int64 : The state of the file; zero while it is being written, one
+ *                once it has been, and minus one if writing it failed
+ *   +64  bytes : The elements, in native byte order
+ * </pre>
+ * Large objects are copied in by the {@link ShmCopier}, in parallel, and
+ * {@link #write(Object)} returns before that copy has completed. This means
+ * that the handle may be sent to the reader, and the reader may set about
+ * opening and mapping the file, while the data is still being copied in. The
+ * reader must wait for the state to become non-zero before looking at the
+ * data.
+ *
+ * <p>Cubes are copied out a chunk at a time, via their {@code toFlattened()}
+ * methods, so we never need to hold a full on-heap copy of them. This also
+ * means that views, like sliced or rolled cubes, are handled without first
+ * being materialised.
+ *
+ * <p>Ownership of a file passes to the reader, which should unlink it once it
+ * has mapped it.
+ */
+/*package*/ class ShmDataWriter
+{
+    /**
+     * The details of something which has been written.
+     */
+    /*package*/ static final class Handle
+    {
+        /**
+         * The name of the file which it was written to.
+         */
+        public final String filename;
+
+        /**
+         * The shape of the data.
+         */
+        public final long[] shape;
+
+        /**
+         * The type of the elements, per {@link JniPJRmi}'s type characters.
+         */
+        public final char type;
+
+        /**
+         * Completes once all the data has been copied into the file.
+         */
+        public final CompletableFuture<Void> completion;
+
+        /**
+         * CTOR.
+         */
+        private Handle(final String                  filename,
+                       final long[]                  shape,
+                       final char                    type,
+                       final CompletableFuture<Void> completion)
+        {
+            this.filename   = filename;
+            this.shape      = shape;
+            this.type       = type;
+            this.completion = completion;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return "Handle[" + filename + "," + Arrays.toString(shape) + "," + type + "]";
+        }
+    }
+
+    /**
+     * The size of the file's header. This is a cache line so that the data is
+     * nicely aligned.
+     */
+    /*package*/ static final int HEADER_SIZE = 64;
+
+    /**
+     * The offset of the state in the file's header.
+     */
+    /*package*/ static final int STATE_OFFSET = 0;
+
+    /**
+     * The values of the state.
+     */
+    /*package*/ static final long STATE_WRITING =  0;
+    /*package*/ static final long STATE_DONE    =  1;
+    /*package*/ static final long STATE_FAILED  = -1;
+
+    /**
+     * How we access the header values, with the appropriate memory ordering.
+     */
+    private static final VarHandle LONGS =
+        MethodHandles.byteBufferViewVarHandle(long[].class,
+                                              ByteOrder.nativeOrder());
+
+    /**
+     * Where we create our files.
+     */
+    private static final File SHM_DIR = new File("/dev/shm");
+
+    /**
+     * For making our filenames unique within this process.
+     */
+    private static final AtomicInteger ourFileId = new AtomicInteger(0);
+
+    /**
+     * Not instantiable.
+     */
+    private ShmDataWriter()
+    {
+        // Nothing
+    }
+
+    /**
+     * Whether the given object is something which we know how to write.
+     *
+     * @param object  The object to check.
+     *
+     * @return whether it may be given to {@link #write(Object)}.
+     */
+    public static boolean isSupported(final Object object)
+    {
+        return getType(object) != 0 && getShape(object) != null;
+    }
+
+    /**
+     * Get the size of the values of the given object, were it to be written.
+     *
+     * @param object  The object to check.
+     *
+     * @return the size, in bytes, or {@code -1} if the object is not something
+     *         which we know how to write.
+     */
+    public static long getNumBytes(final Object object)
+    {
+        final char   type  = getType(object);
+        final long[] shape = (type == 0) ? null : getShape(object);
+        if (shape == null) {
+            return -1;
+        }
+
+        long size = ShmCopier.getElementSize(type);
+        for (long length : shape) {
+            size = Math.multiplyExact(size, length);
+        }
+        return size;
+    }
+
+    /**
+     * Write the given object to a new file in {@code /dev/shm}. Large objects
+     * are copied in the background, and the returned handle's {@code
+     * completion} may be used to wait for that copy.
+     *
+     * @param object  The hypercube or array to write.
+     *
+     * @return the details of what was written, or {@code null} if the object
+     *         was not something which we know how to write.
+     *
+     * @throws IOException if the file could not be created, or if it could
+     *                     not be written when the data was copied in directly.
+     */
+    public static Handle write(final Object object)
+        throws IOException
+    {
+        final char   type  = getType(object);
+        final long[] shape = getShape(object);
+        if (type == 0 || shape == null) {
+            return null;
+        }
+
+        long size = 1;
+        for (long length : shape) {
+            size = Math.multiplyExact(size, length);
+        }
+        final int  elemSize = ShmCopier.getElementSize(type);
+        final long numBytes = Math.multiplyExact(size, (long)elemSize);
+
+        final File file =
+            new File(SHM_DIR,
+                     "pjrmi-data-" + ProcessHandle.current().pid() + "-" +
+                     ourFileId.incrementAndGet() + "-" + System.nanoTime());
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final MappedByteBuffer header;
+        try {
+            // Since the file is sparse we check up front that it will fit,
+            // rather than having the copy fall over part way through
+            if (Files.getFileStore(file.toPath()).getUsableSpace() < numBytes) {
+                throw new IOException(
+                    "Not enough space in " + SHM_DIR + " for " + numBytes + " bytes"
+                );
+            }
+            raf.setLength(HEADER_SIZE + numBytes);
+            header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                          0,
+                                          HEADER_SIZE);
+        }
+        catch (IOException | RuntimeException e) {
+            raf.close();
+            file.delete();
+            throw e;
+        }
+
+        // Copy in the data and, once it's all there, flag that to the reader
+        final FileChannel channel = raf.getChannel();
+        final CompletableFuture<Void> completion =
+            ShmCopier.copyAsync(
+                size,
+                elemSize,
+                (start, end) -> copy(object, type, shape, channel, start, end)
+            ).whenComplete(
+                (result, error) -> {
+                    LONGS.setRelease(header,
+                                     STATE_OFFSET,
+                                     (error == null) ? STATE_DONE : STATE_FAILED);
+                    try {
+                        raf.close();
+                    }
+                    catch (IOException e) {
+                        // Nothing, our mappings remain valid regardless
+                    }
+                }
+            );
+
+        // If it was copied here, and failed, then we can tell the caller
+        // directly instead of leaving it to the reader
+        if (completion.isCompletedExceptionally()) {
+            try {
+                ShmCopier.join(completion);
+            }
+            finally {
+                file.delete();
+            }
+        }
+
+        return new Handle(file.getPath(), shape, type, completion);
+    }
+
+    /**
+     * Copy the given range of elements, by flattened index, into the file.
+     */
+    private static void copy(final Object      object,
+                             final char        type,
+                             final long[]      shape,
+                             final FileChannel channel,
+                             final long        start,
+                             final long        end)
+        throws IOException
+    {
+        final int elemSize = ShmCopier.getElementSize(type);
+        final ByteBuffer buffer =
+            channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + start * elemSize,
+                        (end - start) * elemSize);
+        buffer.order(ByteOrder.nativeOrder());
+
+        if (object instanceof Hypercube) {
+            // Go via a chunk-sized array, using the cube's bulk copy methods
+            final Object chunk =
+                ShmCopier.newArray(
+                    type, (int)Math.min(ShmCopier.CHUNK_SIZE, end - start)
+                );
+            for (long pos = start; pos < end; ) {
+                final int length = (int)Math.min(ShmCopier.CHUNK_SIZE, end - pos);
+                switch (type) {
+                case 'z': ((BooleanHypercube)object).toFlattened(pos, (boolean[])chunk, 0, length); break;
+                case 'd': ((DoubleHypercube) object).toFlattened(pos, (double []) chunk, 0, length); break;
+                case 'f': ((FloatHypercube)  object).toFlattened(pos, (float  []) chunk, 0, length); break;
+                case 'i': ((IntegerHypercube)object).toFlattened(pos, (int    []) chunk, 0, length); break;
+                case 'j': ((LongHypercube)   object).toFlattened(pos, (long   []) chunk, 0, length); break;
+                default:  throw new IllegalStateException("Unhandled type: " + type);
+                }
+                ShmCopier.put(buffer, type, chunk, 0, length);
+                pos += length;
+            }
+        }
+        else {
+            // Copy directly out of the innermost arrays
+            final long rowLength = shape[shape.length - 1];
+            for (long pos = start; pos < end; ) {
+                final Object row    = getRow(object, shape, pos / rowLength);
+                final int    offset = (int)(pos % rowLength);
+                final int    length = (int)Math.min(rowLength - offset, end - pos);
+                ShmCopier.put(buffer, type, row, offset, length);
+                pos += length;
+            }
+        }
+    }
+
+    /**
+     * Get the innermost array, of a multi-dimensional one, with the given
+     * index, when they are counted in C order.
+     */
+    private static Object getRow(final Object array,
+                                 final long[] shape,
+                                 long         index)
+    {
+        // Figure out the indices, from the innermost outwards
+        final int[] indices = new int[shape.length - 1];
+        for (int i = indices.length - 1; i >= 0; i--) {
+            indices[i] = (int)(index % shape[i]);
+            index     /= shape[i];
+        }
+
+        Object row = array;
+        for (int i : indices) {
+            row = ((Object[])row)[i];
+        }
+        return row;
+    }
+
+    /**
+     * Get the type character for the elements of the given object, or zero if
+     * it isn't something which we support.
+     */
+    private static char getType(final Object object)
+    {
+        if (object instanceof Hypercube) {
+            if (object instanceof BooleanHypercube) return 'z';
+            if (object instanceof DoubleHypercube ) return 'd';
+            if (object instanceof FloatHypercube  ) return 'f';
+            if (object instanceof IntegerHypercube) return 'i';
+            if (object instanceof LongHypercube   ) return 'j';
+            return 0;
+        }
+        else if (object != null && object.getClass().isArray()) {
+            Class<?> klass = object.getClass();
+            while (klass.isArray()) {
+                klass = klass.getComponentType();
+            }
+            if (klass.equals(Boolean.TYPE)) return 'z';
+            if (klass.equals(Byte   .TYPE)) return 'b';
+            if (klass.equals(Short  .TYPE)) return 's';
+            if (klass.equals(Integer.TYPE)) return 'i';
+            if (klass.equals(Long   .TYPE)) return 'j';
+            if (klass.equals(Float  .TYPE)) return 'f';
+            if (klass.equals(Double .TYPE)) return 'd';
+            return 0;
+        }
+        else {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the shape of the given object, or {@code null} if it isn't something
+     * which has one. Multi-dimensional arrays must be rectangular to have a
+     * shape.
+     */
+    private static long[] getShape(final Object object)
+    {
+        if (object instanceof Hypercube) {
+            return ((Hypercube<?>)object).getShape();
+        }
+        else if (object == null || !object.getClass().isArray()) {
+            return null;
+        }
+
+        // Determine the shape from the first elements
+        int ndim = 0;
+        for (Class<?> klass = object.getClass();
+             klass.isArray();
+             klass = klass.getComponentType())
+        {
+            ndim++;
+        }
+        final long[] shape = new long[ndim];
+        Object array = object;
+        for (int i=0; i < ndim && array != null; i++) {
+            shape[i] = Array.getLength(array);
+            array = (i + 1 < ndim && shape[i] > 0) ? Array.get(array, 0) : null;
+        }
+
+        // And make sure that everything else matches it
+        return isRectangular(object, shape, 0) ? shape : null;
+    }
+
+    /**
+     * Whether the given array, at the given depth, matches the given shape.
+     */
+    private static boolean isRectangular(final Object array,
+                                         final long[] shape,
+                                         final int    depth)
+    {
+        if (array == null || Array.getLength(array) != shape[depth]) {
+            return false;
+        }
+        if (depth + 1 < shape.length) {
+            for (Object element : (Object[])array) {
+                if (!isRectangular(element, shape, depth + 1)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
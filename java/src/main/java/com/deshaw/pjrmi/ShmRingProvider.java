@@ -0,0 +1,163 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+
+/**
+ * A transport provider which talks to a co-located process, which launched
+ * us, via a pair of ring buffers in a shared memory segment. This avoids any
+ * system calls, or copies into the kernel, when sending messages back and
+ * forth.
+ *
+ * <p>The parent process creates the segment, typically under {@code /dev/shm},
+ * before launching us. It has a 4k header, of which the first 16 bytes are:
+ * <pre>
+ *   +0    int64 : The magic number, "PJRMISHM" as ASCII
+ *   +8    int64 : The data capacity of each ring, a power of two
+ * </pre>
+ * in native byte order. This is then followed by the ring which the parent
+ * writes to and then the one which we write to. See {@link ShmRingTransport}
+ * for how the rings are laid out.
+ *
+ * <p>The Unix FIFOs are still opened, as they would be for the {@link
+ * UnixFifoProvider}, but they are only used to detect when the parent has gone
+ * away.
+ */
+public class ShmRingProvider
+    extends UnixFifoProvider
+{
+    /**
+     * The magic number which the segment starts with.
+     */
+    private static final long MAGIC = 0x504a524d4953484dL; // "PJRMISHM"
+
+    /**
+     * The size of the segment header.
+     */
+    private static final int HEADER_SIZE = 4096;
+
+    /**
+     * The name of the shared memory segment.
+     */
+    private final String myShmFilename;
+
+    /**
+     * CTOR.
+     *
+     * @param fromFifoname  The FIFO which the parent writes to.
+     * @param toFifoname    The FIFO which we write to.
+     * @param shmFilename   The shared memory segment.
+     */
+    public ShmRingProvider(final String fromFifoname,
+                           final String toFifoname,
+                           final String shmFilename)
+    {
+        super(fromFifoname, toFifoname);
+
+        myShmFilename = shmFilename;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Transport newTransport(final Fifo fifo)
+        throws IOException
+    {
+        // Map in the segment. The mapping remains valid after the channel is
+        // closed.
+        final MappedByteBuffer segment;
+        try (FileChannel channel =
+                 FileChannel.open(Paths.get(myShmFilename),
+                                  StandardOpenOption.READ,
+                                  StandardOpenOption.WRITE))
+        {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                                  0,
+                                  channel.size());
+        }
+        segment.order(ByteOrder.nativeOrder());
+
+        // Check the header
+        if (segment.capacity() < HEADER_SIZE ||
+            segment.getLong(0) != MAGIC)
+        {
+            throw new IOException(
+                "Not a PJRmi shared memory segment: " + myShmFilename
+            );
+        }
+        final long capacity = segment.getLong(8);
+        final long ringSize = ShmRingTransport.Ring.DATA_OFFSET + capacity;
+        if (capacity <= 0 ||
+            capacity > Integer.MAX_VALUE ||
+            HEADER_SIZE + 2 * ringSize > segment.capacity())
+        {
+            throw new IOException(
+                "Bad ring capacity, " + capacity + ", " +
+                "for segment of size " + segment.capacity()
+            );
+        }
+
+        // And create the rings
+        final ShmRingTransport.Ring fromRing =
+            new ShmRingTransport.Ring(slice(segment, HEADER_SIZE, ringSize),
+                                      (int)capacity,
+                                      this::isClosed);
+        final ShmRingTransport.Ring toRing =
+            new ShmRingTransport.Ring(slice(segment, HEADER_SIZE + ringSize, ringSize),
+                                      (int)capacity,
+                                      this::isClosed);
+
+        return new ShmRingTransport(fifo, fromRing, toRing, myShmFilename);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "ShmRing:" + myShmFilename + ":" + super.toString();
+    }
+
+    /**
+     * Get a native-ordered slice of the given buffer.
+     */
+    private static ByteBuffer slice(final ByteBuffer buffer,
+                                    final long       offset,
+                                    final long       length)
+    {
+        final ByteBuffer dup = buffer.duplicate();
+        dup.position((int)offset);
+        dup.limit   ((int)(offset + length));
+        return dup.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * The method used to launch this externally.
+     */
+    public static void main(String[] args)
+        throws IOException
+    {
+        // Usage?
+        if (args.length < 3) {
+            System.err.println("ShmRingProvider in_fifo out_fifo shm_file [args]");
+            System.exit(1);
+        }
+
+        // Handle optional args
+        final Arguments arguments =
+            new Arguments(Arrays.copyOfRange(args, 3, args.length));
+
+        // And set it rolling
+        run(new ShmRingProvider(args[0], args[1], args[2]), arguments);
+    }
+}
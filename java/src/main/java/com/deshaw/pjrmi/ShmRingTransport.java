@@ -0,0 +1,513 @@
+package com.deshaw.pjrmi;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * An inter-process transport which passes bytes through a pair of
+ * single-producer/single-consumer ring buffers in a shared memory segment.
+ *
+ * <p>Each ring is laid out as:
+ * <pre>
+ *   +0    int64 : The number of bytes ever written, by the producer
+ *   +128  int64 : The number of bytes ever read, by the consumer
+ *   +256  int64 : Non-zero once the producer has closed its end
+ *   +512  bytes : The data, with a power-of-two capacity
+ * </pre>
+ * where the counters are on their own cache lines so that the two sides don't
+ * falsely share them. All values are in native byte order since both sides
+ * must be on the same host.
+ *
+ * <p>Since there is no kernel involvement, a side which is waiting for the
+ * other will spin for a little while, then yield, and then park for
+ * increasingly long periods, up to a millisecond. This means that a busy
+ * conversation never makes a system call but an idle one costs very little
+ * CPU.
+ */
+/*package*/ class ShmRingTransport
+    implements Transport
+{
+    /**
+     * One direction of the conversation.
+     */
+    /*package*/ static class Ring
+    {
+        /**
+         * How we access the counters, with the appropriate memory ordering.
+         */
+        private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class,
+                                                  ByteOrder.nativeOrder());
+
+        /**
+         * The offsets of the header values and data.
+         */
+        /*package*/ static final int HEAD_OFFSET   = 0;
+        /*package*/ static final int TAIL_OFFSET   = 128;
+        /*package*/ static final int CLOSED_OFFSET = 256;
+        /*package*/ static final int DATA_OFFSET   = 512;
+
+        /**
+         * How many times to spin before we start yielding. Spinning is
+         * pointless if we only have the one CPU, since the other side can't be
+         * running at the same time.
+         */
+        private static final int SPIN_COUNT =
+            (Runtime.getRuntime().availableProcessors() > 1) ? 10_000 : 0;
+
+        /**
+         * How many times to yield, after spinning, before we start parking.
+         */
+        private static final int YIELD_COUNT = 100;
+
+        /**
+         * When we start parking.
+         */
+        private static final int PARK_COUNT = SPIN_COUNT + YIELD_COUNT;
+
+        /**
+         * The longest time which we park for when waiting, in nanos.
+         */
+        private static final long MAX_PARK_NS = 1_000_000L;
+
+        /**
+         * The buffer which holds the ring. This is a slice of the shared
+         * segment. Only one thread may use a ring at once, since we move its
+         * position about.
+         */
+        private final ByteBuffer myBuffer;
+
+        /**
+         * The capacity of the data section, always a power of two.
+         */
+        private final int myCapacity;
+
+        /**
+         * {@code myCapacity - 1}, for wrapping the counters into indices.
+         */
+        private final int myMask;
+
+        /**
+         * How we tell whether the other side has gone away without closing
+         * its end.
+         */
+        private final BooleanSupplier myIsPeerGone;
+
+        /**
+         * Our local copy of the counter which we own, and the last-seen value
+         * of the one which the other side owns. We only ever use one pair of
+         * these, depending on whether we are the producer or the consumer.
+         */
+        private long myPosition;
+        private long myOtherPosition;
+
+        /**
+         * CTOR.
+         *
+         * @param buffer      The ring's part of the shared segment.
+         * @param capacity    The data capacity, a power of two.
+         * @param isPeerGone  Whether the other side has gone away.
+         */
+        public Ring(final ByteBuffer      buffer,
+                    final int             capacity,
+                    final BooleanSupplier isPeerGone)
+        {
+            if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException(
+                    "Capacity was not a power of two: " + capacity
+                );
+            }
+            if (buffer.capacity() < DATA_OFFSET + capacity) {
+                throw new IllegalArgumentException(
+                    "Buffer of size " + buffer.capacity() + " " +
+                    "is too small for a ring of capacity " + capacity
+                );
+            }
+
+            myBuffer     = buffer;
+            myCapacity   = capacity;
+            myMask       = capacity - 1;
+            myIsPeerGone = isPeerGone;
+
+            // These are refreshed from the segment as they are used
+            myPosition      = 0;
+            myOtherPosition = 0;
+        }
+
+        /**
+         * Write the given bytes into the ring, waiting for space as needed.
+         * This must only be called by the producer.
+         *
+         * @param b    The bytes to write.
+         * @param off  Where in {@code b} to start from.
+         * @param len  How many bytes to write.
+         *
+         * @throws IOException if the ring was closed or the consumer went away.
+         */
+        public void write(final byte[] b, int off, int len)
+            throws IOException
+        {
+            myPosition = (long)LONGS.getOpaque(myBuffer, HEAD_OFFSET);
+            while (len > 0) {
+                // See how much room we have, only looking at what the consumer
+                // has done if we seem to be full
+                int free = (int)(myCapacity - (myPosition - myOtherPosition));
+                for (int spins = 0; free <= 0; spins = nextSpin(spins)) {
+                    myOtherPosition =
+                        (long)LONGS.getAcquire(myBuffer, TAIL_OFFSET);
+                    free = (int)(myCapacity - (myPosition - myOtherPosition));
+                    if (free == 0) {
+                        if (isDone(spins)) {
+                            throw new EOFException("Ring closed");
+                        }
+                        idle(spins);
+                    }
+                }
+
+                // Copy in what we can, which may be in two parts if we wrap
+                final int count = Math.min(len, free);
+                final int index = (int)(myPosition & myMask);
+                final int first = Math.min(count, myCapacity - index);
+                myBuffer.position(DATA_OFFSET + index);
+                myBuffer.put(b, off, first);
+                if (first < count) {
+                    myBuffer.position(DATA_OFFSET);
+                    myBuffer.put(b, off + first, count - first);
+                }
+
+                // And publish it
+                myPosition += count;
+                off        += count;
+                len        -= count;
+                LONGS.setRelease(myBuffer, HEAD_OFFSET, myPosition);
+            }
+        }
+
+        /**
+         * Read up to {@code len} bytes from the ring, waiting until at least
+         * one is available. This must only be called by the consumer.
+         *
+         * @param b    Where to put the bytes.
+         * @param off  Where in {@code b} to start from.
+         * @param len  The most bytes to read.
+         *
+         * @return how many bytes were read, or {@code -1} on EOF.
+         */
+        public int read(final byte[] b, final int off, final int len)
+        {
+            if (len == 0) {
+                return 0;
+            }
+
+            // See how much there is to read, only looking at what the producer
+            // has done if we seem to be empty
+            myPosition = (long)LONGS.getOpaque(myBuffer, TAIL_OFFSET);
+            int available = (int)(myOtherPosition - myPosition);
+            for (int spins = 0; available <= 0; spins = nextSpin(spins)) {
+                myOtherPosition = (long)LONGS.getAcquire(myBuffer, HEAD_OFFSET);
+                available = (int)(myOtherPosition - myPosition);
+                if (available == 0) {
+                    // Only give up if there is nothing left to read. We need
+                    // to re-check after seeing the close since the producer
+                    // may have written just before it.
+                    if (isDone(spins)) {
+                        myOtherPosition =
+                            (long)LONGS.getAcquire(myBuffer, HEAD_OFFSET);
+                        if (myOtherPosition == myPosition) {
+                            return -1;
+                        }
+                    }
+                    else {
+                        idle(spins);
+                    }
+                }
+            }
+
+            // Copy out what we can, which may be in two parts if we wrap
+            final int count = Math.min(len, available);
+            final int index = (int)(myPosition & myMask);
+            final int first = Math.min(count, myCapacity - index);
+            myBuffer.position(DATA_OFFSET + index);
+            myBuffer.get(b, off, first);
+            if (first < count) {
+                myBuffer.position(DATA_OFFSET);
+                myBuffer.get(b, off + first, count - first);
+            }
+
+            // And tell the producer that the space is free
+            myPosition += count;
+            LONGS.setRelease(myBuffer, TAIL_OFFSET, myPosition);
+
+            return count;
+        }
+
+        /**
+         * Mark the ring as closed, so that the other side sees EOF.
+         */
+        public void close()
+        {
+            LONGS.setRelease(myBuffer, CLOSED_OFFSET, 1L);
+        }
+
+        /**
+         * Whether the ring has been marked as closed.
+         */
+        public boolean isClosed()
+        {
+            return (long)LONGS.getAcquire(myBuffer, CLOSED_OFFSET) != 0;
+        }
+
+        /**
+         * Whether we should stop waiting on the ring, since it's closed or the
+         * other side has gone away. Checking the latter may be expensive so we
+         * only do it every so often, once we have started parking.
+         */
+        private boolean isDone(final int spins)
+        {
+            return isClosed() ||
+                   (spins >= PARK_COUNT                 &&
+                    ((spins - PARK_COUNT) & 0xff) == 0 &&
+                    myIsPeerGone.getAsBoolean());
+        }
+
+        /**
+         * The number of times which we have waited, after having waited
+         * {@code spins} times. Once we are parking for the longest period this
+         * cycles, so that it can't overflow however long we wait, but it still
+         * comes back round to where {@link #isDone(int)} checks on the peer.
+         */
+        /*package*/ static int nextSpin(final int spins)
+        {
+            return (spins < PARK_COUNT + 0x1ff) ? spins + 1
+                                                : PARK_COUNT + 0x100;
+        }
+
+        /**
+         * Wait for a bit, having already waited the given number of times.
+         */
+        private static void idle(final int spins)
+        {
+            if (spins < SPIN_COUNT) {
+                Thread.onSpinWait();
+            }
+            else if (spins < PARK_COUNT) {
+                Thread.yield();
+            }
+            else {
+                // Back off, doubling each time until we hit the limit
+                final int shift = Math.min(20, (spins - PARK_COUNT) + 10);
+                LockSupport.parkNanos(Math.min(MAX_PARK_NS, 1L << shift));
+            }
+        }
+    }
+
+    /**
+     * An input stream which reads from the incoming ring.
+     */
+    private class RingInputStream
+        extends InputStream
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read()
+            throws IOException
+        {
+            final byte[] b = new byte[1];
+            final int read = read(b, 0, 1);
+            return (read < 0) ? -1 : Byte.toUnsignedInt(b[0]);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            return myFromRing.read(b, off, len);
+        }
+    }
+
+    /**
+     * An output stream which writes to the outgoing ring.
+     */
+    private class RingOutputStream
+        extends OutputStream
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            myToRing.write(b, off, len);
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    /**
+     * The FIFO which we hold open so as to know when the other side has gone
+     * away.
+     */
+    private final UnixFifoProvider.Fifo myFifo;
+
+    /**
+     * The ring which we read from.
+     */
+    private final Ring myFromRing;
+
+    /**
+     * The ring which we write to.
+     */
+    private final Ring myToRing;
+
+    /**
+     * Our input stream.
+     */
+    private final InputStream myInputStream;
+
+    /**
+     * Our output stream.
+     */
+    private final OutputStream myOutputStream;
+
+    /**
+     * Our description.
+     */
+    private final String myString;
+
+    /**
+     * CTOR.
+     *
+     * @param fifo      The FIFO which we hold open for the duration.
+     * @param fromRing  The ring which the other side writes to.
+     * @param toRing    The ring which we write to.
+     * @param name      The name of the shared memory segment.
+     */
+    public ShmRingTransport(final UnixFifoProvider.Fifo fifo,
+                            final Ring                  fromRing,
+                            final Ring                  toRing,
+                            final String                name)
+    {
+        myFifo         = fifo;
+        myFromRing     = fromRing;
+        myToRing       = toRing;
+        myInputStream  = new RingInputStream();
+        myOutputStream = new RingOutputStream();
+        myString       = "ShmRing:" + name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getUserName()
+    {
+        // Must be this
+        return System.getProperty("user.name");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InetAddress getRemoteAddress()
+    {
+        try {
+            return InetAddress.getLocalHost();
+        }
+        catch (UnknownHostException e) {
+            return InetAddress.getLoopbackAddress();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getInputStream()
+        throws IOException
+    {
+        return myInputStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream getOutputStream()
+        throws IOException
+    {
+        return myOutputStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        try {
+            myToRing.close();
+            myFifo.close();
+        }
+        catch (Throwable t) {
+            // Nothing
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return myFifo.isClosed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return myString;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLocalhost()
+    {
+        return true;
+    }
+}
@@ -0,0 +1,88 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * A transport provider for a raw socket connection which is backed by a
+ * {@link java.nio.channels.SocketChannel}.
+ *
+ * <p>On the wire this is identical to the {@link SocketProvider} but, since
+ * the underlying transport is a selectable channel, a {@link PJRmi} instance
+ * which has selector threads may multiplex many such connections over a small
+ * number of threads, instead of having a thread per connection.
+ *
+ * <p>The same caveats with regard to authentication apply here as they do for
+ * the {@link SocketProvider}.
+ *
+ * @see PJRmi#numSelectorThreads()
+ */
+public class SocketChannelProvider
+    implements Transport.Provider
+{
+    /**
+     * The server socket channel which we use.
+     */
+    private final ServerSocketChannel myServerChannel;
+
+    /**
+     * Our string representation.
+     */
+    private final String myString;
+
+    /**
+     * CTOR.
+     *
+     * @param port  The port to listen on.
+     *
+     * @throws IOException if there was a problem.
+     */
+    public SocketChannelProvider(int port)
+        throws IOException
+    {
+        myServerChannel = ServerSocketChannel.open();
+        myServerChannel.bind(new InetSocketAddress(port));
+        myString = "SocketChannel[" + port + "]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Transport accept()
+        throws IOException
+    {
+        return new SocketChannelTransport(myServerChannel.accept());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return myString;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        myServerChannel.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return !myServerChannel.isOpen();
+    }
+}
@@ -0,0 +1,469 @@
+package com.deshaw.pjrmi;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A raw socket transport which is backed by a {@link SocketChannel}.
+ *
+ * <p>The streams which this transport hands out work whether or not the
+ * channel is in blocking mode. This means that the handshake may be done using
+ * blocking I/O before the channel is handed over to a selector, after which
+ * only the output stream should be used.
+ *
+ * <p>Once the channel is in non-blocking mode, anything which it will not take
+ * straight away is queued up and handed to it by the selector's thread, via
+ * {@link #flushPendingOutput()}, when the selector says that it is writable.
+ * Writers only wait if too much output builds up.
+ */
+/*package*/ class SocketChannelTransport
+    implements Transport
+{
+    /**
+     * An input stream which reads from our channel.
+     */
+    private class ChannelInputStream
+        extends InputStream
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read()
+            throws IOException
+        {
+            final byte[] b = new byte[1];
+            final int read = read(b, 0, 1);
+            return (read < 0) ? -1 : Byte.toUnsignedInt(b[0]);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+
+            return readChannel(ByteBuffer.wrap(b, off, len), true);
+        }
+    }
+
+    /**
+     * An output stream which writes to our channel.
+     */
+    private class ChannelOutputStream
+        extends OutputStream
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            writeChannel(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    /**
+     * The most output which we will queue up, waiting for a non-blocking
+     * channel to take it, before writers have to wait.
+     */
+    private static final long MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+
+    /**
+     * Our channel.
+     */
+    private final SocketChannel myChannel;
+
+    /**
+     * Our input stream.
+     */
+    private final InputStream myInputStream;
+
+    /**
+     * Our output stream.
+     */
+    private final OutputStream myOutputStream;
+
+    /**
+     * Our description.
+     */
+    private final String myString;
+
+    /**
+     * Output which the channel has yet to take, oldest first. Writing is
+     * done holding this lock, so that the output stays in order.
+     */
+    private final Deque<ByteBuffer> myPendingOutput;
+
+    /**
+     * How many bytes there are in myPendingOutput.
+     */
+    private long myPendingBytes;
+
+    /**
+     * The key of the selector which sends our pending output, once the
+     * channel has been handed over to one. Guarded by myPendingOutput.
+     */
+    private SelectionKey myKey;
+
+    /**
+     * Guards myReadSelector.
+     */
+    private final Object myReadSelectorLock = new Object();
+
+    /**
+     * The selector which blocking reads wait on, if the channel is in
+     * non-blocking mode. Created on demand.
+     */
+    private volatile Selector myReadSelector;
+
+    /**
+     * CTOR.
+     */
+    public SocketChannelTransport(final SocketChannel channel)
+    {
+        this(channel, String.valueOf(channel.socket().getRemoteSocketAddress()));
+    }
+
+    /**
+     * CTOR with an explicit description, for channels which are not backed by
+     * an IP socket.
+     */
+    protected SocketChannelTransport(final SocketChannel channel,
+                                     final String        description)
+    {
+        myChannel      = channel;
+        myInputStream  = new ChannelInputStream();
+        myOutputStream = new ChannelOutputStream();
+        myString       = description;
+
+        myPendingOutput = new ArrayDeque<>();
+        myPendingBytes  = 0;
+        myKey           = null;
+        myReadSelector  = null;
+    }
+
+    /**
+     * Get the channel which underlies this transport.
+     */
+    public SocketChannel getChannel()
+    {
+        return myChannel;
+    }
+
+    /**
+     * Read whatever is available into the given buffer, without blocking. This
+     * is what a {@link PJRmi} multiplexer uses, once the channel is in
+     * non-blocking mode, in place of the input stream.
+     *
+     * @return the number of bytes read, possibly zero, or {@code -1} on EOF.
+     */
+    /*package*/ int read(final ByteBuffer buffer)
+        throws IOException
+    {
+        return myChannel.read(buffer);
+    }
+
+    /**
+     * Whether this transport is holding on to input which it has already read
+     * from the channel, but which {@link #read(ByteBuffer)} has yet to hand
+     * back. A selector will not tell us about such data so, if this is true,
+     * it should be read before waiting on the selector again.
+     *
+     * @return whether there is input pending.
+     */
+    /*package*/ boolean hasPendingInput()
+    {
+        return false;
+    }
+
+    /**
+     * Tell this transport about the key which it has been registered with,
+     * by the selector which will be reading from it. Any output which the
+     * channel will not take straight away is handed to it by that selector's
+     * thread, via {@link #flushPendingOutput()}.
+     */
+    /*package*/ void setSelectionKey(final SelectionKey key)
+    {
+        synchronized (myPendingOutput) {
+            myKey = key;
+            if (!myPendingOutput.isEmpty()) {
+                try {
+                    addWriteInterest();
+                }
+                catch (ClosedChannelException e) {
+                    // Nothing to do, the selector will drop us
+                }
+            }
+        }
+    }
+
+    /**
+     * Write out as much of our pending output as the channel will take,
+     * without blocking. This should be called by the selector's thread when
+     * the channel is writable.
+     *
+     * @throws IOException if the channel could not be written to.
+     */
+    /*package*/ void flushPendingOutput()
+        throws IOException
+    {
+        synchronized (myPendingOutput) {
+            try {
+                for (ByteBuffer buffer = myPendingOutput.peek();
+                     buffer != null;
+                     buffer = myPendingOutput.peek())
+                {
+                    myPendingBytes -= myChannel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        // The channel is full again
+                        break;
+                    }
+                    myPendingOutput.poll();
+                }
+
+                // Nothing more to wait for if we're all done
+                if (myPendingOutput.isEmpty() && myKey != null) {
+                    myKey.interestOps(myKey.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            }
+            finally {
+                // Let any waiting writers know that there is now room
+                myPendingOutput.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Read from the channel into the given buffer. If the channel is in
+     * non-blocking mode, and we were told to block, then we wait on a
+     * selector for some input to arrive.
+     *
+     * @param buffer  Where to read into.
+     * @param block   Whether to wait for data, if there is none.
+     *
+     * @return the number of bytes read, or {@code -1} on EOF.
+     */
+    protected int readChannel(final ByteBuffer buffer, final boolean block)
+        throws IOException
+    {
+        while (true) {
+            final int read = myChannel.read(buffer);
+            if (read != 0 || !block || !buffer.hasRemaining()) {
+                return read;
+            }
+
+            // A non-blocking channel had nothing for us so wait for it to
+            // have something
+            synchronized (myReadSelectorLock) {
+                try {
+                    if (myReadSelector == null) {
+                        myReadSelector = Selector.open();
+                        myChannel.register(myReadSelector, SelectionKey.OP_READ);
+                    }
+                    myReadSelector.select();
+                    myReadSelector.selectedKeys().clear();
+                }
+                catch (ClosedSelectorException e) {
+                    throw new ClosedChannelException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write all of the given buffer to the channel. If the channel is in
+     * non-blocking mode then whatever it won't take straight away is queued
+     * up, to be sent by our selector, and we only wait if there is already
+     * too much of that.
+     *
+     * @param buffer  What to write.
+     */
+    protected void writeChannel(final ByteBuffer buffer)
+        throws IOException
+    {
+        synchronized (myPendingOutput) {
+            // We may only write directly if nothing is waiting ahead of us. A
+            // blocking channel will take everything, a non-blocking one stops
+            // once it is full.
+            if (myPendingOutput.isEmpty()) {
+                while (buffer.hasRemaining() && myChannel.write(buffer) > 0) {
+                    // Nothing
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+
+            // Queue up the rest for the selector to send
+            final ByteBuffer pending = ByteBuffer.allocate(buffer.remaining());
+            pending.put(buffer).flip();
+            myPendingOutput.add(pending);
+            myPendingBytes += pending.remaining();
+            if (myKey != null) {
+                addWriteInterest();
+            }
+
+            // And hold off the writer if the other side isn't keeping up
+            while (myPendingBytes > MAX_PENDING_OUTPUT) {
+                if (!myChannel.isOpen()) {
+                    throw new ClosedChannelException();
+                }
+                try {
+                    myPendingOutput.wait();
+                }
+                catch (InterruptedException e) {
+                    throw new InterruptedIOException(
+                        "Interrupted waiting to write to " + this
+                    );
+                }
+            }
+        }
+    }
+
+    /**
+     * Ask our selector to tell us when the channel is writable. Must be called
+     * holding the myPendingOutput lock, with myKey set.
+     */
+    private void addWriteInterest()
+        throws ClosedChannelException
+    {
+        try {
+            myKey.interestOps(myKey.interestOps() | SelectionKey.OP_WRITE);
+            myKey.selector().wakeup();
+        }
+        catch (CancelledKeyException e) {
+            // The selector has dropped us, so this will never be sent
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InetAddress getRemoteAddress()
+    {
+        return myChannel.socket().getInetAddress();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getUserName()
+    {
+        // There's no way to know..!
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getInputStream()
+        throws IOException
+    {
+        return myInputStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream getOutputStream()
+        throws IOException
+    {
+        return myOutputStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        try {
+            myChannel.close();
+        }
+        catch (Throwable t) {
+            // Nothing
+        }
+
+        // Wake up anyone who is waiting to read or write
+        synchronized (myPendingOutput) {
+            myPendingOutput.notifyAll();
+        }
+        final Selector selector = myReadSelector;
+        if (selector != null) {
+            try {
+                selector.close();
+            }
+            catch (Throwable t) {
+                // Nothing
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return !myChannel.isOpen();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return myString;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLocalhost()
+    {
+        // As with the SocketTransport, we assume that we might not be on the
+        // same host
+        return false;
+    }
+}
@@ -0,0 +1,138 @@
+package com.deshaw.pjrmi;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * A transport provider which accepts connections on a Unix domain socket.
+ *
+ * <p>This is for the case where many clients on the same host want to talk to
+ * one server, without the overhead of the TCP stack and without the
+ * pre-arranged pairing which the {@link UnixFifoProvider} needs. Since all the
+ * clients are known to be local their transports report {@link
+ * Transport#isLocalhost()} as true, and so SHM argument passing may be used,
+ * and the kernel tells us the name of the user on the other end.
+ *
+ * <p>The underlying channels are {@link java.nio.channels.SocketChannel}s so a
+ * {@link PJRmi} instance with selector threads may multiplex them in the same
+ * way as it would for a {@link SocketChannelProvider}.
+ *
+ * <p>Unix domain socket channels were added in Java 16; on earlier runtimes
+ * the constructor will throw an {@link IOException}.
+ */
+public class UnixDomainSocketProvider
+    implements Transport.Provider
+{
+    /**
+     * The server socket channel which we use.
+     */
+    private final ServerSocketChannel myServerChannel;
+
+    /**
+     * The path of the socket.
+     */
+    private final String myPath;
+
+    /**
+     * CTOR.
+     *
+     * @param path  The filesystem path of the socket to listen on. This must
+     *              not already exist.
+     *
+     * @throws IOException if there was a problem, including this runtime not
+     *                     supporting Unix domain sockets.
+     */
+    public UnixDomainSocketProvider(final String path)
+        throws IOException
+    {
+        if (path == null) {
+            throw new NullPointerException("Given a null path");
+        }
+
+        // We go via reflection here so that we may still be built for, and
+        // run on, Java versions which predate Unix domain socket support
+        final ProtocolFamily family;
+        final SocketAddress  address;
+        try {
+            family  = StandardProtocolFamily.valueOf("UNIX");
+            address =
+                (SocketAddress)Class.forName("java.net.UnixDomainSocketAddress")
+                                    .getMethod("of", String.class)
+                                    .invoke(null, path);
+            myServerChannel =
+                (ServerSocketChannel)ServerSocketChannel.class
+                                                        .getMethod("open", ProtocolFamily.class)
+                                                        .invoke(null, family);
+        }
+        catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new IOException(
+                "Unix domain sockets are not supported by this runtime", e
+            );
+        }
+
+        try {
+            myServerChannel.bind(address);
+        }
+        catch (IOException e) {
+            myServerChannel.close();
+            throw e;
+        }
+        myPath = path;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Transport accept()
+        throws IOException
+    {
+        return new UnixDomainSocketTransport(myServerChannel.accept(), myPath);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "UnixDomainSocket[" + myPath + "]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        // Closing the channel does not remove the socket file so we do that
+        // ourselves
+        try {
+            myServerChannel.close();
+        }
+        finally {
+            try {
+                new File(myPath).delete();
+            }
+            catch (SecurityException e) {
+                // Nothing
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return !myServerChannel.isOpen();
+    }
+}
@@ -0,0 +1,90 @@
+package com.deshaw.pjrmi;
+
+import java.net.InetAddress;
+import java.net.SocketOption;
+import java.net.UnknownHostException;
+
+import java.nio.channels.SocketChannel;
+
+import java.nio.file.attribute.UserPrincipal;
+
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * A transport which is backed by a Unix domain socket. This is a {@link
+ * SocketChannelTransport} in all but name, except that we know that the other
+ * side is on the same host as us, and who it is.
+ */
+/*package*/ class UnixDomainSocketTransport
+    extends SocketChannelTransport
+{
+    /**
+     * The name of the user on the other end, if we know it.
+     */
+    private final String myUserName;
+
+    /**
+     * CTOR.
+     *
+     * @param channel  The accepted channel.
+     * @param path     The path of the socket which we accepted it on.
+     */
+    public UnixDomainSocketTransport(final SocketChannel channel,
+                                     final String        path)
+    {
+        super(channel, "UnixDomainSocket[" + path + "]");
+
+        // The kernel can tell us who is on the other end of the socket. This
+        // option, and the UnixDomainPrincipal which it gives back, only exist
+        // in Java 16 onwards so we go via reflection.
+        String userName;
+        try {
+            final SocketOption<?> option =
+                (SocketOption<?>)ExtendedSocketOptions.class
+                                                      .getField("SO_PEERCRED")
+                                                      .get(null);
+            final Object principal = channel.getOption(option);
+            userName =
+                ((UserPrincipal)principal.getClass()
+                                         .getMethod("user")
+                                         .invoke(principal)).getName();
+        }
+        catch (Exception e) {
+            userName = null;
+        }
+        myUserName = userName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InetAddress getRemoteAddress()
+    {
+        try {
+            return InetAddress.getLocalHost();
+        }
+        catch (UnknownHostException e) {
+            return InetAddress.getLoopbackAddress();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getUserName()
+    {
+        return myUserName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLocalhost()
+    {
+        // By definition
+        return true;
+    }
+}
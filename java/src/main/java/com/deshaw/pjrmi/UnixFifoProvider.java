@@ -199,12 +199,27 @@ public class UnixFifoProvider
         else {
             // Accepting for the first and only time
             myAccepted = true;
-            return new UnixFifoTransport(
-                new Fifo(myFromFifoname, myToFifoname)
-            );
+            return newTransport(new Fifo(myFromFifoname, myToFifoname));
         }
     }
 
+    /**
+     * Create the transport which will be used to talk over the given FIFO.
+     * Subclasses may override this to talk via some other means, in which
+     * case the FIFO may still be used to know when the other side has gone.
+     *
+     * @param fifo  The newly opened FIFO.
+     *
+     * @return the transport to use.
+     *
+     * @throws IOException if there was a problem creating the transport.
+     */
+    protected Transport newTransport(final Fifo fifo)
+        throws IOException
+    {
+        return new UnixFifoTransport(fifo);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -269,7 +284,17 @@ public class UnixFifoProvider
 
         // Create the PJRmi instance now, along with the transport we'll
         // need for it
-        final UnixFifoProvider provider = new UnixFifoProvider(args[0], args[1]);
+        run(new UnixFifoProvider(args[0], args[1]), arguments);
+    }
+
+    /**
+     * Create a PJRmi instance with the given provider and arguments, and run
+     * it in the current thread.
+     */
+    /*package*/ static void run(final UnixFifoProvider provider,
+                                final Arguments        arguments)
+        throws IOException
+    {
         final PJRmi pjrmi =
             new PJRmi("PJRmi", provider, arguments.useLocking)
             {
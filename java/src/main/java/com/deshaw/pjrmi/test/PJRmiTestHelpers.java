@@ -1,8 +1,15 @@
 package com.deshaw.pjrmi.test;
 
+import com.deshaw.pjrmi.PythonFunction;
+
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
 
 /**
  * Helper classes used in python PJRmi test cases.
@@ -294,6 +301,117 @@ public class PJRmiTestHelpers
 
     // ----------------------------------------------------------------------
 
+    // Methods for the batched callback test
+
+    /**
+     * Apply a Python function to a batch of arguments.
+     *
+     * @param function  The function to apply.
+     * @param args      The arguments to apply it to.
+     *
+     * @return the results.
+     */
+    public static List<?> applyBatch(final PythonFunction<?> function,
+                                     final List<?>           args)
+        throws Throwable
+    {
+        return function.applyBatch(args);
+    }
+
+    /**
+     * Apply a Python function to an array of arguments.
+     *
+     * @param function  The function to apply.
+     * @param args      The arguments to apply it to.
+     *
+     * @return the results.
+     */
+    public static double[] applyToArray(final PythonFunction<?> function,
+                                        final double[]          args)
+        throws Throwable
+    {
+        return function.applyToArray(args);
+    }
+
+    /**
+     * Apply a Python function to a stream of arguments, in batches.
+     *
+     * @param function   The function to apply.
+     * @param args       The arguments to apply it to.
+     * @param batchSize  The size of the batches.
+     *
+     * @return the results.
+     */
+    public static List<?> applyToStream(final PythonFunction<?> function,
+                                        final List<?>           args,
+                                        final int               batchSize)
+    {
+        return function.applyToStream(args.stream(), batchSize)
+                       .collect(Collectors.toList());
+    }
+
+    // ----------------------------------------------------------------------
+
+    // Methods for the primitive callback result test
+
+    /**
+     * Count the number of elements which match a predicate.
+     *
+     * @param predicate  The predicate to test with.
+     * @param args       The elements to test.
+     *
+     * @return the count.
+     */
+    public static int countMatching(final Predicate<Object> predicate,
+                                    final List<?>           args)
+    {
+        int count = 0;
+        for (Object arg : args) {
+            if (predicate.test(arg)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sum the results of applying a function to some elements.
+     *
+     * @param function  The function to apply.
+     * @param args      The elements to apply it to.
+     *
+     * @return the sum.
+     */
+    public static double sumAsDouble(final ToDoubleFunction<Object> function,
+                                     final List<?>                  args)
+    {
+        double sum = 0;
+        for (Object arg : args) {
+            sum += function.applyAsDouble(arg);
+        }
+        return sum;
+    }
+
+    /**
+     * Sum the results of applying a function to some elements.
+     *
+     * @param function  The function to apply.
+     * @param args      The elements to apply it to.
+     *
+     * @return the sum.
+     */
+    public static long sumAsInt(final ToIntFunction<Object> function,
+                                final List<?>               args)
+    {
+        long sum = 0;
+        for (Object arg : args) {
+            sum += function.applyAsInt(arg);
+        }
+        return sum;
+    }
+
+    // ----------------------------------------------------------------------
+
     // Method required for Python-side testing.
 
     /**
@@ -474,6 +474,34 @@ public class ByteList
         return appendNoCheck(data, offset, len);
     }
 
+    /**
+     * Removes the elements between {@code fromIndex}, inclusive, and {@code
+     * toIndex}, exclusive, from this list, shifting any following elements
+     * down.
+     *
+     * @param fromIndex  The index of the first element to remove.
+     * @param toIndex    The index after the last element to remove.
+     *
+     * @throws IndexOutOfBoundsException if {@code fromIndex} is negative, or
+     *                                   {@code toIndex} is larger than the
+     *                                   size of the list, or {@code toIndex} is
+     *                                   less than {@code fromIndex}.
+     */
+    public void removeRange(final int fromIndex, final int toIndex)
+        throws IndexOutOfBoundsException
+    {
+        if (fromIndex < 0 || toIndex > mySize || toIndex < fromIndex) {
+            throw new IndexOutOfBoundsException(
+                "fromIndex " + fromIndex + ", toIndex " + toIndex + ", " +
+                "size " + mySize
+            );
+        }
+
+        System.arraycopy(myData, toIndex, myData, fromIndex, mySize - toIndex);
+        mySize    -= (toIndex - fromIndex);
+        myToString = null;
+    }
+
     /**
      * Remove all the entries from this list.
      */
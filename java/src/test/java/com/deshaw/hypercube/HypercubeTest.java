@@ -246,6 +246,34 @@ public class HypercubeTest
         }
     }
 
+    /**
+     * Test the shared-memory hypercube, and that a second mapping of it sees
+     * the same values.
+     */
+    @Test
+    public void testDoubleShmHypercube()
+        throws IOException
+    {
+        final DoubleShmHypercube cube = new DoubleShmHypercube(DIMENSIONS);
+        try {
+            populate(cube);
+            check   (cube);
+            exercise(cube);
+
+            final DoubleMappedHypercube other =
+                new DoubleMappedHypercube(cube.getShmFilename(), DIMENSIONS);
+            for (long i=0; i < cube.getSize(); i++) {
+                assertEquals(cube.weakGetAt(i), other.weakGetAt(i));
+            }
+            other.weakSetAt(0, -1.0);
+            assertEquals(-1.0, cube.weakGetAt(0));
+        }
+        finally {
+            cube.close();
+        }
+        assertFalse(new File(cube.getShmFilename()).exists());
+    }
+
     /**
      * Test flattening and unflattening of an array-backed double cube.
      */
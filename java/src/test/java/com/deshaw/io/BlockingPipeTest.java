@@ -0,0 +1,209 @@
+package com.deshaw.io;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A unit test suite for testing {@link com.deshaw.io.BlockingPipe}.
+ */
+public class BlockingPipeTest
+{
+    /**
+     * Check that the capacity is rounded up to a power of two.
+     */
+    @Test
+    public void testCapacity()
+    {
+        assertEquals(   1, new BlockingPipe(   1).capacity());
+        assertEquals(   2, new BlockingPipe(   2).capacity());
+        assertEquals(   4, new BlockingPipe(   3).capacity());
+        assertEquals(1024, new BlockingPipe(1000).capacity());
+        assertEquals(1024, new BlockingPipe(1024).capacity());
+
+        assertThrows(IllegalArgumentException.class,
+                     () -> new BlockingPipe(0));
+        assertThrows(IllegalArgumentException.class,
+                     () -> new BlockingPipe(-1));
+    }
+
+    /**
+     * Send a known sequence of bytes through a small pipe, using a mix of
+     * single-byte and bulk operations of different sizes on either end, and
+     * make sure that it all comes out the same.
+     */
+    @Test
+    public void testMixedTransfer()
+        throws Exception
+    {
+        // Small enough that we wrap around a lot
+        final BlockingPipe pipe = new BlockingPipe(100);
+        final byte[] expected = new byte[1_000_000];
+        new Random(1234).nextBytes(expected);
+
+        // The writer
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final Thread writer = new Thread(() -> {
+            try {
+                final OutputStream os = pipe.getOutputStream();
+                final Random random = new Random(5678);
+                int offset = 0;
+                while (offset < expected.length) {
+                    if (random.nextInt(4) == 0) {
+                        os.write(expected[offset++]);
+                    }
+                    else {
+                        final int count =
+                            Math.min(expected.length - offset,
+                                     random.nextInt(3 * pipe.capacity()));
+                        os.write(expected, offset, count);
+                        offset += count;
+                    }
+                }
+                os.close();
+            }
+            catch (Throwable t) {
+                error.set(t);
+            }
+        });
+        writer.start();
+
+        // And read it all back in
+        final InputStream is = pipe.getInputStream();
+        final Random random = new Random(9012);
+        final byte[] actual = new byte[expected.length];
+        int offset = 0;
+        while (true) {
+            if (random.nextInt(4) == 0) {
+                final int b = is.read();
+                if (b < 0) {
+                    break;
+                }
+                actual[offset++] = (byte)b;
+            }
+            else {
+                final int count =
+                    is.read(actual,
+                            offset,
+                            Math.min(actual.length - offset,
+                                     1 + random.nextInt(2 * pipe.capacity())));
+                if (count < 0) {
+                    break;
+                }
+                assertTrue(count > 0 || offset == actual.length);
+                offset += count;
+            }
+        }
+        writer.join();
+
+        assertNull(error.get());
+        assertEquals(expected.length, offset);
+        assertArrayEquals(expected, actual);
+    }
+
+    /**
+     * Closing the pipe should give EOF to the reader, once it has drained
+     * it, and break it for the writer.
+     */
+    @Test
+    public void testClose()
+        throws IOException
+    {
+        final BlockingPipe pipe = new BlockingPipe(16);
+        final InputStream  is   = pipe.getInputStream();
+        final OutputStream os   = pipe.getOutputStream();
+
+        os.write(new byte[] { 1, 2, 3 }, 0, 3);
+        assertEquals(3, is.available());
+        os.close();
+
+        final byte[] buf = new byte[16];
+        assertEquals( 3, is.read(buf, 0, buf.length));
+        assertEquals(-1, is.read(buf, 0, buf.length));
+        assertEquals(-1, is.read());
+
+        assertThrows(IOException.class, () -> os.write(4));
+        assertThrows(IOException.class, () -> os.write(buf, 0, 1));
+    }
+
+    /**
+     * A simple throughput benchmark, which compares moving data a byte at a
+     * time with moving it in bulk. The bulk transfer should be a great deal
+     * faster. This is only run by the {@code benchmark} task.
+     */
+    @Test
+    @Tag("benchmark")
+    public void testThroughput()
+        throws Exception
+    {
+        final int  chunk     = 16 * 1024;
+        final long bulkBytes = 256L * 1024 * 1024;
+        final long byteBytes =   4L * 1024 * 1024;
+
+        final double bulkRate = throughput(bulkBytes, chunk);
+        final double byteRate = throughput(byteBytes, 1);
+        assertTrue(bulkRate > byteRate,
+                   "Bulk transfer, at " + bulkRate + "MB/s, was no faster " +
+                   "than byte-at-a-time, at " + byteRate + "MB/s");
+    }
+
+    /**
+     * Push the given number of bytes through a 64k pipe, in the given chunk
+     * sizes, and return the throughput in MB/s.
+     */
+    private static double throughput(final long total, final int chunk)
+        throws Exception
+    {
+        final BlockingPipe pipe = new BlockingPipe(64 * 1024);
+        final Thread writer = new Thread(() -> {
+            try {
+                final OutputStream os  = pipe.getOutputStream();
+                final byte[]       buf = new byte[chunk];
+                for (long sent = 0; sent < total; sent += chunk) {
+                    if (chunk == 1) {
+                        os.write(0);
+                    }
+                    else {
+                        os.write(buf, 0, chunk);
+                    }
+                }
+                os.close();
+            }
+            catch (IOException e) {
+                // Nothing, the reader will see a short count
+            }
+        });
+
+        final long start = System.nanoTime();
+        writer.start();
+        final InputStream is  = pipe.getInputStream();
+        final byte[]      buf = new byte[chunk];
+        long received = 0;
+        while (true) {
+            final int count =
+                (chunk == 1) ? ((is.read() < 0) ? -1 : 1)
+                             : is.read(buf, 0, chunk);
+            if (count < 0) {
+                break;
+            }
+            received += count;
+        }
+        final long elapsed = System.nanoTime() - start;
+        writer.join();
+
+        assertEquals(total, received);
+        return (received / (1024.0 * 1024.0)) / (elapsed / 1e9);
+    }
+}
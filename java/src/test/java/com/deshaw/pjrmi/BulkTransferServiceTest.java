@@ -0,0 +1,331 @@
+package com.deshaw.pjrmi;
+
+import com.deshaw.hypercube.DoubleHypercube;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A unit test suite for testing {@link BulkTransferService}.
+ */
+public class BulkTransferServiceTest
+{
+    /**
+     * How many side channels we use.
+     */
+    private static final int NUM_STREAMS = 4;
+
+    /**
+     * Send an array over a number of side channels, split unevenly and in a
+     * different byte order to the native one, and make sure that it is put
+     * back together correctly.
+     */
+    @Test
+    public void testArray()
+        throws Exception
+    {
+        final BulkTransferService service = new BulkTransferService(0);
+        try {
+            final BulkTransferService.Endpoint endpoint = service.newEndpoint();
+            final Socket[] sockets = connect(service, endpoint.getToken());
+
+            final double[] expected = new double[1_000_003];
+            final Random random = new Random(1234);
+            for (int i=0; i < expected.length; i++) {
+                expected[i] = random.nextDouble();
+            }
+            final ByteBuffer buffer =
+                ByteBuffer.allocate(expected.length * Double.BYTES)
+                          .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asDoubleBuffer().put(expected);
+
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            final Thread sender = send(sockets, 1, 0, buffer.array(), error);
+
+            final Object result =
+                endpoint.receive(1,
+                                 'd',
+                                 ByteOrder.LITTLE_ENDIAN,
+                                 new long[] { expected.length },
+                                 false);
+            sender.join();
+            assertNull(error.get());
+            assertArrayEquals(expected, (double[])result);
+
+            endpoint.close();
+        }
+        finally {
+            service.close();
+        }
+    }
+
+    /**
+     * Send a hypercube over the side channels.
+     */
+    @Test
+    public void testHypercube()
+        throws Exception
+    {
+        final BulkTransferService service = new BulkTransferService(0);
+        try {
+            final BulkTransferService.Endpoint endpoint = service.newEndpoint();
+            final Socket[] sockets = connect(service, endpoint.getToken());
+
+            final long[] shape = { 7, 11, 13 };
+            final ByteBuffer buffer =
+                ByteBuffer.allocate(7 * 11 * 13 * Double.BYTES);
+            for (int i=0; i < 7 * 11 * 13; i++) {
+                buffer.putDouble(i);
+            }
+
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            final Thread sender = send(sockets, 2, 0, buffer.array(), error);
+
+            final DoubleHypercube cube =
+                (DoubleHypercube)endpoint.receive(2,
+                                                  'd',
+                                                  ByteOrder.BIG_ENDIAN,
+                                                  shape,
+                                                  true);
+            sender.join();
+            assertNull(error.get());
+            assertArrayEquals(shape, cube.getShape());
+            for (int i=0; i < 7 * 11 * 13; i++) {
+                assertEquals(i, cube.getAt(i), 0.0);
+            }
+
+            endpoint.close();
+        }
+        finally {
+            service.close();
+        }
+    }
+
+    /**
+     * Closing the endpoint should fail any transfer which is in flight, rather
+     * than leaving it hanging.
+     */
+    @Test
+    public void testClose()
+        throws Exception
+    {
+        final BulkTransferService service = new BulkTransferService(0);
+        try {
+            final BulkTransferService.Endpoint endpoint = service.newEndpoint();
+            final Thread closer = new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException e) {
+                    // Nothing
+                }
+                endpoint.close();
+            });
+            closer.start();
+
+            final long start = System.nanoTime();
+            assertThrows(IOException.class,
+                         () -> endpoint.receive(3,
+                                                'i',
+                                                ByteOrder.BIG_ENDIAN,
+                                                new long[] { 10 },
+                                                false));
+            assertTrue(System.nanoTime() - start < 10_000_000_000L,
+                       "Took too long to fail");
+            closer.join();
+        }
+        finally {
+            service.close();
+        }
+    }
+
+    /**
+     * A part for a transfer which the main connection never asked for, since
+     * its request was handled without doing so, should be thrown away straight
+     * away. It should not hold up the parts behind it on the same channel.
+     */
+    @Test
+    public void testUnknownTransfer()
+        throws Exception
+    {
+        final BulkTransferService service = new BulkTransferService(0);
+        try {
+            final BulkTransferService.Endpoint endpoint = service.newEndpoint();
+            final Socket[] sockets = connect(service, endpoint.getToken());
+
+            // Request 0 refers to transfer 4, but it fails before asking for
+            // it. Request 1 refers to transfer 5, which is asked for.
+            endpoint.requestReceived(0);
+            endpoint.requestReceived(1);
+            endpoint.requestDone(0);
+
+            final byte[] bytes = new byte[1024 * Long.BYTES];
+            Arrays.fill(bytes, (byte)1);
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            final Thread unwanted = send(sockets, 4, 0, bytes, error);
+            unwanted.join();
+            final Thread wanted = send(sockets, 5, 1, bytes, error);
+
+            final long start = System.nanoTime();
+            final long[] result =
+                (long[])endpoint.receive(5,
+                                         'j',
+                                         ByteOrder.BIG_ENDIAN,
+                                         new long[] { 1024 },
+                                         false);
+            assertTrue(System.nanoTime() - start < 10_000_000_000L,
+                       "Took too long to discard the unknown transfer");
+            endpoint.requestDone(1);
+            wanted.join();
+            assertNull(error.get());
+            for (long value : result) {
+                assertEquals(0x0101010101010101L, value);
+            }
+
+            endpoint.close();
+        }
+        finally {
+            service.close();
+        }
+    }
+
+    /**
+     * A part which overlaps with one which we already have, or which claims a
+     * range which doesn't fit, should fail the transfer rather than making it
+     * look complete.
+     */
+    @Test
+    public void testBadParts()
+        throws Exception
+    {
+        final BulkTransferService service = new BulkTransferService(0);
+        try {
+            final BulkTransferService.Endpoint endpoint = service.newEndpoint();
+            final Socket[] sockets = connect(service, endpoint.getToken());
+
+            // Send the first half twice, which adds up to the right size
+            final byte[] half = new byte[8 * Long.BYTES];
+            sendPart(sockets[0], 6, 0, 0, half);
+            sendPart(sockets[1], 6, 0, 0, half);
+            assertThrows(IOException.class,
+                         () -> endpoint.receive(6,
+                                                'j',
+                                                ByteOrder.BIG_ENDIAN,
+                                                new long[] { 16 },
+                                                false));
+
+            // An offset and length which overflow when added
+            final DataOutputStream out =
+                new DataOutputStream(sockets[2].getOutputStream());
+            out.writeLong(7);
+            out.writeInt(0);
+            out.writeLong(Long.BYTES);
+            out.writeLong(Long.MAX_VALUE & ~(Long.BYTES - 1));
+            out.flush();
+            assertThrows(IOException.class,
+                         () -> endpoint.receive(7,
+                                                'j',
+                                                ByteOrder.BIG_ENDIAN,
+                                                new long[] { 16 },
+                                                false));
+
+            endpoint.close();
+        }
+        finally {
+            service.close();
+        }
+    }
+
+    /**
+     * Open the side channels to the given service.
+     */
+    private static Socket[] connect(final BulkTransferService service,
+                                    final long                token)
+        throws IOException
+    {
+        final Socket[] sockets = new Socket[NUM_STREAMS];
+        for (int i=0; i < sockets.length; i++) {
+            sockets[i] = new Socket("localhost", service.getPort());
+            final DataOutputStream out =
+                new DataOutputStream(sockets[i].getOutputStream());
+            out.writeLong(token);
+            out.writeInt(i);
+            out.flush();
+        }
+        return sockets;
+    }
+
+    /**
+     * Send the given bytes, as a transfer with the given ID, for the request
+     * with the given ID, over the side channels. Each channel gets a different
+     * amount, on eight-byte element boundaries.
+     */
+    private static Thread send(final Socket[]                   sockets,
+                               final long                       transferId,
+                               final int                        requestId,
+                               final byte[]                     bytes,
+                               final AtomicReference<Throwable> error)
+    {
+        final Thread thread = new Thread(() -> {
+            try {
+                final int numElems = bytes.length / Long.BYTES;
+                int start = 0;
+                for (int i=0; i < sockets.length; i++) {
+                    final int end =
+                        (i == sockets.length - 1) ? numElems
+                                                  : start + numElems / (2 << i);
+                    sendPart(sockets[i],
+                             transferId,
+                             requestId,
+                             start * Long.BYTES,
+                             Arrays.copyOfRange(bytes,
+                                                start * Long.BYTES,
+                                                end   * Long.BYTES));
+                    start = end;
+                }
+            }
+            catch (Throwable t) {
+                error.set(t);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Send a single part of a transfer over the given side channel.
+     */
+    private static void sendPart(final Socket socket,
+                                 final long   transferId,
+                                 final int    requestId,
+                                 final long   offset,
+                                 final byte[] bytes)
+        throws IOException
+    {
+        final DataOutputStream out =
+            new DataOutputStream(socket.getOutputStream());
+        out.writeLong(transferId);
+        out.writeInt(requestId);
+        out.writeLong(offset);
+        out.writeLong(bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+}
@@ -0,0 +1,145 @@
+package com.deshaw.pjrmi;
+
+import com.deshaw.util.concurrent.VirtualThreadLock;
+import com.deshaw.util.concurrent.VirtualThreadLock.VirtualThread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for how PJRmi handles control messages, like UNLOCK, which are
+ * dealt with as soon as they are read instead of going to a worker.
+ */
+public class ControlMessageTest
+{
+    /**
+     * Control messages should be handled promptly even when the connection's
+     * output is backed up behind data-plane replies which the client is not
+     * reading.
+     */
+    @Test
+    public void testNotHeldUpBySlowReplies()
+        throws Exception
+    {
+        final int port = SocketChannelTransportTest.freePort();
+        final PJRmi pjrmi =
+            new PJRmi("ControlMessageTest", new SocketProvider(port), false) {
+                @Override
+                protected boolean isUserPermitted(CharSequence username)
+                {
+                    return true;
+                }
+
+                @Override
+                protected int numWorkers()
+                {
+                    return 2;
+                }
+
+                @Override
+                protected boolean useWorkerPool()
+                {
+                    return true;
+                }
+
+                @Override
+                protected int maxPooledWorkers()
+                {
+                    return 2;
+                }
+
+                @Override
+                protected Object getObjectInstance(CharSequence name)
+                {
+                    return null;
+                }
+            };
+        pjrmi.start();
+        try (TestClient client = new TestClient(port)) {
+            // Take two locks from a client thread
+            final long lockThreadId = 1;
+            client.send('L', lockThreadId, 0, lockName("a"));
+            client.send('L', lockThreadId, 1, lockName("b"));
+            client.flush();
+            assertEquals('f', client.receive().type);
+            assertEquals('f', client.receive().type);
+
+            // Now make a lot of requests, from another thread, and don't read
+            // the replies. This will leave the workers stuck trying to send.
+            final int numRequests = 5000;
+            final byte[] request = TestClient.typeRequest("java.lang.String");
+            for (int i=0; i < numRequests; i++) {
+                client.send('D', 2, i, request);
+            }
+            client.flush();
+            Thread.sleep(500);
+
+            // Release both locks. The first's ACK can't be sent yet, but that
+            // shouldn't stop the second from being handled.
+            client.send('M', lockThreadId, 2, lockName("a"));
+            client.send('M', lockThreadId, 3, lockName("b"));
+            client.flush();
+            // (We poll since a timed tryLock() would hold the lock manager's
+            // monitor, and so keep the unlock out.)
+            final Lock lock = pjrmi.getLockManager().getExclusiveLockFor("b");
+            VirtualThreadLock.setThread(new VirtualThread("ControlMessageTest"));
+            try {
+                final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                boolean locked = false;
+                while (!locked && System.nanoTime() < deadline) {
+                    locked = lock.tryLock();
+                    if (!locked) {
+                        Thread.sleep(10);
+                    }
+                }
+                assertTrue(locked);
+                lock.unlock();
+            }
+            finally {
+                VirtualThreadLock.setThread(null);
+            }
+
+            // And everything should come back once we do read
+            int numReplies = 0;
+            int numAcks    = 0;
+            while (numReplies < numRequests || numAcks < 2) {
+                final TestClient.Message reply = client.receive();
+                if (reply.type == 'f') {
+                    assertEquals(lockThreadId, reply.threadId);
+                    numAcks++;
+                }
+                else {
+                    assertEquals('b', reply.type);
+                    numReplies++;
+                }
+            }
+            assertEquals(numRequests, numReplies);
+            assertEquals(2, numAcks);
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * Build the payload for a LOCK or UNLOCK request.
+     */
+    private static byte[] lockName(final String name)
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream      out   = new DataOutputStream(bytes);
+        out.writeInt(name.length());
+        out.writeBytes(name);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,177 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for requests which are sent with a deadline, see {@link
+ * DeadlineExceededException}.
+ */
+public class DeadlineTest
+{
+    /**
+     * Requests whose deadlines have passed should be dropped, when there are
+     * no workers, and others should be handled as normal.
+     */
+    @Test
+    public void testInline()
+        throws Exception
+    {
+        final int port = SocketChannelTransportTest.freePort();
+        final PJRmi pjrmi = newPJRmi(port, 0);
+        pjrmi.start();
+        try (TestClient client = new TestClient(port)) {
+            // Plenty of time, and already expired
+            client.send('Y', 1, 0, TestClient.withDeadline(
+                60_000, 'A', TestClient.instanceRequest("instance")
+            ));
+            client.send('Y', 1, 1, TestClient.withDeadline(
+                0, 'A', TestClient.instanceRequest("instance")
+            ));
+            client.flush();
+
+            final TestClient.Message handled = client.receive();
+            assertEquals('a', handled.type);
+            assertEquals(0,   handled.reqId);
+
+            final TestClient.Message dropped = client.receive();
+            assertEquals('d', dropped.type);
+            assertEquals(1,   dropped.reqId);
+
+            assertEquals(1, pjrmi.getNumExpiredRequests());
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * Requests which expire while they are waiting for a worker should be
+     * dropped when they get to one.
+     */
+    @Test
+    public void testExpiredWhileQueued()
+        throws Exception
+    {
+        final int port = SocketChannelTransportTest.freePort();
+        final PJRmi pjrmi = newPJRmi(port, 1);
+        pjrmi.start();
+        try (TestClient client = new TestClient(port)) {
+            // The first request keeps the only worker busy, so the second one
+            // expires while it waits, but the third one has time to spare
+            client.send('A', 1, 0, TestClient.instanceRequest("slow"));
+            client.send('Y', 1, 1, TestClient.withDeadline(
+                50, 'A', TestClient.instanceRequest("instance")
+            ));
+            client.send('Y', 1, 2, TestClient.withDeadline(
+                60_000, 'A', TestClient.instanceRequest("instance")
+            ));
+            client.flush();
+
+            final Map<Integer,Character> replies = new HashMap<>();
+            for (int i=0; i < 3; i++) {
+                final TestClient.Message reply = client.receive();
+                replies.put(reply.reqId, reply.type);
+            }
+            assertEquals(Character.valueOf('a'), replies.get(0));
+            assertEquals(Character.valueOf('d'), replies.get(1));
+            assertEquals(Character.valueOf('a'), replies.get(2));
+
+            assertEquals(1, pjrmi.getNumExpiredRequests());
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * Malformed deadlines should be rejected, without upsetting the
+     * connection.
+     */
+    @Test
+    public void testMalformed()
+        throws Exception
+    {
+        final int port = SocketChannelTransportTest.freePort();
+        final PJRmi pjrmi = newPJRmi(port, 1);
+        pjrmi.start();
+        try (TestClient client = new TestClient(port)) {
+            // Too short, and nested
+            client.send('Y', 1, 0, new byte[4]);
+            client.flush();
+            assertEquals('d', client.receive().type);
+
+            client.send('Y', 1, 1, TestClient.withDeadline(
+                60_000, 'Y', TestClient.withDeadline(
+                    60_000, 'A', TestClient.instanceRequest("instance")
+                )
+            ));
+            client.flush();
+            assertEquals('d', client.receive().type);
+
+            // And we can still talk
+            client.send('A', 1, 2, TestClient.instanceRequest("instance"));
+            client.flush();
+            assertEquals('a', client.receive().type);
+
+            assertEquals(0, pjrmi.getNumExpiredRequests());
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * Create a PJRmi instance, with the given number of workers, listening on
+     * the given port. Asking it for the "slow" instance takes a little while.
+     */
+    private static PJRmi newPJRmi(final int port, final int numWorkers)
+        throws IOException
+    {
+        return new PJRmi("DeadlineTest", new SocketProvider(port), false) {
+            @Override
+            protected boolean isUserPermitted(CharSequence username)
+            {
+                return true;
+            }
+
+            @Override
+            protected int numWorkers()
+            {
+                return numWorkers;
+            }
+
+            @Override
+            protected boolean useWorkerPool()
+            {
+                return true;
+            }
+
+            @Override
+            protected int maxPooledWorkers()
+            {
+                return numWorkers;
+            }
+
+            @Override
+            protected Object getObjectInstance(CharSequence name)
+            {
+                if ("slow".contentEquals(name)) {
+                    try {
+                        Thread.sleep(500);
+                    }
+                    catch (InterruptedException e) {
+                        // Nothing
+                    }
+                }
+                return name.toString();
+            }
+        };
+    }
+}
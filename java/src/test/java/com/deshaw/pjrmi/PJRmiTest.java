@@ -1,14 +1,21 @@
 package com.deshaw.pjrmi;
 
+import com.deshaw.pjrmi.PythonCallbackException;
 import com.deshaw.pjrmi.PythonFunction;
 import com.deshaw.pjrmi.PythonMinion;
 import com.deshaw.pjrmi.PythonMinionProvider;
 import com.deshaw.pjrmi.PythonObject;
 
+import java.io.IOException;
+
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.function.BiConsumer;
 
 import org.junit.jupiter.api.Test;
@@ -46,6 +53,125 @@ public class PJRmiTest
         assertEquals(Byte.valueOf((byte)5), PYTHON.eval("len('hello')"));
     }
 
+    /**
+     * Test prepare().
+     */
+    @Test
+    public void testPythonPrepare()
+        throws Throwable
+    {
+        checkPrepare(PYTHON);
+    }
+
+    /**
+     * Test the default implementation of prepare(), which minions which don't
+     * provide their own get.
+     */
+    @Test
+    public void testDefaultPrepare()
+        throws Throwable
+    {
+        // Hand everything apart from prepare() to the real minion
+        checkPrepare(
+            new PythonMinion() {
+                @Override
+                public void exec(final String string)
+                    throws IOException,
+                           PythonCallbackException
+                {
+                    PYTHON.exec(string);
+                }
+
+                @Override
+                public <T> T eval(final String string, final Class<T> returnType)
+                    throws IOException,
+                           PythonCallbackException
+                {
+                    return PYTHON.eval(string, returnType);
+                }
+
+                @Override
+                public void setGlobalVariable(final String name, final Object value)
+                    throws IOException,
+                           PythonCallbackException
+                {
+                    PYTHON.setGlobalVariable(name, value);
+                }
+
+                @Override
+                public <T> T invoke(final String    functionName,
+                                    final Class<T>  returnType,
+                                    final Object... args)
+                    throws IOException,
+                           PythonCallbackException
+                {
+                    return PYTHON.invoke(functionName, returnType, args);
+                }
+
+                @Override
+                public PythonObject getObject(final String string,
+                                              final String name)
+                    throws Throwable
+                {
+                    return PYTHON.getObject(string, name);
+                }
+
+                @Override
+                public PythonObject invokeAndGetObject(final String    functionName,
+                                                       final Object... args)
+                    throws Throwable
+                {
+                    return PYTHON.invokeAndGetObject(functionName, args);
+                }
+
+                @Override
+                public void close()
+                {
+                    // Nothing, the real minion is shared
+                }
+            }
+        );
+    }
+
+    /**
+     * Check that the given minion's prepare() works.
+     */
+    private static void checkPrepare(final PythonMinion python)
+        throws Throwable
+    {
+        // Expressions give back their values, for each set of locals
+        final PythonMinion.PreparedCode add = python.prepare("x + len(y)");
+        final Map<String,Object> locals = new HashMap<>();
+        for (int i=0; i < 3; i++) {
+            locals.put("x", i);
+            locals.put("y", "hello");
+            assertEquals(i + 5, add.invoke(Integer.class, locals).intValue());
+        }
+
+        // Statements give back nothing, and don't leak their locals
+        final PythonMinion.PreparedCode statements =
+            python.prepare("z = x * 2\nassert z == 4");
+        locals.put("x", 2);
+        assertEquals(null, statements.invoke(locals));
+        locals.put("x", 3);
+        try {
+            statements.invoke(locals);
+            fail();
+        }
+        catch (Exception e) {
+            // pass
+        }
+
+        // Bad code fails up front
+        try {
+            python.prepare("1 +");
+            fail();
+        }
+        catch (Exception e) {
+            // pass
+        }
+    }
+
     /**
      * Test invoke().
      */
@@ -56,6 +182,44 @@ public class PJRmiTest
         assertEquals(Byte.valueOf((byte)5), PYTHON.invoke("len", "hello"));
     }
 
+    /**
+     * Test invokeAsync() and evalAsync().
+     */
+    @Test
+    public void testPythonAsync()
+        throws Throwable
+    {
+        // Have many calls outstanding at once, which sleep in Python so that
+        // they overlap
+        PYTHON.exec("import time");
+        PYTHON.exec("def slow_len(s):\n    time.sleep(0.1)\n    return len(s)");
+        final long start = System.nanoTime();
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i=0; i < 20; i++) {
+            futures.add(PYTHON.invokeAsync("slow_len", Integer.class, "x".repeat(i)));
+        }
+        for (int i=0; i < futures.size(); i++) {
+            assertEquals(i, futures.get(i).get().intValue());
+        }
+
+        // Which they should have, since one after the other would take 2s
+        final long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMs < 1_000,
+                   "20 overlapping calls took " + elapsedMs + "ms");
+
+        // Evals work the same way
+        assertEquals(Byte.valueOf((byte)2), PYTHON.evalAsync("1 + 1").get());
+
+        // Failures come back via the future
+        try {
+            PYTHON.evalAsync("1 / 0").get();
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PythonCallbackException);
+        }
+    }
+
     /**
      * Test setGlobalVariable().
      */
@@ -152,6 +316,22 @@ public class PJRmiTest
         final PythonFunction<String> f2 = c.getMethod(String.class, "f");
         assertEquals("FOO", f2.invoke());
 
+        // And by binding to it, which should also handle arguments
+        final PythonFunction<String> f3 = c.bind(String.class, "f");
+        assertEquals("FOO", f3.invoke());
+        final PythonFunction<PythonObject> c3 = c.bind("c");
+        assertEquals(Integer.valueOf(4), c3.invoke(3).getattr(Integer.class, "i"));
+        assertEquals(Integer.valueOf(5), c3.invoke(4).getattr(Integer.class, "i"));
+
+        // Binding to something missing fails up front
+        try {
+            c.bind("missing");
+            fail();
+        }
+        catch (NoSuchFieldException e) {
+            // pass
+        }
+
         // Get a method handle and invoke it to raise an exception
         @SuppressWarnings("unchecked")
         final PythonFunction<String> g = c.getattr(PythonFunction.class, "g");
@@ -0,0 +1,94 @@
+package com.deshaw.pjrmi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * A unit test suite for testing the batch methods of {@link PythonFunction}.
+ */
+public class PythonFunctionTest
+{
+    /**
+     * A function which records the batches it is given.
+     */
+    private static class Recorder
+        implements PythonFunction<Integer>
+    {
+        public final List<Integer> batchSizes = new ArrayList<>();
+
+        @Override
+        public Integer invoke(final Object... args)
+        {
+            return ((Number)args[0]).intValue() + 1;
+        }
+
+        @Override
+        public List<Integer> applyBatch(final List<?> args)
+            throws Throwable
+        {
+            batchSizes.add(args.size());
+            return PythonFunction.super.applyBatch(args);
+        }
+    }
+
+    /**
+     * The defaults should call the function for each element.
+     */
+    @Test
+    public void testDefaults()
+        throws Throwable
+    {
+        final PythonFunction<Integer> function =
+            args -> ((Number)args[0]).intValue() * 2;
+
+        assertEquals(Arrays.asList(2, 4, 6),
+                     function.applyBatch(Arrays.asList(1, 2, 3)));
+        assertArrayEquals(new double[] { 0.0, 2.0, 4.0 },
+                          function.applyToArray(new double[] { 0.0, 1.0, 2.0 }),
+                          0.0);
+        assertEquals(Arrays.asList(), function.applyBatch(Arrays.asList()));
+    }
+
+    /**
+     * Streams should be handed to the function in batches, in order.
+     */
+    @Test
+    public void testStreams()
+    {
+        final Recorder recorder = new Recorder();
+        final List<Integer> result =
+            recorder.applyToStream(IntStream.range(0, 10).boxed(), 4)
+                    .collect(Collectors.toList());
+        assertEquals(IntStream.range(1, 11).boxed().collect(Collectors.toList()),
+                     result);
+        assertEquals(Arrays.asList(4, 4, 2), recorder.batchSizes);
+
+        // Nothing is done until the stream is consumed, and then only as much
+        // as is needed
+        final Recorder lazy = new Recorder();
+        final Stream<Integer> stream =
+            lazy.applyToStream(IntStream.range(0, 10).boxed(), 3);
+        assertEquals(Arrays.asList(), lazy.batchSizes);
+        assertEquals(Arrays.asList(1, 2),
+                     stream.limit(2).collect(Collectors.toList()));
+        assertEquals(Arrays.asList(3), lazy.batchSizes);
+
+        // Bad batch sizes and failures
+        assertThrows(IllegalArgumentException.class,
+                     () -> recorder.applyToStream(Stream.of(1), 0));
+        final PythonFunction<Integer> failing =
+            args -> { throw new IllegalStateException("Bang"); };
+        assertThrows(RuntimeException.class,
+                     () -> failing.applyToStream(Stream.of(1), 1).count());
+    }
+}
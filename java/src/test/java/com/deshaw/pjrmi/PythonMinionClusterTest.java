@@ -0,0 +1,292 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A unit test suite for testing {@link PythonMinionCluster}. We use fake
+ * minions here, so that we don't need a Python process for each one.
+ */
+public class PythonMinionClusterTest
+{
+    /**
+     * A minion which knows how to do a handful of things.
+     */
+    private static class FakeMinion
+        implements PythonMinion
+    {
+        public final List<String> execs = new ArrayList<>();
+        public volatile CountDownLatch entered = null;
+        public volatile CountDownLatch block = null;
+        public volatile boolean isClosed = false;
+
+        @Override
+        public synchronized void exec(final String string)
+        {
+            execs.add(string);
+        }
+
+        @Override
+        public <T> T eval(final String string, final Class<T> returnType)
+        {
+            return returnType.cast(this);
+        }
+
+        @Override
+        public void setGlobalVariable(final String name, final Object value)
+        {
+            exec(name + " = " + value);
+        }
+
+        @Override
+        public <T> T invoke(final String    functionName,
+                            final Class<T>  returnType,
+                            final Object... args)
+            throws IOException
+        {
+            if (block != null) {
+                entered.countDown();
+                try {
+                    block.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            switch (functionName) {
+            case "_pjrmi_cluster_map": {
+                assertEquals("negate", ((ByValue)args[0]).get());
+                final List<Object> result = new ArrayList<>();
+                for (Object item : (List<?>)((ByValue)args[1]).get()) {
+                    result.add(-(Integer)item);
+                }
+                return returnType.cast(result);
+            }
+
+            case "negate": {
+                final double[] values = ((double[])((ByValue)args[0]).get()).clone();
+                for (int i=0; i < values.length; i++) {
+                    values[i] = -values[i];
+                }
+                return returnType.cast(values);
+            }
+
+            case "fail":
+                throw new IOException("Failed");
+
+            default:
+                return returnType.cast(this);
+            }
+        }
+
+        @Override
+        public PythonObject getObject(final String string, final String name)
+        {
+            return null;
+        }
+
+        @Override
+        public PythonObject invokeAndGetObject(final String functionName,
+                                               final Object... args)
+        {
+            return null;
+        }
+
+        @Override
+        public PreparedCode prepare(final String source)
+        {
+            exec("prepare " + source);
+            return new PreparedCode() {
+                @Override
+                public <T> T invoke(final Class<T>           returnType,
+                                    final Map<String,Object> locals)
+                {
+                    return returnType.cast(FakeMinion.this);
+                }
+            };
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return isClosed;
+        }
+
+        @Override
+        public void close()
+        {
+            isClosed = true;
+        }
+    }
+
+    /**
+     * Execs should go everywhere, and keyed calls to the same place.
+     */
+    @Test
+    public void testRouting()
+        throws Exception
+    {
+        final List<FakeMinion> minions = new ArrayList<>();
+        try (PythonMinionCluster cluster = newCluster(minions, 3)) {
+            cluster.exec("import math");
+            cluster.setGlobalVariable("x", 1);
+            for (FakeMinion minion : minions) {
+                assertTrue(minion.execs.contains("import math"));
+                assertTrue(minion.execs.contains("x = 1"));
+            }
+
+            final PythonMinion sticky = cluster.forKey("key");
+            final Object first = sticky.eval("self", Object.class);
+            for (int i=0; i < 10; i++) {
+                assertSame(first, sticky.eval("self", Object.class));
+                assertSame(first, cluster.forKey("key").invoke("self", Object.class));
+            }
+
+            // With nothing in flight we should go round all the members
+            final Set<Object> seen = ConcurrentHashMap.newKeySet();
+            for (int i=0; i < 3; i++) {
+                seen.add(cluster.invoke("self", Object.class));
+            }
+            assertEquals(3, seen.size());
+
+            // Asynchronous calls should be spread around too, once complete
+            seen.clear();
+            for (int i=0; i < 3; i++) {
+                seen.add(cluster.invokeAsync("self", Object.class).get());
+            }
+            assertEquals(3, seen.size());
+            assertSame(first, cluster.forKey("key").evalAsync("self").get());
+
+            // And failures should come back via the future
+            final CompletableFuture<Object> failed = cluster.invokeAsync("fail");
+            final ExecutionException e =
+                assertThrows(ExecutionException.class, failed::get);
+            assertTrue(e.getCause() instanceof IOException);
+
+            // Prepared code is compiled everywhere, and run anywhere
+            final PythonMinion.PreparedCode code = cluster.prepare("self");
+            for (FakeMinion minion : minions) {
+                assertTrue(minion.execs.contains("prepare self"));
+            }
+            seen.clear();
+            for (int i=0; i < 3; i++) {
+                seen.add(code.invoke(null));
+            }
+            assertEquals(3, seen.size());
+        }
+        for (FakeMinion minion : minions) {
+            assertTrue(minion.isClosed);
+        }
+    }
+
+    /**
+     * Calls should avoid members which are busy.
+     */
+    @Test
+    public void testLoadBalancing()
+        throws Exception
+    {
+        final List<FakeMinion> minions = new ArrayList<>();
+        try (PythonMinionCluster cluster = newCluster(minions, 2)) {
+            // Keep the first member busy
+            final PythonMinion busy = cluster.forKey(0);
+            final FakeMinion busyMinion = (FakeMinion)busy.eval("self", Object.class);
+            final CountDownLatch latch = new CountDownLatch(1);
+            busyMinion.entered = new CountDownLatch(1);
+            busyMinion.block   = latch;
+            final Thread thread = new Thread(() -> {
+                try {
+                    busy.invoke("self", Object.class);
+                }
+                catch (Exception e) {
+                    // Nothing
+                }
+            });
+            thread.start();
+            busyMinion.entered.await();
+
+            for (int i=0; i < 10; i++) {
+                assertNotSame(busyMinion, cluster.invoke("self", Object.class));
+            }
+            latch.countDown();
+            thread.join();
+            busyMinion.block = null;
+
+            // Dead members should be skipped
+            busyMinion.isClosed = true;
+            for (int i=0; i < 10; i++) {
+                assertNotSame(busyMinion, cluster.invoke("self", Object.class));
+            }
+        }
+    }
+
+    /**
+     * Mapping should give back the results in order, and surface failures.
+     */
+    @Test
+    public void testMap()
+        throws Exception
+    {
+        final List<FakeMinion> minions = new ArrayList<>();
+        try (PythonMinionCluster cluster = newCluster(minions, 4)) {
+            final List<Integer> items = new ArrayList<>();
+            final double[] values = new double[1001];
+            for (int i=0; i < values.length; i++) {
+                items.add(i);
+                values[i] = i;
+            }
+
+            final List<Object> mapped = cluster.map("negate", items);
+            assertEquals(items.size(), mapped.size());
+            for (int i=0; i < items.size(); i++) {
+                assertEquals(-i, mapped.get(i));
+            }
+            assertEquals(3, cluster.map("negate", items.subList(0, 3), 2).size());
+            assertEquals(0, cluster.map("negate", new ArrayList<>()).size());
+
+            final double[] negated = cluster.map("negate", values, 7);
+            for (int i=0; i < values.length; i++) {
+                assertEquals(-values[i], negated[i], 0.0);
+            }
+            assertArrayEquals(new double[0], cluster.map("negate", new double[0]));
+
+            assertThrows(IOException.class, () -> cluster.map("fail", values));
+        }
+    }
+
+    /**
+     * Create a cluster of fake minions, remembering the ones which it spawns.
+     */
+    private static PythonMinionCluster newCluster(final List<FakeMinion> minions,
+                                                  final int              size)
+        throws IOException
+    {
+        return new PythonMinionCluster(
+            () -> {
+                final FakeMinion minion = new FakeMinion();
+                synchronized (minions) {
+                    minions.add(minion);
+                }
+                return minion;
+            },
+            size
+        );
+    }
+}
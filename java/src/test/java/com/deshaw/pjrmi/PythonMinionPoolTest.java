@@ -0,0 +1,202 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A unit test suite for testing {@link PythonMinionPool}. We use fake minions
+ * here, so that we don't need a Python process for each one.
+ */
+public class PythonMinionPoolTest
+{
+    /**
+     * A minion which just remembers what it was asked to exec.
+     */
+    private static class FakeMinion
+        implements PythonMinion
+    {
+        public final List<String> execs = new ArrayList<>();
+        public volatile boolean isClosed = false;
+        public volatile boolean failExec = false;
+
+        @Override
+        public void exec(final String string)
+            throws IOException
+        {
+            if (failExec) {
+                throw new IOException("Failed");
+            }
+            execs.add(string);
+        }
+
+        @Override
+        public <T> T eval(final String string, final Class<T> returnType)
+        {
+            return null;
+        }
+
+        @Override
+        public void setGlobalVariable(final String name, final Object value)
+        {
+            // Nothing
+        }
+
+        @Override
+        public <T> T invoke(final String    functionName,
+                            final Class<T>  returnType,
+                            final Object... args)
+        {
+            return null;
+        }
+
+        @Override
+        public PythonObject getObject(final String string, final String name)
+        {
+            return null;
+        }
+
+        @Override
+        public PythonObject invokeAndGetObject(final String functionName,
+                                               final Object... args)
+        {
+            return null;
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return isClosed;
+        }
+
+        @Override
+        public void close()
+        {
+            isClosed = true;
+        }
+    }
+
+    /**
+     * Minions should be warmed up, reset when given back, and the same one
+     * should be handed out again.
+     */
+    @Test
+    public void testLeaseAndReturn()
+        throws Exception
+    {
+        final List<FakeMinion> spawned = new ArrayList<>();
+        try (PythonMinionPool pool = newPool(spawned, 1)) {
+            final PythonMinionPool.Lease lease = pool.lease(10, TimeUnit.SECONDS);
+            assertNotNull(lease);
+            assertEquals(1, spawned.size());
+            final FakeMinion minion = spawned.get(0);
+            assertEquals("import math", minion.execs.get(0));
+
+            lease.exec("x = 1");
+            lease.close();
+            lease.close();
+            assertThrows(IllegalStateException.class, () -> lease.exec("y = 2"));
+
+            // The reset was the last thing which it was asked to do
+            assertEquals(4, minion.execs.size());
+            try (PythonMinionPool.Lease again = pool.lease()) {
+                again.exec("z = 3");
+                assertEquals("z = 3", minion.execs.get(minion.execs.size() - 1));
+            }
+            assertEquals(1, spawned.size());
+            assertEquals(0, pool.getNumReplaced());
+        }
+    }
+
+    /**
+     * Minions which die while idle, or which can't be reset, should be
+     * replaced.
+     */
+    @Test
+    public void testReplacement()
+        throws Exception
+    {
+        final List<FakeMinion> spawned = new ArrayList<>();
+        try (PythonMinionPool pool = newPool(spawned, 1)) {
+            // Can't be reset
+            PythonMinionPool.Lease lease = pool.lease(10, TimeUnit.SECONDS);
+            assertNotNull(lease);
+            spawned.get(0).failExec = true;
+            lease.close();
+            assertTrue(spawned.get(0).isClosed);
+
+            // Dies while idle
+            lease = pool.lease(10, TimeUnit.SECONDS);
+            assertNotNull(lease);
+            assertEquals(2, spawned.size());
+            lease.close();
+            spawned.get(1).isClosed = true;
+
+            lease = pool.lease(10, TimeUnit.SECONDS);
+            assertNotNull(lease);
+            assertEquals(3, spawned.size());
+            assertEquals(2, pool.getNumReplaced());
+            lease.close();
+        }
+    }
+
+    /**
+     * Leasing from an empty pool should time out, and closing the pool should
+     * close its minions.
+     */
+    @Test
+    public void testExhaustionAndClose()
+        throws Exception
+    {
+        final List<FakeMinion> spawned = new ArrayList<>();
+        final PythonMinionPool pool = newPool(spawned, 2);
+        final PythonMinionPool.Lease first  = pool.lease(10, TimeUnit.SECONDS);
+        final PythonMinionPool.Lease second = pool.lease(10, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNotSame(first, second);
+        assertNull(pool.lease(10, TimeUnit.MILLISECONDS));
+
+        first.close();
+        pool.close();
+        assertThrows(IllegalStateException.class, pool::lease);
+
+        // The idle one was closed, the leased one is closed when given back
+        assertEquals(1, spawned.stream().filter(m -> m.isClosed).count());
+        second.close();
+        for (FakeMinion minion : spawned) {
+            assertTrue(minion.isClosed);
+        }
+        assertEquals(2, spawned.size());
+    }
+
+    /**
+     * Create a pool of fake minions, remembering the ones which it spawns.
+     */
+    private static PythonMinionPool newPool(final List<FakeMinion> spawned,
+                                            final int              size)
+    {
+        return new PythonMinionPool(
+            () -> {
+                final FakeMinion minion = new FakeMinion();
+                synchronized (spawned) {
+                    spawned.add(minion);
+                }
+                return minion;
+            },
+            size,
+            "import math"
+        );
+    }
+}
@@ -0,0 +1,360 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for coalescing replies on a connection, see {@link
+ * PJRmi#useReplyCoalescing()}. These ask for the string form of objects, since
+ * the replies can then be made as big as we like and we can count how many
+ * have been made.
+ */
+public class ReplyCoalescingTest
+{
+    /**
+     * An object whose string form is of a given size, and which counts how
+     * many times it has been asked for it.
+     */
+    private static class Sized
+    {
+        /**
+         * Our string form.
+         */
+        private final String myString;
+
+        /**
+         * How many times we have been turned into a string.
+         */
+        private final AtomicInteger myCount;
+
+        /**
+         * CTOR.
+         */
+        public Sized(final int size)
+        {
+            final char[] chars = new char[size];
+            for (int i=0; i < size; i++) {
+                chars[i] = (char)('a' + (i + size) % 26);
+            }
+            myString = new String(chars);
+            myCount  = new AtomicInteger();
+        }
+
+        /**
+         * How many times we have been turned into a string.
+         */
+        public int count()
+        {
+            return myCount.get();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            myCount.incrementAndGet();
+            return myString;
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    /**
+     * Have many workers reply at once, with replies of different sizes, and
+     * make sure that every reply arrives whole and is the right one.
+     */
+    @Test
+    public void testConcurrentReplies()
+        throws Exception
+    {
+        final int numObjects  = 8;
+        final int numRequests = 4000;
+
+        final Map<String,Sized> objects = new HashMap<>();
+        for (int i=0; i < numObjects; i++) {
+            objects.put("sized" + i, new Sized(1 << (2 * i)));
+        }
+
+        final int port = SocketChannelTransportTest.freePort();
+        final PJRmi pjrmi = newPJRmi(port, 8, 50, objects);
+        pjrmi.start();
+        try (TestClient client = new TestClient(port)) {
+            final long[] handles = new long[numObjects];
+            for (int i=0; i < numObjects; i++) {
+                handles[i] = getHandle(client, "sized" + i);
+            }
+
+            // Fire off all the requests, from lots of client threads, so that
+            // they are handled by all the workers at once
+            for (int i=0; i < numRequests; i++) {
+                client.send('F', 1 + i % 16, i,
+                            TestClient.toStringRequest(handles[i % numObjects]));
+            }
+            client.flush();
+
+            // And each reply should be the string for the object which was
+            // asked about
+            final boolean[] seen = new boolean[numRequests];
+            for (int i=0; i < numRequests; i++) {
+                final TestClient.Message reply = client.receive();
+                assertEquals('h', reply.type);
+                assertEquals(1 + reply.reqId % 16, reply.threadId);
+                assertEquals(objects.get("sized" + (reply.reqId % numObjects)).myString,
+                             toString(reply));
+                assertTrue(!seen[reply.reqId], "Duplicate reply " + reply.reqId);
+                seen[reply.reqId] = true;
+            }
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * When the client isn't reading then the replies should back up to a
+     * bounded amount, with the workers waiting, rather than all being made
+     * and held in memory. They should all still arrive once the client does
+     * read.
+     */
+    @Test
+    public void testBackPressure()
+        throws Exception
+    {
+        // 256k per reply, so 100MB in all, which is a lot more than the
+        // socket buffers and the writer will hold
+        final int numRequests = 400;
+        final Sized big = new Sized(128 * 1024);
+
+        final int port = SocketChannelTransportTest.freePort();
+        final PJRmi pjrmi = newPJRmi(port, 4, 50, Map.of("big", big));
+        pjrmi.start();
+        try (TestClient client = new TestClient(port)) {
+            final long handle = getHandle(client, "big");
+            final byte[] request = TestClient.toStringRequest(handle);
+            for (int i=0; i < numRequests; i++) {
+                client.send('F', 1 + i % 4, i, request);
+            }
+            client.flush();
+
+            // Wait for the server to get as far as it can
+            int count = -1;
+            while (count != big.count()) {
+                count = big.count();
+                Thread.sleep(500);
+            }
+            assertTrue(count < numRequests / 2,
+                       "Made " + count + " of " + numRequests + " replies " +
+                       "without any being read");
+
+            // Now read them all
+            for (int i=0; i < numRequests; i++) {
+                final TestClient.Message reply = client.receive();
+                assertEquals('h', reply.type);
+                assertEquals(big.myString, toString(reply));
+            }
+            assertEquals(numRequests, big.count());
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * If the writer fails, because the client went away while replies were
+     * backed up, then the workers which were waiting on it should be told,
+     * rather than being left stuck. If they were stuck then the pool would be
+     * exhausted and no-one else would get served.
+     */
+    @Test
+    public void testWriteError()
+        throws Exception
+    {
+        final Sized big = new Sized(128 * 1024);
+
+        final int port = SocketChannelTransportTest.freePort();
+        final PJRmi pjrmi = newPJRmi(port, 4, 50, Map.of("big", big));
+        pjrmi.start();
+        try {
+            try (TestClient client = new TestClient(port)) {
+                final byte[] request =
+                    TestClient.toStringRequest(getHandle(client, "big"));
+                for (int i=0; i < 400; i++) {
+                    client.send('F', 1 + i % 4, i, request);
+                }
+                client.flush();
+
+                // Wait for the workers to back up
+                int count = -1;
+                while (count != big.count()) {
+                    count = big.count();
+                    Thread.sleep(500);
+                }
+            }
+
+            // The connection's threads, which are named after it, should all
+            // go away once the client does. (The pooled workers are the
+            // instance's and stick around.)
+            final String prefix = "ReplyCoalescingTest:Socket[" + port + "]:";
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (isAlive(prefix) && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            assertTrue(!isAlive(prefix), "Connection threads still running");
+
+            // And the workers should be free to serve someone else
+            try (TestClient client = new TestClient(port)) {
+                client.send('F', 1, 0,
+                            TestClient.toStringRequest(getHandle(client, "big")));
+                client.flush();
+                assertEquals(big.myString, toString(client.receive()));
+            }
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * A quiet connection, which only has one request in flight at a time,
+     * should not have its replies held back waiting for others.
+     */
+    @Test
+    public void testQuietLatency()
+        throws Exception
+    {
+        // A very long coalescing delay, which we should never see
+        final long delayMicros = 200_000;
+        final int  numRequests = 20;
+
+        final Sized small = new Sized(10);
+        final int port = SocketChannelTransportTest.freePort();
+        final PJRmi pjrmi = newPJRmi(port, 4, delayMicros, Map.of("small", small));
+        pjrmi.start();
+        try (TestClient client = new TestClient(port)) {
+            final byte[] request =
+                TestClient.toStringRequest(getHandle(client, "small"));
+
+            final long start = System.nanoTime();
+            for (int i=0; i < numRequests; i++) {
+                client.send('F', 1, i, request);
+                client.flush();
+                assertEquals(small.myString, toString(client.receive()));
+            }
+            final long elapsedMicros =
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            assertTrue(elapsedMicros < numRequests * delayMicros / 4,
+                       numRequests + " round trips took " + elapsedMicros + "us");
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * Create a PJRmi instance, which coalesces its replies, listening on the
+     * given port. It uses a worker pool of the given size, so that workers
+     * which are waiting to send hold up others.
+     */
+    private static PJRmi newPJRmi(final int               port,
+                                  final int               numWorkers,
+                                  final long              maxDelayMicros,
+                                  final Map<String,Sized> objects)
+        throws IOException
+    {
+        return new PJRmi("ReplyCoalescingTest", new SocketProvider(port), false) {
+            @Override
+            protected boolean isUserPermitted(CharSequence username)
+            {
+                return true;
+            }
+
+            @Override
+            protected int numWorkers()
+            {
+                return numWorkers;
+            }
+
+            @Override
+            protected boolean useWorkerPool()
+            {
+                return true;
+            }
+
+            @Override
+            protected int maxPooledWorkers()
+            {
+                return numWorkers;
+            }
+
+            @Override
+            protected boolean useReplyCoalescing()
+            {
+                return true;
+            }
+
+            @Override
+            protected long maxReplyCoalescingDelayMicros()
+            {
+                return maxDelayMicros;
+            }
+
+            @Override
+            protected Object getObjectInstance(CharSequence name)
+            {
+                return objects.get(name.toString());
+            }
+        };
+    }
+
+    /**
+     * Get the handle of the named object.
+     */
+    private static long getHandle(final TestClient client, final String name)
+        throws IOException
+    {
+        client.send('A', 1, -1, TestClient.instanceRequest(name));
+        client.flush();
+        final TestClient.Message reply = client.receive();
+        assertEquals('a', reply.type);
+        return ByteBuffer.wrap(reply.payload).getLong(Integer.BYTES);
+    }
+
+    /**
+     * Decode a string reply.
+     */
+    private static String toString(final TestClient.Message reply)
+    {
+        final int length = ByteBuffer.wrap(reply.payload).getInt();
+        assertEquals(reply.payload.length, Integer.BYTES + length);
+        return new String(Arrays.copyOfRange(reply.payload,
+                                             Integer.BYTES,
+                                             reply.payload.length),
+                          StandardCharsets.UTF_16);
+    }
+
+    /**
+     * Whether any thread whose name starts with the given prefix is running.
+     */
+    private static boolean isAlive(final String prefix)
+    {
+        return Thread.getAllStackTraces()
+                     .keySet()
+                     .stream()
+                     .anyMatch(t -> t.getName().startsWith(prefix) && t.isAlive());
+    }
+}
@@ -0,0 +1,500 @@
+package com.deshaw.pjrmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.nio.file.Files;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A unit test suite for testing {@link SSLEngineTransport}, which also
+ * compares it with the {@link SSLSocketTransport}.
+ */
+public class SSLEngineTransportTest
+{
+    /**
+     * The key store's password.
+     */
+    private static final String PASSWORD = "password";
+
+    /**
+     * The user in the key store's certificate.
+     */
+    private static final String USER = "pjrmitest";
+
+    /**
+     * The key store, which has a self-signed certificate in it.
+     */
+    private static final String STORE;
+    static {
+        try {
+            final File dir = Files.createTempDirectory("pjrmi").toFile();
+            dir.deleteOnExit();
+            final File store = new File(dir, "store.p12");
+            store.deleteOnExit();
+
+            final String keytool =
+                System.getProperty("java.home") + File.separator +
+                "bin" + File.separator + "keytool";
+            final Process process =
+                new ProcessBuilder(keytool,
+                                   "-genkeypair",
+                                   "-keystore",  store.getPath(),
+                                   "-storetype", "PKCS12",
+                                   "-storepass", PASSWORD,
+                                   "-keypass",   PASSWORD,
+                                   "-alias",     USER,
+                                   "-keyalg",    "RSA",
+                                   "-keysize",   "2048",
+                                   "-validity",  "1",
+                                   "-dname",     "CN=" + USER)
+                    .inheritIO()
+                    .start();
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed");
+            }
+            STORE = store.getPath();
+        }
+        catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Send messages of various sizes back and forth, and make sure that they
+     * arrive intact, and that we know who is on the other end.
+     */
+    @Test
+    public void testEcho()
+        throws Exception
+    {
+        final int port = freePort();
+        final SSLEngineProvider provider =
+            new SSLEngineProvider(port, STORE, PASSWORD);
+        try {
+            final AtomicReference<Object> userName = new AtomicReference<>();
+            final Thread server = startEchoServer(provider, 1, userName);
+
+            final Random random = new Random(1234);
+            try (SSLSocket socket = connect(newClientContext(), port)) {
+                final DataOutputStream out =
+                    new DataOutputStream(socket.getOutputStream());
+                final DataInputStream in =
+                    new DataInputStream(socket.getInputStream());
+                for (int size : new int[] { 0, 1, 100, 16 * 1024, 1024 * 1024 }) {
+                    final byte[] sent = new byte[size];
+                    random.nextBytes(sent);
+                    out.writeInt(size);
+                    out.write(sent);
+                    out.flush();
+
+                    assertEquals(size, in.readInt());
+                    final byte[] received = new byte[size];
+                    in.readFully(received);
+                    assertArrayEquals(sent, received);
+                }
+            }
+            server.join();
+            assertEquals(USER, userName.get());
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * A client which reconnects should be able to resume its session.
+     */
+    @Test
+    public void testSessionResumption()
+        throws Exception
+    {
+        final int port = freePort();
+        final SSLEngineProvider provider =
+            new SSLEngineProvider(port, STORE, PASSWORD);
+        try {
+            final AtomicReference<Object> userName = new AtomicReference<>();
+            final Thread server = startEchoServer(provider, 2, userName);
+
+            // The client context is what remembers the session
+            final SSLContext context = newClientContext();
+            final byte[] firstId;
+            try (SSLSocket socket = connect(context, port)) {
+                firstId = socket.getSession().getId();
+                echo(socket, 1);
+            }
+            final byte[] secondId;
+            try (SSLSocket socket = connect(context, port)) {
+                secondId = socket.getSession().getId();
+                echo(socket, 1);
+            }
+            server.join();
+
+            assertTrue(firstId.length > 0);
+            assertArrayEquals(firstId, secondId,
+                              "Session was not resumed");
+            assertEquals(USER, userName.get());
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * Echo messages over a transport whose channel is in non-blocking mode,
+     * as it would be when multiplexed, with a selector sending what the
+     * channel won't take straight away. The messages are bigger than the
+     * socket buffers so that both sides have to wait on the other.
+     */
+    @Test
+    public void testNonBlocking()
+        throws Exception
+    {
+        final int port = freePort();
+        final SSLEngineProvider provider =
+            new SSLEngineProvider(port, STORE, PASSWORD);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicBoolean isDone = new AtomicBoolean(false);
+        try (Selector selector = Selector.open()) {
+            final Thread server = new Thread(() -> {
+                try {
+                    final SSLEngineTransport transport =
+                        (SSLEngineTransport)provider.accept();
+                    transport.getChannel().configureBlocking(false);
+                    transport.setSelectionKey(
+                        transport.getChannel().register(selector, 0)
+                    );
+
+                    // The selector thread just sends what's pending
+                    final Thread flusher = new Thread(() -> {
+                        try {
+                            while (!isDone.get()) {
+                                selector.select(100);
+                                for (SelectionKey key : selector.selectedKeys()) {
+                                    if (key.isValid() && key.isWritable()) {
+                                        transport.flushPendingOutput();
+                                    }
+                                }
+                                selector.selectedKeys().clear();
+                            }
+                        }
+                        catch (Throwable t) {
+                            error.set(t);
+                        }
+                    });
+                    flusher.setDaemon(true);
+                    flusher.start();
+
+                    final DataInputStream in =
+                        new DataInputStream(transport.getInputStream());
+                    final DataOutputStream out =
+                        new DataOutputStream(transport.getOutputStream());
+                    while (true) {
+                        final int size;
+                        try {
+                            size = in.readInt();
+                        }
+                        catch (IOException e) {
+                            // Client went away
+                            break;
+                        }
+                        final byte[] buffer = new byte[size];
+                        in.readFully(buffer);
+                        out.writeInt(size);
+                        out.write(buffer);
+                        out.flush();
+                    }
+                    transport.close();
+                }
+                catch (Throwable t) {
+                    error.set(t);
+                }
+            });
+            server.setDaemon(true);
+            server.start();
+
+            final Random random = new Random(5678);
+            try (SSLSocket socket = connect(newClientContext(), port)) {
+                final DataOutputStream out =
+                    new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream())
+                    );
+                final DataInputStream in =
+                    new DataInputStream(socket.getInputStream());
+                for (int size : new int[] { 1, 1000, 8 * 1024 * 1024 }) {
+                    final byte[] sent = new byte[size];
+                    random.nextBytes(sent);
+                    out.writeInt(size);
+                    out.write(sent);
+                    out.flush();
+
+                    // Don't read straight away, so that the server's output
+                    // backs up
+                    Thread.sleep(100);
+
+                    assertEquals(size, in.readInt());
+                    final byte[] received = new byte[size];
+                    in.readFully(received);
+                    assertArrayEquals(sent, received);
+                }
+            }
+            server.join();
+            assertNull(error.get());
+        }
+        finally {
+            isDone.set(true);
+            provider.close();
+        }
+    }
+
+    /**
+     * A client which connects but never does its handshake should not hold up
+     * the accepting thread for longer than the timeout, and others should
+     * still be able to connect afterwards.
+     */
+    @Test
+    public void testHandshakeTimeout()
+        throws Exception
+    {
+        final int port = freePort();
+        final SSLEngineProvider provider =
+            new SSLEngineProvider(port, "TLSv1.2", STORE, PASSWORD, 500);
+        try {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                                            port))
+            {
+                assertTrue(socket.isConnected());
+                final long start = System.nanoTime();
+                assertThrows(SocketTimeoutException.class, provider::accept);
+                final long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+                assertTrue(elapsedMs < 10_000, "Took " + elapsedMs + "ms");
+            }
+
+            final AtomicReference<Object> userName = new AtomicReference<>();
+            final Thread server = startEchoServer(provider, 1, userName);
+            try (SSLSocket socket = connect(newClientContext(), port)) {
+                echo(socket, 1);
+            }
+            server.join();
+            assertEquals(USER, userName.get());
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * A simple benchmark which compares the SSLEngine transport with the
+     * SSLSocket one, when sending a lot of small messages in bursts. The
+     * server flushes once it has handled everything which has arrived, as the
+     * PJRmi reply writer would. This is only run by the {@code benchmark}
+     * task.
+     */
+    @Test
+    @Tag("benchmark")
+    public void testThroughput()
+        throws Exception
+    {
+        final int numMessages = 20_000;
+        final int burstSize   = 100;
+
+        final int socketPort = freePort();
+        final double socketRate =
+            throughput(new SSLSocketProvider(socketPort, STORE, PASSWORD),
+                       socketPort,
+                       numMessages,
+                       burstSize);
+
+        final int enginePort = freePort();
+        final double engineRate =
+            throughput(new SSLEngineProvider(enginePort, STORE, PASSWORD),
+                       enginePort,
+                       numMessages,
+                       burstSize);
+
+        assertTrue(engineRate > socketRate / 4,
+                   String.format("SSLEngine, at %.0f msgs/s, was a lot " +
+                                 "slower than SSLSocket, at %.0f msgs/s",
+                                 engineRate, socketRate));
+    }
+
+    /**
+     * Send the given number of small messages, in bursts, and return the
+     * number of round-trips per second. The provider is closed afterwards.
+     */
+    private static double throughput(final Transport.Provider provider,
+                                     final int                port,
+                                     final int                numMessages,
+                                     final int                burstSize)
+        throws Exception
+    {
+        final AtomicReference<Object> userName = new AtomicReference<>();
+        final Thread server = startEchoServer(provider, 1, userName);
+
+        final long start;
+        final long end;
+        try (SSLSocket socket = connect(newClientContext(), port)) {
+            // Make sure that the handshake is out of the way before we start
+            // timing
+            echo(socket, 1);
+
+            start = System.nanoTime();
+            for (int i=0; i < numMessages; i += burstSize) {
+                echo(socket, burstSize);
+            }
+            end = System.nanoTime();
+        }
+        finally {
+            provider.close();
+        }
+        server.join();
+        assertEquals(USER, userName.get());
+
+        return numMessages / ((end - start) / 1e9);
+    }
+
+    /**
+     * Send a burst of small messages and wait for them all to come back.
+     */
+    private static void echo(final SSLSocket socket, final int count)
+        throws IOException
+    {
+        final DataOutputStream out =
+            new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream())
+            );
+        final DataInputStream in =
+            new DataInputStream(
+                new BufferedInputStream(socket.getInputStream())
+            );
+        final byte[] message = new byte[64];
+        for (int i=0; i < count; i++) {
+            out.writeInt(message.length);
+            out.write(message);
+        }
+        out.flush();
+        for (int i=0; i < count; i++) {
+            assertEquals(message.length, in.readInt());
+            in.readFully(message);
+        }
+    }
+
+    /**
+     * Start a server which accepts the given number of connections, one after
+     * the other, and echoes back the length-prefixed messages which it gets on
+     * them. The user name of the last connection, or any error, is put into
+     * the given reference.
+     */
+    private static Thread startEchoServer(final Transport.Provider      provider,
+                                          final int                     numConnections,
+                                          final AtomicReference<Object> result)
+    {
+        final Thread thread = new Thread(() -> {
+            try {
+                for (int i=0; i < numConnections; i++) {
+                    final Transport transport = provider.accept();
+                    result.set(transport.getUserName());
+
+                    final InputStream  is  = transport.getInputStream();
+                    final OutputStream os  =
+                        new BufferedOutputStream(transport.getOutputStream());
+                    final DataInputStream  in  = new DataInputStream(is);
+                    final DataOutputStream out = new DataOutputStream(os);
+                    byte[] buffer = new byte[0];
+                    while (true) {
+                        final int size;
+                        try {
+                            size = in.readInt();
+                        }
+                        catch (IOException e) {
+                            // Client went away
+                            break;
+                        }
+                        if (buffer.length < size) {
+                            buffer = new byte[size];
+                        }
+                        in.readFully(buffer, 0, size);
+                        out.writeInt(size);
+                        out.write(buffer, 0, size);
+
+                        // Only flush once we have done everything that is
+                        // pending
+                        if (is.available() == 0) {
+                            out.flush();
+                        }
+                    }
+                    transport.close();
+                }
+            }
+            catch (Throwable t) {
+                result.set(t);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Create a client-side context which uses our store.
+     */
+    private static SSLContext newClientContext()
+        throws IOException
+    {
+        return SSLSocketProvider.createContext(STORE, PASSWORD);
+    }
+
+    /**
+     * Connect to the server on the given port.
+     */
+    private static SSLSocket connect(final SSLContext context, final int port)
+        throws IOException
+    {
+        final SSLSocket socket =
+            (SSLSocket)context.getSocketFactory().createSocket("localhost", port);
+        socket.setEnabledProtocols(new String[] { "TLSv1.2" });
+        socket.setTcpNoDelay(true);
+        socket.startHandshake();
+        return socket;
+    }
+
+    /**
+     * Find a port which is free for us to listen on.
+     */
+    private static int freePort()
+        throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.deshaw.pjrmi;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A unit test suite for testing {@link ShmArena}. We play the part of the
+ * reader by mapping the arena's file ourselves.
+ */
+public class ShmArenaTest
+{
+    /**
+     * Arrays should be readable from a separate mapping of the file.
+     */
+    @Test
+    public void testWriteAndRead()
+        throws Exception
+    {
+        final ShmArena arena = new ShmArena(1024 * 1024);
+        try {
+            final MappedByteBuffer reader = map(arena);
+
+            final double[] doubles = { 1.5, -2.25, Math.PI };
+            final ShmArena.Region region = arena.write(doubles);
+            assertNotNull(region);
+            assertEquals('d', region.type);
+            assertEquals(doubles.length, region.numElems);
+            assertEquals(arena.getFilename(), region.filename);
+
+            final double[] read = new double[doubles.length];
+            reader.position((int)region.offset + ShmArena.HEADER_SIZE);
+            reader.asDoubleBuffer().get(read);
+            assertArrayEquals(doubles, read);
+
+            final boolean[] booleans = { true, false, true };
+            final ShmArena.Region other = arena.write(booleans);
+            assertNotNull(other);
+            assertEquals('z', other.type);
+            assertEquals(0, other.offset % ShmArena.HEADER_SIZE);
+            assertTrue(other.offset > region.offset);
+            for (int i=0; i < booleans.length; i++) {
+                assertEquals(booleans[i] ? 1 : 0,
+                             reader.get((int)other.offset + ShmArena.HEADER_SIZE + i));
+            }
+
+            // Unsupported types aren't written
+            assertNull(arena.write(new char[1]));
+            assertNull(arena.write("Hello"));
+        }
+        finally {
+            arena.close();
+        }
+        assertFalse(new File(arena.getFilename()).exists());
+    }
+
+    /**
+     * Space should only be reused once the reader has released it, and the
+     * arena should wrap around.
+     */
+    @Test
+    public void testReleaseAndReuse()
+        throws Exception
+    {
+        // Room for three 1k arrays, with their headers
+        final int blockSize = 1024 + ShmArena.HEADER_SIZE;
+        final ShmArena arena = new ShmArena(3 * blockSize + ShmArena.HEADER_SIZE);
+        try {
+            final MappedByteBuffer reader = map(arena);
+            final byte[] array = new byte[1024];
+
+            final List<ShmArena.Region> regions = new ArrayList<>();
+            for (int i=0; i < 3; i++) {
+                final ShmArena.Region region = arena.write(array);
+                assertNotNull(region);
+                regions.add(region);
+            }
+
+            // Full until something is released. Blocks are reclaimed in order,
+            // so releasing a later one doesn't help on its own.
+            assertNull(arena.write(array));
+            release(reader, regions.get(1));
+            assertNull(arena.write(array));
+            release(reader, regions.get(0));
+
+            // Now both of them can be reclaimed, and we should wrap around to
+            // the start
+            final ShmArena.Region wrapped = arena.write(array);
+            assertNotNull(wrapped);
+            assertEquals(0, wrapped.offset);
+            final ShmArena.Region next = arena.write(array);
+            assertNotNull(next);
+            assertEquals(blockSize, next.offset);
+            assertNull(arena.write(array));
+
+            // Release everything and we should be able to fill it again
+            release(reader, regions.get(2));
+            release(reader, wrapped);
+            release(reader, next);
+            for (int i=0; i < 3; i++) {
+                assertNotNull(arena.write(array));
+            }
+
+            // Something bigger than the arena never fits
+            assertNull(arena.write(new byte[4 * blockSize]));
+        }
+        finally {
+            arena.close();
+        }
+    }
+
+    /**
+     * Map the arena's file, as a reader would.
+     */
+    private static MappedByteBuffer map(final ShmArena arena)
+        throws Exception
+    {
+        try (RandomAccessFile file = new RandomAccessFile(arena.getFilename(), "rw")) {
+            final MappedByteBuffer buffer =
+                file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                      0,
+                                      file.length());
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        }
+    }
+
+    /**
+     * Release a region, as a reader would.
+     */
+    private static void release(final MappedByteBuffer reader,
+                                final ShmArena.Region  region)
+    {
+        reader.putLong((int)region.offset + ShmArena.RELEASED_OFFSET, 1L);
+    }
+}
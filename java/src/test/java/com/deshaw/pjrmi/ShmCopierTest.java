@@ -0,0 +1,108 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A unit test suite for testing {@link ShmCopier}.
+ */
+public class ShmCopierTest
+{
+    /**
+     * Every element should be copied exactly once, whether the copy is done in
+     * parallel or not.
+     */
+    @Test
+    public void testRanges()
+        throws Exception
+    {
+        for (long numElems : new long[] {
+                 0,
+                 1,
+                 ShmCopier.PARALLEL_THRESHOLD / Long.BYTES - 1,
+                 3 * ShmCopier.PARALLEL_THRESHOLD + 5 })
+        {
+            final AtomicLong count = new AtomicLong();
+            final AtomicLong sum   = new AtomicLong();
+            ShmCopier.copy(
+                numElems,
+                Long.BYTES,
+                (start, end) -> {
+                    assertTrue(start <= end);
+                    count.addAndGet(end - start);
+                    sum.addAndGet((end - 1 + start) * (end - start) / 2);
+                }
+            );
+            assertEquals(numElems, count.get());
+            assertEquals((numElems - 1) * numElems / 2, sum.get());
+        }
+    }
+
+    /**
+     * Failures should be handed back to the caller as they were thrown.
+     */
+    @Test
+    public void testFailure()
+    {
+        for (long numElems : new long[] { 1, 4 * ShmCopier.PARALLEL_THRESHOLD }) {
+            assertThrows(
+                IOException.class,
+                () -> ShmCopier.copy(
+                    numElems,
+                    1,
+                    (start, end) -> {
+                        if (end == numElems) {
+                            throw new IOException("Bang");
+                        }
+                    }
+                )
+            );
+        }
+    }
+
+    /**
+     * Arrays spanning several chunks should round trip.
+     */
+    @Test
+    public void testPutAndGet()
+    {
+        final int length = 2 * ShmCopier.CHUNK_SIZE + 7;
+
+        final double[] doubles = new double[length];
+        for (int i=0; i < length; i++) {
+            doubles[i] = i * 0.5;
+        }
+        final ByteBuffer buffer =
+            ByteBuffer.allocateDirect(length * Double.BYTES)
+                      .order(ByteOrder.nativeOrder());
+        ShmCopier.put(buffer, 'd', doubles, 0, length);
+        assertEquals(buffer.capacity(), buffer.position());
+
+        buffer.flip();
+        final double[] read = (double[])ShmCopier.newArray('d', length);
+        ShmCopier.get(buffer, 'd', read, 0, length);
+        assertArrayEquals(doubles, read);
+
+        final boolean[] booleans = new boolean[length];
+        for (int i=0; i < length; i += 3) {
+            booleans[i] = true;
+        }
+        final ByteBuffer bytes = ByteBuffer.allocateDirect(length);
+        ShmCopier.put(bytes, 'z', booleans, 0, length);
+        bytes.flip();
+        final boolean[] readBooleans = new boolean[length];
+        ShmCopier.get(bytes, 'z', readBooleans, 0, length);
+        assertArrayEquals(booleans, readBooleans);
+    }
+}
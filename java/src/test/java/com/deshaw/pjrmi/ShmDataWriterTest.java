@@ -0,0 +1,166 @@
+package com.deshaw.pjrmi;
+
+import com.deshaw.hypercube.Dimension;
+import com.deshaw.hypercube.DoubleArrayHypercube;
+import com.deshaw.hypercube.DoubleHypercube;
+import com.deshaw.hypercube.GenericArrayHypercube;
+import com.deshaw.hypercube.Hypercube;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A unit test suite for testing {@link ShmDataWriter}. We play the part of the
+ * reader by mapping the written files ourselves.
+ */
+public class ShmDataWriterTest
+{
+    /**
+     * Cubes, and views of them, should be written flattened with their shape.
+     */
+    @Test
+    public void testHypercubes()
+        throws Exception
+    {
+        // Big enough to need a few chunks
+        final int rows = 3;
+        final int cols = ShmCopier.CHUNK_SIZE / 2 + 1;
+        final DoubleHypercube cube =
+            new DoubleArrayHypercube(Dimension.of(rows, cols));
+        for (int i=0; i < rows * cols; i++) {
+            cube.setAt(i, i);
+        }
+        assertTrue(ShmDataWriter.isSupported(cube));
+
+        final ByteBuffer buffer = read(ShmDataWriter.write(cube),
+                                       new long[] { rows, cols },
+                                       'd');
+        for (int i=0; i < rows * cols; i++) {
+            assertEquals(i, buffer.getDouble(), 0.0);
+        }
+
+        // A transposed view
+        final DoubleHypercube view = cube.transpose();
+        final ByteBuffer transposed = read(ShmDataWriter.write(view),
+                                           new long[] { cols, rows },
+                                           'd');
+        for (int j=0; j < cols; j++) {
+            for (int i=0; i < rows; i++) {
+                assertEquals(i * cols + j, transposed.getDouble(), 0.0);
+            }
+        }
+
+        // Big enough to be copied in parallel, in the background
+        final int big = (int)(2 * ShmCopier.PARALLEL_THRESHOLD / Double.BYTES) + 3;
+        final DoubleHypercube bigCube =
+            new DoubleArrayHypercube(Dimension.of(big));
+        for (int i=0; i < big; i++) {
+            bigCube.setAt(i, i);
+        }
+        final ByteBuffer bigBuffer = read(ShmDataWriter.write(bigCube),
+                                          new long[] { big },
+                                          'd');
+        for (int i=0; i < big; i++) {
+            assertEquals(i, bigBuffer.getDouble(), 0.0);
+        }
+
+        // Not primitive
+        final Hypercube<String> strings =
+            new GenericArrayHypercube<>(Dimension.of(2),
+                                        String.class);
+        assertFalse(ShmDataWriter.isSupported(strings));
+        assertNull(ShmDataWriter.write(strings));
+    }
+
+    /**
+     * Multi-dimensional arrays should be written when rectangular.
+     */
+    @Test
+    public void testArrays()
+        throws Exception
+    {
+        final int[][][] ints = new int[2][3][4];
+        int value = 0;
+        for (int[][] plane : ints) {
+            for (int[] row : plane) {
+                for (int k=0; k < row.length; k++) {
+                    row[k] = value++;
+                }
+            }
+        }
+        final ByteBuffer buffer = read(ShmDataWriter.write(ints),
+                                       new long[] { 2, 3, 4 },
+                                       'i');
+        for (int i=0; i < value; i++) {
+            assertEquals(i, buffer.getInt());
+        }
+
+        final boolean[][] bools = { { true, false }, { false, true } };
+        final ByteBuffer bytes = read(ShmDataWriter.write(bools),
+                                      new long[] { 2, 2 },
+                                      'z');
+        assertEquals(1, bytes.get());
+        assertEquals(0, bytes.get());
+        assertEquals(0, bytes.get());
+        assertEquals(1, bytes.get());
+
+        // Empty ones have a shape but no data
+        final ShmDataWriter.Handle empty = ShmDataWriter.write(new long[0][5]);
+        assertNotNull(empty);
+        assertArrayEquals(new long[] { 0, 0 }, empty.shape);
+        empty.completion.join();
+        assertEquals(ShmDataWriter.HEADER_SIZE, new File(empty.filename).length());
+        new File(empty.filename).delete();
+
+        // Things which we can't handle
+        assertNull(ShmDataWriter.write(new double[][] { { 1.0 }, { 2.0, 3.0 } }));
+        assertNull(ShmDataWriter.write(new double[][] { { 1.0 }, null }));
+        assertNull(ShmDataWriter.write(new char[2][2]));
+        assertNull(ShmDataWriter.write(new Object[2][2]));
+        assertNull(ShmDataWriter.write("Hello"));
+    }
+
+    /**
+     * Check the details of what was written and, once it has been, map it,
+     * removing the file like a reader would.
+     */
+    private static ByteBuffer read(final ShmDataWriter.Handle handle,
+                                   final long[]               shape,
+                                   final char                 type)
+        throws Exception
+    {
+        assertNotNull(handle);
+        assertArrayEquals(shape, handle.shape);
+        assertEquals(type, handle.type);
+
+        final File file = new File(handle.filename);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            handle.completion.join();
+            final ByteBuffer buffer =
+                raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                     0,
+                                     raf.length());
+            buffer.order(ByteOrder.nativeOrder());
+            assertEquals(ShmDataWriter.STATE_DONE,
+                         buffer.getLong(ShmDataWriter.STATE_OFFSET));
+            buffer.position(ShmDataWriter.HEADER_SIZE);
+            return buffer;
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.deshaw.pjrmi;
+
+import java.io.EOFException;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the rings which {@link ShmRingTransport} passes bytes
+ * through. These use a plain direct buffer, rather than a shared memory
+ * segment, with each side having its own view of it, as each process would.
+ */
+public class ShmRingTransportTest
+{
+    /**
+     * The data capacity of the rings which we test with. This is small so that
+     * they wrap and fill up a lot.
+     */
+    private static final int CAPACITY = 64;
+
+    /**
+     * Write a lot more than the ring will hold, in odd-sized chunks, and make
+     * sure that it all comes out intact and in order at the other end, and
+     * that the reader then sees the close.
+     */
+    @Test
+    public void testRoundTrip()
+        throws Exception
+    {
+        final ByteBuffer buffer = newBuffer();
+        final ShmRingTransport.Ring producer =
+            new ShmRingTransport.Ring(buffer.duplicate(), CAPACITY, () -> false);
+        final ShmRingTransport.Ring consumer =
+            new ShmRingTransport.Ring(buffer.duplicate(), CAPACITY, () -> false);
+
+        final byte[] expected = new byte[1024 * 1024];
+        new Random(1234).nextBytes(expected);
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final Thread writer = new Thread(() -> {
+            try {
+                final Random random = new Random(5678);
+                for (int off = 0; off < expected.length; ) {
+                    final int len = Math.min(expected.length - off,
+                                             1 + random.nextInt(3 * CAPACITY));
+                    producer.write(expected, off, len);
+                    off += len;
+                }
+                producer.close();
+            }
+            catch (Throwable t) {
+                error.set(t);
+            }
+        });
+        writer.start();
+
+        final byte[] actual = new byte[expected.length];
+        final Random random = new Random(9012);
+        int off = 0;
+        while (off < actual.length) {
+            final int read =
+                consumer.read(actual, off,
+                              Math.min(actual.length - off,
+                                       1 + random.nextInt(2 * CAPACITY)));
+            assertTrue(read > 0, "Read " + read + " at " + off);
+            off += read;
+        }
+        assertEquals(-1, consumer.read(new byte[1], 0, 1));
+
+        writer.join();
+        assertNull(error.get());
+        assertArrayEquals(expected, actual);
+    }
+
+    /**
+     * A side which is waiting on a peer which has gone away, without closing
+     * its end, should give up.
+     */
+    @Test
+    public void testPeerGone()
+        throws Exception
+    {
+        // Nothing to read
+        final ShmRingTransport.Ring consumer =
+            new ShmRingTransport.Ring(newBuffer(), CAPACITY, () -> true);
+        assertEquals(-1, consumer.read(new byte[1], 0, 1));
+
+        // No room to write
+        final ShmRingTransport.Ring producer =
+            new ShmRingTransport.Ring(newBuffer(), CAPACITY, () -> true);
+        producer.write(new byte[CAPACITY], 0, CAPACITY);
+        assertThrows(EOFException.class,
+                     () -> producer.write(new byte[1], 0, 1));
+
+        // But anything which was written before the close is still read
+        final ByteBuffer buffer = newBuffer();
+        final ShmRingTransport.Ring closer =
+            new ShmRingTransport.Ring(buffer.duplicate(), CAPACITY, () -> false);
+        final ShmRingTransport.Ring reader =
+            new ShmRingTransport.Ring(buffer.duplicate(), CAPACITY, () -> true);
+        closer.write(new byte[] { 1, 2, 3 }, 0, 3);
+        closer.close();
+        final byte[] bytes = new byte[CAPACITY];
+        assertEquals(3, reader.read(bytes, 0, bytes.length));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Arrays.copyOf(bytes, 3));
+        assertEquals(-1, reader.read(bytes, 0, bytes.length));
+    }
+
+    /**
+     * The count of how many times we have waited must not grow without bound,
+     * else a long-idle connection would see it overflow.
+     */
+    @Test
+    public void testWaitCountIsBounded()
+    {
+        int spins = 0;
+        for (int i=0; i < 1_000_000; i++) {
+            spins = ShmRingTransport.Ring.nextSpin(spins);
+            assertTrue(spins > 0);
+        }
+
+        // It should have settled into a cycle
+        final int settled = spins;
+        final int[] seen = new int[0x100];
+        for (int i=0; i < seen.length; i++) {
+            spins = ShmRingTransport.Ring.nextSpin(spins);
+            seen[i] = spins;
+        }
+        assertEquals(settled, spins);
+        assertEquals(seen.length, Arrays.stream(seen).distinct().count());
+    }
+
+    /**
+     * Create a buffer which is big enough for a ring.
+     */
+    private static ByteBuffer newBuffer()
+    {
+        return ByteBuffer.allocateDirect(ShmRingTransport.Ring.DATA_OFFSET +
+                                         CAPACITY);
+    }
+}
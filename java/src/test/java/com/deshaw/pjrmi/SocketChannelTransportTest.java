@@ -0,0 +1,258 @@
+package com.deshaw.pjrmi;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A unit test suite for testing {@link SocketChannelTransport}, and the
+ * multiplexed connections which use it.
+ */
+public class SocketChannelTransportTest
+{
+    /**
+     * Have several threads write a lot more than the socket will buffer, to a
+     * client which is slow to start reading, and make sure that it all arrives
+     * intact and in order. The channel is non-blocking so what it won't take
+     * has to be queued up and sent by the selector.
+     */
+    @Test
+    public void testPendingOutput()
+        throws Exception
+    {
+        final int numWriters  = 4;
+        final int numMessages = 200;
+        final int messageSize = 64 * 1024;
+
+        try (ServerSocketChannel server = ServerSocketChannel.open();
+             Selector selector = Selector.open())
+        {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (Socket client =
+                     new Socket(InetAddress.getLoopbackAddress(),
+                                server.socket().getLocalPort()))
+            {
+                // Hand the channel over to the selector, as the multiplexer
+                // would
+                final SocketChannelTransport transport =
+                    new SocketChannelTransport(server.accept());
+                transport.getChannel().configureBlocking(false);
+                transport.setSelectionKey(
+                    transport.getChannel().register(selector, 0)
+                );
+
+                // The selector thread just sends what's pending
+                final AtomicBoolean isDone = new AtomicBoolean(false);
+                final AtomicReference<Throwable> error = new AtomicReference<>();
+                final Thread flusher = new Thread(() -> {
+                    try {
+                        while (!isDone.get()) {
+                            selector.select(100);
+                            for (SelectionKey key : selector.selectedKeys()) {
+                                if (key.isWritable()) {
+                                    transport.flushPendingOutput();
+                                }
+                            }
+                            selector.selectedKeys().clear();
+                        }
+                    }
+                    catch (Throwable t) {
+                        error.set(t);
+                    }
+                });
+                flusher.start();
+
+                // Each message is tagged with who sent it and its sequence
+                // number, and is otherwise filled with the same
+                final List<Thread> writers = new ArrayList<>();
+                for (int w=0; w < numWriters; w++) {
+                    final int writer = w;
+                    writers.add(new Thread(() -> {
+                        try {
+                            final OutputStream os = transport.getOutputStream();
+                            for (int i=0; i < numMessages; i++) {
+                                final ByteBuffer message =
+                                    ByteBuffer.allocate(messageSize);
+                                message.putInt(writer).putInt(i);
+                                while (message.hasRemaining()) {
+                                    message.put((byte)(writer + i));
+                                }
+                                os.write(message.array());
+                            }
+                        }
+                        catch (Throwable t) {
+                            error.set(t);
+                        }
+                    }));
+                }
+                for (Thread writer : writers) {
+                    writer.start();
+                }
+
+                // Let the output back up before we start reading
+                Thread.sleep(200);
+
+                final DataInputStream in =
+                    new DataInputStream(client.getInputStream());
+                final int[] next = new int[numWriters];
+                final byte[] filler = new byte[messageSize - 2 * Integer.BYTES];
+                final byte[] expected = new byte[filler.length];
+                for (int i=0; i < numWriters * numMessages; i++) {
+                    final int writer = in.readInt();
+                    final int seqNum = in.readInt();
+                    assertEquals(next[writer]++, seqNum);
+                    in.readFully(filler);
+                    Arrays.fill(expected, (byte)(writer + seqNum));
+                    assertArrayEquals(expected, filler);
+                }
+                for (int count : next) {
+                    assertEquals(numMessages, count);
+                }
+
+                for (Thread writer : writers) {
+                    writer.join();
+                }
+                isDone.set(true);
+                flusher.join();
+                assertNull(error.get());
+
+                transport.close();
+            }
+        }
+    }
+
+    /**
+     * Have several clients, on multiplexed connections, each send a lot of
+     * requests without reading the replies, and make sure that they all get
+     * the right replies back.
+     */
+    @Test
+    public void testMultiplexed()
+        throws Exception
+    {
+        final int numClients  = 8;
+        final int numRequests = 500;
+
+        final int port = freePort();
+        final PJRmi pjrmi = newMultiplexedPJRmi(port, 2);
+        pjrmi.start();
+        try {
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            final List<Thread> clients = new ArrayList<>();
+            for (int c=0; c < numClients; c++) {
+                clients.add(new Thread(() -> {
+                    try (TestClient client = new TestClient(port)) {
+                        // Send everything at once
+                        final byte[] request =
+                            TestClient.typeRequest("java.lang.String");
+                        for (int i=0; i < numRequests; i++) {
+                            client.send('D', 1, i, request);
+                        }
+                        client.flush();
+
+                        // And they should all come back, all the same
+                        final Set<Integer> reqIds = new HashSet<>();
+                        byte[] description = null;
+                        for (int i=0; i < numRequests; i++) {
+                            final TestClient.Message reply = client.receive();
+                            assertEquals('b', reply.type);
+                            assertTrue(reqIds.add(reply.reqId));
+                            if (description == null) {
+                                description = reply.payload;
+                            }
+                            assertArrayEquals(description, reply.payload);
+                        }
+                        assertEquals(numRequests, reqIds.size());
+                    }
+                    catch (Throwable t) {
+                        error.set(t);
+                    }
+                }));
+            }
+            for (Thread client : clients) {
+                client.start();
+            }
+            for (Thread client : clients) {
+                client.join();
+            }
+            assertNull(error.get());
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * Create a PJRmi instance, which multiplexes its connections, listening on
+     * the given port.
+     */
+    /*package*/ static PJRmi newMultiplexedPJRmi(final int port,
+                                                final int numSelectors)
+        throws IOException
+    {
+        return new PJRmi("SocketChannelTransportTest",
+                         new SocketChannelProvider(port),
+                         true)
+        {
+            @Override
+            protected boolean isUserPermitted(CharSequence username)
+            {
+                return true;
+            }
+
+            @Override
+            protected int numWorkers()
+            {
+                return 4;
+            }
+
+            @Override
+            protected int numSelectorThreads()
+            {
+                return numSelectors;
+            }
+
+            @Override
+            protected Object getObjectInstance(CharSequence name)
+            {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Find a port which no-one is using.
+     */
+    /*package*/ static int freePort()
+        throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.deshaw.pjrmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal client which talks the PJRmi wire protocol, so that the server
+ * side can be tested without needing a Python process. It only knows how to
+ * do the handshake, and how to send and receive raw messages.
+ */
+/*package*/ class TestClient
+    implements AutoCloseable
+{
+    /**
+     * A message which we got back from the server.
+     */
+    public static class Message
+    {
+        /**
+         * The message type's ID.
+         */
+        public final char type;
+
+        /**
+         * The thread which the message is for.
+         */
+        public final long threadId;
+
+        /**
+         * The request which the message is in response to.
+         */
+        public final int reqId;
+
+        /**
+         * The message's payload.
+         */
+        public final byte[] payload;
+
+        /**
+         * CTOR.
+         */
+        public Message(final char   type,
+                       final long   threadId,
+                       final int    reqId,
+                       final byte[] payload)
+        {
+            this.type     = type;
+            this.threadId = threadId;
+            this.reqId    = reqId;
+            this.payload  = payload;
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    /**
+     * Our connection to the server.
+     */
+    private final Closeable myConnection;
+
+    /**
+     * What we read from.
+     */
+    private final DataInputStream myIn;
+
+    /**
+     * What we write to.
+     */
+    private final DataOutputStream myOut;
+
+    /**
+     * Connect to the PJRmi instance on the given local port, and do the
+     * handshake.
+     *
+     * @throws IOException if the connection or the handshake failed.
+     */
+    public TestClient(final int port)
+        throws IOException
+    {
+        this(connect(port));
+    }
+
+    /**
+     * Do the handshake over the given, connected and blocking, channel. This
+     * is for channels which aren't TCP ones, like Unix domain sockets.
+     *
+     * @throws IOException if the handshake failed.
+     */
+    public TestClient(final SocketChannel channel)
+        throws IOException
+    {
+        this(channel,
+             Channels.newInputStream(channel),
+             Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Connect to the PJRmi instance on the given local port.
+     */
+    private TestClient(final Socket socket)
+        throws IOException
+    {
+        this(socket, socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /**
+     * Do the handshake over the given streams.
+     */
+    private TestClient(final Closeable    connection,
+                       final InputStream  in,
+                       final OutputStream out)
+        throws IOException
+    {
+        myConnection = connection;
+        myIn  = new DataInputStream (new BufferedInputStream (in ));
+        myOut = new DataOutputStream(new BufferedOutputStream(out));
+
+        // Say hello, along with who we are
+        final byte[] argv = "TestClient".getBytes(StandardCharsets.UTF_16);
+        myOut.writeBytes(PJRmi.HELLO);
+        myOut.writeInt(argv.length);
+        myOut.write(argv);
+        myOut.writeInt((int)ProcessHandle.current().pid());
+        myOut.writeLong(System.nanoTime());
+        myOut.flush();
+
+        // We should get the same back, followed by the server's name, or an
+        // error, and its flags
+        final byte[] hello = new byte[PJRmi.HELLO.length()];
+        myIn.readFully(hello);
+        final int    len  = myIn.readByte();
+        final byte[] name = new byte[Math.abs(len)];
+        myIn.readFully(name);
+        if (len < 0) {
+            throw new IOException(
+                "Connection refused: " +
+                new String(name, StandardCharsets.US_ASCII)
+            );
+        }
+        myIn.readByte();
+    }
+
+    /**
+     * Send a message to the server.
+     */
+    public void send(final char   type,
+                     final long   threadId,
+                     final int    reqId,
+                     final byte[] payload)
+        throws IOException
+    {
+        myOut.writeByte(type);
+        myOut.writeLong(threadId);
+        myOut.writeInt(reqId);
+        myOut.writeInt(payload.length);
+        myOut.write(payload);
+    }
+
+    /**
+     * Make sure that everything which we have sent has gone.
+     */
+    public void flush()
+        throws IOException
+    {
+        myOut.flush();
+    }
+
+    /**
+     * Wait for the next message from the server.
+     */
+    public Message receive()
+        throws IOException
+    {
+        final char   type     = (char)myIn.readByte();
+        final long   threadId = myIn.readLong();
+        final int    reqId    = myIn.readInt();
+        final byte[] payload  = new byte[myIn.readInt()];
+        myIn.readFully(payload);
+        return new Message(type, threadId, reqId, payload);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        myConnection.close();
+    }
+
+    /**
+     * Connect a socket to the given local port.
+     */
+    private static Socket connect(final int port)
+        throws IOException
+    {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(60_000);
+        return socket;
+    }
+
+    /**
+     * Build the payload for a type request for the given class name.
+     */
+    public static byte[] typeRequest(final String className)
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream      out   = new DataOutputStream(bytes);
+        out.writeBoolean(false); // By name
+        out.writeInt(className.length());
+        out.writeBytes(className);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Build the payload for an instance request for the given name.
+     */
+    public static byte[] instanceRequest(final String name)
+        throws IOException
+    {
+        final byte[] utf16 = name.getBytes(StandardCharsets.UTF_16);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream      out   = new DataOutputStream(bytes);
+        out.writeInt(utf16.length);
+        out.write(utf16);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Build the payload for a request for the string form of the object with
+     * the given handle.
+     */
+    public static byte[] toStringRequest(final long handle)
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream      out   = new DataOutputStream(bytes);
+        out.writeLong(handle);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Build the payload for a request which must be started within the given
+     * timeout, wrapping up the actual request.
+     */
+    public static byte[] withDeadline(final long   timeoutMs,
+                                      final char   type,
+                                      final byte[] payload)
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream      out   = new DataOutputStream(bytes);
+        out.writeLong(timeoutMs);
+        out.writeByte(type);
+        out.write(payload);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Build the payload for a response, to a callback from Java, which gives
+     * back the given long.
+     *
+     * @param requestId  The ID of the Java request which we are answering,
+     *                   which is the first int of the callback's payload.
+     */
+    public static byte[] callbackResponse(final int requestId, final long value)
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream      out   = new DataOutputStream(bytes);
+        out.writeInt(requestId);
+        out.writeByte(3); // CALLBACK_RESPONSE_LONG
+        out.writeLong(value);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,194 @@
+package com.deshaw.pjrmi;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import java.nio.file.Files;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Unit tests for {@link UnixDomainSocketProvider} and {@link
+ * UnixDomainSocketTransport}. Unix domain socket channels only exist in Java 16
+ * onwards, and we are built for earlier versions, so the client side of these
+ * goes via reflection in the same way as the code under test.
+ */
+public class UnixDomainSocketTransportTest
+{
+    /**
+     * Send bytes both ways over an accepted transport, and make sure that it
+     * knows who is on the other end.
+     */
+    @Test
+    public void testRoundTrip()
+        throws Exception
+    {
+        assumeSupported();
+
+        final String path = socketPath();
+        final UnixDomainSocketProvider provider = new UnixDomainSocketProvider(path);
+        try (SocketChannel client = connect(path)) {
+            final Transport transport = provider.accept();
+            try {
+                // We got the user from the kernel and, since it's us, it
+                // should be who we are
+                assertEquals(System.getProperty("user.name"),
+                             transport.getUserName());
+                assertTrue(transport.isLocalhost());
+
+                // Client to server
+                final byte[] request = { 1, 2, 3, 4, 5 };
+                client.write(ByteBuffer.wrap(request));
+                final byte[] received = new byte[request.length];
+                for (int off = 0; off < received.length; ) {
+                    off += transport.getInputStream()
+                                    .read(received, off, received.length - off);
+                }
+                assertArrayEquals(request, received);
+
+                // And back again
+                final byte[] response = { 6, 7, 8 };
+                transport.getOutputStream().write(response);
+                transport.getOutputStream().flush();
+                final ByteBuffer buffer = ByteBuffer.allocate(response.length);
+                while (buffer.hasRemaining()) {
+                    assertTrue(client.read(buffer) >= 0);
+                }
+                assertArrayEquals(response, buffer.array());
+            }
+            finally {
+                transport.close();
+            }
+
+            // We can't listen on the same path twice
+            assertThrows(IOException.class,
+                         () -> new UnixDomainSocketProvider(path));
+        }
+        finally {
+            provider.close();
+        }
+
+        // Closing the provider removes the socket file
+        assertTrue(provider.isClosed());
+        assertFalse(new File(path).exists());
+    }
+
+    /**
+     * Talk to a PJRmi instance over a Unix domain socket, and make sure that
+     * it checks the user which the kernel told it about.
+     */
+    @Test
+    public void testPJRmi()
+        throws Exception
+    {
+        assumeSupported();
+
+        final String path = socketPath();
+        final Queue<String> users = new ConcurrentLinkedQueue<>();
+        final PJRmi pjrmi =
+            new PJRmi("UnixDomainSocketTransportTest",
+                      new UnixDomainSocketProvider(path),
+                      false)
+            {
+                @Override
+                protected boolean isUserPermitted(CharSequence username)
+                {
+                    users.add(String.valueOf(username));
+                    return true;
+                }
+
+                @Override
+                protected Object getObjectInstance(CharSequence name)
+                {
+                    return name.toString();
+                }
+            };
+        pjrmi.start();
+        try (TestClient client = new TestClient(connect(path))) {
+            client.send('A', 1, 0, TestClient.instanceRequest("instance"));
+            client.flush();
+            final TestClient.Message reply = client.receive();
+            assertEquals('a', reply.type);
+            assertEquals(0,   reply.reqId);
+
+            assertEquals(System.getProperty("user.name"), users.peek());
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * Runtimes which don't have Unix domain socket channels should be told so.
+     */
+    @Test
+    public void testUnsupported()
+        throws Exception
+    {
+        assumeTrue(Runtime.version().feature() < 16,
+                   "Unix domain sockets are supported by this runtime");
+
+        final IOException e =
+            assertThrows(IOException.class,
+                         () -> new UnixDomainSocketProvider(socketPath()));
+        assertTrue(e.getMessage().contains("not supported"), e.getMessage());
+    }
+
+    /**
+     * Skip the calling test if this runtime doesn't have Unix domain socket
+     * channels.
+     */
+    private static void assumeSupported()
+    {
+        assumeTrue(Runtime.version().feature() >= 16,
+                   "Unix domain sockets are not supported by this runtime");
+    }
+
+    /**
+     * A path, which does not yet exist, to put a socket at.
+     */
+    private static String socketPath()
+        throws IOException
+    {
+        final File dir = Files.createTempDirectory("pjrmi").toFile();
+        dir.deleteOnExit();
+        final File path = new File(dir, "socket");
+        path.deleteOnExit();
+        return path.getPath();
+    }
+
+    /**
+     * Connect a blocking client channel to the socket at the given path.
+     */
+    private static SocketChannel connect(final String path)
+        throws Exception
+    {
+        final SocketAddress address =
+            (SocketAddress)Class.forName("java.net.UnixDomainSocketAddress")
+                                .getMethod("of", String.class)
+                                .invoke(null, path);
+        final SocketChannel channel =
+            (SocketChannel)SocketChannel.class
+                                        .getMethod("open", ProtocolFamily.class)
+                                        .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        channel.connect(address);
+        return channel;
+    }
+}
@@ -0,0 +1,339 @@
+package com.deshaw.pjrmi;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the worker pool which connections may share, see {@link
+ * PJRmi#useWorkerPool()}. These talk to PJRmi over the wire with a {@link
+ * TestClient}, using instance requests whose handling the test controls.
+ */
+public class WorkerPoolTest
+{
+    /**
+     * A PJRmi instance which uses the worker pool, and which hands instance
+     * requests to a function.
+     */
+    private static class PoolPJRmi
+        extends PJRmi
+    {
+        private final int myNumWorkers;
+        private final int myMaxPooledWorkers;
+        private final int myMaxConcurrentRequests;
+        private final Function<String,Object> myInstances;
+        private final BlockingQueue<PythonMinion> myConnections;
+
+        /**
+         * CTOR.
+         */
+        public PoolPJRmi(final int                     port,
+                         final int                     numWorkers,
+                         final int                     maxPooledWorkers,
+                         final int                     maxConcurrentRequests,
+                         final Function<String,Object> instances)
+            throws IOException
+        {
+            super("WorkerPoolTest", new SocketProvider(port), false);
+
+            myNumWorkers            = numWorkers;
+            myMaxPooledWorkers      = maxPooledWorkers;
+            myMaxConcurrentRequests = maxConcurrentRequests;
+            myInstances             = instances;
+            myConnections           = new LinkedBlockingQueue<>();
+        }
+
+        /**
+         * Wait for the next connection which we accepted.
+         */
+        public PythonMinion nextConnection()
+            throws InterruptedException
+        {
+            return myConnections.poll(60, TimeUnit.SECONDS);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run()
+        {
+            // Like the superclass, but we keep hold of the connections
+            try {
+                while (true) {
+                    myConnections.add(awaitConnection());
+                }
+            }
+            catch (IOException e) {
+                // We were closed
+            }
+        }
+
+        @Override
+        protected boolean isUserPermitted(CharSequence username)
+        {
+            return true;
+        }
+
+        @Override
+        protected int numWorkers()
+        {
+            return myNumWorkers;
+        }
+
+        @Override
+        protected boolean useWorkerPool()
+        {
+            return true;
+        }
+
+        @Override
+        protected int maxPooledWorkers()
+        {
+            return myMaxPooledWorkers;
+        }
+
+        @Override
+        protected int maxConcurrentRequestsPerConnection()
+        {
+            return myMaxConcurrentRequests;
+        }
+
+        @Override
+        protected Object getObjectInstance(CharSequence name)
+        {
+            return myInstances.apply(name.toString());
+        }
+    }
+
+    // ----------------------------------------------------------------------
+
+    /**
+     * A busy connection should not starve a quiet one; with a single worker
+     * the connections should be served in turn.
+     */
+    @Test
+    public void testRoundRobin()
+        throws Exception
+    {
+        // Everything which is handled, in order. The first request blocks
+        // until everything else is queued up behind it.
+        final List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final int port = SocketChannelTransportTest.freePort();
+        final PoolPJRmi pjrmi = new PoolPJRmi(port, 1, 1, 0, name -> {
+            handled.add(name);
+            if (name.equals("busy0")) {
+                started.countDown();
+                await(release);
+            }
+            return name;
+        });
+        pjrmi.start();
+        try (TestClient busy  = new TestClient(port);
+             TestClient quiet = new TestClient(port))
+        {
+            busy.send('A', 1, 0, TestClient.instanceRequest("busy0"));
+            busy.flush();
+            await(started);
+
+            // Now the busy one sends a lot, and then the quiet one a few
+            for (int i=1; i < 20; i++) {
+                busy.send('A', 1, i, TestClient.instanceRequest("busy" + i));
+            }
+            busy.flush();
+            Thread.sleep(100);
+            for (int i=0; i < 5; i++) {
+                quiet.send('A', 1, i, TestClient.instanceRequest("quiet" + i));
+            }
+            quiet.flush();
+            Thread.sleep(100);
+            release.countDown();
+
+            for (int i=0; i < 20; i++) {
+                assertEquals('a', busy.receive().type);
+            }
+            for (int i=0; i < 5; i++) {
+                assertEquals('a', quiet.receive().type);
+            }
+
+            // The quiet connection's requests should have been interleaved
+            // with the busy one's, not left until it was done
+            assertEquals(25, handled.size());
+            for (int i=0; i < 5; i++) {
+                final int index = handled.indexOf("quiet" + i);
+                assertTrue(index <= 2 * (i + 1),
+                           "quiet" + i + " handled at " + index + ": " + handled);
+            }
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * No more than the per-connection limit of a connection's requests should
+     * be handled at once, even when there are workers to spare.
+     */
+    @Test
+    public void testConcurrencyCap()
+        throws Exception
+    {
+        final AtomicInteger inFlight    = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final int port = SocketChannelTransportTest.freePort();
+        final PoolPJRmi pjrmi = new PoolPJRmi(port, 8, 8, 2, name -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e) {
+                // Nothing
+            }
+            inFlight.decrementAndGet();
+            return name;
+        });
+        pjrmi.start();
+        try (TestClient client = new TestClient(port)) {
+            for (int i=0; i < 10; i++) {
+                client.send('A', 1, i, TestClient.instanceRequest("request" + i));
+            }
+            client.flush();
+
+            final Set<Integer> reqIds = new HashSet<>();
+            for (int i=0; i < 10; i++) {
+                final TestClient.Message reply = client.receive();
+                assertEquals('a', reply.type);
+                reqIds.add(reply.reqId);
+            }
+            assertEquals(10, reqIds.size());
+            assertEquals(2, maxInFlight.get());
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * Requests which arrive one at a time should all be handled by the same,
+     * pooled, worker, rather than new ones being created for them.
+     */
+    @Test
+    public void testIdleWorkerReuse()
+        throws Exception
+    {
+        final Set<String> workers = Collections.synchronizedSet(new HashSet<>());
+        final int port = SocketChannelTransportTest.freePort();
+        final PoolPJRmi pjrmi = new PoolPJRmi(port, 2, 8, 0, name -> {
+            workers.add(Thread.currentThread().getName());
+            return name;
+        });
+        pjrmi.start();
+        try (TestClient client = new TestClient(port)) {
+            for (int i=0; i < 10; i++) {
+                client.send('A', 1, i, TestClient.instanceRequest("request" + i));
+                client.flush();
+                assertEquals(i, client.receive().reqId);
+
+                // Give the worker time to go back to waiting
+                Thread.sleep(50);
+            }
+            assertEquals(1, workers.size());
+            assertTrue(workers.iterator().next().contains("#PooledWorker"),
+                       String.valueOf(workers));
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * A request made from a thread which is waiting on a call back into
+     * Python must be handled straight away, even though that means going over
+     * both the per-connection limit and the size of the pool.
+     */
+    @Test
+    public void testReentrantBypassesCap()
+        throws Exception
+    {
+        final List<PythonMinion> minion = new ArrayList<>();
+        final int port = SocketChannelTransportTest.freePort();
+        final PoolPJRmi pjrmi = new PoolPJRmi(port, 1, 1, 1, name -> {
+            // The outer call calls back into "Python", which makes the inner
+            // one from the same thread
+            if (name.equals("outer")) {
+                try {
+                    minion.get(0).setGlobalVariable("x", 1);
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return name;
+        });
+        pjrmi.start();
+        try (TestClient client = new TestClient(port)) {
+            minion.add(pjrmi.nextConnection());
+
+            final long threadId = 7;
+            client.send('A', threadId, 0, TestClient.instanceRequest("outer"));
+            client.flush();
+
+            // We get the callback for the outer request's thread
+            final TestClient.Message callback = client.receive();
+            assertEquals('q', callback.type);
+            assertEquals(threadId, callback.threadId);
+
+            // And, while it's waiting, we call back in from that thread
+            client.send('A', threadId, 1, TestClient.instanceRequest("inner"));
+            client.flush();
+            final TestClient.Message inner = client.receive();
+            assertEquals('a', inner.type);
+            assertEquals(1,   inner.reqId);
+
+            // Now we can let the outer one finish
+            final int requestId =
+                ((callback.payload[0] & 0xff) << 24) |
+                ((callback.payload[1] & 0xff) << 16) |
+                ((callback.payload[2] & 0xff) <<  8) |
+                ((callback.payload[3] & 0xff)      );
+            client.send('Q', threadId, 0, TestClient.callbackResponse(requestId, 0));
+            client.flush();
+            final TestClient.Message outer = client.receive();
+            assertEquals('a', outer.type);
+            assertEquals(0,   outer.reqId);
+        }
+        finally {
+            pjrmi.close();
+        }
+    }
+
+    /**
+     * Wait for the given latch, without hanging forever.
+     */
+    private static void await(final CountDownLatch latch)
+    {
+        try {
+            assertTrue(latch.await(60, TimeUnit.SECONDS));
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -18,6 +18,7 @@
 #include <signal.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
 
 #include <jni.h>
 #include <pjrmi.h>
@@ -69,16 +70,23 @@ public:
     void disconnect() noexcept(false);
 
     /**
-     * Read a byte from the pipe.
+     * Read bytes from the pipe. This blocks until at least one byte is
+     * available.
      *
-     * @return -1 on EOF
+     * @param buf    Where to read the bytes into.
+     * @param count  The maximum number of bytes to read.
+     *
+     * @return the number of bytes read, or -1 on EOF
      */
-    int read() noexcept(false);
+    Py_ssize_t read(char* buf, Py_ssize_t count) noexcept(false);
 
     /**
-     * Write a byte to the pipe.
+     * Write bytes to the pipe.
+     *
+     * @param buf    The bytes to write.
+     * @param count  The number of bytes to write.
      */
-    void write(int b) noexcept(false);
+    void write(const char* buf, Py_ssize_t count) noexcept(false);
 
 private:
     /**
@@ -117,14 +125,27 @@ private:
     jobject _pipe;
 
     /**
-     * The handle on the pipe's read method.
+     * The handle on the pipe's readToBuffer method.
      */
     jmethodID _read;
 
     /**
-     * The handle on the pipe's write method.
+     * The handle on the pipe's writeFromBuffer method.
      */
     jmethodID _write;
+
+    /**
+     * The handles on the pipe's transfer buffer getters.
+     */
+    jmethodID _get_read_buffer;
+    jmethodID _get_write_buffer;
+
+    /**
+     * The memory behind the pipe's direct transfer buffers, and their size.
+     */
+    char*      _read_buffer;
+    char*      _write_buffer;
+    Py_ssize_t _transfer_size;
 };
 
 // ================================================================================
@@ -142,7 +163,12 @@ PJRmiPipe::PJRmiPipe(const std::vector<std::string>& classpath,
     _env(NULL),
     _pipe(NULL),
     _read(NULL),
-    _write(NULL)
+    _write(NULL),
+    _get_read_buffer(NULL),
+    _get_write_buffer(NULL),
+    _read_buffer(NULL),
+    _write_buffer(NULL),
+    _transfer_size(0)
 {
     // We can only ever create one instance since multiple JVMs are not
     // supported in the same process
@@ -261,13 +287,35 @@ PJRmiPipe::PJRmiPipe(const std::vector<std::string>& classpath,
             "Failed to find 'BidirectionalPipe PipedProvider#newConnection()'"
         );
     }
-    _read  = _env->GetMethodID(BidirectionalPipe, "read", "()I");
+    _read  = _env->GetMethodID(BidirectionalPipe, "readToBuffer", "(I)I");
     if (_read == NULL) {
-        throw std::runtime_error("Failed to find 'int BidirectionalPipe#read()'");
+        throw std::runtime_error(
+            "Failed to find 'int BidirectionalPipe#readToBuffer(int)'"
+        );
     }
-    _write = _env->GetMethodID(BidirectionalPipe, "write", "(I)V");
+    _write = _env->GetMethodID(BidirectionalPipe, "writeFromBuffer", "(I)V");
     if (_write == NULL) {
-        throw std::runtime_error("Failed to find 'void BidirectionalPipe#write(int)'");
+        throw std::runtime_error(
+            "Failed to find 'void BidirectionalPipe#writeFromBuffer(int)'"
+        );
+    }
+    _get_read_buffer =
+        _env->GetMethodID(BidirectionalPipe,
+                          "getReadBuffer",
+                          "()Ljava/nio/ByteBuffer;");
+    if (_get_read_buffer == NULL) {
+        throw std::runtime_error(
+            "Failed to find 'ByteBuffer BidirectionalPipe#getReadBuffer()'"
+        );
+    }
+    _get_write_buffer =
+        _env->GetMethodID(BidirectionalPipe,
+                          "getWriteBuffer",
+                          "()Ljava/nio/ByteBuffer;");
+    if (_get_write_buffer == NULL) {
+        throw std::runtime_error(
+            "Failed to find 'ByteBuffer BidirectionalPipe#getWriteBuffer()'"
+        );
     }
 
     // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
@@ -301,6 +349,22 @@ void PJRmiPipe::connect()
     }
 
     _pipe = _env->NewGlobalRef(_env->CallObjectMethod(_provider, _new_connection));
+    check_exception("connecting");
+
+    // Grab the addresses of the transfer buffers. These remain valid for as
+    // long as we hold the reference to the pipe, since it holds the buffers.
+    jobject read_buffer  = _env->CallObjectMethod(_pipe, _get_read_buffer);
+    check_exception("getting the read buffer");
+    jobject write_buffer = _env->CallObjectMethod(_pipe, _get_write_buffer);
+    check_exception("getting the write buffer");
+
+    _read_buffer   = (char*)_env->GetDirectBufferAddress(read_buffer);
+    _write_buffer  = (char*)_env->GetDirectBufferAddress(write_buffer);
+    _transfer_size = std::min(_env->GetDirectBufferCapacity(read_buffer),
+                              _env->GetDirectBufferCapacity(write_buffer));
+    if (_read_buffer == NULL || _write_buffer == NULL || _transfer_size <= 0) {
+        throw std::runtime_error("Failed to get the pipe's transfer buffers");
+    }
 }
 
 /**
@@ -326,24 +390,34 @@ PJRmiPipe::~PJRmiPipe()
 }
 
 /**
- * Write a byte down the pipe.
+ * Read bytes from the pipe, via the read transfer buffer.
  */
-int PJRmiPipe::read()
+Py_ssize_t PJRmiPipe::read(char* buf, Py_ssize_t count)
     noexcept(false)
 {
-    jint result = _env->CallIntMethod(_pipe, _read);
+    const jint len = (jint)std::min(count, _transfer_size);
+    const jint result = _env->CallIntMethod(_pipe, _read, len);
     check_exception("reading from pipe");
+    if (result > 0) {
+        memcpy(buf, _read_buffer, result);
+    }
     return result;
 }
 
 /**
- * Write a byte to the pipe.
+ * Write bytes to the pipe, via the write transfer buffer, a chunk at a time.
  */
-void PJRmiPipe::write(int b)
+void PJRmiPipe::write(const char* buf, Py_ssize_t count)
     noexcept(false)
 {
-    _env->CallVoidMethod(_pipe, _write, b);
-    check_exception("writing to pipe");
+    while (count > 0) {
+        const jint len = (jint)std::min(count, _transfer_size);
+        memcpy(_write_buffer, buf, len);
+        _env->CallVoidMethod(_pipe, _write, len);
+        check_exception("writing to pipe");
+        buf   += len;
+        count -= len;
+    }
 }
 
 /**
@@ -547,9 +621,10 @@ static PyObject* _disconnect(PyObject* /*self*/, PyObject* args)
 static const char* _read_doc =
 "read(count)\n"
 "\n"
-"Read a given number of bytes from the pipe.\n"
+"Read up to a given number of bytes from the pipe, blocking until at least one\n"
+"is available. An empty result means EOF.\n"
 "\n"
-"@param count: the number of bytes to read"
+"@param count: the maximum number of bytes to read"
 ;
 static PyObject* _read(PyObject* /*self*/, PyObject* args)
 {
@@ -579,16 +654,11 @@ static PyObject* _read(PyObject* /*self*/, PyObject* args)
         // Read into here
         char result[count+1];
 
-        // Read in the amount we want to read, or up until the EOF marker
-        Py_ssize_t len;
-        for (len=0; len < count; len++) {
-            const int byte = _pipe->read();
-            if (byte < 0) {
-                break;
-            }
-            else {
-                result[len] = byte;
-            }
+        // Read in what's there, up to the amount we want to read, or nothing
+        // if we hit the EOF marker
+        Py_ssize_t len = _pipe->read(result, count);
+        if (len < 0) {
+            len = 0;
         }
 
         // Terminate
@@ -634,9 +704,7 @@ static PyObject* _write(PyObject* /*self*/, PyObject* args)
     Py_ssize_t count = PyBytes_Size(py_bytes);
 
     try {
-        for (Py_ssize_t i=0; i < count; i++) {
-            _pipe->write(bytes[i]);
-        }
+        _pipe->write(bytes, count);
         return Py_BuildValue("");
     }
     catch (std::exception& e) {
@@ -4,11 +4,15 @@ import itertools
 import io
 import keyword
 import logging
+import mmap
 import numpy
 import os
 import pickle
+import platform
+import queue
 import random
 import re
+import select
 import signal
 import ssl
 import snappy
@@ -81,7 +85,7 @@ class PJRmi:
     # one in the Java code. The major and minor version numbers should match the
     # `pjrmiVersion` values in `gradle.properties`. Typically the minor version
     # number should change whenever the wire format changes.
-    _HELLO = b"PJRMI_1.13"
+    _HELLO = b"PJRMI_1.24"
 
     # Flags denoting server info
     _FLAG_USE_WORKERS = 1
@@ -109,6 +113,11 @@ class PJRmi:
     _INVOKE_AND_GET_OBJECT = b'S' # Client to server
     _INJECT_SOURCE         = b'T' # Client to server
     _REPLACE_CLASS         = b'U' # Client to server
+    _ITERATE               = b'V' # Client to server
+    _GET_ARRAY_SLICE       = b'W' # Client to server
+    _SET_ARRAY_SLICE       = b'X' # Client to server
+    _WITH_DEADLINE         = b'Y' # Client to server
+    _BULK_SETUP            = b'Z' # Client to server
     _OBJECT_REFERENCE      = b'a' # Server to client
     _TYPE_DESCRIPTION      = b'b' # Server to client
     _ARBITRARY_ITEM        = b'c' # Server to client
@@ -127,19 +136,45 @@ class PJRmi:
     _GETATTR               = b'p' # Server to client
     _SET_GLOBAL_VARIABLE   = b'q' # Server to client
     _SHMDATA_BYTES         = b'r' # Server to client
+    _ITERATED_ITEMS        = b's' # Server to client
+    _ARRAY_ELEMENTS        = b't' # Server to client
+    _BULK_TRANSFER_INFO    = b'u' # Server to client
+    _CALLBACK_BATCH        = b'v' # Server to client
+    _PYTHON_PREPARE        = b'w' # Server to client
 
     # The Python request ID used by Java for unsolicited callbacks
     _CALLBACK_REQUEST_ID = -1
 
+    # How Java wants the result of a callback to be sent back
+    _CALLBACK_RESULT_TYPE_OBJECT  = b'L'
+    _CALLBACK_RESULT_TYPE_BOOLEAN = b'z'
+    _CALLBACK_RESULT_TYPE_LONG    = b'j'
+    _CALLBACK_RESULT_TYPE_DOUBLE  = b'd'
+
+    # The kinds of callback response; the first two are compatible with a
+    # boolean "is exception" flag
+    _CALLBACK_RESPONSE_OBJECT    = b'\x00'
+    _CALLBACK_RESPONSE_EXCEPTION = b'\x01'
+    _CALLBACK_RESPONSE_BOOLEAN   = b'\x02'
+    _CALLBACK_RESPONSE_LONG      = b'\x03'
+    _CALLBACK_RESPONSE_DOUBLE    = b'\x04'
+
     # Some special values
     _NULL_HANDLE = 0
 
+    # How elements are selected for array slicing, and the wire value which
+    # denotes a missing slice bound
+    _SELECTION_SLICE   = b'S'
+    _SELECTION_INDICES = b'I'
+    _SELECTION_NONE    = -2**63
+
     # Method argument types
     _ARGUMENT_VALUE     = b'V'
     _ARGUMENT_REFERENCE = b'R'
     _ARGUMENT_SHMDATA   = b'S'
     _ARGUMENT_METHOD    = b'M'
     _ARGUMENT_LAMBDA    = b'L'
+    _ARGUMENT_BULK      = b'K'
 
     # The wire format for passing objects from Java to python in things like
     # method calls
@@ -150,10 +185,14 @@ class PJRmi:
     _VALUE_FORMAT_SHMDATA                  = b'E'
     _VALUE_FORMAT_BESTEFFORT_PICKLE        = b'F'
     _VALUE_FORMAT_BESTEFFORT_SNAPPY_PICKLE = b'G'
+    _VALUE_FORMAT_SHM_ARENA                = b'H'
+    _VALUE_FORMAT_SHMDATA_SHAPED           = b'I'
+    _VALUE_FORMAT_AUTO_SHMDATA             = b'J'
     # Expose some of these for the public user
     VALUE_FORMAT_PICKLE            = _VALUE_FORMAT_SNAPPY_PICKLE
     VALUE_FORMAT_BESTEFFORT_PICKLE = _VALUE_FORMAT_BESTEFFORT_SNAPPY_PICKLE
     VALUE_FORMAT_SHMDATA           = _VALUE_FORMAT_SHMDATA
+    VALUE_FORMAT_AUTO_SHMDATA      = _VALUE_FORMAT_AUTO_SHMDATA
 
     # TypeFlags (corresponds to values in PJRmi.TypeFlags)
     _TYPE_FLAGS_IS_PRIMITIVE            = 1 << 0
@@ -183,16 +222,74 @@ class PJRmi:
         _VALUE_FORMAT_SHMDATA,
         _VALUE_FORMAT_BESTEFFORT_PICKLE,
         _VALUE_FORMAT_BESTEFFORT_SNAPPY_PICKLE,
+        _VALUE_FORMAT_AUTO_SHMDATA,
     ))
     _ACCEPTED_SYNC_MODES = frozenset((
         SYNC_MODE_SYNCHRONOUS,
         SYNC_MODE_JAVA_THREAD
     ))
 
+    # The layout of the blocks in a Java ShmArena, and the numpy types of the
+    # arrays in them
+    _SHM_ARENA_HEADER_SIZE     = 64
+    _SHM_ARENA_RELEASED_OFFSET = 8
+    _SHM_ARENA_DTYPES = {
+        'z' : numpy.dtype(numpy.bool_),
+        'b' : numpy.dtype(numpy.int8),
+        's' : numpy.dtype(numpy.int16),
+        'i' : numpy.dtype(numpy.int32),
+        'j' : numpy.dtype(numpy.int64),
+        'f' : numpy.dtype(numpy.float32),
+        'd' : numpy.dtype(numpy.float64),
+    }
+
+    # The layout of the header of the files which a Java ShmDataWriter creates,
+    # and the values of the state in it
+    _SHM_DATA_HEADER_SIZE   = 64
+    _SHM_DATA_STATE_OFFSET  = 0
+    _SHM_DATA_STATE_WRITING = 0
+    _SHM_DATA_STATE_DONE    = 1
+    _SHM_DATA_STATE_FAILED  = -1
+
+    # How long we will wait for Java to finish writing one of those files
+    _SHM_DATA_TIMEOUT_SECS = 600
+
+    # The Java hypercubes which live in shared memory, and their numpy types
+    _SHM_HYPERCUBE_DTYPES = {
+        'com.deshaw.hypercube.DoubleShmHypercube'  : numpy.dtype(numpy.float64),
+        'com.deshaw.hypercube.FloatShmHypercube'   : numpy.dtype(numpy.float32),
+        'com.deshaw.hypercube.IntegerShmHypercube' : numpy.dtype(numpy.int32),
+        'com.deshaw.hypercube.LongShmHypercube'    : numpy.dtype(numpy.int64),
+    }
+
     # Java can't represent arrays which are any larger than this value
     # (inclusive). 2147483647 is 2^31-1, also known as Integer.MAX_VALUE.
     _MAX_JAVA_ARRAY_SIZE = 2147483647
 
+    # The bounds on how many elements we ask for with each ITERATE request. We
+    # start small, since the caller might only want the first few elements, and
+    # double up to the maximum as the iteration continues.
+    _ITERATE_MIN_COUNT = 16
+    _ITERATE_MAX_COUNT = 65536
+
+    # Arrays smaller than this, in bytes, are never sent over the bulk-transfer
+    # side channels, so we don't bother asking the server about them unless we
+    # see one at least this big. The server decides the actual threshold.
+    _BULK_MIN_BYTES = 1024 * 1024
+
+    # The element types which may be sent over the bulk-transfer side channels,
+    # keyed by numpy dtype name, with the type characters which Java uses for
+    # them
+    _BULK_TYPES = {
+        'bool'    : b'z',
+        'int8'    : b'b',
+        'int16'   : b's',
+        'int32'   : b'i',
+        'int64'   : b'j',
+        'float32' : b'f',
+        'float64' : b'd',
+    }
+
     # All the instance, keyed by id()
     _INSTANCES = weakref.WeakValueDictionary()
 
@@ -240,6 +337,7 @@ class PJRmi:
         self._recv_lock          = Lock() # protects _recv() calls
         self._recv_thread        = None   # set lazily
         self._recvd              = dict()
+        self._deadlines          = ThreadLocal() # per-thread request deadline
         self._class_getter       = None
         self._classes_by_id      = dict()
         self._classes_by_name    = dict()
@@ -261,6 +359,10 @@ class PJRmi:
         self._use_shmdata        = use_shm_arg_passing
         self._shmdata_files      = list()
         self._shmdata_tidylists  = list()
+        self._bulk               = None   # set lazily, False if not available
+        self._bulk_lock          = Lock() # protects _bulk creation
+        self._shm_arenas         = dict() # filename -> mmap
+        self._shm_arenas_lock    = Lock() # protects _shm_arenas
         self._thread_id_xor      = random.randint(0, 0x7fffffffffffffff)
 
         # The handlers for different message types. We use these like a type of
@@ -278,6 +380,9 @@ class PJRmi:
             self._ARRAY_LENGTH     : self._handle_array_length,
             self._PYTHON_REFERENCE : self._handle_python_reference,
             self._SHMDATA_BYTES    : self._handle_shmdata_bytes,
+            self._ITERATED_ITEMS   : self._handle_iterated_items,
+            self._ARRAY_ELEMENTS   : self._handle_array_elements,
+            self._BULK_TRANSFER_INFO : self._handle_bulk_transfer_info,
         }
 
 
@@ -436,6 +541,8 @@ class PJRmi:
         self._java_lang_Exception         = self.class_for_name('java.lang.Exception')
         self._java_util_Collection        = self.class_for_name('java.util.Collection')
         self._java_util_Iterator          = self.class_for_name('java.util.Iterator')
+        self._java_util_Spliterator       = self.class_for_name('java.util.Spliterator')
+        self._java_util_stream_BaseStream = self.class_for_name('java.util.stream.BaseStream')
         self._java_util_List              = self.class_for_name('java.util.List')
         self._java_util_Map               = self.class_for_name('java.util.Map')
         self._java_util_Map_Entry         = self.class_for_name('java.util.Map$Entry')
@@ -465,6 +572,31 @@ class PJRmi:
             self._java_lang_short._type_id   : self._read_int16,
         }
 
+        # The dtypes of primitive array elements which are sent back, packed,
+        # in response to a GET_ARRAY_SLICE request
+        self._array_element_dtypes = {
+            self._java_lang_boolean._type_id : '?',
+            self._java_lang_byte._type_id    : 'i1',
+            self._java_lang_double._type_id  : '>f8',
+            self._java_lang_float._type_id   : '>f4',
+            self._java_lang_int._type_id     : '>i4',
+            self._java_lang_long._type_id    : '>i8',
+            self._java_lang_short._type_id   : '>i2',
+        }
+
+        # The struct formats of primitives which are sent back, packed, in
+        # response to an ITERATE request
+        self._iterated_item_formats = {
+            self._java_lang_boolean._type_id : '?',
+            self._java_lang_byte._type_id    : 'b',
+            self._java_lang_char._type_id    : 'H',
+            self._java_lang_double._type_id  : 'd',
+            self._java_lang_float._type_id   : 'f',
+            self._java_lang_int._type_id     : 'i',
+            self._java_lang_long._type_id    : 'q',
+            self._java_lang_short._type_id   : 'h',
+        }
+
         # Other utility classes. Defined after we have set up the boxes since
         # their deserialisation might depend on those boxes.
         self._java_lang_AutoCloseable               = self.class_for_name('java.lang.AutoCloseable')
@@ -490,6 +622,21 @@ class PJRmi:
         self._L_java_lang_Object                    = self.class_for_name('[Ljava.lang.Object;')
         self._L_java_lang_String                    = self.class_for_name('[Ljava.lang.String;')
 
+        # The dtypes of the primitive arrays, and the hypercubes, which may be
+        # sent over the bulk-transfer side channels, keyed by the Java type ID.
+        # Hypercubes only come in some flavours.
+        self._bulk_dtypes = {
+            self._L_java_lang_boolean._type_id : ('bool',),
+            self._L_java_lang_byte._type_id    : ('int8',),
+            self._L_java_lang_short._type_id   : ('int16',),
+            self._L_java_lang_int._type_id     : ('int32',),
+            self._L_java_lang_long._type_id    : ('int64',),
+            self._L_java_lang_float._type_id   : ('float32',),
+            self._L_java_lang_double._type_id  : ('float64',),
+            self._com_deshaw_hypercube_Hypercube._type_id :
+                ('bool', 'int32', 'int64', 'float32', 'float64'),
+        }
+
         # Spawn a receiver thread, if any
         if (self._flags & self._FLAG_USE_WORKERS != 0):
             # Create a simple thread to handle pulling data in off the wire
@@ -690,6 +837,19 @@ class PJRmi:
             self._connected = False
             self._transport.disconnect()
 
+            # Drop any side channels too
+            if self._bulk:
+                self._bulk.close()
+
+            # And unmap any shared-memory arenas
+            with self._shm_arenas_lock:
+                for arena in self._shm_arenas.values():
+                    try:
+                        arena.close()
+                    except Exception:
+                        pass
+                self._shm_arenas.clear()
+
 
     def close(self):
         """
@@ -762,6 +922,27 @@ class PJRmi:
         return _JavaLock(self, lock_name)
 
 
+    def deadline(self, timeout_secs):
+        """
+        Get a context manager which gives a deadline to all the requests which
+        this thread sends to Java while inside it. If a request has not started
+        being handled by the time its deadline has passed then Java will drop
+        it and a ``DeadlineExceededException`` will be raised here.
+
+        Deadlines may be nested, in which case the tighter one is used.
+
+        >> with c.deadline(0.5):
+        >>     do stuff...
+
+        :param timeout_secs: How long, in seconds, until the deadline.
+        """
+
+        if timeout_secs is None or timeout_secs < 0:
+            raise ValueError("Bad timeout: %s" % (timeout_secs,))
+
+        return _Deadline(self, timeout_secs)
+
+
     @property
     def javaclass(self):
         if self._class_getter is None:
@@ -958,6 +1139,15 @@ class PJRmi:
              obj.__class__ == self._L_java_lang_double)):
             value_format = self._VALUE_FORMAT_SHMDATA
 
+        # Hypercubes, and multi-dimensional arrays, are sent with their shape
+        # when they are primitive. Java falls back to pickling them if not.
+        elif (self._transport.is_localhost() and
+              self._use_shmdata              and
+              (obj.__class__._instance_of(self._com_deshaw_hypercube_Hypercube) or
+               re.fullmatch(r'\[\[+[ZBSIJFD]',
+                            getattr(obj.__class__, '_classname', '')))):
+            value_format = self._VALUE_FORMAT_SHMDATA
+
         # Send the request
         payload = self._format_int64(obj._pjrmi_handle) + value_format
 
@@ -967,6 +1157,76 @@ class PJRmi:
         return self._read_result(req_id)
 
 
+    def get_slice(self, obj, key):
+        """
+        Get a selection of the elements of a Java array, ``ArrayLike`` or
+        ``Hypercube`` in a single call.
+
+        Hypercubes are indexed by their flattened, C-style, positions. Negative
+        indices count back from the end, as they do in Python.
+
+        Primitive elements are transferred in bulk, via shared memory when the
+        Java process is on the same host, and are given back as a numpy
+        ``ndarray``. (``char`` elements are given back as a ``str``.) Other
+        elements are given back as a ``list``.
+
+        :param obj: The Java object to take the elements from.
+        :param key: A ``slice`` or a sequence of integer indices.
+
+        :return: The selected elements.
+        """
+
+        # We can only receive via SHM if we have the extension
+        try:
+            pjrmi.extension.read_array
+            use_shm = self._use_shmdata and self._transport.is_localhost()
+        except (AttributeError, NameError):
+            use_shm = False
+
+        payload = (self._format_int64(obj._pjrmi_handle) +
+                   self._format_boolean(use_shm) +
+                   self._format_selection(key))
+        req_id = self._send(self._GET_ARRAY_SLICE, payload)
+        return self._read_result(req_id)
+
+
+    def set_slice(self, obj, key, value):
+        """
+        Set a selection of the elements of a Java array, ``ArrayLike`` or
+        ``Hypercube`` in a single call.
+
+        The selection semantics are the same as for ``get_slice()``. If the
+        value is a scalar then it is assigned to all the selected elements,
+        otherwise it should have the same length as the selection.
+
+        :param obj:   The Java object to set the elements of.
+        :param key:   A ``slice`` or a sequence of integer indices.
+        :param value: The value(s) to set.
+        """
+
+        # Scalars are sent as a single value, which the Java side will
+        # broadcast
+        if isinstance(value, str) or not hasattr(value, '__iter__'):
+            value = [value]
+
+        # Figure out the array type to send the values as. For Java arrays we
+        # know the element type, for everything else we let the value's dtype
+        # decide.
+        klass = obj.__class__
+        if klass._is_array:
+            if not isinstance(value, numpy.ndarray):
+                value = list(value)
+        else:
+            klass = self._java_lang_Object
+            value = numpy.asarray(value)
+
+        payload = (self._format_int64(obj._pjrmi_handle) +
+                   self._format_selection(key) +
+                   self._format_by_class(klass, value))
+        req_id = self._send(self._SET_ARRAY_SLICE, payload)
+        self._read_result(req_id)
+
+
     def collect(self, value, timeout_secs=2**31, as_value=False):
         """
         Collect the results of all the Java ``Future``s found in the given value.
@@ -1359,6 +1619,26 @@ public class TestInjectSource {
         return None
 
 
+    def _iterate(self, iterator):
+        """
+        Generate the elements of a Java ``Iterator`` or ``Spliterator``,
+        fetching them from the Java side in chunks.
+        """
+
+        count = self._ITERATE_MIN_COUNT
+        while True:
+            payload = (self._format_int64(iterator._pjrmi_handle) +
+                       self._format_int32(count))
+            req_id = self._send(self._ITERATE, payload)
+            (has_more, values, exception) = self._read_result(req_id)
+            yield from values
+            if exception is not None:
+                raise exception
+            if not has_more:
+                return
+            count = min(count * 2, self._ITERATE_MAX_COUNT)
+
+
     def _send(self, msg_type, payload):
         """
         Send a message to the other side.
@@ -1384,6 +1664,25 @@ public class TestInjectSource {
                 "Can't send a message of size %d bytes" % payload_size
             )
 
+        # If this thread has a deadline then we wrap the message up with it.
+        # Control messages are not wrapped since those should never be dropped.
+        # Nor are type requests, since we may need to make one in order to
+        # raise the exception which tells us that a request was dropped.
+        deadline = getattr(self._deadlines, 'value', None)
+        if deadline is not None and msg_type not in (self._ADD_REFERENCE,
+                                                     self._DROP_REFERENCES,
+                                                     self._CALLBACK_RESPONSE,
+                                                     self._UNLOCK,
+                                                     self._TYPE_REQUEST):
+            # We send the time remaining so that the clocks on either side
+            # don't need to agree
+            timeout_ms = max(0, int((deadline - time.monotonic()) * 1000))
+            payload = b"%s%c%s" % (self._format_int64(timeout_ms),
+                                   msg_type,
+                                   payload)
+            msg_type     = self._WITH_DEADLINE
+            payload_size = len(payload)
+
         # Determine the thread ID. This is mildly expensive so we only do it if
         # we are re-entrant.
         if self._has_receiver:
@@ -1413,6 +1712,12 @@ public class TestInjectSource {
                                                           payload_size),
                                               payload))
 
+            # Kick off the data for any bulk transfers which the message refers
+            # to. We do this under the lock so that the parts go out over the
+            # side channels in the same order as the messages do.
+            if self._bulk:
+                self._bulk.start(request_id, payload)
+
         return request_id
 
 
@@ -1780,28 +2085,44 @@ public class TestInjectSource {
 
     def _handle_arbitrary_item(self, msg_type, payload):
         # This is an object of an unknown type being sent over the wire
-        #  int32   : Type ID
-        #  bytes[] : Result (if any)
-        (type_id, idx) = self._read_int32(payload, 0)
-
-        # Handle all the types we know about, primitives are sent back
-        # as raw bits which we can convert
-        handler = self._handle_arbitrary_item_handlers.get(type_id)
-        if handler is not None:
-            value = handler(payload, idx)[0]
+        return self._read_arbitrary_item(payload, 0)[0]
+
+
+    def _handle_iterated_items(self, msg_type, payload):
+        # A chunk of elements from an Iterator or Spliterator:
+        #  boolean : Whether there might be more elements
+        #  int32   : The number of elements
+        #  int32   : The primitive type ID, or -1 if the values are not packed
+        #  bytes[] : The packed values or the arbitrary items
+        #  boolean : Whether an exception follows
+        #  bytes[] : The exception, as an arbitrary item
+        (has_more, idx) = self._read_boolean(payload, 0)
+        (count,    idx) = self._read_int32  (payload, idx)
+        (type_id,  idx) = self._read_int32  (payload, idx)
+
+        if type_id < 0:
+            values = []
+            for i in range(count):
+                (value, idx) = self._read_arbitrary_item(payload, idx)
+                values.append(value)
         else:
-            # For Objects we simply read the handle (and any raw value) and
-            # create them
-            (handle, raw_len) = struct.unpack('!qi', payload[idx:idx+12])
-            idx += 12
-            if raw_len >= 0:
-                raw  = payload[idx : idx + raw_len]
-                idx += raw_len
-            else:
-                raw = None
-            value = self._create_object(type_id, handle, raw)
+            # Unpack the raw values in one go
+            fmt = self._iterated_item_formats.get(type_id)
+            if fmt is None:
+                raise ValueError("Unhandled packed type ID %d" % type_id)
+            values = struct.unpack_from('!%d%s' % (count, fmt), payload, idx)
+            idx   += struct.calcsize('!%d%s' % (count, fmt))
+            if type_id == self._java_lang_char._type_id:
+                values = [chr(v) for v in values]
+
+        # Any exception which was thrown part way through the iteration
+        (has_exception, idx) = self._read_boolean(payload, idx)
+        if has_exception:
+            (exception, idx) = self._read_arbitrary_item(payload, idx)
+        else:
+            exception = None
 
-        return value
+        return (has_more, values, exception)
 
 
     def _handle_exception(self, msg_type, payload):
@@ -1868,6 +2189,10 @@ public class TestInjectSource {
 
         # Read in the return format
         (value_format, idx) = self._read_byte(payload, 0)
+        if value_format == self._VALUE_FORMAT_SHM_ARENA:
+            return self._read_shm_arena(payload, idx)[0]
+        if value_format == self._VALUE_FORMAT_SHMDATA_SHAPED:
+            return self._read_shmdata_shaped(payload, idx)[0]
         assert (value_format == self._VALUE_FORMAT_SHMDATA), \
                ('unrecognized value format: %s' % value_format)
 
@@ -1882,6 +2207,177 @@ public class TestInjectSource {
                                           arr_type.encode('utf-8'))
 
 
+    def _read_shm_arena(self, bytes, idx):
+        """
+        Read an array which Java has put into its shared-memory arena, copying
+        it out and then releasing its block so that Java can reuse it. The
+        details are in the form:
+         string  : The arena's filename
+         int64   : The offset of the block in the arena
+         int32   : The number of elements in the array
+         int16   : The type of the array
+
+        See ``ShmArena.java`` for the layout of the blocks.
+        """
+        (filename,  idx) = self._read_utf16(bytes, idx)
+        (offset,    idx) = self._read_int64(bytes, idx)
+        (num_elems, idx) = self._read_int32(bytes, idx)
+        (arr_type,  idx) = self._read_char (bytes, idx)
+
+        # Map the arena the first time that we see it. Java may remove the
+        # file once it's done with it, but our mapping stays valid.
+        with self._shm_arenas_lock:
+            arena = self._shm_arenas.get(filename)
+            if arena is None:
+                with open(filename, 'r+b') as fh:
+                    arena = mmap.mmap(fh.fileno(), 0)
+                self._shm_arenas[filename] = arena
+
+        # Make sure that what we were given makes sense
+        if offset < 0 or offset + self._SHM_ARENA_HEADER_SIZE > len(arena):
+            raise ValueError("Bad offset %d for arena %s" % (offset, filename))
+
+        try:
+            dtype = self._SHM_ARENA_DTYPES.get(arr_type)
+            if dtype is None:
+                raise ValueError("Unknown array type '%s'" % arr_type)
+            start = offset + self._SHM_ARENA_HEADER_SIZE
+            if start + num_elems * dtype.itemsize > len(arena):
+                raise ValueError(
+                    "Array at offset %d with %d elements is outside arena %s" %
+                    (offset, num_elems, filename)
+                )
+
+            # Copy the data out, so that the block can be reused
+            return (numpy.frombuffer(arena,
+                                     dtype=dtype,
+                                     count=num_elems,
+                                     offset=start).copy(),
+                    idx)
+
+        finally:
+            # Tell Java that it can have the block back
+            struct.pack_into('=q', arena, offset + self._SHM_ARENA_RELEASED_OFFSET, 1)
+
+
+    def _read_shmdata_shaped(self, bytes, idx):
+        """
+        Read a hypercube, or a multi-dimensional array, which Java has written
+        into its own shared-memory file. The details are in the form:
+         string  : The filename
+         int32   : The number of dimensions
+         int64[] : The shape
+         int16   : The type of the elements
+
+        The file has a header, followed by the flattened values in C order,
+        and we map those values directly as our array before unlinking the
+        file. The memory is released once the array is garbage collected.
+
+        Java may still be copying the values in when it sends us the details,
+        so that we can be mapping the file at the same time. We wait for the
+        state in the header to say that it is done before handing back the
+        array.
+        """
+        (filename, idx) = self._read_utf16(bytes, idx)
+        (ndim,     idx) = self._read_int32(bytes, idx)
+        shape = []
+        for i in range(ndim):
+            (length, idx) = self._read_int64(bytes, idx)
+            shape.append(length)
+        shape = tuple(shape)
+        (arr_type, idx) = self._read_char(bytes, idx)
+
+        try:
+            dtype = self._SHM_ARENA_DTYPES.get(arr_type)
+            if dtype is None:
+                raise ValueError("Unknown array type '%s'" % arr_type)
+            with open(filename, 'rb') as fh:
+                header = mmap.mmap(fh.fileno(),
+                                   self._SHM_DATA_HEADER_SIZE,
+                                   access=mmap.ACCESS_READ)
+            try:
+                if numpy.prod(shape) == 0:
+                    # Can't map an empty region
+                    result = numpy.zeros(shape, dtype=dtype)
+                else:
+                    result = numpy.memmap(filename,
+                                          dtype=dtype,
+                                          mode='r+',
+                                          offset=self._SHM_DATA_HEADER_SIZE,
+                                          shape=shape,
+                                          order='C').view(numpy.ndarray)
+                self._await_shmdata(filename, header)
+            finally:
+                header.close()
+        finally:
+            # We own the file now. Our mapping of it stays valid.
+            try:
+                os.unlink(filename)
+            except OSError as e:
+                LOG.warning("Failed to unlink %s: %s", filename, e)
+
+        return (result, idx)
+
+
+    def _await_shmdata(self, filename, header):
+        """
+        Wait for Java to finish writing the given file, by watching the state in
+        its mapped header, raising an exception if Java failed to write it.
+        """
+        deadline = time.monotonic() + self._SHM_DATA_TIMEOUT_SECS
+        delay = 0.0
+        while True:
+            (state,) = struct.unpack_from('=q',
+                                          header,
+                                          self._SHM_DATA_STATE_OFFSET)
+            if state == self._SHM_DATA_STATE_DONE:
+                return
+            elif state == self._SHM_DATA_STATE_FAILED:
+                raise IOError("Java failed to write %s" % filename)
+            elif time.monotonic() > deadline:
+                raise IOError("Timed out waiting for Java to write %s" % filename)
+
+            # Back off gradually, since big copies can take a while
+            time.sleep(delay)
+            delay = min(0.001, 2 * delay if delay > 0 else 0.00001)
+
+
+    def _handle_array_elements(self, msg_type, payload):
+        # A selection of the elements of an array:
+        #  int32   : The primitive type ID, or -1 if the values are not packed
+        #  int32   : The number of elements
+        #  bytes[] : The packed values or the arbitrary items
+        (type_id, idx) = self._read_int32(payload, 0)
+        (count,   idx) = self._read_int32(payload, idx)
+
+        if type_id < 0:
+            values = []
+            for i in range(count):
+                (value, idx) = self._read_arbitrary_item(payload, idx)
+                values.append(value)
+            return values
+
+        elif type_id == self._java_lang_char._type_id:
+            return bytes(payload[idx:idx + 2 * count]).decode('utf_16_be')
+
+        else:
+            # These come big-endian so we convert to the native order
+            dtype = numpy.dtype(self._array_element_dtypes[type_id])
+            return numpy.frombuffer(payload,
+                                    dtype =dtype,
+                                    count =count,
+                                    offset=idx).astype(dtype.newbyteorder('='))
+
+
+    def _handle_bulk_transfer_info(self, msg_type, payload):
+        # The details of the bulk-transfer side channels:
+        #  int32   : The port to connect them to
+        #  int32   : How many to open, zero if they are not available
+        #  int64   : The size, in bytes, above which to use them
+        #  int64   : The token to identify them with
+        return struct.unpack('!iiqq', payload)
+
+
     def _handle_empty_ack(self, msg_type, payload):
         # Nothing in this
         return None
@@ -1965,8 +2461,10 @@ public class TestInjectSource {
                 Actually do the work.
                 """
 
-                # Associate the thread
-                self_.thread_id = thread_id
+                # Associate the thread. Requests which are not made on behalf
+                # of a Java thread, like asynchronous ones, are made as this
+                # worker's own thread, so that concurrent ones stay distinct.
+                self_.thread_id = self_.ident if thread_id == -1 else thread_id
 
                 # Any request ID we pick up along the way
                 req_id = None
@@ -1983,6 +2481,7 @@ public class TestInjectSource {
                         #  ...     : args
                         #  int32   : Num kwargs
                         #  ...     : kwargs as (str,value) pairs
+                        #  byte    : How to send back the result
                         (req_id,      idx) = self._read_int32(payload, 0)
                         (function_id, idx) = self._read_int32(payload, idx)
                         (num_args,    idx) = self._read_int32(payload, idx)
@@ -2001,12 +2500,80 @@ public class TestInjectSource {
                             (arg,  idx) = self._read_argument(payload, idx)
                             kwargs[name] = arg
 
+                        # And how Java wants the result
+                        result_type = payload[idx:idx+1]
+                        idx += 1
+
                         # Grab the function
                         function = self._get_callback_function(function_id)
 
                         # What we'll give back to Java. If this raises an exception
                         # then we throw that back to the Java side and let it deal
                         # with it.
+                        if function is None:
+                            result = self._format_by_class(
+                                self._java_lang_Exception,
+                                self._java_lang_Exception("No function for ID %d" %
+                                                          function_id)
+                            )
+                            kind = self._CALLBACK_RESPONSE_EXCEPTION
+
+                        else:
+                            try:
+                                (kind, result) = \
+                                    self._format_callback_result(result_type,
+                                                                 function(*args))
+
+                            except JavaException as e:
+                                result = self._format_by_class(
+                                    self._get_class(e._type_id),
+                                    e
+                                )
+                                kind = self._CALLBACK_RESPONSE_EXCEPTION
+
+                            except Exception as e:
+                                (_, _, tb) = sys.exc_info()
+                                result = self._format_by_class(
+                                    self._java_lang_Exception,
+                                    self._java_lang_Exception(
+                                        "Calling Python function %s raised exception: %s\n%s" %
+                                        (function, e, _tb2jexstr(tb))
+                                    )
+                                )
+                                kind = self._CALLBACK_RESPONSE_EXCEPTION
+
+                        # And call back with whatever we got
+                        payload_ = (self._format_int32(req_id) +
+                                    kind +
+                                    result)
+                        self._send(self._CALLBACK_RESPONSE, payload_)
+
+                    elif msg_type == self._CALLBACK_BATCH:
+                        # This is a batch of calls to a callback function
+                        #  int32   : Java request ID
+                        #  int32   : Python function ID
+                        #  int32   : Result type ID
+                        #  int32   : Num args, or -1 for a single array of them
+                        #  ...     : args
+                        (req_id,      idx) = self._read_int32(payload, 0)
+                        (function_id, idx) = self._read_int32(payload, idx)
+                        (type_id,     idx) = self._read_int32(payload, idx)
+                        (num_args,    idx) = self._read_int32(payload, idx)
+
+                        # And figure out its arguments
+                        if num_args < 0:
+                            (args, idx) = self._read_argument(payload, idx)
+                        else:
+                            args = list()
+                            for i in range(num_args):
+                                (arg, idx) = self._read_argument(payload, idx)
+                                args.append(arg)
+
+                        # Grab the result type and the function
+                        klass    = self._get_class(type_id)
+                        function = self._get_callback_function(function_id)
+
+                        # What we'll give back to Java, as with CALLBACK
                         if function is None:
                             result = self._format_by_class(
                                 self._java_lang_Exception,
@@ -2017,8 +2584,19 @@ public class TestInjectSource {
 
                         else:
                             try:
-                                result = self._format_by_class(self._java_lang_Object,
-                                                               function(*args))
+                                # Arrays may be handed to vectorized functions
+                                # whole, otherwise we call for each element
+                                if num_args < 0 and _is_vectorized(function):
+                                    values = function(args)
+                                    if len(values) != len(args):
+                                        raise ValueError(
+                                            "Vectorized function %s returned "
+                                            "%d values for %d arguments" %
+                                            (function, len(values), len(args))
+                                        )
+                                else:
+                                    values = [function(arg) for arg in args]
+                                result = self._format_by_class(klass, values)
                                 is_exception = False
 
                             except JavaException as e:
@@ -2050,7 +2628,7 @@ public class TestInjectSource {
                         #  int32   : Java request ID
                         #  int32   : Python object ID
                         #  int32   : Return type ID
-                        #  string  : Method name
+                        #  string  : Method name, or null to call the object
                         #  int32   : Num args
                         #  ...     : Args
                         (req_id,      idx) = self._read_int32(payload, 0)
@@ -2078,7 +2656,7 @@ public class TestInjectSource {
                             kwargs[name] = arg
 
                         # Handle name mangling for keywords again
-                        if keyword.iskeyword(method_name):
+                        if method_name is not None and keyword.iskeyword(method_name):
                             method_name += '_'
 
                         # What we'll give back to Java. If this raises an exception
@@ -2090,7 +2668,11 @@ public class TestInjectSource {
                             # Handle the case of not finding the method with the
                             # right exception. The Java side relies on this to
                             # determine what happened (and call any default method).
-                            function = getattr(obj, method_name, None)
+                            # Objects which Java has bound to are called directly.
+                            if method_name is None:
+                                function = obj
+                            else:
+                                function = getattr(obj, method_name, None)
                             if function is None:
                                 raise self._java_lang_NoSuchMethodException(
                                     "Could not find method %s in object %s" %
@@ -2281,6 +2863,44 @@ public class TestInjectSource {
                                     result)
                         self._send(self._CALLBACK_RESPONSE, payload_)
 
+                    elif msg_type == self._PYTHON_PREPARE:
+                        # This is a request to compile some code
+                        #  int32   : Java request ID
+                        #  string  : The code
+                        (req_id, idx) = self._read_int32(payload, 0)
+                        (string, idx) = self._read_utf16(payload, idx)
+
+                        # We give back the ID of a function which runs the
+                        # compiled code, with its kwargs as the locals. Java
+                        # calls that function directly to run the code.
+                        try:
+                            function = self._prepare(string)
+                            object_id = self._get_object_id(function)
+                            result = self._format_by_class(self._java_lang_Integer,
+                                                           object_id)
+                            is_exception = False
+
+                        except JavaException as e:
+                            result = self._format_by_class(self._get_class(e._type_id), e)
+                            is_exception = True
+
+                        except Exception as e:
+                            (_, _, tb) = sys.exc_info()
+                            result = self._format_by_class(
+                                self._java_lang_Exception,
+                                self._java_lang_Exception(
+                                    "Compiling '%s' raised exception: %s\n%s" %
+                                    (string, e, _tb2jexstr(tb))
+                                )
+                            )
+                            is_exception = True
+
+                        # And call back with whatever we got
+                        payload_ = (self._format_int32(req_id) +
+                                    self._format_boolean(is_exception) +
+                                    result)
+                        self._send(self._CALLBACK_RESPONSE, payload_)
+
                     elif msg_type == self._INVOKE_AND_GET_OBJECT:
                         # This is a request to call a function and return a
                         # reference to the resulting object.
@@ -2606,6 +3226,62 @@ public class TestInjectSource {
         return (b"%c" % (1 if value else 0))
 
 
+    def _format_callback_result(self, result_type, value):
+        """
+        Format the result of a callback in the way in which Java asked for it.
+        Primitive results are sent raw where the value allows it, otherwise we
+        fall back to sending a general object and let Java convert it.
+
+        Booleans are always Python's notion of truthiness, so they are only
+        sent as an object if the value can't say whether it's true (like a
+        multi-element ``ndarray``), and Java can then make of it what it will.
+
+        :return: The kind of the response, and its formatted body.
+        """
+
+        if result_type == self._CALLBACK_RESULT_TYPE_BOOLEAN:
+            try:
+                return (self._CALLBACK_RESPONSE_BOOLEAN,
+                        self._format_boolean(bool(value)))
+            except Exception:
+                pass
+
+        elif result_type == self._CALLBACK_RESULT_TYPE_LONG:
+            if (isinstance(value, (int, numpy.integer)) and
+                not isinstance(value, bool)             and
+                -2**63 <= value < 2**63):
+                return (self._CALLBACK_RESPONSE_LONG,
+                        self._format_int64(int(value)))
+
+        elif result_type == self._CALLBACK_RESULT_TYPE_DOUBLE:
+            if (isinstance(value, (int, float, numpy.integer, numpy.floating)) and
+                not isinstance(value, bool)):
+                return (self._CALLBACK_RESPONSE_DOUBLE,
+                        self._format_double(float(value)))
+
+        return (self._CALLBACK_RESPONSE_OBJECT,
+                self._format_by_class(self._java_lang_Object, value))
+
+
+    def _format_selection(self, key):
+        """
+        Format a ``slice``, or a sequence of indices, as an element selection.
+        """
+
+        if isinstance(key, slice):
+            return (self._SELECTION_SLICE +
+                    b''.join(self._format_int64(self._SELECTION_NONE if el is None
+                                                else strict_number(numpy.int64, el))
+                             for el in (key.start, key.stop, key.step)))
+        else:
+            indices = numpy.asarray(key)
+            if indices.ndim != 1 or indices.dtype.kind not in 'iu':
+                raise TypeError("Indices must be a sequence of integers: %s" % (key,))
+            return (self._SELECTION_INDICES +
+                    self._format_int32(len(indices)) +
+                    indices.astype('>i8').tobytes())
+
+
     def _format_array(self, value, dtype):
         """
         Serializes the data of a one-dimensional array, or an iterable, according to
@@ -2791,6 +3467,100 @@ public class TestInjectSource {
         return True
 
 
+    def _get_bulk_channel(self):
+        """
+        Get the bulk-transfer side channels, setting them up if needed. Returns
+        ``None`` if they are not available.
+        """
+        bulk = self._bulk
+        if bulk is False:
+            return None
+        if bulk is not None and not bulk.is_closed():
+            return bulk
+
+        with self._bulk_lock:
+            # Someone might have beaten us to it
+            bulk = self._bulk
+            if bulk is False:
+                return None
+            if bulk is not None and not bulk.is_closed():
+                return bulk
+
+            # The side channels are unencrypted so only transports which say
+            # that they are okay to use will have them
+            get_host = getattr(self._transport, 'get_bulk_host', None)
+            host = get_host() if get_host is not None else None
+            if host is None:
+                self._bulk = False
+                return None
+
+            # Ask the server about them
+            req_id = self._send(self._BULK_SETUP, b'')
+            (port, num_streams, threshold, token) = self._read_result(req_id)
+            if num_streams <= 0:
+                self._bulk = False
+                return None
+
+            try:
+                self._bulk = _BulkChannel(host, port, num_streams, threshold, token)
+            except Exception as e:
+                LOG.warning("Failed to open bulk-transfer side channels "
+                            "to %s:%d: %s", host, port, e)
+                self._bulk = False
+                return None
+
+            return self._bulk
+
+
+    def _can_format_bulk(self, value, klass):
+        """
+        Returns whether we should marshall the given value using the bulk-
+        transfer side channels. This means that it's a numpy array which is
+        large enough, and which has the right type for the given class.
+        """
+        # Cheap checks first
+        if (not isinstance(value, numpy.ndarray) or
+            value.nbytes < self._BULK_MIN_BYTES or
+            self._bulk is False):
+            return False
+
+        # Can it go?
+        dtypes = self._bulk_dtypes.get(klass._type_id)
+        if dtypes is None or value.dtype.name not in dtypes:
+            return False
+        if klass._is_array:
+            if value.ndim != 1 or len(value) > self._MAX_JAVA_ARRAY_SIZE:
+                return False
+        elif value.ndim == 0:
+            return False
+
+        # And is it worth it?
+        bulk = self._get_bulk_channel()
+        return bulk is not None and value.nbytes >= bulk.threshold
+
+
+    def _format_bulk(self, klass, value):
+        """
+        Returns the byte string for a value which will be sent over the bulk-
+        transfer side channels, once the message which it is in has been sent.
+        """
+        arr = numpy.ascontiguousarray(value)
+
+        # Java needs to know the byte order, since we don't go to the expense
+        # of converting it
+        byteorder = arr.dtype.byteorder
+        if byteorder == '=':
+            byteorder = '<' if sys.byteorder == 'little' else '>'
+
+        return (self._ARGUMENT_BULK +
+                self._format_int32(klass._type_id) +
+                self._format_int64(self._bulk.add(arr)) +
+                self._BULK_TYPES[arr.dtype.name] +
+                (b'\x01' if byteorder == '<' else b'\x00') +
+                self._format_int32(arr.ndim) +
+                b''.join(self._format_int64(length) for length in arr.shape))
+
+
     def _validate_format_array(self, obj):
         """
         Raises a `ValueError` exception if the given object is an array-like but
@@ -3343,6 +4113,8 @@ public class TestInjectSource {
                 self._validate_format_array(value)
                 if allow_format_shmdata and self._can_format_shmdata(value, klass):
                     return self._format_shmdata(klass, value, strict_types)
+                elif self._can_format_bulk(value, klass):
+                    return self._format_bulk(klass, value)
                 else:
                     return (self._ARGUMENT_VALUE +
                             self._format_int32(klass._type_id) +
@@ -3354,6 +4126,8 @@ public class TestInjectSource {
                 self._validate_format_array(value)
                 if allow_format_shmdata and self._can_format_shmdata(value, klass):
                     return self._format_shmdata(klass, value, strict_types)
+                elif self._can_format_bulk(value, klass):
+                    return self._format_bulk(klass, value)
                 else:
                     # Use strict against a Python float here to allow truncation
                     # to float32 happen silently. This is intentional since it
@@ -3390,6 +4164,8 @@ public class TestInjectSource {
                     # integers (bytes)
                     if allow_format_shmdata and self._can_format_shmdata(value, klass):
                         return self._format_shmdata(klass, value, strict_types)
+                    elif self._can_format_bulk(value, klass):
+                        return self._format_bulk(klass, value)
                     else:
                         return (self._ARGUMENT_VALUE +
                                 self._format_int32(klass._type_id) +
@@ -3400,6 +4176,8 @@ public class TestInjectSource {
                 self._validate_format_array(value)
                 if allow_format_shmdata and self._can_format_shmdata(value, klass):
                     return self._format_shmdata(klass, value, strict_types)
+                elif self._can_format_bulk(value, klass):
+                    return self._format_bulk(klass, value)
                 else:
                     return (self._ARGUMENT_VALUE +
                             self._format_int32(klass._type_id) +
@@ -3410,6 +4188,8 @@ public class TestInjectSource {
                 self._validate_format_array(value)
                 if allow_format_shmdata and self._can_format_shmdata(value, klass):
                     return self._format_shmdata(klass, value, strict_types)
+                elif self._can_format_bulk(value, klass):
+                    return self._format_bulk(klass, value)
                 else:
                     return (self._ARGUMENT_VALUE +
                             self._format_int32(klass._type_id) +
@@ -3420,6 +4200,8 @@ public class TestInjectSource {
                 self._validate_format_array(value)
                 if allow_format_shmdata and self._can_format_shmdata(value, klass):
                     return self._format_shmdata(klass, value, strict_types)
+                elif self._can_format_bulk(value, klass):
+                    return self._format_bulk(klass, value)
                 else:
                     return (self._ARGUMENT_VALUE +
                             self._format_int32(klass._type_id) +
@@ -3430,6 +4212,8 @@ public class TestInjectSource {
                 self._validate_format_array(value)
                 if allow_format_shmdata and self._can_format_shmdata(value, klass):
                     return self._format_shmdata(klass, value, strict_types)
+                elif self._can_format_bulk(value, klass):
+                    return self._format_bulk(klass, value)
                 else:
                     return (self._ARGUMENT_VALUE +
                             self._format_int32(klass._type_id) +
@@ -3547,6 +4331,8 @@ public class TestInjectSource {
                 # this might differ from how PJRmi handles integer values (i.e.
                 # everything winds up being a long).
                 arr = numpy.asarray(value)
+                if self._can_format_bulk(arr, klass):
+                    return self._format_bulk(klass, arr)
                 return (self._ARGUMENT_VALUE +
                         self._format_int32(klass._type_id) +
                         self._format_by_class(self._L_java_lang_long, arr.shape) +
@@ -3625,6 +4411,36 @@ public class TestInjectSource {
             return (str(bytes[index:index+length], encoding='utf_16'), index+length)
 
 
+    def _read_arbitrary_item(self, bytes, index):
+        """
+        Read an object, of a type which we don't know ahead of time, from the
+        wire. This is its type ID followed by either its raw value, for
+        primitives, or its handle and any raw data, for objects.
+
+        :return: The value, the new offset into the byte buffer.
+        """
+
+        (type_id, index) = self._read_int32(bytes, index)
+
+        # Handle all the types we know about, primitives are sent back
+        # as raw bits which we can convert
+        handler = self._handle_arbitrary_item_handlers.get(type_id)
+        if handler is not None:
+            return handler(bytes, index)
+
+        # For Objects we simply read the handle (and any raw value) and
+        # create them
+        (handle, raw_len) = struct.unpack('!qi', bytes[index:index+12])
+        index += 12
+        if raw_len >= 0:
+            raw    = bytes[index : index + raw_len]
+            index += raw_len
+        else:
+            raw = None
+
+        return (self._create_object(type_id, handle, raw), index)
+
+
     def _read_float(self, bytes, index):
         """
         Read a float from the wire as 32 raw bits.
@@ -3798,6 +4614,12 @@ public class TestInjectSource {
                                              num_elems,
                                              arr_type.encode('utf-8'))
 
+        elif arg_type == self._VALUE_FORMAT_SHM_ARENA:
+            (arg, idx) = self._read_shm_arena(bytes, idx)
+
+        elif arg_type == self._VALUE_FORMAT_SHMDATA_SHAPED:
+            (arg, idx) = self._read_shmdata_shaped(bytes, idx)
+
         else:
             raise ValueError("Unknown argument marshall type '%s' %d" %
                              (arg_type, ord(arg_type)))
@@ -4768,13 +5590,24 @@ public class TestInjectSource {
         Add methods required for array usage to the class.
         """
 
-        # Define the methods. Array elements are modelled as fields.
+        # Define the methods. Array elements are modelled as fields, unless we
+        # are given a slice or a list of indices, in which case we move all the
+        # elements in bulk.
+        def is_selection(key):
+            return (isinstance(key, (slice, list)) or
+                    (isinstance(key, numpy.ndarray) and key.ndim == 1))
+
         def __getitem__(self_, key):
+            if is_selection(key):
+                return self.get_slice(self_, key)
             return self._get_field(klass,
                                    self_._pjrmi_handle,
                                    strict_number(numpy.int32, key))
 
         def __setitem__(self_, key, value):
+            if is_selection(key):
+                self.set_slice(self_, key, value)
+                return
             self._set_field(klass,
                             self_._pjrmi_handle,
                             strict_number(numpy.int32, key),
@@ -4784,10 +5617,11 @@ public class TestInjectSource {
             return self_._length
 
         def __iter__(self_):
-            i = 0
-            while i < self_._length:
-                yield self._get_field(klass, self_._pjrmi_handle, i)
-                i += 1
+            # Pull the elements across in chunks, rather than one at a time
+            for start in range(0, self_._length, self._ITERATE_MAX_COUNT):
+                chunk = self.get_slice(self_,
+                                       slice(start, start + self._ITERATE_MAX_COUNT))
+                yield from (chunk.tolist() if isinstance(chunk, numpy.ndarray) else chunk)
 
         def _repr_pretty_(self_, p, cycle):
             if cycle:
@@ -4987,19 +5821,20 @@ public class TestInjectSource {
         # If something is a Java Iterator or Iterable then we make it iterable
         # under Python too. We need to handle the boot-strapping case where
         # we're creating the _java_blah_blah values here too.
-        if isjavasubclass(klass, 'java.util.Iterator', '_java_util_Iterator'):
+        if (isjavasubclass(klass, 'java.util.Iterator',    '_java_util_Iterator') or
+            isjavasubclass(klass, 'java.util.Spliterator', '_java_util_Spliterator')):
             def __iter__(self_):
-                # We "ask for forgiveness not permission" here (i.e., catch
-                # NoSuchElementException instead of calling hasNext()) to avoid
-                # an additional remote call per iteration (vs the exception
-                # cost, which is incurred once at the end of the iteration).
-                try:
-                    while True:
-                        yield self_.next()
-                except JavaException as e:
-                    if self.is_instance_of(e, self._java_util_NoSuchElementException):
-                        return
-                    raise
+                # Pull the elements across in chunks, rather than making a
+                # remote call (or two) for each one
+                return self._iterate(self_)
+
+            setattr(klass, "__iter__", __iter__)
+
+        # Streams may only be traversed once so we do that via their iterator
+        if isjavasubclass(klass, 'java.util.stream.BaseStream',
+                          '_java_util_stream_BaseStream'):
+            def __iter__(self_):
+                return iter(self_.iterator())
 
             setattr(klass, "__iter__", __iter__)
 
@@ -5101,6 +5936,28 @@ public class TestInjectSource {
                 except Exception:
                     pass
 
+                # Cubes which live in shared memory can be mapped directly, if
+                # we are on the same host, giving a live view of the values
+                shm_dtype = self._SHM_HYPERCUBE_DTYPES.get(
+                    getattr(type(self_), '_classname', None)
+                )
+                if shm_dtype is not None and self._transport.is_localhost():
+                    try:
+                        shape = tuple(int(i) for i in self_.getShape())
+                        if numpy.prod(shape) == 0:
+                            result = numpy.zeros(shape, dtype=shm_dtype)
+                        else:
+                            result = numpy.memmap(str(self_.getShmFilename()),
+                                                  dtype=shm_dtype,
+                                                  mode='r+',
+                                                  shape=shape,
+                                                  order='C')
+                        if dtype is not None and numpy.dtype(dtype) != result.dtype:
+                            result = result.astype(dtype)
+                        return result
+                    except Exception as e:
+                        LOG.debug("Failed to map %s, falling back: %s", self_, e)
+
                 try:
                     # Figure out the name of the casting class to use, if any.
                     # Assume it's the same type until we know better.
@@ -5479,6 +6336,26 @@ used as in a `with` conntext.
             return wrapper
 
 
+    def _prepare(self, string):
+        """
+        Compile the given code, as an expression if it is one and otherwise as
+        statements, and return a function which runs it. The function's kwargs
+        are the locals which the code is run with.
+        """
+
+        try:
+            code = compile(string, '<pjrmi>', 'eval')
+            def function(**kwargs):
+                return eval(code, globals(), kwargs)
+
+        except SyntaxError:
+            code = compile(string, '<pjrmi>', 'exec')
+            def function(**kwargs):
+                exec(code, globals(), kwargs)
+
+        return function
+
+
     def _get_callback_object(self, object_id):
         """
         Get the object associated with a given object ID.
@@ -5754,6 +6631,46 @@ def connect_to_socket(host,
                 raise
 
 
+def connect_to_unix_socket(path,
+                           impl   =PJRmi,
+                           timeout=60):
+    """
+    Connect to a PJRmi instance which is listening on the given Unix domain
+    socket, via a ``UnixDomainSocketProvider``.
+
+    As with `connect_to_socket`, we retry every second until the timeout
+    expires, since the server might still be starting up.
+
+    :param path:    The filesystem path of the socket.
+    :param impl:    The `PJRmi` implementation to use.
+    :param timeout: The timeout, in seconds, before we give up trying.
+    """
+
+    # Sanity check the timeout, both type and value
+    timeout = int(timeout)
+    if timeout < 0:
+        raise ValueError("Negative value given for timeout: %d" % timeout)
+    end_time = time.time() + timeout
+
+    # Attempt to connect
+    while True:
+        try:
+            handle = impl(UnixDomainSocketTransport(path))
+            handle.connect()
+            return handle
+
+        except Exception as e:
+            # If we're within the timeout then wait for a second and try again,
+            # else we simply rethrow the exception and let the user deal with it
+            if time.time() < end_time:
+                LOG.info("Got a %s whilst trying to connect, will retry: %s ",
+                         type(e).__name__, e)
+                time.sleep(1)
+            else:
+                # Just rethrow
+                raise
+
+
 def connect_to_inprocess_jvm(classpath=(), java_args=(), application_args=(),
                              impl=PJRmi):
     """
@@ -5786,7 +6703,7 @@ def connect_to_child_jvm(main_class='com.deshaw.pjrmi.UnixFifoProvider',
                          classpath=(), java_args=(), application_args=(), timeout=60,
                          stdin='/dev/stdin', stdout='/dev/stdout', stderr='/dev/stderr',
                          interactive_mode=True, use_shm_arg_passing=False,
-                         use_pjrmi_agent=False,
+                         use_pjrmi_agent=False, use_shm_transport=False,
                          impl=PJRmi):
     """
     Create a child JVM instance and connect to it.
@@ -5825,6 +6742,11 @@ def connect_to_child_jvm(main_class='com.deshaw.pjrmi.UnixFifoProvider',
                                 copying. This requires the C extension to function.
     :param use_pjrmi_agent:     Whether to include the directive to load the
                                 ``PJRmiAgent`` class on the command line.
+    :param use_shm_transport:   Whether to talk to the child via shared memory
+                                ring buffers, using the `ShmRingTransport`,
+                                instead of via FIFOs. This is lower latency but
+                                will burn some CPU when busy. It is only
+                                supported on x86 machines.
     :param impl:                The `PJRmi` implementation to use.
     """
 
@@ -5837,17 +6759,27 @@ def connect_to_child_jvm(main_class='com.deshaw.pjrmi.UnixFifoProvider',
             java_args = list(java_args)
         java_args.append(f'-javaagent:{_PJRMI_FATJAR}')
 
+    # Which way we are talking to the child. The shared memory transport needs
+    # a different main class, since it takes an extra argument, so we switch to
+    # that if we have the default one.
+    if use_shm_transport:
+        transport_class = ShmRingTransport
+        if main_class == 'com.deshaw.pjrmi.UnixFifoProvider':
+            main_class = 'com.deshaw.pjrmi.ShmRingProvider'
+    else:
+        transport_class = UnixFifoTransport
+
     # Create and connect
-    c = impl(UnixFifoTransport(main_class,
-                               environment=environment,
-                               java_executable=java_executable,
-                               classpath=classpath,
-                               java_args=java_args,
-                               application_args=application_args,
-                               timeout=timeout,
-                               stdin=stdin,
-                               stdout=stdout,
-                               stderr=stderr),
+    c = impl(transport_class(main_class,
+                             environment=environment,
+                             java_executable=java_executable,
+                             classpath=classpath,
+                             java_args=java_args,
+                             application_args=application_args,
+                             timeout=timeout,
+                             stdin=stdin,
+                             stdout=stdout,
+                             stderr=stderr),
              use_shm_arg_passing=use_shm_arg_passing)
     c.connect()
 
@@ -5938,6 +6870,31 @@ def str2obj(str):
             eval(str))
 
 
+def vectorized(function):
+    """
+    Mark a function as being vectorized, so that it may be called with a whole
+    ``numpy`` array of arguments at once, and will return an array of results of
+    the same length.
+
+    When Java calls ``applyToArray()`` on a callback for such a function, it is
+    called just the once with the array instead of once per element. This may
+    be used as a decorator::
+
+        @pjrmi.vectorized
+        def scale(values):
+            return values * 2.0
+    """
+    function.__pjrmi_vectorized__ = True
+    return function
+
+
+def _is_vectorized(function):
+    """
+    Whether the given function may be called with an array of arguments.
+    """
+    return getattr(function, '__pjrmi_vectorized__', False)
+
+
 def _tb2jexstr(tb):
     """
     Turn a traceback into a string which are good for printing in Java
@@ -6230,11 +7187,77 @@ class SocketTransport:
         return False
 
 
+    def get_bulk_host(self):
+        """
+        Returns the host to open any bulk-transfer side channels to, or `None`
+        if they should not be used with this transport. Since the side channels
+        are raw sockets we only use them when the connection is one as well.
+        """
+        return self._host
+
+
+class UnixDomainSocketTransport(SocketTransport):
+    """
+    A version of `SocketTransport` which connects to a Unix domain socket, and
+    so which is always on the same host as the Java process.
+    """
+
+    def __init__(self, path):
+        """
+        :param path:
+            The filesystem path of the socket to connect to.
+        """
+
+        self._path   = str(path)
+        self._socket = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+
+
+    def __str__(self):
+        """
+        A brief description of the transport.
+        """
+
+        return "%s[%s]" % (self.__class__.__name__, self._path)
+
+
+    def connect(self):
+        """
+        Connect to the server.
+        """
+
+        self._socket.connect(self._path)
+
+
+    def is_localhost(self):
+        """
+        Returns whether we are guaranteed to be on the same host. Might return
+        `False` even if we are but never `True` if we are not.
+        """
+        return True
+
+
+    def get_bulk_host(self):
+        """
+        We're local, so shared memory is the way to move large arrays.
+        """
+        return None
+
+
 class SSLSocketTransport(SocketTransport):
     """
     A version of `SocketTransport` which uses SSL for authentication.
+
+    The SSL contexts, and the sessions which were established with each server,
+    are remembered so that a reconnection to the same server may resume its
+    previous session. This saves the expensive parts of the handshake.
     """
 
+    # The SSL contexts, keyed by store and password
+    _CONTEXTS = dict()
+
+    # The last session for each server, keyed by host, port and context
+    _SESSIONS = dict()
+
     def __init__(self,
                  host,
                  port,
@@ -6246,14 +7269,64 @@ class SSLSocketTransport(SocketTransport):
         :param port:
             The port to connect to.
         """
-        from cryptography.hazmat.primitives               import serialization
-        from cryptography.hazmat.primitives.serialization import pkcs12
-
         super().__init__(host, port)
 
-        # Pull in the keystore's raw contents
+        # Get the context, creating it if we need to
         if not store:
             raise ValueError("Must specify a keystore filename")
+        key = (store, password)
+        context = SSLSocketTransport._CONTEXTS.get(key)
+        if context is None:
+            context = SSLSocketTransport._create_context(store, password)
+            SSLSocketTransport._CONTEXTS[key] = context
+
+        # Wrap the super-class's socket in the context, replacing the reference
+        self._session_key = (self._host, self._port, key)
+        self._socket      = context.wrap_socket(self._socket)
+
+
+    def connect(self):
+        """
+        Connect to the server, resuming any previous session with it.
+        """
+
+        session = SSLSocketTransport._SESSIONS.get(self._session_key)
+        if session is not None:
+            self._socket.session = session
+        super().connect()
+
+
+    def disconnect(self):
+        """
+        Close the connection, remembering its session for next time. This
+        renders it unusable.
+        """
+
+        try:
+            session = self._socket.session
+            if session is not None:
+                SSLSocketTransport._SESSIONS[self._session_key] = session
+        except Exception:
+            pass
+        super().disconnect()
+
+
+    def get_bulk_host(self):
+        """
+        The side channels are not encrypted so we don't use them.
+        """
+        return None
+
+
+    @staticmethod
+    def _create_context(store, password):
+        """
+        Create an SSL context from the contents of the given key store.
+        """
+        from cryptography.hazmat.primitives               import serialization
+        from cryptography.hazmat.primitives.serialization import pkcs12
+
+        # Pull in the keystore's raw contents
         with open(store, "rb") as fh:
             data = fh.read()
 
@@ -6298,15 +7371,14 @@ class SSLSocketTransport(SocketTransport):
                     context.load_cert_chain(certfile=pem_file.name,
                                             keyfile =key_file.name)
 
-            # Wrap the super-class's socket in the context, replacing the reference
-            self._socket = context.wrap_socket(self._socket)
-
         finally:
             # This should not fail since the tempfiles should have been removed.
             # If it does then the above code is likely broken and should be
             # fixed.
             os.rmdir(tmpdir)
 
+        return context
+
 
 class InprocessTransport:
     """
@@ -6718,6 +7790,264 @@ class UnixFifoTransport:
         return True
 
 
+class ShmRingTransport(UnixFifoTransport):
+    """
+    A version of `UnixFifoTransport` which sends bytes back and forth via a pair
+    of single-producer/single-consumer ring buffers in a shared memory segment,
+    instead of via the FIFOs. This means that no system calls are made when
+    talking to a busy JVM. See the Java ``ShmRingProvider`` class for the
+    layout of the segment.
+
+    Waiting for the other side is done by spinning for a while, then yielding,
+    and then by sleeping for increasingly long periods. The FIFOs are still
+    opened, but only so that we may tell if the JVM has gone away.
+
+    The counters in the rings are read and written as aligned 64-bit values, and
+    we rely on the data being written before the counter is updated. Python has
+    no way to ask for release or acquire ordering so this only holds on
+    architectures with a total store order, like x86-64; elsewhere the transport
+    refuses to be created. See `is_supported()`.
+    """
+
+    # The machines which have a total store order, as reported by
+    # platform.machine()
+    _TSO_MACHINES = frozenset(('x86_64', 'amd64', 'i386', 'i686', 'x86'))
+
+    # The segment header values, see ShmRingProvider.java
+    _MAGIC       = 0x504a524d4953484d # "PJRMISHM"
+    _HEADER_SIZE = 4096
+
+    # Offsets in each ring, see ShmRingTransport.java
+    _HEAD_OFFSET   = 0
+    _TAIL_OFFSET   = 128
+    _CLOSED_OFFSET = 256
+    _DATA_OFFSET   = 512
+
+    # How many times to spin, and then to yield, before sleeping; and the
+    # longest we sleep for. Spinning is pointless with only one CPU.
+    _SPIN_COUNT    = 1000 if (os.cpu_count() or 1) > 1 else 0
+    _YIELD_COUNT   = 100
+    _MAX_IDLE_SECS = 0.001
+
+    @classmethod
+    def is_supported(cls):
+        """
+        Whether this transport may be used on this machine.
+        """
+        return platform.machine().lower() in cls._TSO_MACHINES
+
+
+    def __init__(self,
+                 main_class='com.deshaw.pjrmi.ShmRingProvider',
+                 ring_capacity=1024 * 1024,
+                 shm_dir='/dev/shm',
+                 application_args=(),
+                 **kwargs):
+        """
+        Create the shared memory segment and the JVM.
+
+        :param main_class:       The Java class to launch, which should be
+                                 a ``ShmRingProvider`` or act like one.
+        :param ring_capacity:    The size of each of the rings, in bytes. This
+                                 must be a power of two.
+        :param shm_dir:          Where to create the shared memory segment. If
+                                 this does not exist then the system's temporary
+                                 directory is used instead.
+        :param application_args: Extra arguments to pass to the main method.
+        :param kwargs:           Arguments to pass to the `UnixFifoTransport`.
+        """
+
+        # Without a total store order Java could see a counter update before
+        # the data which it covers
+        if not self.is_supported():
+            raise NotImplementedError(
+                "The shared memory transport is not supported on %s" %
+                (platform.machine(),)
+            )
+        if ring_capacity <= 0 or (ring_capacity & (ring_capacity - 1)) != 0:
+            raise ValueError(
+                "Ring capacity was not a power of two: %s" % (ring_capacity,)
+            )
+
+        # Create and map in the segment, with our ring first and Java's second
+        ring_size = self._DATA_OFFSET + ring_capacity
+        shm_size  = self._HEADER_SIZE + 2 * ring_size
+        (fd, self._shm_filename) = \
+            tempfile.mkstemp(prefix='pjrmi_',
+                             dir=shm_dir if os.path.isdir(shm_dir) else None)
+        try:
+            os.ftruncate(fd, shm_size)
+            self._shm = mmap.mmap(fd, shm_size)
+        finally:
+            os.close(fd)
+        struct.pack_into('=qq', self._shm, 0, self._MAGIC, ring_capacity)
+
+        # Where things live, with the counters indexed as int64s
+        self._capacity    = ring_capacity
+        self._mask        = ring_capacity - 1
+        self._counters    = memoryview(self._shm).cast('q')
+        self._to_base     = self._HEADER_SIZE
+        self._to_data     = self._to_base + self._DATA_OFFSET
+        self._to_head     = (self._to_base + self._HEAD_OFFSET) // 8
+        self._to_tail     = (self._to_base + self._TAIL_OFFSET) // 8
+        self._to_closed   = (self._to_base + self._CLOSED_OFFSET) // 8
+        self._from_base   = self._HEADER_SIZE + ring_size
+        self._from_data   = self._from_base + self._DATA_OFFSET
+        self._from_head   = (self._from_base + self._HEAD_OFFSET) // 8
+        self._from_tail   = (self._from_base + self._TAIL_OFFSET) // 8
+        self._from_closed = (self._from_base + self._CLOSED_OFFSET) // 8
+
+        # The last-seen values of the counters which Java owns
+        self._to_tail_seen   = 0
+        self._from_head_seen = 0
+
+        # Now launch the JVM, telling it where to find the segment. If that
+        # fails then we tidy up after ourselves.
+        try:
+            super().__init__(
+                main_class,
+                application_args=(self._shm_filename,) + tuple(application_args),
+                **kwargs
+            )
+        except Exception:
+            self._remove_shm()
+            raise
+
+
+    def __str__(self):
+        """
+        A brief description of the transport.
+        """
+        return "ShmRing:" + self._shm_filename
+
+
+    def disconnect(self):
+        """
+        Close the connection. This renders it unusable.
+        """
+
+        if self._closed:
+            return
+
+        # Tell Java that we're done, and then tear down the rest
+        self._counters[self._to_closed] = 1
+        super().disconnect()
+        self._remove_shm()
+
+
+    def send(self, bytes):
+        """
+        Write a bag of bytes into the ring, waiting for room as needed.
+        """
+
+        data   = memoryview(bytes)
+        length = len(data)
+        offset = 0
+        head   = self._counters[self._to_head]
+        while offset < length:
+            # See how much room we have, only looking at what Java has done if
+            # we seem to be full
+            free  = self._capacity - (head - self._to_tail_seen)
+            spins = 0
+            while free <= 0:
+                self._to_tail_seen = self._counters[self._to_tail]
+                free = self._capacity - (head - self._to_tail_seen)
+                if free == 0:
+                    if self._idle(spins):
+                        raise IOError("Java process has gone away")
+                    spins += 1
+
+            # Copy in what we can, which may be in two parts if we wrap
+            count = min(length - offset, free)
+            index = head & self._mask
+            first = min(count, self._capacity - index)
+            start = self._to_data + index
+            self._shm[start:start + first] = data[offset:offset + first]
+            if first < count:
+                self._shm[self._to_data:self._to_data + count - first] = \
+                    data[offset + first:offset + count]
+
+            # And publish it
+            head   += count
+            offset += count
+            self._counters[self._to_head] = head
+
+
+    def recv(self, count):
+        """
+        Read at most 'count' bytes from the ring. This will block until data is
+        available and return an empty list on EOF.
+        """
+
+        if count <= 0:
+            return b''
+
+        # See how much there is to read, only looking at what Java has done if
+        # we seem to be empty
+        tail      = self._counters[self._from_tail]
+        available = self._from_head_seen - tail
+        spins     = 0
+        while available <= 0:
+            self._from_head_seen = self._counters[self._from_head]
+            available = self._from_head_seen - tail
+            if available == 0:
+                # Only give up once there's nothing left to read
+                if self._counters[self._from_closed] or self._idle(spins):
+                    self._from_head_seen = self._counters[self._from_head]
+                    if self._from_head_seen == tail:
+                        return b''
+                spins += 1
+
+        # Copy out what we can, which may be in two parts if we wrap
+        count = min(count, available)
+        index = tail & self._mask
+        first = min(count, self._capacity - index)
+        start = self._from_data + index
+        result = self._shm[start:start + first]
+        if first < count:
+            result += self._shm[self._from_data:self._from_data + count - first]
+
+        # And tell Java that the space is free
+        self._counters[self._from_tail] = tail + count
+
+        return result
+
+
+    def _idle(self, spins):
+        """
+        Wait for a little while, having already waited the given number of
+        times, and return whether the Java process has gone away.
+        """
+
+        if spins < self._SPIN_COUNT:
+            return False
+
+        spins -= self._SPIN_COUNT
+        if spins < self._YIELD_COUNT:
+            os.sched_yield()
+            return False
+
+        # Back off, doubling each time until we hit the limit. Java never writes
+        # to its FIFO so, if it becomes readable, that means it was closed.
+        spins  -= self._YIELD_COUNT
+        timeout = min(self._MAX_IDLE_SECS, 0.000001 * (1 << min(10, spins)))
+        (readable, _, _) = select.select((self._from_fifo,), (), (), timeout)
+        return bool(readable)
+
+
+    def _remove_shm(self):
+        """
+        Remove the shared memory segment's file, best effort. The mapping itself
+        stays around until we are garbage collected, since a receiving thread
+        might still be looking at it.
+        """
+
+        try:
+            os.remove(self._shm_filename)
+        except Exception:
+            pass
+
+
 class StdioTransport:
     """
     An underlying transport for talking to a JVM which has spawned us as a
@@ -7011,7 +8341,10 @@ class _JavaMethod:
      o The ``__pjrmi_return_format__`` specifies how the result of a Java method
        call is passed back to the Python side. The default is as a Java object,
        or primitive type, but it may be optionally converted to a Python type
-       where possible.
+       where possible. With ``PJRmi.VALUE_FORMAT_AUTO_SHMDATA``, large primitive
+       arrays and hypercubes are given back as ``ndarray``s, via shared memory
+       when on the same host, and everything else as a Java object. This saves
+       a second round trip to get the values of a big result.
      o The ``__pjrmi_sync_mode__`` defines whether the call is being done
        synchronously or asynchronously; the former will return a result
        directly, the latter returns a Java ``Future`` which will later return
@@ -7298,6 +8631,202 @@ class _JavaLock:
             self._pjrmi._read_result(req_id)
 
 
+class _Deadline:
+    """
+    How we give a deadline to the requests sent by a thread. See
+    ``PJRmi.deadline()``.
+    """
+
+    def __init__(self, rmi, timeout_secs):
+        """
+        :param rmi:          The PJRmi instance which this deadline is for.
+        :param timeout_secs: How long, in seconds, until the deadline.
+        """
+
+        self._deadlines    = rmi._deadlines
+        self._timeout_secs = timeout_secs
+        self._previous     = []
+
+
+    def __enter__(self):
+        """
+        Start the deadline, keeping any tighter one which is already in effect.
+        """
+
+        previous = getattr(self._deadlines, 'value', None)
+        deadline = time.monotonic() + self._timeout_secs
+        if previous is not None:
+            deadline = min(deadline, previous)
+
+        self._previous.append(previous)
+        self._deadlines.value = deadline
+
+        return self
+
+
+    def __exit__(self, typ, value, traceback):
+        """
+        Restore whatever deadline we had before.
+        """
+
+        self._deadlines.value = self._previous.pop()
+
+
+class _BulkChannel:
+    """
+    The client end of the bulk-transfer side channels. See the Java
+    ``BulkTransferService`` class for the details.
+
+    Large arrays are handed to this when they are formatted, and are given an
+    ID. Once the message which refers to them has been sent, their bytes are
+    split across the side channels and sent out, in parallel, by a thread per
+    channel.
+    """
+
+    # How long, in seconds, we hold on to an array which was formatted but which
+    # never went out in a message (e.g. if method binding failed later on)
+    _PENDING_TIMEOUT_SECS = 60
+
+    def __init__(self, host, port, num_streams, threshold, token):
+        """
+        :param host:        The host to connect to.
+        :param port:        The port to connect to.
+        :param num_streams: How many side channels to open.
+        :param threshold:   The size, in bytes, above which we should be used.
+        :param token:       The token which identifies us to the server.
+        """
+
+        self.threshold = threshold
+        self._closed   = False
+        self._pending  = ThreadLocal() # per-thread arrays awaiting a message
+        self._sockets  = []
+        self._parts    = []
+
+        try:
+            for index in range(num_streams):
+                sock = socket.create_connection((host, port))
+                sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+                sock.sendall(struct.pack('!qi', token, index))
+                self._sockets.append(sock)
+        except Exception:
+            self.close()
+            raise
+
+        for (index, sock) in enumerate(self._sockets):
+            parts  = queue.SimpleQueue()
+            sender = Thread(target=self._send_parts,
+                            args  =(sock, parts),
+                            name  ="BulkTransfer-%s:%d#%d" % (host, port, index))
+            sender.daemon = True
+            sender.start()
+            self._parts.append(parts)
+
+
+    def is_closed(self):
+        """
+        Whether the side channels have been closed, or have failed.
+        """
+
+        return self._closed
+
+
+    def add(self, arr):
+        """
+        Remember a C-contiguous array which is to be sent, returning its
+        transfer ID.
+        """
+
+        transfer_id = random.getrandbits(63)
+
+        pending = getattr(self._pending, 'value', None)
+        if pending is None:
+            pending = self._pending.value = dict()
+        pending[transfer_id] = (time.monotonic(), arr)
+
+        return transfer_id
+
+
+    def start(self, request_id, payload):
+        """
+        Start sending any of this thread's pending arrays which the given,
+        just sent, message payload refers to. The parts are tagged with the
+        message's request ID, so that the server knows when they will never be
+        asked for.
+        """
+
+        pending = getattr(self._pending, 'value', None)
+        if not pending:
+            return
+
+        # We look for the transfer IDs in the payload since a message might be
+        # sent between an array being formatted and the message which it's in
+        # (e.g. to look up a class). The IDs are random so we won't get false
+        # matches.
+        now = time.monotonic()
+        for (transfer_id, (when, arr)) in tuple(pending.items()):
+            if struct.pack('!q', transfer_id) in payload:
+                del pending[transfer_id]
+                self._split(transfer_id, request_id, arr)
+            elif now - when > self._PENDING_TIMEOUT_SECS:
+                del pending[transfer_id]
+
+
+    def close(self):
+        """
+        Close the side channels. Any transfers which are in flight will fail.
+        """
+
+        self._closed = True
+        for sock in self._sockets:
+            try:
+                sock.close()
+            except Exception:
+                pass
+        for parts in self._parts:
+            parts.put(None)
+
+
+    def _split(self, transfer_id, request_id, arr):
+        """
+        Split an array's bytes, on element boundaries, across the side channels.
+        """
+
+        data      = memoryview(arr).cast('B')
+        itemsize  = arr.itemsize
+        num_elems = len(data) // itemsize
+        per_part  = -(-num_elems // len(self._parts))
+        for (index, parts) in enumerate(self._parts):
+            start = min(index       * per_part, num_elems) * itemsize
+            end   = min((index + 1) * per_part, num_elems) * itemsize
+            if start < end:
+                parts.put((transfer_id, request_id, start, data[start:end]))
+
+
+    def _send_parts(self, sock, parts):
+        """
+        Send the parts for a single side channel, until we are closed.
+        """
+
+        while True:
+            part = parts.get()
+            if part is None:
+                return
+            if self._closed:
+                continue
+
+            (transfer_id, request_id, offset, data) = part
+            try:
+                sock.sendall(struct.pack('!qiqq',
+                                         transfer_id, request_id, offset, len(data)))
+                sock.sendall(data)
+            except Exception as e:
+                # Closing everything means that the server will fail the
+                # transfer, rather than waiting for the rest of it
+                if not self._closed:
+                    LOG.warning("Bulk-transfer side channel failed: %s", e)
+                self.close()
+
+
 class _JavaBox:
     """
     A simple class which allows us to dangle a JavaObject instance off it (e.g.
@@ -5,10 +5,13 @@ from   threading  import Thread
 from   unittest   import TestCase
 
 import gc
+import mmap
 import numpy
 import os
 import pjrmi
 import signal
+import socket
+import struct
 import subprocess
 import sys
 import tempfile
@@ -151,6 +154,31 @@ def get_pjrmi():
     return _pjrmi_connection
 
 
+def connect_to_socket_server(num_bulk_streams=0):
+    # Start up a JVM running PJRmi's own socket server, and connect to it. Since
+    # this is over a socket we are not treated as being on the same host. The
+    # caller is responsible for disconnecting and killing the process.
+    with socket.socket() as s:
+        s.bind(('localhost', 0))
+        port = s.getsockname()[1]
+
+    java_home = os.environ.get('JAVA_HOME')
+    java = os.path.join(java_home, 'bin', 'java') if java_home else 'java'
+    process = subprocess.Popen(
+        (java, "-Xmx4g",
+         "-cp", pjrmi._PJRMI_FATJAR,
+         "-Dcom.deshaw.pjrmi.PJRmi.port=%d" % port,
+         "-Dcom.deshaw.pjrmi.PJRmi.numBulkStreams=%d" % num_bulk_streams,
+         "com.deshaw.pjrmi.PJRmi"),
+        stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL
+    )
+    try:
+        return (process, pjrmi.connect_to_socket('localhost', port))
+    except Exception:
+        process.kill()
+        raise
+
+
 def helper_class_for_name(classname):
     # Give back the inner class of PJRmiTestHelpers for the given name
     full_name = 'com.deshaw.pjrmi.test.PJRmiTestHelpers$%s' % classname
@@ -722,6 +750,141 @@ class TestPJRmi(TestCase):
         self.assertEqual(java_string, python_string)
 
 
+    def test_callback_batches(self):
+        """
+        Make sure that batched callbacks work.
+        """
+        Helpers = get_pjrmi().class_for_name('com.deshaw.pjrmi.test.PJRmiTestHelpers')
+
+        calls = []
+        def add_one(value):
+            calls.append(value)
+            return value + 1
+
+        # Lists of values, in one go and streamed in batches
+        self.assertEqual(list(Helpers.applyBatch(add_one, [1, 2, 3])),
+                         [2, 3, 4])
+        self.assertEqual(list(Helpers.applyToStream(add_one, list(range(10)), 4)),
+                         list(range(1, 11)))
+
+        # Arrays, element-wise and then vectorized
+        values = numpy.arange(100, dtype=numpy.float64)
+        del calls[:]
+        self.assertEqual(list(Helpers.applyToArray(add_one, values)),
+                         list(values + 1))
+        self.assertEqual(len(calls), len(values))
+
+        @pjrmi.vectorized
+        def double_all(array):
+            calls.append(array)
+            return array * 2.0
+        del calls[:]
+        self.assertEqual(list(Helpers.applyToArray(double_all, values)),
+                         list(values * 2))
+        self.assertEqual(len(calls), 1)
+
+        # Failures should come back to us
+        def fail(value):
+            raise ValueError("Bang")
+        with self.assertRaises(Exception):
+            Helpers.applyToArray(fail, values)
+
+
+    def test_callback_primitive_results(self):
+        """
+        Make sure that callbacks with primitive results work, whether they are
+        sent back raw or not.
+        """
+        Helpers = get_pjrmi().class_for_name('com.deshaw.pjrmi.test.PJRmiTestHelpers')
+
+        values = list(range(10))
+
+        # Predicates, using Python's notion of truthiness
+        self.assertEqual(Helpers.countMatching(lambda x: x % 2 == 0,  values), 5)
+        self.assertEqual(Helpers.countMatching(lambda x: x % 3,       values), 6)
+        self.assertEqual(Helpers.countMatching(lambda x: str(x - 1),  values), 10)
+        self.assertEqual(Helpers.countMatching(lambda x: [x] * x,     values), 9)
+        self.assertEqual(Helpers.countMatching(lambda x: {x: x} if x % 2 else {},
+                                               values), 5)
+        self.assertEqual(Helpers.countMatching(lambda x: (x,) * (x % 3), values), 6)
+        self.assertEqual(Helpers.countMatching(lambda x: numpy.int8(x), values), 9)
+
+        # Numbers, of various types
+        self.assertEqual(Helpers.sumAsDouble(lambda x: x * 0.5,          values), 22.5)
+        self.assertEqual(Helpers.sumAsDouble(lambda x: x,                values), 45.0)
+        self.assertEqual(Helpers.sumAsDouble(lambda x: numpy.float32(x), values), 45.0)
+        self.assertEqual(Helpers.sumAsInt   (lambda x: x * 2,            values), 90)
+        self.assertEqual(Helpers.sumAsInt   (lambda x: numpy.int16(x),   values), 45)
+
+        # Values which don't fit, and failures, should come back to us
+        with self.assertRaises(Exception):
+            Helpers.sumAsInt(lambda x: 2**40, values)
+        def fail(value):
+            raise ValueError("Bang")
+        with self.assertRaises(Exception):
+            Helpers.countMatching(fail, values)
+
+
+    def test_deadlines(self):
+        """
+        Make sure that requests sent with an expired deadline are dropped, and
+        that nested deadlines use the tighter one.
+        """
+        c = get_pjrmi()
+        String = c.class_for_name('java.lang.String')
+        DeadlineExceededException = \
+            c.class_for_name('com.deshaw.pjrmi.DeadlineExceededException')
+
+        # With plenty of time things work as normal
+        with c.deadline(60):
+            self.assertEqual(String.valueOf(1), '1')
+
+        # Nested deadlines keep the tighter one, and put things back on exit
+        self.assertIsNone(getattr(c._deadlines, 'value', None))
+        with c.deadline(60):
+            outer = c._deadlines.value
+            with c.deadline(120):
+                self.assertEqual(c._deadlines.value, outer)
+            with c.deadline(1):
+                self.assertLess(c._deadlines.value, outer)
+            self.assertEqual(c._deadlines.value, outer)
+        self.assertIsNone(getattr(c._deadlines, 'value', None))
+
+        # Once the deadline has passed requests are dropped, but things are
+        # fine again afterwards
+        with self.assertRaises(DeadlineExceededException):
+            with c.deadline(0):
+                time.sleep(0.01)
+                String.valueOf(2)
+        self.assertEqual(String.valueOf(3), '3')
+
+        # Bad timeouts are rejected
+        with self.assertRaises(ValueError):
+            c.deadline(-1)
+
+
+    def test_shm_transport(self):
+        """
+        Make sure that we can talk to a child JVM over the shared memory rings,
+        including with messages which are bigger than the rings themselves.
+        """
+        if not pjrmi.ShmRingTransport.is_supported():
+            self.skipTest("Shared memory transport not supported here")
+
+        c = pjrmi.connect_to_child_jvm(stdin=None, stdout=None, stderr=None,
+                                       use_shm_transport=True)
+        try:
+            String = c.class_for_name('java.lang.String')
+            for i in range(100):
+                self.assertEqual(String.valueOf(i), str(i))
+
+            # Bigger than the default 1MB rings, so that they have to wrap
+            big = 'x' * (3 * 1024 * 1024 + 7)
+            self.assertEqual(String.valueOf(big), big)
+        finally:
+            c.disconnect()
+
+
     def test_forked_process_cleanup(self):
         """
         Test that if the Python process forks, the child process gets shutdown
@@ -1260,6 +1423,233 @@ public class TestInjectSource {
                                                          java_string_array_class))
 
 
+    def test_shm_arena(self):
+        """
+        Make sure that arrays which Java sends through its shared-memory arena
+        come back intact, and that we give their blocks back so that Java can
+        reuse them.
+        """
+        c = get_pjrmi()
+        Ldouble = c.class_for_name('[D')
+
+        # About 1MB, so that going around 100 times wraps the 64MB arena
+        expected = numpy.arange(128 * 1024, dtype=numpy.float64)
+        array = Ldouble(len(expected))
+        array[:] = expected
+
+        # Note which block of the arena each array came in
+        blocks = []
+        read_shm_arena = c._read_shm_arena
+        def recording_read_shm_arena(bytes, idx):
+            (filename, offset_idx) = c._read_utf16(bytes, idx)
+            (offset,   _         ) = c._read_int64(bytes, offset_idx)
+            blocks.append((filename, offset))
+            return read_shm_arena(bytes, idx)
+        c._read_shm_arena = recording_read_shm_arena
+        try:
+            for i in range(100):
+                self.assertTrue(numpy.array_equal(c.value_of(array), expected))
+
+                # We should have told Java that it can have the block back
+                (filename, offset) = blocks[-1]
+                (released,) = struct.unpack_from(
+                    '=q',
+                    c._shm_arenas[filename],
+                    offset + c._SHM_ARENA_RELEASED_OFFSET
+                )
+                self.assertEqual(released, 1)
+        finally:
+            del c._read_shm_arena
+
+        # Everything went through the arena, which means that Java must have
+        # reused the blocks
+        self.assertEqual(len(blocks), 100)
+        self.assertLess(len(set(blocks)), len(blocks))
+
+
+    def test_shmdata_shaped(self):
+        """
+        Make sure that hypercubes, including views of them, and
+        multi-dimensional arrays come back from Java with their shape, and that
+        we don't leave their files lying around.
+        """
+        c = get_pjrmi()
+        CubeMath = c.class_for_name('com.deshaw.hypercube.CubeMath')
+        Ldouble  = c.class_for_name('[D')
+        LLdouble = c.class_for_name('[[D')
+
+        nda  = numpy.arange(7 * 11 * 13, dtype=numpy.float64).reshape((7, 11, 13))
+        cube = CubeMath.copy(nda)
+
+        # A rectangular double[][]
+        array2d = LLdouble(3)
+        for i in range(3):
+            array1d = Ldouble(4)
+            array1d[:] = [float(i * 4 + j) for j in range(4)]
+            array2d[i] = array1d
+
+        # Note the files which Java gives us
+        filenames = []
+        read_shmdata_shaped = c._read_shmdata_shaped
+        def recording_read_shmdata_shaped(bytes, idx):
+            filenames.append(c._read_utf16(bytes, idx)[0])
+            return read_shmdata_shaped(bytes, idx)
+        c._read_shmdata_shaped = recording_read_shmdata_shaped
+        try:
+            cases = ((cube,                     nda),
+                     (cube[2:5, 1:9],           nda[2:5, 1:9]),
+                     (cube[3],                  nda[3]),
+                     (cube.transpose(),         nda.transpose()),
+                     (CubeMath.roll(cube, 1),   numpy.roll(nda, 1)),
+                     (CubeMath.roll(cube, (1, 2), axis=(0, 1)),
+                      numpy.roll(nda, (1, 2), axis=(0, 1))),
+                     (array2d,                  numpy.arange(12.0).reshape((3, 4))))
+            for (java, expected) in cases:
+                result = c.value_of(java)
+                self.assertIsInstance(result, numpy.ndarray)
+                self.assertEqual(result.shape, expected.shape)
+                self.assertTrue(numpy.array_equal(result, expected))
+        finally:
+            del c._read_shmdata_shaped
+
+        # Each one came via its own file, which we removed once we had it
+        self.assertEqual(len(filenames), len(cases))
+        for filename in filenames:
+            self.assertFalse(os.path.exists(filename), filename)
+
+
+    def test_shmdata_parallel_copy(self):
+        """
+        Make sure that big arrays and hypercubes, which Java copies to and from
+        shared memory in parallel, come through intact. Also that we wait for
+        Java to finish writing the shaped ones, and notice if it failed to.
+        """
+        c = get_pjrmi()
+        CubeMath         = c.class_for_name('com.deshaw.hypercube.CubeMath')
+        PJRmiTestHelpers = c.class_for_name('com.deshaw.pjrmi.test.PJRmiTestHelpers')
+
+        # Too big for the arena, so that it goes via its own file both ways
+        big = numpy.random.random(10 * 1024 * 1024)
+        self.assertTrue(
+            numpy.array_equal(c.value_of(PJRmiTestHelpers.doubleArrayIdentity(big)),
+                              big)
+        )
+
+        # A cube which is big enough that it's split up when copied
+        nda = big[:3 * 1024 * 1024].reshape((1024, 3 * 1024))
+        self.assertTrue(numpy.array_equal(c.value_of(CubeMath.copy(nda)), nda))
+
+        # Now the waiting, with a file of our own
+        with tempfile.NamedTemporaryFile() as fh:
+            fh.truncate(c._SHM_DATA_HEADER_SIZE)
+            header = mmap.mmap(fh.fileno(), c._SHM_DATA_HEADER_SIZE)
+            def set_state(state):
+                struct.pack_into('=q', header, c._SHM_DATA_STATE_OFFSET, state)
+            try:
+                # Already written
+                set_state(c._SHM_DATA_STATE_DONE)
+                c._await_shmdata(fh.name, header)
+
+                # Written while we wait
+                set_state(c._SHM_DATA_STATE_WRITING)
+                def finish():
+                    time.sleep(0.1)
+                    set_state(c._SHM_DATA_STATE_DONE)
+                thread = Thread(target=finish)
+                thread.start()
+                c._await_shmdata(fh.name, header)
+                thread.join()
+
+                # Java gave up
+                set_state(c._SHM_DATA_STATE_FAILED)
+                with self.assertRaises(IOError):
+                    c._await_shmdata(fh.name, header)
+            finally:
+                header.close()
+
+
+    def test_bulk_transfer(self):
+        """
+        Make sure that a big argument, which is split up and sent over the side
+        channels, gets put back together correctly on the other side.
+        """
+        (process, c) = connect_to_socket_server(num_bulk_streams=4)
+        try:
+            CubeMath         = c.class_for_name('com.deshaw.hypercube.CubeMath')
+            PJRmiTestHelpers = c.class_for_name('com.deshaw.pjrmi.test.PJRmiTestHelpers')
+
+            # Bigger than the default threshold of 16MB
+            big = numpy.random.random(3 * 1024 * 1024)
+            self.assertTrue(
+                numpy.array_equal(c.value_of(PJRmiTestHelpers.doubleArrayIdentity(big)),
+                                  big)
+            )
+            self.assertIsInstance(c._bulk, pjrmi._BulkChannel)
+
+            # And a shaped one
+            nda = big.reshape((1024, 3 * 1024))
+            self.assertTrue(numpy.array_equal(c.value_of(CubeMath.copy(nda)), nda))
+
+            # Small ones still go inline, and the connection is still good
+            small = numpy.arange(10.0)
+            self.assertTrue(
+                numpy.array_equal(c.value_of(PJRmiTestHelpers.doubleArrayIdentity(small)),
+                                  small)
+            )
+        finally:
+            c.disconnect()
+            process.kill()
+            process.wait()
+
+
+    def test_auto_shmdata(self):
+        """
+        Make sure that the ``AUTO_SHMDATA`` return format gives back big arrays
+        by value, and small ones by reference. Where shared memory can't be used
+        the big ones should be pickled instead.
+        """
+        c = get_pjrmi()
+        CubeMath         = c.class_for_name('com.deshaw.hypercube.CubeMath')
+        PJRmiTestHelpers = c.class_for_name('com.deshaw.pjrmi.test.PJRmiTestHelpers')
+        auto = c.VALUE_FORMAT_AUTO_SHMDATA
+
+        # Above the default threshold of 64KiB
+        big = numpy.arange(10000.0)
+        result = PJRmiTestHelpers.doubleArrayIdentity(big, __pjrmi_return_format__=auto)
+        self.assertIsInstance(result, numpy.ndarray)
+        self.assertTrue(numpy.array_equal(result, big))
+
+        # Below it
+        small = numpy.arange(100.0)
+        result = PJRmiTestHelpers.doubleArrayIdentity(small, __pjrmi_return_format__=auto)
+        self.assertNotIsInstance(result, numpy.ndarray)
+        self.assertTrue(numpy.array_equal(c.value_of(result), small))
+
+        # Cubes keep their shape
+        nda = big.reshape((100, 100))
+        result = CubeMath.copy(nda, __pjrmi_return_format__=auto)
+        self.assertIsInstance(result, numpy.ndarray)
+        self.assertTrue(numpy.array_equal(result, nda))
+
+        # And, when we are not on the same host, we fall back to pickling
+        (process, c) = connect_to_socket_server()
+        try:
+            PJRmiTestHelpers = c.class_for_name('com.deshaw.pjrmi.test.PJRmiTestHelpers')
+            result = PJRmiTestHelpers.doubleArrayIdentity(
+                big, __pjrmi_return_format__=c.VALUE_FORMAT_AUTO_SHMDATA
+            )
+            self.assertTrue(numpy.array_equal(numpy.asarray(result), big))
+
+            result = PJRmiTestHelpers.doubleArrayIdentity(
+                small, __pjrmi_return_format__=c.VALUE_FORMAT_AUTO_SHMDATA
+            )
+            self.assertTrue(numpy.array_equal(c.value_of(result), small))
+        finally:
+            c.disconnect()
+            process.kill()
+            process.wait()
+
+
     def test_arraylike(self):
         """
         Kick the tires on ArrayLike operations.
@@ -1287,6 +1677,51 @@ public class TestInjectSource {
                 self.assertEqual(array2d[i][j], wrapped[i, j])
 
 
+    def test_array_slices(self):
+        """
+        Make sure that bulk slicing of arrays, ArrayLikes and Hypercubes works
+        like it does for Python lists.
+        """
+        Ldouble          = get_pjrmi().class_for_name('[D')
+        CubeMath         = get_pjrmi().class_for_name('com.deshaw.hypercube.CubeMath')
+        WrappedArrayLike = get_pjrmi().class_for_name('com.deshaw.pjrmi.PJRmi$WrappedArrayLike')
+
+        length = 100
+        expected = [float(i) for i in range(length)]
+
+        # Populate a double[] via a slice and make sure that it's right
+        array = Ldouble(length)
+        array[:] = expected
+        self.assertEqual(list(array), expected)
+
+        # Now try a bunch of different selections on the different types
+        cube    = CubeMath.copy(numpy.array(expected))
+        wrapped = WrappedArrayLike(array)
+        keys = (slice(None),
+                slice(10, 20),
+                slice(-10, None),
+                slice(None, None, -3),
+                slice(50, 5, -7),
+                slice(200, 300),
+                [0, 5, -1, 42])
+        for key in keys:
+            if isinstance(key, slice):
+                want = expected[key]
+            else:
+                want = [expected[i] for i in key]
+            self.assertEqual(list(array[key]), want)
+            self.assertEqual(list(get_pjrmi().get_slice(cube,    key)), want)
+            self.assertEqual(list(get_pjrmi().get_slice(wrapped, key)), want)
+
+        # And setting, with a broadcast scalar and an index list
+        array[10:20] = -1.0
+        array[[0, -1]] = [-2.0, -3.0]
+        expected[10:20] = [-1.0] * 10
+        expected[0]     = -2.0
+        expected[-1]    = -3.0
+        self.assertEqual(list(array), expected)
+
+
     def test_iterators(self):
         """
         Ensure that we handle iterators (and especially) exceptions from
@@ -1315,6 +1750,18 @@ public class TestInjectSource {
         with self.assertRaises(pjrmi.JavaException):
             next(i)
 
+        # Iterators are fetched in chunks of growing size so make sure that we
+        # see everything, in order, for something spanning many chunks. Do the
+        # same for Spliterators and Streams.
+        IntStream = get_pjrmi().class_for_name('java.util.stream.IntStream')
+        expected = list(range(100000))
+        l3 = ArrayList()
+        for i in expected:
+            l3.add(i)
+        self.assertEqual(list(l3), expected)
+        self.assertEqual(list(l3.spliterator()), expected)
+        self.assertEqual(list(IntStream.range(0, len(expected)).boxed()), expected)
+
 
     def test_extended_types(self):
         """